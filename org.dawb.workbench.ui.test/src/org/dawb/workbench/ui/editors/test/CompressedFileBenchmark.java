@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawb.workbench.ui.editors.test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.tools.bzip2.CBZip2InputStream;
+import org.apache.tools.bzip2.CBZip2OutputStream;
+import org.dawb.workbench.ui.editors.zip.CompressedFile;
+
+/**
+ * Times reading a compressed file the way ZipUtils did, through CBZip2InputStream
+ * or GZIPInputStream on an unbuffered FileInputStream, against CompressedFile:
+ * making the index, reading the whole stream and opening the file again.
+ *
+ * Run as a java application, the argument is a .bz2 or .gz file. Without a file
+ * a bzip2 file of 64 MB of 16 bit images is written to the temporary directory.
+ */
+class CompressedFileBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		final File file = args.length>0 ? new File(args[0]) : createImages(64*1024*1024);
+		System.out.println(String.format("%s, %.1f MB, %d cores", file.getName(), file.length()/(1024d*1024d), Runtime.getRuntime().availableProcessors()));
+
+		long start = System.currentTimeMillis();
+		final InputStream old = file.getName().endsWith(".gz")
+				              ? new GZIPInputStream(new FileInputStream(file))
+				              : new CBZip2InputStream(new FileInputStream(file));
+		final long oldCrc = checksum(old);
+		report("Single stream", System.currentTimeMillis()-start);
+
+		start = System.currentTimeMillis();
+		final CompressedFile compressed = CompressedFile.open(file);
+		report("Index", System.currentTimeMillis()-start);
+		try {
+			start = System.currentTimeMillis();
+			final long crc = checksum(compressed.getInputStream());
+			report("Parallel stream", System.currentTimeMillis()-start);
+			if (crc!=oldCrc) throw new Exception("The parallel stream is not the same as the single stream!");
+		} finally {
+			compressed.close();
+		}
+
+		start = System.currentTimeMillis();
+		CompressedFile.open(file).close();
+		report("Opening again", System.currentTimeMillis()-start);
+	}
+
+	private static long checksum(InputStream in) throws Exception {
+		try {
+			final CRC32  crc    = new CRC32();
+			final byte[] buffer = new byte[65536];
+			for (int n; (n = in.read(buffer))>0;) crc.update(buffer, 0, n);
+			return crc.getValue();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void report(String what, long time) {
+		System.out.println(String.format("%s: %d ms", what, time));
+	}
+
+	/**
+	 * Images of a smooth background, peaks and noise, like a detector.
+	 */
+	private static File createImages(int size) throws Exception {
+
+		final File file = File.createTempFile("benchmark_images", ".bz2");
+		file.deleteOnExit();
+		final OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		out.write('B');
+		out.write('Z');
+		final OutputStream bz = new CBZip2OutputStream(out);
+		try {
+			final Random random = new Random(1);
+			final int    width  = 1024;
+			final byte[] row    = new byte[2*width];
+			for (int y = 0; y < size/row.length; y++) {
+				for (int x = 0; x < width; x++) {
+					final double dx = x%256-128, dy = y%256-128;
+					final int value = (int)(100 + 1000*Math.exp(-(dx*dx+dy*dy)/200) + 10*random.nextGaussian());
+					row[2*x]   = (byte)(value>>8);
+					row[2*x+1] = (byte)value;
+				}
+				bz.write(row);
+			}
+		} finally {
+			bz.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawb.workbench.ui.editors.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.tools.bzip2.CBZip2InputStream;
+import org.apache.tools.bzip2.CBZip2OutputStream;
+import org.dawb.workbench.ui.editors.zip.CompressedFile;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Files are written here and read back through CompressedFile, in pieces which
+ * cross the chunks, and checked against the data written and against reading
+ * the file as a single stream.
+ */
+public class CompressedFileTest {
+
+	/**
+	 * Data in each blocked gzip member, as bgzip writes.
+	 */
+	private static final int BGZF_BLOCK = 65280;
+
+	private final List<File> files = new ArrayList<File>();
+
+	@After
+	public void delete() {
+		for (File file : files) file.delete();
+		files.clear();
+	}
+
+	/**
+	 * Blocks of 100k, so the file has several.
+	 */
+	@Test
+	public void testBzip2Blocks() throws Exception {
+		final byte[] data = createData(550*1024, 1);
+		final File   file = createFile(".bz2");
+		writeBzip2(file, true, data);
+
+		check(file, data, true);
+		assertArrayEquals(data, readSingleStream(file));
+	}
+
+	/**
+	 * Written without the BZ, as CBZip2OutputStream does.
+	 */
+	@Test
+	public void testBzip2WithoutMagic() throws Exception {
+		final byte[] data = createData(250*1024, 2);
+		final File   file = createFile(".bz2");
+		writeBzip2(file, false, data);
+
+		check(file, data, true);
+		assertArrayEquals(data, readSingleStream(file));
+	}
+
+	/**
+	 * Streams one after another, as from cat a.bz2 b.bz2 or pbzip2.
+	 */
+	@Test
+	public void testConcatenatedBzip2() throws Exception {
+		final byte[] first  = createData(230*1024, 3);
+		final byte[] second = createData(170*1024, 4);
+		final File   a      = createFile(".bz2");
+		final File   b      = createFile(".bz2");
+		writeBzip2(a, true, first);
+		writeBzip2(b, true, second);
+
+		final File file = createFile(".bz2");
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(readBytes(a));
+			out.write(readBytes(b));
+		} finally {
+			out.close();
+		}
+
+		final byte[] data = new byte[first.length+second.length];
+		System.arraycopy(first,  0, data, 0,            first.length);
+		System.arraycopy(second, 0, data, first.length, second.length);
+		check(file, data, true);
+	}
+
+	@Test
+	public void testBlockedGzip() throws Exception {
+		final byte[] data = createData(5*BGZF_BLOCK+1234, 5);
+		final File   file = createFile(".gz");
+		writeBgzf(file, data);
+
+		check(file, data, true);
+		assertArrayEquals(data, readSingleStream(file));
+
+		// Pieces which end either side of each member
+		final CompressedFile compressed = CompressedFile.open(file);
+		try {
+			checkPieces(compressed.getInputStream(), data, new int[]{BGZF_BLOCK-1, 2, BGZF_BLOCK-2, BGZF_BLOCK+2, 1});
+		} finally {
+			compressed.close();
+		}
+	}
+
+	@Test
+	public void testGzip() throws Exception {
+		final byte[] data = createData(300*1024, 6);
+		final File   file = createFile(".gz");
+		final OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+
+		check(file, data, false);
+		assertArrayEquals(data, readSingleStream(file));
+	}
+
+	@Test(expected=IOException.class)
+	public void testNotCompressed() throws Exception {
+		final File file = createFile(".gz");
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(createData(1024, 7));
+		} finally {
+			out.close();
+		}
+		CompressedFile.open(file).close();
+	}
+
+	/**
+	 * More files than the indices kept, each opened twice, and the first again
+	 * after its index has been dropped.
+	 */
+	@Test
+	public void testManyFiles() throws Exception {
+		final List<byte[]> data  = new ArrayList<byte[]>();
+		final List<File>   files = new ArrayList<File>();
+		for (int i = 0; i < 40; i++) {
+			data.add(createData(1024+i*97, 20+i));
+			files.add(createFile(".gz"));
+			writeBgzf(files.get(i), data.get(i));
+		}
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < files.size(); i++) {
+				assertArrayEquals(data.get(i), readAll(CompressedFile.getInputStream(files.get(i))));
+			}
+		}
+		assertArrayEquals(data.get(0), readAll(CompressedFile.getInputStream(files.get(0))));
+	}
+
+	/**
+	 * The whole stream, the stream read a byte at a time and in pieces of sizes
+	 * which cross the chunks, then the stream of the file opened again with its
+	 * index kept, and closed before the end.
+	 */
+	private static void check(File file, byte[] data, boolean indexed) throws IOException {
+
+		final CompressedFile compressed = CompressedFile.open(file);
+		try {
+			assertEquals(indexed, compressed.isIndexed());
+			assertArrayEquals(data, readAll(compressed.getInputStream()));
+
+			final InputStream in = compressed.getInputStream();
+			try {
+				for (int i = 0; i < data.length; i++) {
+					final int b = in.read();
+					if (b!=(data[i]&0xff)) assertEquals("Byte "+i, data[i]&0xff, b);
+				}
+				assertEquals(-1, in.read());
+				assertEquals(-1, in.read(new byte[10], 0, 10));
+			} finally {
+				in.close();
+			}
+
+			final Random random = new Random(11);
+			final int[]  sizes  = new int[50];
+			for (int i = 0; i < sizes.length; i++) sizes[i] = 1+random.nextInt(300*1024);
+			checkPieces(compressed.getInputStream(), data, sizes);
+			checkPieces(compressed.getInputStream(), data, new int[]{7919});
+		} finally {
+			compressed.close();
+		}
+
+		// Opened again with the index kept, and closed part way through
+		final InputStream again = CompressedFile.getInputStream(file);
+		try {
+			final byte[] buffer = new byte[data.length/3];
+			assertEquals(buffer.length, readFully(again, buffer));
+			for (int i = 0; i < buffer.length; i++) {
+				if (buffer[i]!=data[i]) assertEquals("Byte "+i, data[i], buffer[i]);
+			}
+		} finally {
+			again.close();
+		}
+	}
+
+	/**
+	 * Reads the stream to its end, in pieces of each size in turn.
+	 */
+	private static void checkPieces(InputStream in, byte[] data, int[] sizes) throws IOException {
+		try {
+			int position = 0;
+			for (int i = 0; position < data.length; i++) {
+				final int    length = sizes[i%sizes.length];
+				final byte[] buffer = new byte[length+2];
+				final int    read   = in.read(buffer, 1, length);
+				assertTrue("Read at "+position, read>0 && read<=Math.min(length, data.length-position));
+				for (int j = 0; j < read; j++) {
+					if (buffer[1+j]!=data[position+j]) {
+						assertEquals("Byte "+(position+j)+" read at "+position, data[position+j], buffer[1+j]);
+					}
+				}
+				assertEquals(0, buffer[0]);
+				assertEquals(0, buffer[length+1]);
+				position += read;
+			}
+			assertEquals(-1, in.read(new byte[10], 0, 10));
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buffer) throws IOException {
+		int read = 0;
+		for (int n; read<buffer.length && (n = in.read(buffer, read, buffer.length-read))>=0;) read += n;
+		return read;
+	}
+
+	/**
+	 * Lines of numbers, which compress about as well as ascii data files.
+	 */
+	private static byte[] createData(int size, long seed) {
+		final Random        random = new Random(seed);
+		final StringBuilder text   = new StringBuilder(size+64);
+		while (text.length()<size) {
+			text.append(random.nextInt(1000)).append(' ').append(random.nextGaussian()).append('\n');
+		}
+		final byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) data[i] = (byte)text.charAt(i);
+		return data;
+	}
+
+	private File createFile(String extension) throws IOException {
+		final File file = File.createTempFile("compressed_file_test", extension);
+		file.deleteOnExit();
+		files.add(file);
+		return file;
+	}
+
+	private static void writeBzip2(File file, boolean magic, byte[] data) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			if (magic) {
+				out.write('B');
+				out.write('Z');
+			}
+			final OutputStream bz = new CBZip2OutputStream(out, 1);
+			bz.write(data);
+			bz.close();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Blocked gzip as bgzip writes it, members with the size in a BC field
+	 * and an empty member at the end.
+	 */
+	private static void writeBgzf(File file, byte[] data) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			for (int from = 0; from < data.length; from += BGZF_BLOCK) {
+				writeMember(out, data, from, Math.min(BGZF_BLOCK, data.length-from));
+			}
+			writeMember(out, data, 0, 0);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeMember(OutputStream out, byte[] data, int from, int length) throws IOException {
+
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final byte[]   deflated = new byte[length+1024];
+		deflater.setInput(data, from, length);
+		deflater.finish();
+		int size = 0;
+		while (!deflater.finished()) size += deflater.deflate(deflated, size, deflated.length-size);
+		deflater.end();
+
+		final CRC32 crc = new CRC32();
+		crc.update(data, from, length);
+
+		final int block = 18+size+8;
+		out.write(new byte[]{0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 'B', 'C', 2, 0});
+		writeInt(out, block-1, 2);
+		out.write(deflated, 0, size);
+		writeInt(out, crc.getValue(), 4);
+		writeInt(out, length, 4);
+	}
+
+	private static void writeInt(OutputStream out, long value, int bytes) throws IOException {
+		for (int i = 0; i < bytes; i++) out.write((int)(value>>>(8*i)) & 0xff);
+	}
+
+	/**
+	 * The way the file was read before it was indexed.
+	 */
+	private static byte[] readSingleStream(File file) throws IOException {
+		final InputStream in = file.getName().endsWith(".gz")
+				             ? new GZIPInputStream(new FileInputStream(file))
+				             : new CBZip2InputStream(new FileInputStream(file));
+		return readAll(in);
+	}
+
+	private static byte[] readBytes(File file) throws IOException {
+		return readAll(new FileInputStream(file));
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try {
+			final ByteArrayOutputStream out    = new ByteArrayOutputStream();
+			final byte[]                buffer = new byte[65536];
+			for (int n; (n = in.read(buffer))>=0;) out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -49,6 +49,8 @@ public class ZipEditor extends MultiPageEditorPart implements  IPlottingSystemSe
 	private PlotDataEditor dataSetEditor;
 
 	private PlotImageEditor plotImageEditor;
+
+	private File unzipped;
 	
 	@Override
 	public void init(IEditorSite site, IEditorInput input) throws PartInitException{
@@ -60,6 +62,7 @@ public class ZipEditor extends MultiPageEditorPart implements  IPlottingSystemSe
 	public void setInput(final IEditorInput input) {
 		super.setInput(input);
 		setPartName(input.getName());
+		deleteUnzipped();
 		for (int i = 0; i < getPageCount(); i++) removePage(i);
 		createPages();
 	}
@@ -124,10 +127,21 @@ public class ZipEditor extends MultiPageEditorPart implements  IPlottingSystemSe
 		if (dataEditor!=null) removePageChangedListener(dataEditor);
 		dataEditor = null;
 		super.dispose();
+		deleteUnzipped();
 	}
 
+	/**
+	 * The pages share one extracted file, the loaders read files by path.
+	 */
 	private IEditorInput getUnzippedEditorInput() throws Exception {
 		
+		if (unzipped==null || !unzipped.exists()) unzipped = unzip();
+		final IFileStore externalFile = EFS.getLocalFileSystem().fromLocalFile(unzipped);
+		return new FileStoreEditorInput(externalFile);
+	}
+
+	private File unzip() throws Exception {
+		
         final InputStream in  = ZipUtils.getStreamForFile(EclipseUtils.getFile(getEditorInput()));
         final String fileName = getEditorInput().getName();
         final String zipExt   = FileUtils.getFileExtension(fileName);
@@ -137,9 +151,12 @@ public class ZipEditor extends MultiPageEditorPart implements  IPlottingSystemSe
         final File      file = File.createTempFile(fileName, "."+origExt);
         file.deleteOnExit();
         FileUtils.write(new BufferedInputStream(in), file);
-       
-		final IFileStore externalFile = EFS.getLocalFileSystem().fromLocalFile(file);
-		return new FileStoreEditorInput(externalFile);
+        return file;
+	}
+
+	private void deleteUnzipped() {
+		if (unzipped!=null) unzipped.delete();
+		unzipped = null;
 	}
 	
 	/**
@@ -0,0 +1,552 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawb.workbench.ui.editors.zip;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.tools.bzip2.CBZip2InputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parallel decoding of a bzip2 or gzip file.
+ *
+ * The file is cut in to chunks which can be decoded on their own. For bzip2
+ * these are the blocks of the stream, found by looking for the 48 bit block
+ * markers (they are not byte aligned), and each is decoded by giving
+ * CBZip2InputStream a stream of that block only. For gzip they are the members
+ * of the file, which are known without inflating when the file is blocked gzip
+ * (BGZF, as written by bgzip), because each header holds the size of its member.
+ * Other gzip files are one chunk read from the start, the Inflater cannot be
+ * started again part way through a member.
+ *
+ * The chunks are decoded on a pool with a thread a core, the stream from
+ * getInputStream() decodes the chunks ahead of the one being read. The indices
+ * of the last few files opened are kept while the files are not changed, so
+ * opening one again does not scan it again.
+ *
+ * Only the whole stream is offered. The loaders read files by path, so the
+ * ZipEditor extracts the data once through this stream and there is nothing
+ * which could read the decompressed data at a position.
+ */
+public class CompressedFile implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(CompressedFile.class);
+
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long END_MAGIC   = 0x177245385090L;
+	private static final long MAGIC_MASK  = 0xffffffffffffL;
+
+	/**
+	 * Bytes each task looks through for bzip2 block markers.
+	 */
+	private static final int SCAN_SIZE = 16*1024*1024;
+
+	/**
+	 * Files whose index is kept.
+	 */
+	private static final int MAX_INDICES = 32;
+
+	private static ExecutorService decoder;
+
+	/**
+	 * @return daemon pool, a thread each core, on which chunks are decoded
+	 */
+	static synchronized ExecutorService getDecoder() {
+		if (decoder==null) {
+			decoder = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "Compressed file decoder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return decoder;
+	}
+
+	private static final Map<String, Index> INDICES = new LinkedHashMap<String, Index>(MAX_INDICES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Index> eldest) {
+			return size() > MAX_INDICES;
+		}
+	};
+
+	public static boolean isExtensionSupported(final String ext) {
+		return "bz2".equals(ext) || "gz".equals(ext);
+	}
+
+	/**
+	 * Opens a file, making its index unless the file has been opened since it last changed.
+	 *
+	 * @param file
+	 * @return the file, which should be closed
+	 * @throws IOException if the file is not bzip2 or gzip
+	 */
+	public static CompressedFile open(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final String key = file.getAbsolutePath();
+			Index index;
+			synchronized (INDICES) {
+				index = INDICES.get(key);
+			}
+			if (index==null || index.modified!=file.lastModified() || index.fileLength!=raf.length()) {
+				final long start = System.currentTimeMillis();
+				index = createIndex(raf.getChannel(), file.lastModified(), raf.length());
+				logger.debug("Indexed {} in {} ms, {} chunks", new Object[]{file.getName(), System.currentTimeMillis()-start, index.getCount()});
+				synchronized (INDICES) {
+					INDICES.put(key, index);
+				}
+			}
+			return new CompressedFile(file, raf, index);
+		} catch (IOException ne) {
+			raf.close();
+			throw ne;
+		}
+	}
+
+	/**
+	 * The stream of a whole file, decoded ahead in parallel.
+	 *
+	 * @param file
+	 * @return stream which closes the file when it is closed
+	 * @throws IOException
+	 */
+	public static InputStream getInputStream(final File file) throws IOException {
+		final CompressedFile compressed = open(file);
+		return compressed.new ChunkStream(true);
+	}
+
+	private final File             file;
+	private final RandomAccessFile raf;
+	private final FileChannel      channel;
+	private final Index            index;
+
+	private CompressedFile(File file, RandomAccessFile raf, Index index) {
+		this.file    = file;
+		this.raf     = raf;
+		this.channel = raf.getChannel();
+		this.index   = index;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return true if the file has more than one chunk, so it may be read in parallel
+	 */
+	public boolean isIndexed() {
+		return index.chunked && index.getCount() > 1;
+	}
+
+	/**
+	 * @return stream of the whole file, decoding the chunks ahead in parallel
+	 */
+	public InputStream getInputStream() throws IOException {
+		return new ChunkStream(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	private Future<byte[]> submit(final int chunk) {
+		return getDecoder().submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return decode(chunk);
+			}
+		});
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ne) {
+			throw new IOException("Decoding interrupted", ne);
+		} catch (ExecutionException ne) {
+			if (ne.getCause() instanceof IOException) throw (IOException)ne.getCause();
+			throw new IOException(ne.getCause());
+		}
+	}
+
+	/**
+	 * @return the decompressed data of a chunk
+	 */
+	private byte[] decode(int chunk) throws IOException {
+
+		final long start = index.getStart(chunk);
+		final long end   = index.getEnd(chunk);
+		final byte[] compressed = new byte[(int)(((end+7)>>3) - (start>>3))];
+		readFully(channel, start>>3, compressed);
+
+		final InputStream in;
+		if (index.bzip2) {
+			in = new CBZip2InputStream(new ByteArrayInputStream(toStream(compressed, (int)(start&7), end-start)));
+		} else {
+			in = new GZIPInputStream(new ByteArrayInputStream(compressed), compressed.length);
+		}
+		try {
+			final long known = index.getLength(chunk);
+			byte[] data = new byte[known>=0 ? (int)known : Math.max(1024, compressed.length*4)];
+			int size = 0;
+			for (int n; (n = in.read(data, size, data.length-size))>0;) {
+				size += n;
+				if (size==data.length) {
+					final int next = in.read();
+					if (next<0) break;
+					data = Arrays.copyOf(data, data.length*2);
+					data[size++] = (byte)next;
+				}
+			}
+			final byte[] ret = size==data.length ? data : Arrays.copyOf(data, size);
+			index.setLength(chunk, ret.length);
+			return ret;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A bzip2 stream of one block: the header, the bits of the block moved to
+	 * start on a byte, then the end of stream marker and the stream CRC, which
+	 * for a stream of one block is the CRC of the block.
+	 *
+	 * @param bytes holding the block
+	 * @param shift bit of the first byte where the block starts
+	 * @param bits length of the block
+	 */
+	private static byte[] toStream(byte[] bytes, int shift, long bits) {
+
+		final BitWriter out = new BitWriter((int)((bits+7)>>3) + 16);
+		out.write('B', 8);
+		out.write('Z', 8);
+		out.write('h', 8);
+		out.write('9', 8);
+
+		final int whole = (int)(bits>>3);
+		for (int i = 0; i < whole; i++) {
+			final int hi = bytes[i] & 0xff;
+			final int lo = i+1<bytes.length ? bytes[i+1] & 0xff : 0;
+			out.write(((hi<<8 | lo) >>> (8-shift)) & 0xff, 8);
+		}
+		final int rest = (int)(bits&7);
+		if (rest>0) {
+			final int hi = bytes[whole] & 0xff;
+			final int lo = whole+1<bytes.length ? bytes[whole+1] & 0xff : 0;
+			out.write(((hi<<8 | lo) >>> (16-shift-rest)) & ((1<<rest)-1), rest);
+		}
+
+		// The block CRC follows the 48 bit block marker
+		long crc = 0;
+		for (int i = 0; i < 32; i++) {
+			final int bit  = shift+48+i;
+			crc = crc<<1 | ((bytes[bit>>3] >>> (7-(bit&7))) & 1);
+		}
+		out.write((int)(END_MAGIC>>>24), 24);
+		out.write((int)(END_MAGIC&0xffffff), 24);
+		out.write((int)(crc>>>16), 16);
+		out.write((int)(crc&0xffff), 16);
+		return out.toByteArray();
+	}
+
+	private static void readFully(FileChannel channel, long position, byte[] bytes) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			final int n = channel.read(buffer, position+buffer.position());
+			if (n<0) throw new IOException("Unexpected end of file at "+(position+buffer.position()));
+		}
+	}
+
+	private static Index createIndex(FileChannel channel, long modified, long fileLength) throws IOException {
+
+		final byte[] header = new byte[Math.min(18, (int)fileLength)];
+		readFully(channel, 0, header);
+		if (header.length>2 && (header[0]&0xff)==0x1f && (header[1]&0xff)==0x8b) {
+			return createGzipIndex(channel, modified, fileLength);
+		}
+		final boolean bz = header.length>3 && header[0]=='B' && header[1]=='Z' && header[2]=='h';
+		final boolean h  = header.length>1 && header[0]=='h'; // Written without the BZ, as read by CBZip2InputStream
+		if (bz || h) return createBzip2Index(channel, modified, fileLength);
+		throw new IOException("The file is not bzip2 or gzip compressed");
+	}
+
+	/**
+	 * Each block starts at a block marker and ends at the next block or end of stream
+	 * marker, found by looking through the file at each bit in parallel.
+	 */
+	private static Index createBzip2Index(final FileChannel channel, long modified, final long fileLength) throws IOException {
+
+		final List<Future<List<Long>>> scans = new ArrayList<Future<List<Long>>>();
+		for (long from = 0; from < fileLength; from += SCAN_SIZE) {
+			final long start = from;
+			scans.add(getDecoder().submit(new Callable<List<Long>>() {
+				@Override
+				public List<Long> call() throws Exception {
+					return scan(channel, start, Math.min(start+SCAN_SIZE, fileLength), fileLength);
+				}
+			}));
+		}
+		final List<Long> markers = new ArrayList<Long>();
+		for (Future<List<Long>> scan : scans) markers.addAll(get(scan));
+
+		// Markers are kept as bit<<1, the low bit set for a block
+		final Index index = new Index(true, true, modified, fileLength);
+		for (int i = 0; i < markers.size(); i++) {
+			final long marker = markers.get(i);
+			if ((marker&1)==0) continue;
+			final long start = marker>>>1;
+			final long end   = i+1<markers.size() ? markers.get(i+1)>>>1 : fileLength*8;
+			index.add(start, end, -1);
+		}
+		if (index.getCount()==0) throw new IOException("No bzip2 blocks found");
+		return index;
+	}
+
+	/**
+	 * @return markers starting in bytes [from, to), bit<<1 with the low bit set for block markers
+	 */
+	private static List<Long> scan(FileChannel channel, long from, long to, long fileLength) throws IOException {
+
+		final byte[] bytes = new byte[(int)(Math.min(to+6, fileLength)-from)];
+		readFully(channel, from, bytes);
+
+		final List<Long> markers = new ArrayList<Long>();
+		long window = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			window = window<<8 | (bytes[i]&0xff);
+			if (i<5) continue;
+			for (int shift = 7; shift >= 0; shift--) { // in order of the bit they start at
+				if (i==5 && shift>0) continue;
+				final long bits = (window>>>shift) & MAGIC_MASK;
+				if (bits!=BLOCK_MAGIC && bits!=END_MAGIC) continue;
+				final long start = (from+i+1)*8 - shift - 48;
+				if (start>=to*8) continue;
+				if (bits==BLOCK_MAGIC && !isBlock(bytes, start-from*8)) continue;
+				markers.add(start<<1 | (bits==BLOCK_MAGIC ? 1 : 0));
+			}
+		}
+		return markers;
+	}
+
+	/**
+	 * The marker may be in the compressed data by chance, the origin pointer
+	 * after it must be inside a block, which it is not for most chance matches.
+	 */
+	private static boolean isBlock(byte[] bytes, long bit) {
+		final long origin = bit + 48 + 32 + 1;
+		if (((origin+24)>>3) >= bytes.length) return true; // Decoding will tell
+		int ptr = 0;
+		for (int i = 0; i < 24; i++) {
+			final long b = origin+i;
+			ptr = ptr<<1 | ((bytes[(int)(b>>3)] >>> (7-(int)(b&7))) & 1);
+		}
+		return ptr < 900000;
+	}
+
+	/**
+	 * Blocked gzip members say how large they are in the BC field of the header,
+	 * and how much data they hold at their end, so the file is indexed by reading
+	 * the headers only. Other gzip files are not indexed.
+	 */
+	private static Index createGzipIndex(FileChannel channel, long modified, long fileLength) throws IOException {
+
+		final Index  index  = new Index(false, true, modified, fileLength);
+		final byte[] header = new byte[18];
+		final byte[] isize  = new byte[4];
+		long position = 0;
+		while (position<fileLength) {
+			if (fileLength-position<header.length) break;
+			readFully(channel, position, header);
+			final int size = getBlockSize(header);
+			if (size<0 || position+size>fileLength) break;
+			readFully(channel, position+size-4, isize);
+			final long length = (isize[0]&0xffL) | (isize[1]&0xffL)<<8 | (isize[2]&0xffL)<<16 | (isize[3]&0xffL)<<24;
+			if (length>0) index.add(position*8, (position+size)*8, length);
+			position += size;
+		}
+		if (position<fileLength || index.getCount()==0) {
+			final Index whole = new Index(false, false, modified, fileLength);
+			whole.add(0, fileLength*8, -1);
+			return whole;
+		}
+		return index;
+	}
+
+	/**
+	 * @return size of a blocked gzip member, or -1 if the header is not one
+	 */
+	private static int getBlockSize(byte[] header) {
+		if ((header[0]&0xff)!=0x1f || (header[1]&0xff)!=0x8b || header[2]!=8 || (header[3]&4)==0) return -1;
+		final int xlen = (header[10]&0xff) | (header[11]&0xff)<<8;
+		if (xlen<6 || header[12]!='B' || header[13]!='C' || header[14]!=2 || header[15]!=0) return -1;
+		return ((header[16]&0xff) | (header[17]&0xff)<<8) + 1;
+	}
+
+	/**
+	 * Reads the chunks in order, keeping up to two a core being decoded ahead.
+	 */
+	private final class ChunkStream extends InputStream {
+
+		private final boolean               closeFile;
+		private final Deque<Future<byte[]>> ahead;
+		private final int                   window;
+		private InputStream                 whole; // for files read as one chunk
+		private int                         next;
+		private byte[]                      data;
+		private int                         position;
+
+		ChunkStream(boolean closeFile) throws IOException {
+			this.closeFile = closeFile;
+			this.ahead     = new ArrayDeque<Future<byte[]>>();
+			this.window    = 2*Runtime.getRuntime().availableProcessors();
+			if (!index.chunked) {
+				whole = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), 65536), 65536);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] one = new byte[1];
+			final int n = read(one, 0, 1);
+			return n<0 ? -1 : one[0]&0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (whole!=null) return whole.read(b, off, len);
+			if (len==0) return 0;
+			while (data==null || position==data.length) {
+				while (ahead.size()<window && next<index.getCount()) ahead.add(submit(next++));
+				if (ahead.isEmpty()) return -1;
+				data     = get(ahead.poll());
+				position = 0;
+			}
+			final int n = Math.min(len, data.length-position);
+			System.arraycopy(data, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (Future<byte[]> future : ahead) future.cancel(false);
+			ahead.clear();
+			data = null;
+			if (whole!=null) whole.close();
+			if (closeFile) CompressedFile.this.close();
+		}
+	}
+
+	/**
+	 * Where the chunks of a file are, start and end in bits of the compressed
+	 * file, and once decoded how much data each has, so that the buffer for it
+	 * is the right size the next time.
+	 */
+	private static final class Index {
+
+		final boolean bzip2, chunked;
+		final long    modified, fileLength;
+
+		private final List<Long> starts  = new ArrayList<Long>();
+		private final List<Long> ends    = new ArrayList<Long>();
+		private final List<Long> lengths = new ArrayList<Long>();
+
+		Index(boolean bzip2, boolean chunked, long modified, long fileLength) {
+			this.bzip2      = bzip2;
+			this.chunked    = chunked;
+			this.modified   = modified;
+			this.fileLength = fileLength;
+		}
+
+		void add(long start, long end, long length) {
+			starts.add(start);
+			ends.add(end);
+			lengths.add(length);
+		}
+
+		int getCount() {
+			return starts.size();
+		}
+
+		long getStart(int chunk) {
+			return starts.get(chunk);
+		}
+
+		long getEnd(int chunk) {
+			return ends.get(chunk);
+		}
+
+		synchronized long getLength(int chunk) {
+			return lengths.get(chunk);
+		}
+
+		synchronized void setLength(int chunk, long length) {
+			lengths.set(chunk, length);
+		}
+	}
+
+	/**
+	 * Writes bits, most significant first.
+	 */
+	private static final class BitWriter {
+
+		private byte[] bytes;
+		private int    size;
+		private long   buffer;
+		private int    live;
+
+		BitWriter(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		void write(int value, int count) {
+			buffer = buffer<<count | (value & ((1L<<count)-1));
+			live  += count;
+			while (live>=8) {
+				if (size==bytes.length) bytes = Arrays.copyOf(bytes, bytes.length*2);
+				bytes[size++] = (byte)(buffer>>>(live-8));
+				live -= 8;
+			}
+		}
+
+		byte[] toByteArray() {
+			if (live>0) write(0, 8-live);
+			return Arrays.copyOf(bytes, size);
+		}
+	}
+}
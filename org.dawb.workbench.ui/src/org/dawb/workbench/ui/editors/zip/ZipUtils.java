@@ -8,8 +8,10 @@
  */ 
 package org.dawb.workbench.ui.editors.zip;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.util.HashMap;
@@ -19,9 +21,13 @@ import java.util.zip.ZipInputStream;
 
 import org.apache.tools.bzip2.CBZip2InputStream;
 import org.dawb.common.util.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class ZipUtils {
 
+	private static final Logger logger = LoggerFactory.getLogger(ZipUtils.class);
+
 	private static final Map<String, Class<? extends java.io.InputStream>> CLASSES;
 	static {
 		CLASSES = new HashMap<String, Class<? extends java.io.InputStream>>(3);
@@ -36,11 +42,23 @@ public class ZipUtils {
 	}
 
 	public static InputStream getStreamForFile(final String path) throws Exception {
-		return getStreamForStream(new FileInputStream(new File(path)), FileUtils.getFileExtension(path));
+		return getStreamForFile(new File(path));
 	}
 
+	/**
+	 * bzip2 and gzip files are decoded by CompressedFile, in parallel where
+	 * the file has blocks which can be decoded on their own.
+	 */
 	public static InputStream getStreamForFile(final File file) throws Exception {
-		return getStreamForStream(new FileInputStream(file), FileUtils.getFileExtension(file));
+		final String ext = FileUtils.getFileExtension(file);
+		if (CompressedFile.isExtensionSupported(ext)) {
+			try {
+				return CompressedFile.getInputStream(file);
+			} catch (IOException ne) {
+				logger.debug("Cannot index "+file.getName()+", reading it as a stream.", ne);
+			}
+		}
+		return getStreamForStream(new BufferedInputStream(new FileInputStream(file), 65536), ext);
 	}
 
 	public static InputStream getStreamForStream(final InputStream inputStream, final String ext) throws Exception {
@@ -0,0 +1,229 @@
+package org.dawnsci.breadcrumb.navigation.table;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.junit.Test;
+
+/**
+ * The candidates of a search must include every row whose name matches it, which is
+ * checked by matching every name with Pattern.matches(...).
+ */
+public class TableIndexTest {
+
+	/**
+	 * Names are made of these, including the characters which are special in a search.
+	 */
+	private static final String NAME_CHARS  = "abcab_12*?.+";
+	private static final String REGEX_CHARS = "abcab_12.*?+";
+
+	@Test
+	public void testFragments() {
+		assertEquals(Arrays.asList("abc"), TableIndex.getFragments("abc"));
+		assertEquals(Arrays.asList("abc", "def"), TableIndex.getFragments("abc.*def"));
+		assertEquals(Arrays.asList("abc", "defg"), TableIndex.getFragments("abc.defg"));
+		assertEquals(Arrays.asList("abc"), TableIndex.getFragments("abcd?"));
+		assertEquals(Arrays.asList("abc"), TableIndex.getFragments("abcd+"));
+		assertEquals(Arrays.asList(), TableIndex.getFragments("ab*"));
+		assertEquals(Arrays.asList(), TableIndex.getFragments("a.b.c"));
+		assertNull(TableIndex.getFragments("abc[de]"));
+		assertNull(TableIndex.getFragments("abc|def"));
+		assertNull(TableIndex.getFragments("(abc)"));
+		assertNull(TableIndex.getFragments("abc\\.def"));
+	}
+
+	/**
+	 * Any name which matches must contain all the fragments.
+	 */
+	@Test
+	public void testFragmentsAgainstPattern() {
+		final Random   random = new Random(17);
+		final String[] names  = createNames(random, 2000);
+		for (int n = 0; n < 2000; n++) {
+			final String       regex     = createRegex(random);
+			final Pattern      pattern   = compile(regex);
+			if (pattern==null) continue;
+			final List<String> fragments = TableIndex.getFragments(regex);
+			for (String name : names) {
+				if (name==null || !pattern.matcher(name).matches()) continue;
+				for (String fragment : fragments) {
+					assertTrue("'"+name+"' matches '"+regex+"' but does not contain '"+fragment+"'", name.contains(fragment));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testIntersect() {
+		final Random random = new Random(5);
+		for (int n = 0; n < 1000; n++) {
+			final int[] a = createSorted(random, random.nextInt(50), 100);
+			final int[] b = createSorted(random, random.nextInt(50), 100);
+
+			final TreeSet<Integer> expected = new TreeSet<Integer>();
+			for (int i : a) expected.add(i);
+			final TreeSet<Integer> other = new TreeSet<Integer>();
+			for (int i : b) other.add(i);
+			expected.retainAll(other);
+
+			assertArrayEquals(toArray(expected), TableIndex.intersect(a, b));
+			assertArrayEquals(toArray(expected), TableIndex.intersect(b, a));
+		}
+	}
+
+	/**
+	 * The candidates are in order, include every row whose name matches and are exactly
+	 * the rows which have every set of three characters of the fragments.
+	 */
+	@Test
+	public void testCandidatesAgainstPattern() {
+		final Random     random = new Random(3);
+		final String[]   names  = createNames(random, 3000);
+		final TableIndex index  = new TableIndex(new NamesProvider(names), createRows(names.length));
+
+		int searched = 0;
+		for (int n = 0; n < 2000; n++) {
+			final String  regex   = createRegex(random);
+			final Pattern pattern = compile(".*"+regex+".*");
+			if (pattern==null) continue;
+
+			final int[]        candidates = index.getCandidates(regex);
+			final List<String> fragments  = TableIndex.getFragments(regex);
+			if (candidates==null) {
+				assertTrue(regex, fragments==null || fragments.isEmpty());
+				continue;
+			}
+			++searched;
+
+			final List<Integer> expected = new ArrayList<Integer>();
+			for (int row = 0; row < names.length; row++) {
+				if (hasGrams(names[row], fragments)) expected.add(row);
+			}
+			assertArrayEquals(regex, toArray(expected), candidates);
+
+			for (int row = 0; row < names.length; row++) {
+				if (names[row]!=null && pattern.matcher(names[row]).matches()) {
+					assertTrue("'"+names[row]+"' matches '"+regex+"' but is not a candidate", Arrays.binarySearch(candidates, row)>-1);
+				}
+			}
+		}
+		assertTrue(searched>100);
+	}
+
+	@Test
+	public void testNames() {
+		final String[]   names = {"abcde", null, "xyzabc", "a*b?c.d+"};
+		final TableIndex index = new TableIndex(new NamesProvider(names), createRows(names.length));
+		assertEquals(4, index.size());
+		for (int row = 0; row < names.length; row++) {
+			assertEquals(names[row], index.getName(row));
+			assertEquals(row, index.getRow(row));
+		}
+		assertArrayEquals(new int[]{0, 2}, index.getCandidates("abc"));
+		assertArrayEquals(new int[]{2}, index.getCandidates("xyz.*abc"));
+		assertArrayEquals(new int[0], index.getCandidates("qqq"));
+		assertNull(index.getCandidates("a*bc.de"));
+	}
+
+	private static boolean hasGrams(String name, List<String> fragments) {
+		if (name==null) return false;
+		for (String fragment : fragments) {
+			for (int i = 0; i+3 <= fragment.length(); i++) {
+				if (!name.contains(fragment.substring(i, i+3))) return false;
+			}
+		}
+		return true;
+	}
+
+	private static Pattern compile(String regex) {
+		try {
+			return Pattern.compile(regex);
+		} catch (PatternSyntaxException ne) {
+			return null;
+		}
+	}
+
+	private static String[] createNames(Random random, int count) {
+		final String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			if (i%101==0) continue; // Some rows have no name
+			final char[] name = new char[3+random.nextInt(12)];
+			for (int j = 0; j < name.length; j++) name[j] = NAME_CHARS.charAt(random.nextInt(NAME_CHARS.length()));
+			names[i] = new String(name);
+		}
+		return names;
+	}
+
+	private static String createRegex(Random random) {
+		final char[] regex = new char[1+random.nextInt(8)];
+		for (int j = 0; j < regex.length; j++) {
+			// Mostly text so that there are fragments
+			regex[j] = random.nextInt(3)>0 ? REGEX_CHARS.charAt(random.nextInt(7)) : REGEX_CHARS.charAt(random.nextInt(REGEX_CHARS.length()));
+		}
+		return new String(regex);
+	}
+
+	private static int[] createSorted(Random random, int size, int max) {
+		final TreeSet<Integer> values = new TreeSet<Integer>();
+		for (int i = 0; i < size; i++) values.add(random.nextInt(max));
+		return toArray(values);
+	}
+
+	private static int[] toArray(Collection<Integer> values) {
+		final int[] ret = new int[values.size()];
+		int i = 0;
+		for (Integer value : values) ret[i++] = value;
+		return ret;
+	}
+
+	private static List<Object> createRows(int count) {
+		final List<Object> rows = new ArrayList<Object>(count);
+		for (int i = 0; i < count; i++) rows.add(i);
+		return rows;
+	}
+
+	/**
+	 * The rows are their index in to the names.
+	 */
+	private static class NamesProvider extends AbstractLazyContentProvider {
+
+		private final String[] names;
+
+		NamesProvider(String[] names) {
+			this.names = names;
+		}
+
+		@Override
+		protected String getDataName(Object data) {
+			return names[(Integer)data];
+		}
+
+		@Override
+		protected int getDataId(Object data) {
+			return (Integer)data;
+		}
+
+		@Override
+		protected void populateExpressionValues(Object object, Collection<String> vars, Map<String, Object> values) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected AbstractTableColumnComparator getComparitor(DirectionalIndexedColumnEnum col, AbstractLazyLabelProvider prov, IProgressMonitor monitor) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
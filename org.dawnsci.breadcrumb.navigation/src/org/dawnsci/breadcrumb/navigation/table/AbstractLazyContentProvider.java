@@ -12,8 +12,21 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.dawb.common.services.ServiceManager;
 import org.dawb.common.services.expressions.IExpressionEngine;
@@ -37,6 +50,11 @@ import org.slf4j.LoggerFactory;
  * search in the content provider. This is wrong but allows
  * the content to be lazy unless searched - which is right :)
  * 
+ * The data is kept in a TableIndex so that sorting reads the text
+ * of each row once for a column, and wildcard searches only test
+ * rows with the text searched for. Queries are done in chunks on
+ * a thread each core. Rows found are shown as they are found.
+ * 
  * @author Matthew Gerring
  *
  */
@@ -44,10 +62,43 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 
 	protected static final Logger logger = LoggerFactory.getLogger(AbstractLazyContentProvider.class);
 	
+	/**
+	 * Rows each query task evaluates.
+	 */
+	private static final int  CHUNK_SIZE        = 1024;
+	
+	/**
+	 * Least time in ms between showing rows found by a search.
+	 */
+	private static final long DELIVERY_INTERVAL = 200;
+
+	private static ExecutorService queryPool;
+
+	/**
+	 * @return daemon pool, a thread each core, on which queries are evaluated
+	 */
+	private static synchronized ExecutorService getQueryPool() {
+		if (queryPool==null) {
+			queryPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "Table query");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return queryPool;
+	}
+
 	private TableViewer         viewer;
 	private List<Object>        fullData;
 	private List<Object>        reducedSearch;
 	private IExpressionService  expressionService;
+	private volatile TableIndex index;
+	
+	// Position of each row shown, only used in the UI thread
+	private final Map<Object, Integer> positions = new IdentityHashMap<Object, Integer>();
 
 	private JexlJob jexlJob;
 	private WildJob wildJob;
@@ -71,7 +122,8 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 	 * Does this by casting object to its actual type and then calling required methods.
 	 * Could use bean reflection instead but doing this way makes things faster.
 	 * 
-	 * Required for expression search
+	 * Required for expression search. It is called on several threads at once for
+	 * different objects only if isPopulateThreadSafe() is true.
 	 * 
 	 * @param object
 	 * @param vars
@@ -79,6 +131,21 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 	 */
 	protected abstract void populateExpressionValues(Object object, Collection<String> vars, Map<String, Object> values);
 	
+	/**
+	 * Override to return true if populateExpressionValues(...) may be called on several
+	 * threads at once, so that a query is evaluated in parallel.
+	 * 
+	 * Providers should opt in when populateExpressionValues(...) only reads fields or
+	 * plain getters of rows which are already loaded, and only writes to the values map
+	 * it is given. Providers which load rows lazily, use a database session or a shared
+	 * formatter such as SimpleDateFormat, or cache values in fields, should not.
+	 * 
+	 * @return false, queries are evaluated on one thread
+	 */
+	protected boolean isPopulateThreadSafe() {
+		return false;
+	}
+	
 	/**
 	 * Used for name wildcard search. Implement to return a search name (usually the name column value) for the data.
 	 * @param data
@@ -110,6 +177,8 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
     private void setData(List<Object> data) {
     	this.fullData = data;
 		reducedSearch  = null;
+		index          = new TableIndex(this, data);
+		indexPositions(data);
 		jexlJob.cancel();
 		wildJob.cancel();
 		sortJob.cancel();
@@ -126,8 +195,9 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 	public boolean insert(Collection<Object> newData) {
 		
        if (newData==null) return false;
+       final Set<Object> existing = new HashSet<Object>(fullData);
        for (Object dd : newData) {
-    	   if (!fullData.contains(dd)) {
+    	   if (existing.add(dd)) {
     		   fullData.add(0, dd);
     	   }
        }
@@ -181,6 +251,7 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 		
 		if (searchString == null || searchString.length() < 1) {
 			reducedSearch = null;
+			indexPositions(fullData);
 			enablable.setEnabled(true);
 			if (!requireSetItemsOnNull) return;
 			
@@ -201,8 +272,85 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 
 	@Override
 	public int getIndex(Object element) {
-		if (reducedSearch!=null) return reducedSearch.indexOf(element);
-		return fullData.indexOf(element);
+		final Integer position = positions.get(element);
+		return position!=null ? position : -1;
+	}
+
+	private void indexPositions(List<Object> rows) {
+		positions.clear();
+		if (rows==null) return;
+		for (int i = 0; i < rows.size(); i++) positions.put(rows.get(i), i);
+	}
+
+	/**
+	 * Shows all the data again, for instance when a search is cancelled. Call in the UI thread.
+	 */
+	private void showAll() {
+		reducedSearch = null;
+		indexPositions(fullData);
+		viewer.setItemCount(fullData.size());
+		viewer.refresh();
+	}
+
+	private static <T> T get(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException ne) {
+			if (ne.getCause() instanceof Exception) throw (Exception)ne.getCause();
+			throw ne;
+		}
+	}
+
+	/**
+	 * Shows the rows found by a search as they are found, in the order of
+	 * the data, at most every DELIVERY_INTERVAL ms so that the table is
+	 * not updated for each row.
+	 */
+	private class SearchResults {
+
+		private final List<Object> shown;
+		private final List<Object> pending;
+		private long               delivered;
+
+		SearchResults() {
+			this.shown   = new ArrayList<Object>(31);
+			this.pending = new ArrayList<Object>(31);
+			Display.getDefault().syncExec(new Runnable() {
+				public void run() {
+					reducedSearch = shown;
+					positions.clear();
+					viewer.setItemCount(0);
+					viewer.refresh();
+				}
+			});
+			delivered = System.currentTimeMillis();
+		}
+
+		void add(Collection<Object> found) {
+			pending.addAll(found);
+			if (System.currentTimeMillis()-delivered > DELIVERY_INTERVAL) deliver(false);
+		}
+
+		void finish() {
+			deliver(true);
+		}
+
+		private void deliver(final boolean last) {
+			final List<Object> rows = new ArrayList<Object>(pending);
+			pending.clear();
+			delivered = System.currentTimeMillis();
+			Display.getDefault().syncExec(new Runnable() {
+				public void run() {
+					if (reducedSearch!=shown) return; // Another search has started
+					for (Object row : rows) {
+						positions.put(row, shown.size());
+						shown.add(row);
+					}
+					viewer.setItemCount(shown.size());
+					if (last) viewer.refresh();
+				}
+			});
+		}
 	}
 
 	
@@ -244,11 +392,21 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 				
 				monitor.beginTask("Sort '"+visitCol.getName()+"' "+visitCol.getDirectionLabel(), search.size());
 				
-				// Can be expensive!
-				Collections.sort(search, getComparitor(visitCol, enablable.getLabelProvider(), monitor));
+				// The text of each row is read once a column, then kept until the data changes
+				final AbstractTableColumnComparator comparator = getComparitor(visitCol, enablable.getLabelProvider(), monitor);
+				final Map<Object, String> texts = index.getCompareTexts(visitCol.getIndex(), enablable.getLabelProvider(), monitor);
+				if (texts==null) return Status.CANCEL_STATUS;
+				comparator.setCompareTexts(texts);
+				
+				// Can be expensive! A copy is sorted, the table reads the list meanwhile.
+				final List<Object> sorted = new ArrayList<Object>(search);
+				Collections.sort(sorted, comparator);
+				if (monitor.isCanceled()) return Status.CANCEL_STATUS;
 				
 				Display.getDefault().syncExec(new Runnable() {
 					public void run() {
+						if (search.size()==sorted.size()) Collections.copy(search, sorted);
+						if (search==(reducedSearch!=null ? reducedSearch : fullData)) indexPositions(search);
 						viewer.setItemCount(search.size());
 						viewer.refresh();
 					}
@@ -286,55 +444,81 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 		}
 
 		@Override
-		protected IStatus run(IProgressMonitor monitor) {
+		protected IStatus run(final IProgressMonitor monitor) {
 			
+			final List<Future<List<Object>>> chunks = new ArrayList<Future<List<Object>>>();
 			try {
 				enablable.setEnabled(false);
 				
-				monitor.beginTask("Query '"+expression+"'", fullData!=null ? fullData.size() : 100);
-				if (reducedSearch==null) reducedSearch = new ArrayList<Object>(31);
-				reducedSearch.clear();
-	
-				final IExpressionEngine   engine = expressionService.getExpressionEngine();
-				engine.createExpression(expression);
-	
-				final Map<String, Object> values = new HashMap<String, Object>(9);
 				if (fullData == null) return Status.CANCEL_STATUS;
-				for (Object data : fullData) {
+				final TableIndex index = AbstractLazyContentProvider.this.index;
+				monitor.beginTask("Query '"+expression+"'", index.size());
 	
-					monitor.worked(1);
+				// An engine a thread, each compiling the expression once
+				final boolean parallel = isPopulateThreadSafe();
+				final int threads = parallel ? Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), index.size()/CHUNK_SIZE)) : 1;
+				final BlockingQueue<IExpressionEngine> engines = new ArrayBlockingQueue<IExpressionEngine>(threads);
+				for (int i = 0; i < threads; i++) {
+					final IExpressionEngine engine = expressionService.getExpressionEngine();
+					engine.createExpression(expression);
+					engines.add(engine);
+				}
+				final Collection<String> vars = engines.peek().getVariableNamesFromExpression();
+	
+				final SearchResults results = new SearchResults();
+				final List<Callable<List<Object>>> queries = new ArrayList<Callable<List<Object>>>();
+				for (int start = 0; start < index.size(); start+=CHUNK_SIZE) {
+					final int from = start;
+					final int to   = Math.min(start+CHUNK_SIZE, index.size());
+					queries.add(new Callable<List<Object>>() {
+						@Override
+						public List<Object> call() throws Exception {
+							final List<Object> found = new ArrayList<Object>(31);
+							if (monitor.isCanceled()) return found;
+							
+							final IExpressionEngine   engine = engines.take();
+							final Map<String, Object> values = new HashMap<String, Object>(9);
+							try {
+								for (int row = from; row < to; row++) {
+									final Object data = index.getRow(row);
+									try {
+										populateExpressionValues(data, vars, values);
+										
+										engine.setLoadedVariables(values);
+										Object value = engine.evaluate();
+										if (value instanceof Boolean && ((Boolean)value).booleanValue()) {
+											found.add(data);
+										}
+									} finally {
+										values.clear();
+									}
+								}
+							} finally {
+								engines.put(engine);
+							}
+							return found;
+						}
+					});
+				}
+				if (parallel) {
+					for (Callable<List<Object>> query : queries) chunks.add(getQueryPool().submit(query));
+				}
+				
+				// Chunks are shown in order as they finish, or are evaluated here in turn
+				for (int i = 0; i < queries.size(); i++) {
+					final List<Object> found = parallel ? get(chunks.get(i)) : queries.get(i).call();
+					monitor.worked(Math.min(CHUNK_SIZE, index.size()-i*CHUNK_SIZE));
 					if (monitor.isCanceled()) {
 						Display.getDefault().syncExec(new Runnable() {
 							public void run() {
-								reducedSearch = null;
-								viewer.setItemCount(fullData.size());
-								viewer.refresh();
+								showAll();
 							}
 						});
 						return Status.CANCEL_STATUS;
 					}
-					try {
-						final Collection<String> vars = engine.getVariableNamesFromExpression();
-                        						
-						populateExpressionValues(data, vars, values);
-						
-						engine.setLoadedVariables(values);
-						Object value = engine.evaluate();
-						if (value instanceof Boolean && ((Boolean)value).booleanValue()) {
-							reducedSearch.add(data);
-						}
-	
-					} finally {
-						values.clear();
-					}
+					results.add(found);
 				}
-				
-				Display.getDefault().syncExec(new Runnable() {
-					public void run() {
-						viewer.setItemCount(reducedSearch.size());
-						viewer.refresh();
-					}
-				});
+				results.finish();
 				enablable.saveSearch(expression);
 				
 			} catch (final Exception ne) {
@@ -343,12 +527,11 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 					public void run() {
 						if (viewer.getTable().isDisposed()) return;
 						MessageDialog.openWarning(Display.getDefault().getActiveShell(), "Invalid Query", "Invalid query '"+expression+"'. Please enter a different search.\n\n"+ne.getMessage());
-						reducedSearch = null;
-						viewer.setItemCount(fullData.size());
-						viewer.refresh();
+						showAll();
 					}
 				});
 			} finally {
+				for (Future<List<Object>> chunk : chunks) chunk.cancel(false);
 				enablable.setEnabled(true);
 
 			}
@@ -384,44 +567,49 @@ public abstract class AbstractLazyContentProvider implements ISortableLazyConten
 
 				searchString = searchString.replaceAll("\\.\\*", "\\*");
 				searchString = searchString.replaceAll("\\*", "\\.\\*");
-				String regex = ".*" + searchString.toLowerCase() + ".*";
-				monitor.beginTask("Wildcard '"+regex+"'", fullData.size());
-
-				if (reducedSearch==null) reducedSearch = new ArrayList<Object>(31);
-				reducedSearch.clear();
-
-				for (Object data : fullData) {
-
-					monitor.worked(1);
-					if (monitor.isCanceled()) {
-						Display.getDefault().syncExec(new Runnable() {
-							public void run() {
-								reducedSearch = null;
-								viewer.setItemCount(fullData.size());
-								viewer.refresh();
-							}
-						});
-						return Status.CANCEL_STATUS;
-					}
-					String name = getDataName(data);
+				final String search = searchString.toLowerCase();
+				String regex = ".*" + search + ".*";
+
+				final SearchResults results = new SearchResults();
+				final Pattern pattern;
+				try {
+					pattern = Pattern.compile(regex);
+				} catch (PatternSyntaxException ne) {
+					results.finish(); // probably bad wildcard.
+					return Status.OK_STATUS;
+				}
 
-					try {
-						if (name.matches(regex)) {
-							reducedSearch.add(data);
+				// Only the rows having all the text searched for are tested
+				final TableIndex index      = AbstractLazyContentProvider.this.index;
+				final int[]      candidates = index.getCandidates(search);
+				final int        count      = candidates!=null ? candidates.length : index.size();
+				monitor.beginTask("Wildcard '"+regex+"'", count);
+
+				final List<Object> found = new ArrayList<Object>(31);
+				for (int i = 0; i < count; i++) {
+
+					if (i%CHUNK_SIZE==0) {
+						monitor.worked(Math.min(CHUNK_SIZE, count-i));
+						if (monitor.isCanceled()) {
+							Display.getDefault().syncExec(new Runnable() {
+								public void run() {
+									showAll();
+								}
+							});
+							return Status.CANCEL_STATUS;
 						}
-					} catch (Exception ne) {
-						break; // probably bas wildcard.
+						results.add(found);
+						found.clear();
+					}
+					final int    row  = candidates!=null ? candidates[i] : i;
+					final String name = index.getName(row);
+					if (name!=null && pattern.matcher(name).matches()) {
+						found.add(index.getRow(row));
 					}
-
 				}
+				results.add(found);
+				results.finish();
 
-
-				Display.getDefault().syncExec(new Runnable() {
-					public void run() {
-						viewer.setItemCount(reducedSearch.size());
-						viewer.refresh();
-					}
-				});
 			} finally {
 				enablable.setEnabled(true);
 			}
@@ -9,6 +9,7 @@
 package org.dawnsci.breadcrumb.navigation.table;
 
 import java.util.Comparator;
+import java.util.Map;
 
 import org.dawb.common.util.list.SortNatural;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -25,6 +26,7 @@ public abstract class AbstractTableColumnComparator implements Comparator<Object
 	protected AbstractLazyLabelProvider       labelProvider;
 	protected SortNatural<String>             sortNatural;
 	protected IProgressMonitor                monitor;
+	protected Map<Object, String>             compareTexts;
 	
 	public AbstractTableColumnComparator(DirectionalIndexedColumnEnum visitColumn, AbstractLazyLabelProvider prov, IProgressMonitor monitor) {
 		this.column        = visitColumn;
@@ -46,11 +48,33 @@ public abstract class AbstractTableColumnComparator implements Comparator<Object
         if (isSpecial(o1, o2)) {
         	return compareSpecial(o1, o2);
         }
-        String t1 = labelProvider.getCompareText(o1, column.getIndex());
-        String t2 = labelProvider.getCompareText(o2, column.getIndex());
+        String t1 = getCompareText(o1);
+        String t2 = getCompareText(o2);
         return sortNatural.compare(t1, t2);
  	}
 
+	/**
+	 * The text of the row in the column, from the texts set if there are any.
+	 * @param o
+	 * @return
+	 */
+	protected String getCompareText(Object o) {
+		if (compareTexts!=null) {
+			final String text = compareTexts.get(o);
+			if (text!=null || compareTexts.containsKey(o)) return text;
+		}
+		return labelProvider.getCompareText(o, column.getIndex());
+	}
+
+	/**
+	 * Texts of the rows in the column read before sorting, so that the label
+	 * provider is not asked for each comparison.
+	 * @param compareTexts by row
+	 */
+	public void setCompareTexts(Map<Object, String> compareTexts) {
+		this.compareTexts = compareTexts;
+	}
+
 	protected abstract boolean isSpecial(Object o1, Object o2);
 	
 	protected abstract int compareSpecial(Object o1, Object o2);
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.breadcrumb.navigation.table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/**
+ * The rows of a lazy table kept by column, so that they may be sorted and searched
+ * many times without going back to the label provider for every row each time.
+ *
+ * The compare text of each row is read once per column, the first time the column
+ * is sorted. The names of the rows are read the first time they are searched and
+ * each set of three characters is indexed to the rows having it, so that a wildcard
+ * search only tests the rows which have all the text it needs.
+ *
+ * The index is of the data when it was made, a new one is made when the data changes.
+ *
+ * @author Matthew Gerring
+ *
+ */
+class TableIndex {
+
+	private final AbstractLazyContentProvider provider;
+	private final Object[]                    rows;
+	private final Map<Integer, Map<Object, String>> compareTexts;
+	private String[]                          names;
+	private Map<Long, int[]>                  grams;
+
+	TableIndex(AbstractLazyContentProvider provider, List<Object> rows) {
+		this.provider     = provider;
+		this.rows         = rows!=null ? rows.toArray() : new Object[0];
+		this.compareTexts = new HashMap<Integer, Map<Object, String>>(7);
+	}
+
+	int size() {
+		return rows.length;
+	}
+
+	Object getRow(int row) {
+		return rows[row];
+	}
+
+	/**
+	 *
+	 * @param column
+	 * @param prov
+	 * @param monitor
+	 * @return text of each row in the column, by identity of the row, null if the monitor was cancelled
+	 */
+	synchronized Map<Object, String> getCompareTexts(int column, AbstractLazyLabelProvider prov, IProgressMonitor monitor) {
+
+		Map<Object, String> texts = compareTexts.get(column);
+		if (texts!=null) return texts;
+
+		texts = new IdentityHashMap<Object, String>(rows.length);
+		for (Object row : rows) {
+			if (monitor.isCanceled()) return null;
+			texts.put(row, prov.getCompareText(row, column));
+		}
+		compareTexts.put(column, texts);
+		return texts;
+	}
+
+	/**
+	 * @param row
+	 * @return name used for the wildcard search
+	 */
+	synchronized String getName(int row) {
+		getGrams();
+		return names[row];
+	}
+
+	/**
+	 *
+	 * @param regex the part of the wildcard regular expression between the .*'s
+	 * @return rows in order which have all the text the expression must match, or null
+	 *         if the expression does not say which text it needs
+	 */
+	synchronized int[] getCandidates(String regex) {
+
+		final List<String> fragments = getFragments(regex);
+		if (fragments==null || fragments.isEmpty()) return null;
+
+		final Map<Long, int[]> grams = getGrams();
+		final List<int[]>      lists = new ArrayList<int[]>();
+		for (String fragment : fragments) {
+			for (int i = 0; i+3 <= fragment.length(); i++) {
+				final int[] list = grams.get(getGram(fragment, i));
+				if (list==null) return new int[0];
+				lists.add(list);
+			}
+		}
+
+		// Intersect from the shortest
+		int[] ret = null;
+		for (int[] list : lists) if (ret==null || list.length<ret.length) ret = list;
+		for (int[] list : lists) {
+			if (list==ret) continue;
+			ret = intersect(ret, list);
+			if (ret.length==0) break;
+		}
+		return ret;
+	}
+
+	/**
+	 * @param a ascending
+	 * @param b ascending
+	 * @return values in both, ascending
+	 */
+	static int[] intersect(int[] a, int[] b) {
+		final int[] ret = new int[Math.min(a.length, b.length)];
+		int size = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;) {
+			if (a[i]<b[j]) {
+				++i;
+			} else if (a[i]>b[j]) {
+				++j;
+			} else {
+				ret[size++] = a[i];
+				++i; ++j;
+			}
+		}
+		return Arrays.copyOf(ret, size);
+	}
+
+	/**
+	 * Text which any match must contain. Only expressions of text, '.' and the quantifiers
+	 * *, ? and + are understood, the character before a quantifier is not needed.
+	 *
+	 * @param regex
+	 * @return runs of text of 3 characters or more, null for expressions which are not understood
+	 */
+	static List<String> getFragments(String regex) {
+
+		for (int i = 0; i < regex.length(); i++) {
+			if ("\\[]{}()|^$".indexOf(regex.charAt(i))>-1) return null;
+		}
+
+		final List<String>  ret = new ArrayList<String>(3);
+		final StringBuilder run = new StringBuilder();
+		for (int i = 0; i <= regex.length(); i++) {
+			final char c = i<regex.length() ? regex.charAt(i) : '.';
+			if (c!='.' && c!='*' && c!='?' && c!='+') {
+				run.append(c);
+				continue;
+			}
+			if (c!='.' && run.length()>0) run.setLength(run.length()-1);
+			if (run.length()>=3) ret.add(run.toString());
+			run.setLength(0);
+		}
+		return ret;
+	}
+
+	/**
+	 * The rows having each set of three characters, in order.
+	 */
+	private Map<Long, int[]> getGrams() {
+
+		if (grams!=null) return grams;
+
+		names = new String[rows.length];
+		final Map<Long, int[]> lists = new HashMap<Long, int[]>(); // the size is kept in [0] until the end
+		for (int row = 0; row < rows.length; row++) {
+			final String name = provider.getDataName(rows[row]);
+			names[row] = name;
+			if (name==null) continue;
+			for (int i = 0; i+3 <= name.length(); i++) {
+				final Long gram = getGram(name, i);
+				int[] list = lists.get(gram);
+				if (list==null) {
+					list = new int[4];
+					lists.put(gram, list);
+				}
+				final int size = list[0];
+				if (size>0 && list[size]==row) continue; // Already has it
+				if (size+1==list.length) {
+					list = Arrays.copyOf(list, list.length*2);
+					lists.put(gram, list);
+				}
+				list[size+1] = row;
+				list[0]      = size+1;
+			}
+		}
+		for (Map.Entry<Long, int[]> entry : lists.entrySet()) {
+			final int[] list = entry.getValue();
+			entry.setValue(Arrays.copyOfRange(list, 1, list[0]+1));
+		}
+		grams = lists;
+		return grams;
+	}
+
+	private static Long getGram(String text, int i) {
+		return ((long)text.charAt(i))<<32 | ((long)text.charAt(i+1))<<16 | text.charAt(i+2);
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.isosurface.alg;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.dawnsci.analysis.api.dataset.ILazyDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.FloatDataset;
+
+/**
+ * Times making the surfaces of sphere and gyroid volumes, streamed in one
+ * thread and in slabs on pools of 1,2,4.. cores, from a dataset in memory and
+ * from a lazy dataset which is read one plane at a time.
+ *
+ * Run as a java application, the argument is the size of the side of the
+ * volumes, 256 if there is none. It is not run with the unit tests.
+ */
+class SurfaceBuilderBenchmark {
+
+	public static void main(String[] args) {
+
+		final int size = args.length>0 ? Integer.parseInt(args[0]) : 256;
+		final FloatDataset sphere = SurfaceBuilderTest.createSphere(size, size, size);
+		final FloatDataset gyroid = SurfaceBuilderTest.createGyroid(size, size, size);
+		final ILazyDataset lsphere = SurfaceBuilderTest.createLazy(sphere, new AtomicInteger(), new AtomicInteger());
+		final ILazyDataset lgyroid = SurfaceBuilderTest.createLazy(gyroid, new AtomicInteger(), new AtomicInteger());
+		final int[] boxSize = {1, 1, 1};
+
+		for (int i = 0; i < 2; i++) { // The first is warm up
+			long start = System.currentTimeMillis();
+			final Surface ssphere = build(sphere, boxSize, size/3);
+			final Surface sgyroid = build(gyroid, boxSize, 0.3);
+			System.out.println("Sphere and gyroid of "+size+"^3, sequential: "+(System.currentTimeMillis()-start)+"ms, "+
+			                   (ssphere.getPoints().length/3+sgyroid.getPoints().length/3)+" vertices");
+
+			final int processors = Runtime.getRuntime().availableProcessors();
+			for (int cores = 1; ; cores = Math.min(processors, 2*cores)) {
+				final ForkJoinPool pool = new ForkJoinPool(cores);
+				start = System.currentTimeMillis();
+				final Surface psphere = SurfaceBuilder.build(sphere, boxSize, size/3, Integer.MAX_VALUE, null, null, pool);
+				final Surface pgyroid = SurfaceBuilder.build(gyroid, boxSize, 0.3,    Integer.MAX_VALUE, null, null, pool);
+				System.out.println("Sphere and gyroid of "+size+"^3, "+cores+" cores: "+(System.currentTimeMillis()-start)+"ms");
+
+				start = System.currentTimeMillis();
+				final Surface lpsphere = SurfaceBuilder.build(lsphere, boxSize, size/3, Integer.MAX_VALUE, null, null, pool);
+				final Surface lpgyroid = SurfaceBuilder.build(lgyroid, boxSize, 0.3,    Integer.MAX_VALUE, null, null, pool);
+				System.out.println("Lazy sphere and gyroid of "+size+"^3, "+cores+" cores: "+(System.currentTimeMillis()-start)+"ms");
+				pool.shutdown();
+
+				SurfaceBuilderTest.check(ssphere, psphere);
+				SurfaceBuilderTest.check(sgyroid, pgyroid);
+				SurfaceBuilderTest.check(ssphere, lpsphere);
+				SurfaceBuilderTest.check(sgyroid, lpgyroid);
+				if (cores==processors) break;
+			}
+		}
+	}
+
+	private static Surface build(FloatDataset volume, int[] boxSize, double isovalue) {
+		final SurfaceBuilder builder = new SurfaceBuilder(volume, boxSize, isovalue, Integer.MAX_VALUE, null);
+		builder.build(0, builder.getPlaneCount()-1, null);
+		return builder.getSurface();
+	}
+}
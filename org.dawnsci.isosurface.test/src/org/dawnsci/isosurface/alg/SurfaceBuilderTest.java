@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.isosurface.alg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.dawnsci.analysis.api.dataset.ILazyDataset;
+import org.eclipse.dawnsci.analysis.api.dataset.SliceND;
+import org.eclipse.dawnsci.analysis.api.io.ILazyLoader;
+import org.eclipse.dawnsci.analysis.api.monitor.IMonitor;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.FloatDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.LazyDataset;
+import org.junit.Test;
+
+public class SurfaceBuilderTest {
+
+	@Test
+	public void testSphereIsClosed() {
+		final FloatDataset volume = createSphere(64, 80, 96);
+		for (int[] boxSize : new int[][]{{1,1,1}, {2,3,1}, {3,2,4}}) {
+			final Surface surface = build(volume, boxSize, 20);
+			assertEquals("Every edge of a sphere is in two triangles", 0, getOpenEdges(surface));
+		}
+	}
+
+	@Test
+	public void testParallelMatchesSequential() {
+		final FloatDataset sphere = createSphere(64, 80, 96);
+		final FloatDataset gyroid = createGyroid(64, 80, 96);
+		for (int[] boxSize : new int[][]{{1,1,1}, {2,3,1}}) {
+			final Surface expected = build(sphere, boxSize, 20);
+			final Surface gexpected = build(gyroid, boxSize, 0.3);
+			for (int cores : new int[]{1, 2, 3, 8}) {
+				final ForkJoinPool pool = new ForkJoinPool(cores);
+				check(expected,  SurfaceBuilder.build(sphere, boxSize, 20,  Integer.MAX_VALUE, null, null, pool));
+				check(gexpected, SurfaceBuilder.build(gyroid, boxSize, 0.3, Integer.MAX_VALUE, null, null, pool));
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * A lazy dataset which is not in memory is read one plane at a time
+	 * but still built in slabs.
+	 */
+	@Test
+	public void testParallelLazyMatchesSequential() {
+		final FloatDataset  gyroid  = createGyroid(64, 80, 96);
+		final AtomicInteger readers = new AtomicInteger();
+		final AtomicInteger most    = new AtomicInteger();
+		final ILazyDataset  lazy    = createLazy(gyroid, readers, most);
+		final int[]         boxSize = {1, 2, 1};
+
+		final Surface expected = build(gyroid, boxSize, 0.3);
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		check(expected, SurfaceBuilder.build(lazy, boxSize, 0.3, Integer.MAX_VALUE, null, null, pool));
+		pool.shutdown();
+		assertEquals("Planes are read by one slab at a time", 1, most.get());
+	}
+
+	@Test
+	public void testIndexedMatchesWhole() {
+		final FloatDataset gyroid  = createGyroid(64, 80, 96);
+		final int[]        boxSize = {1, 2, 1};
+
+		final VolumeIndex index = new VolumeIndex(gyroid, boxSize);
+		build(gyroid, boxSize, 0.3, index); // Fills the index
+		for (double isovalue : new double[]{0.3, -1.2, 1.4, 2}) {
+			final List<String> expected = getTriangles(build(gyroid, boxSize, isovalue));
+			assertEquals(expected, getTriangles(build(gyroid, boxSize, isovalue, index)));
+
+			final ForkJoinPool pool = new ForkJoinPool(3);
+			assertEquals(expected, getTriangles(SurfaceBuilder.build(gyroid, boxSize, isovalue, Integer.MAX_VALUE, index, null, pool)));
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * 
+	 * @param volume
+	 * @param readers number of threads reading now
+	 * @param most set to the most threads which read at once
+	 * @return a lazy dataset which reads the volume as a loader for a file would
+	 */
+	static ILazyDataset createLazy(final FloatDataset volume, final AtomicInteger readers, final AtomicInteger most) {
+		return new LazyDataset("volume", Dataset.FLOAT32, volume.getShape(), new ILazyLoader() {
+			private static final long serialVersionUID = 2937468264372198345L;
+			@Override
+			public boolean isFileReadable() {
+				return true;
+			}
+			@Override
+			public Dataset getDataset(IMonitor mon, SliceND slice) {
+				final int now = readers.incrementAndGet();
+				try {
+					for (int m = most.get(); now>m && !most.compareAndSet(m, now); m = most.get());
+					Thread.yield(); // Give other slabs the chance to read at the same time
+					return volume.getSlice(slice.getStart(), slice.getStop(), slice.getStep());
+				} finally {
+					readers.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	private static Surface build(FloatDataset volume, int[] boxSize, double isovalue) {
+		return build(volume, boxSize, isovalue, null);
+	}
+
+	private static Surface build(FloatDataset volume, int[] boxSize, double isovalue, VolumeIndex index) {
+		final SurfaceBuilder builder = new SurfaceBuilder(volume, boxSize, isovalue, Integer.MAX_VALUE, index);
+		builder.build(0, builder.getPlaneCount()-1, null);
+		return builder.getSurface();
+	}
+
+	/**
+	 * 
+	 * @param surface
+	 * @return the corners of the triangles, sorted as the order of triangles may change
+	 */
+	private static List<String> getTriangles(Surface surface) {
+		final int[] faces = surface.getFaces();
+		final List<String> triangles = new ArrayList<String>(faces.length/6);
+		for (int i = 0; i < faces.length; i+=6) {
+			triangles.add(Arrays.toString(getPoint(surface, faces[i]))+Arrays.toString(getPoint(surface, faces[i+2]))+Arrays.toString(getPoint(surface, faces[i+4])));
+		}
+		Collections.sort(triangles);
+		return triangles;
+	}
+
+	/**
+	 * The slabs may number the vertices differently but the triangles are
+	 * made in the same order, so their corners should be the same points.
+	 */
+	static void check(Surface expected, Surface actual) {
+		assertEquals(expected.getPoints().length, actual.getPoints().length);
+		assertEquals(expected.getFaces().length,  actual.getFaces().length);
+		final int[] ef = expected.getFaces();
+		final int[] af = actual.getFaces();
+		for (int i = 0; i < ef.length; i+=2) {
+			assertEquals(ef[i+1], af[i+1]);
+			assertArrayEquals(getPoint(expected, ef[i]), getPoint(actual, af[i]), 0f);
+		}
+	}
+
+	private static float[] getPoint(Surface surface, int vertex) {
+		final float[] points = surface.getPoints();
+		return new float[]{points[3*vertex], points[3*vertex+1], points[3*vertex+2]};
+	}
+
+	/**
+	 *
+	 * @param surface
+	 * @return number of edges which are not in two triangles
+	 */
+	private static int getOpenEdges(Surface surface) {
+		final int[] faces = surface.getFaces();
+		final Map<Long, Integer> edges = new HashMap<Long, Integer>();
+		for (int i = 0; i < faces.length; i+=6) {
+			final int[] corners = {faces[i], faces[i+2], faces[i+4]};
+			for (int c = 0; c < 3; c++) {
+				final long a = Math.min(corners[c], corners[(c+1)%3]);
+				final long b = Math.max(corners[c], corners[(c+1)%3]);
+				final Long key = (a<<32) | b;
+				final Integer count = edges.get(key);
+				edges.put(key, count==null ? 1 : count+1);
+			}
+		}
+		int open = 0;
+		for (int count : edges.values()) if (count!=2) ++open;
+		return open;
+	}
+
+	/**
+	 * Distance from a point near the middle.
+	 */
+	static FloatDataset createSphere(int nz, int ny, int nx) {
+		final float[] data = new float[nz*ny*nx];
+		int i = 0;
+		for (int z = 0; z < nz; z++) {
+			for (int y = 0; y < ny; y++) {
+				for (int x = 0; x < nx; x++) {
+					final double dx = x-nx/2.1, dy = y-ny/1.9, dz = z-nz/2.05;
+					data[i++] = (float)Math.sqrt(dx*dx+dy*dy+dz*dz);
+				}
+			}
+		}
+		return new FloatDataset(data, nz, ny, nx);
+	}
+
+	/**
+	 * A gyroid with a period of 32 pixels, which fills the volume with surface.
+	 */
+	static FloatDataset createGyroid(int nz, int ny, int nx) {
+		final float[] data = new float[nz*ny*nx];
+		final double  k    = 2*Math.PI/32;
+		int i = 0;
+		for (int z = 0; z < nz; z++) {
+			for (int y = 0; y < ny; y++) {
+				for (int x = 0; x < nx; x++) {
+					data[i++] = (float)(Math.sin(k*x)*Math.cos(k*y) + Math.sin(k*y)*Math.cos(k*z) + Math.sin(k*z)*Math.cos(k*x));
+				}
+			}
+		}
+		return new FloatDataset(data, nz, ny, nx);
+	}
+}
@@ -8,18 +8,16 @@
  */
 package org.dawnsci.isosurface.alg;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
 import org.eclipse.dawnsci.analysis.api.dataset.ILazyDataset;
 import org.eclipse.dawnsci.analysis.api.monitor.IMonitor;
 import org.eclipse.dawnsci.analysis.api.processing.OperationException;
 import org.eclipse.dawnsci.analysis.api.processing.OperationRank;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
 import org.eclipse.dawnsci.analysis.dataset.operations.AbstractOperation;
 /**
  * 
@@ -29,8 +27,18 @@ import org.eclipse.dawnsci.analysis.dataset.operations.AbstractOperation;
  */
 public class MarchingCubes extends AbstractOperation<MarchingCubesModel, Surface> {
 
-	private int index = 0;
-	
+	/**
+	 * Grid points along each side of the volume of a preview.
+	 */
+	private static final int PREVIEW_SIZE = 64;
+
+	private static ForkJoinPool pool;
+
+	private VolumeIndex  index;
+	private ILazyDataset previewData;
+	private int[]        previewStep;
+	private Dataset      previewVolume;
+
 	public MarchingCubes() {
 		setModel(new MarchingCubesModel()); // We must always have a model for this maths.
 	}
@@ -40,39 +48,92 @@ public class MarchingCubes extends AbstractOperation<MarchingCubesModel, Surface
 		return "org.dawnsci.isosurface.marchingCubes";
 	}
 
+	/**
+	 * The volume is streamed through a SurfaceBuilder one plane at a time,
+	 * so the memory used is the mesh and two planes of the volume. In parallel
+	 * mode slabs of planes are streamed at the same time, one per core. Lazy
+	 * datasets such as those of HDF5 files may not be sliced from several threads
+	 * at once, so the slabs read their planes one at a time and march in parallel.
+	 * 
+	 * The min and max of blocks of the volume are kept for the last volume
+	 * and box size, so changing the isovalue only reads the blocks which the
+	 * new isosurface may cut.
+	 * 
+	 * @return the surface, or null if the monitor was cancelled.
+	 */
 	@Override
 	public Surface execute(IDataset slice, IMonitor monitor) throws OperationException {
 		
-		this.index = 0;
-		
-		final Object[]           data      = parseVertices();
-		final Set<Triangle>      triangles = (Set<Triangle>) data[0];
-		final Map<Point,Integer> v         = (Map<Point, Integer>) data[1];
+		final ILazyDataset lazyData = model.getLazyData();
+		final int[]        boxSize  = model.getBoxSize();
+		final VolumeIndex  index    = getIndex(lazyData, boxSize);
+
+		final Surface surface;
+		if (model.isParallel()) {
+			surface = SurfaceBuilder.build(lazyData, boxSize, model.getIsovalue(), model.getVertexLimit(), index, monitor, getPool());
+		} else {
+			final SurfaceBuilder builder = new SurfaceBuilder(lazyData, boxSize, model.getIsovalue(), model.getVertexLimit(), index);
+			surface = builder.build(0, builder.getPlaneCount()-1, monitor) ? builder.getSurface() : null;
+		}
+		if (surface==null) return null;
 
-		Point[] vertices = v.keySet().toArray(new Point[v.size()]);
-		
-		float[] points = getCoordinates(vertices);
+		if (surface.getPoints().length<1) throw new OperationException(this, "No isosurface found!");
 
-		float[] texCoords = { 0, 0, (float) 0.5, (float) 0.5, 1, 1 };
+		return surface;
+	}
 
-		int[] faces = new int[6 * triangles.size()];
+	/**
+	 * A coarse surface for the model, to show while the surface is made. It is
+	 * made from a copy of the volume with PREVIEW_SIZE grid points along each
+	 * side, which is kept, so only the first preview of a volume reads it.
+	 * 
+	 * @param monitor
+	 * @return the surface, or null if the box size is no finer than the preview,
+	 *         there is no surface or the monitor was cancelled.
+	 */
+	public Surface getPreview(IMonitor monitor) {
+
+		final ILazyDataset lazyData = model.getLazyData();
+		final int[]        boxSize  = model.getBoxSize();
+		final int[]        shape    = lazyData.getShape();
+
+		final int[] step   = new int[3]; // x,y,z
+		boolean     finer  = false;
+		for (int i = 0; i < step.length; i++) {
+			step[i] = Math.max(1, (shape[2-i]+PREVIEW_SIZE-1)/PREVIEW_SIZE);
+			finer  |= boxSize[i] < step[i];
+		}
+		if (!finer) return null;
+
+		final Dataset        volume  = getPreviewVolume(lazyData, step);
+		final SurfaceBuilder builder = new SurfaceBuilder(volume, new int[]{1,1,1}, model.getIsovalue(), model.getVertexLimit(), null);
+		if (!builder.build(0, builder.getPlaneCount()-1, monitor)) return null;
 
-		int k = 0;
+		final Surface surface = builder.getSurface();
+		final float[] points  = surface.getPoints();
+		if (points.length<1) return null;
+		for (int i = 0; i < points.length; i++) points[i] *= step[i%3];
+		return surface;
+	}
 
-		for (Triangle t: triangles) {
-			
-			faces[k] = v.get(t.getC());
-			faces[k + 1] = 0;
-			faces[k + 2] = v.get(t.getB());
-			faces[k + 3] = 1;
-			faces[k + 4] = v.get(t.getA());
-			faces[k + 5] = 2;
-			k += 6;
+	private synchronized Dataset getPreviewVolume(ILazyDataset lazyData, int[] step) {
+		if (previewData!=lazyData || !Arrays.equals(previewStep, step)) {
+			previewVolume = null; // Let the last one go first
+			previewVolume = DatasetUtils.convertToDataset(lazyData.getSlice(new int[]{0,0,0}, lazyData.getShape(), new int[]{step[2], step[1], step[0]}));
+			previewData   = lazyData;
+			previewStep   = step;
 		}
+		return previewVolume;
+	}
 
-		if (points==null || points.length<1) throw new OperationException(this, "No isosurface found!");
+	private synchronized VolumeIndex getIndex(ILazyDataset lazyData, int[] boxSize) {
+		if (index==null || !index.isFor(lazyData, boxSize)) index = new VolumeIndex(lazyData, boxSize);
+		return index;
+	}
 
-		return new Surface(points, texCoords, faces);
+	private static synchronized ForkJoinPool getPool() {
+		if (pool==null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
 	}
 
 	@Override
@@ -96,7 +157,7 @@ public class MarchingCubes extends AbstractOperation<MarchingCubesModel, Surface
 	 * 
 	 * The size of the edge table is 256.
 	 */
-	private final static int[] edgeTable = { 0x0, 0x109, 0x203, 0x30a, 0x406, 0x50f,
+	final static int[] edgeTable = { 0x0, 0x109, 0x203, 0x30a, 0x406, 0x50f,
 			0x605, 0x70c, 0x80c, 0x905, 0xa0f, 0xb06, 0xc0a, 0xd03, 0xe09,
 			0xf00, 0x190, 0x99, 0x393, 0x29a, 0x596, 0x49f, 0x795, 0x69c,
 			0x99c, 0x895, 0xb9f, 0xa96, 0xd9a, 0xc93, 0xf99, 0xe90, 0x230,
@@ -137,7 +198,7 @@ public class MarchingCubes extends AbstractOperation<MarchingCubesModel, Surface
 	 * 
 	 * The size of the triangle table is 256 x 16
 	 */
-	private final static int[][] triTable = {
+	final static int[][] triTable = {
 			{ -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1 },
 			{ 0, 8, 3, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1 },
 			{ 0, 1, 9, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1 },
@@ -395,345 +456,4 @@ public class MarchingCubes extends AbstractOperation<MarchingCubesModel, Surface
 			{ 0, 3, 8, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1 },
 			{ -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1 } };
 
-
-	@SuppressWarnings("unchecked")
-	private Object[] parseVertices() throws OperationException {	
-		
-		final ILazyDataset lazyData = model.getLazyData();
-		final int[] boxSize         = model.getBoxSize();
-		final double isovalue       = model.getIsovalue();
-		
-		int xLimit = lazyData.getShape()[2];
-		int yLimit = lazyData.getShape()[1];
-		int zLimit = lazyData.getShape()[0];
-
-        if(xLimit % boxSize[0] != 0){
-			xLimit = xLimit - xLimit % boxSize[0];
-		}
-		
-
-		if(yLimit % boxSize[1] != 0){
-			yLimit = yLimit - yLimit % boxSize[1];
-		}
-		
-		
-		if(zLimit % boxSize[2] != 0){
-			zLimit = zLimit - zLimit % boxSize[2];
-		}
-		
-		final Set<Triangle>      triangles  = new HashSet<Triangle>(89);
-		final Map<Point, Integer> vertices  = new LinkedHashMap<Point, Integer>(89);
-		
-		
-		for(int k=0; k < zLimit-2*boxSize[2]; k+=boxSize[2]){
-			
-			IDataset slicedImage = lazyData.getSlice(new int[] {k,0,0}, new int[] {k+2*boxSize[2], yLimit, xLimit}, new int[] {boxSize[2], boxSize[1], boxSize[0]});
-			
-			Object[] slice = slicedData(slicedImage, k, boxSize, xLimit, yLimit);
-			
-			// a map and an array containing only the data from the slices
-			Map<Point, Number> values = (Map<Point, Number>) slice[0]; 
-			Point[] points = (Point[]) slice[1];
-
-			int i = 0; // index that goes through the front "face" of the slice 
-			int y = 0; // index that keeps track of the points on a column of the face
-			
-			while(i < points.length - 2 * yLimit/boxSize[1] - 2){
-				
-				Point[] cellCoords = new Point[8];
-				double[] cellValues = new double[8];
-				
-				cellCoords[0] = points[i+3];
-				cellValues[0] = (double) values.get(cellCoords[0]).doubleValue();
-				
-				cellCoords[1] = points[i+3+2*yLimit/boxSize[1]];
-				cellValues[1] = (double) values.get(cellCoords[1]).doubleValue();
-				
-				cellCoords[2] = points[i+2+2*yLimit/boxSize[1]];
-				cellValues[2] = (double) values.get(cellCoords[2]).doubleValue();
-				
-				cellCoords[3] = points[i+2];
-				cellValues[3] = (double) values.get(cellCoords[3]).doubleValue();
-				
-				cellCoords[4] = points[i+1];
-				cellValues[4] = (double) values.get(cellCoords[4]).doubleValue();
-				
-				cellCoords[5] = points[i+1+2*yLimit/boxSize[1]];
-				cellValues[5] = (double) values.get(cellCoords[5]).doubleValue();
-				
-				cellCoords[6] = points[i+2*yLimit/boxSize[1]];
-				cellValues[6] = (double) values.get(cellCoords[6]).doubleValue();
-				
-				cellCoords[7] = points[i];
-				cellValues[7] = (double) values.get(cellCoords[7]).doubleValue();
-				
-
-				
-				GridCell currentCell = new GridCell(cellCoords, cellValues);
-				int cubeIndex = getCubeIndex(currentCell, isovalue);
-				if (cubeIndex != 0 && cubeIndex != 255) {
-					surfaceGridCellIntesection(currentCell, cubeIndex, isovalue);
-					currentCell.setTrianglesList(createTriangles(vertices, currentCell, cubeIndex));
-					if(vertices.size()>=model.getVertexLimit()){
-						throw new UnsupportedOperationException("The number of verices has exceeded "+model.getVertexLimit()+". The surface cannot be rendered.");
-					}
-					triangles.addAll(currentCell.getTrianglesList());
-				}
-				
-				if(y < 2*yLimit/boxSize[1]-2){
-					i += 2;
-					y += 2;
-					if(y == 2*yLimit/boxSize[1]-2){
-						i += 2;
-						y = 0;
-					}
-				}
-
-			}
-		}
-		return new Object[]{triangles, vertices};
-	}
-
-	
-	public int getCubeIndex(GridCell cell, double isovalue){
-		int cubeIndex = 0;
-		
-		if (cell.getCellValues()[0] < isovalue)
-			cubeIndex |= 1;
-		if (cell.getCellValues()[1] < isovalue)
-			cubeIndex |= 2;
-		if (cell.getCellValues()[2] < isovalue)
-			cubeIndex |= 4;
-		if (cell.getCellValues()[3] < isovalue)
-			cubeIndex |= 8;
-		if (cell.getCellValues()[4] < isovalue)
-			cubeIndex |= 16;
-		if (cell.getCellValues()[5] < isovalue)
-			cubeIndex |= 32;
-		if (cell.getCellValues()[6] < isovalue)
-			cubeIndex |= 64;
-		if (cell.getCellValues()[7] < isovalue)
-			cubeIndex |= 128;
-
-		return cubeIndex;
-	}
-	
-	
-	/**
-	 * The following method finds for one particular grid cell which are the
-	 * vertices where the isosurface intersects the cell
-	 * 
-	 * @param cell
-	 * @param cubeIndex
-	 * @param isovalue
-	 */
-	public void surfaceGridCellIntesection(GridCell cell, int cubeIndex,
-			double isovalue) {
-		if ((edgeTable[cubeIndex] & 1) != 0) {
-			cell.getVertexList()[0] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[0], cell.getCellCoords()[1],
-					cell.getCellValues()[0], cell.getCellValues()[1]);
-		}
-
-		if ((edgeTable[cubeIndex] & 2) != 0) {
-			cell.getVertexList()[1] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[1], cell.getCellCoords()[2],
-					cell.getCellValues()[1], cell.getCellValues()[2]);
-		}
-
-		if ((edgeTable[cubeIndex] & 4) != 0) {
-			cell.getVertexList()[2] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[2], cell.getCellCoords()[3],
-					cell.getCellValues()[2], cell.getCellValues()[3]);
-		}
-
-		if ((edgeTable[cubeIndex] & 8) != 0) {
-			cell.getVertexList()[3] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[3], cell.getCellCoords()[0],
-					cell.getCellValues()[3], cell.getCellValues()[0]);
-		}
-
-		if ((edgeTable[cubeIndex] & 16) != 0) {
-			cell.getVertexList()[4] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[4], cell.getCellCoords()[5],
-					cell.getCellValues()[4], cell.getCellValues()[5]);
-		}
-
-		if ((edgeTable[cubeIndex] & 32) != 0) {
-			cell.getVertexList()[5] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[5], cell.getCellCoords()[6],
-					cell.getCellValues()[5], cell.getCellValues()[6]);
-		}
-
-		if ((edgeTable[cubeIndex] & 64) != 0) {
-			cell.getVertexList()[6] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[6], cell.getCellCoords()[7],
-					cell.getCellValues()[6], cell.getCellValues()[7]);
-		}
-
-		if ((edgeTable[cubeIndex] & 128) != 0) {
-			cell.getVertexList()[7] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[7], cell.getCellCoords()[4],
-					cell.getCellValues()[7], cell.getCellValues()[4]);
-		}
-
-		if ((edgeTable[cubeIndex] & 256) != 0) {
-			cell.getVertexList()[8] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[0], cell.getCellCoords()[4],
-					cell.getCellValues()[0], cell.getCellValues()[4]);
-		}
-
-		if ((edgeTable[cubeIndex] & 512) != 0) {
-			cell.getVertexList()[9] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[1], cell.getCellCoords()[5],
-					cell.getCellValues()[1], cell.getCellValues()[5]);
-		}
-
-		if ((edgeTable[cubeIndex] & 1024) != 0) {
-			cell.getVertexList()[10] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[2], cell.getCellCoords()[6],
-					cell.getCellValues()[2], cell.getCellValues()[6]);
-		}
-
-		if ((edgeTable[cubeIndex] & 2048) != 0) {
-			cell.getVertexList()[11] = vertexInterpolation(isovalue,
-					cell.getCellCoords()[3], cell.getCellCoords()[7],
-					cell.getCellValues()[3], cell.getCellValues()[7]);
-		}
-	}
-
-	
-
-	/**
-	 * This method creates and returns a Collection of Triangle objects that the
-	 * marching cubes algorithm generates in one GridCell
-	 * 
-	 * @param cell
-	 * @param cubeIndex
-	 * @return
-	 */
-	public Collection<Triangle> createTriangles(Map<Point, Integer> vertices, GridCell cell, int cubeIndex) {
-
-		Collection<Triangle> cellTriangles = new HashSet<Triangle>();
-
-		for (int i = 0; triTable[cubeIndex][i] != -1; i += 3) {
-			Point a = cell.getVertexList()[triTable[cubeIndex][i]];
-			if(!vertices.containsKey(a)){
-				vertices.put(a, index);
-				index++;
-			}
-			Point b = cell.getVertexList()[triTable[cubeIndex][i + 1]];
-			if(!vertices.containsKey(b)){
-				vertices.put(b, index);
-				index++;
-			}
-			Point c = cell.getVertexList()[triTable[cubeIndex][i + 2]];
-			if(!vertices.containsKey(c)){
-				vertices.put(c, index);
-				index++;
-			}
-
-			Triangle currentTriangle = new Triangle(a, b, c);
-			cellTriangles.add(currentTriangle);
-		}
-
-		return cellTriangles;
-
-		
-	}
-
-
-
-	/**
-	 * Method to linearly interpolate the position where the isosurface cuts an
-	 * edge between two vertices each with their own value.
-	 * 
-	 * @param isovalue
-	 * @param p1
-	 * @param p2
-	 * @param v1
-	 * @param v2
-	 * @return the point of intersection
-	 */
-	public Point vertexInterpolation(double isovalue, Point p1, Point p2,
-			double v1, double v2) {
-		double mu;
-	
-		if (Math.abs(isovalue - v1) < 0.00001) {
-			return p1;
-		} else if (Math.abs(isovalue - v2) < 0.00001) {
-			return p2;
-		}
-
-		else if (Math.abs(v2 - v1) < 0.00001) {
-			return p1;
-		}
-
-		else {
-			Point p = new Point(); // the point that is going to be interpolated; 
-			mu = (isovalue - v1) / (v2 - v1);
-			double x = p1.getxCoord() + mu * (p2.getxCoord() - p1.getxCoord());
-			double y = p1.getyCoord() + mu * (p2.getyCoord() - p1.getyCoord());
-			double z = p1.getzCoord() + mu * (p2.getzCoord() - p1.getzCoord());
-			
-			p.setxCoord((long) (x * 1000 + 0.5) / 1000.0);
-			p.setyCoord((long) (y * 1000 + 0.5) / 1000.0);
-			p.setzCoord((long) (z * 1000 + 0.5) / 1000.0);
-			return p;
-		}
-	}
-
-
-
-	/**
-	 * This method creates the array of coordinates that is needed for the
-	 * TriangleMesh class of JavaFX It uses the array of distinct points and
-	 * gets the x,y,z coordinates
-	 * 
-	 * @param pointsWithoutRepetition
-	 * @return
-	 */
-	public float[] getCoordinates(Point[] pointsWithoutRepetition) {
-		float[] points = new float[3 * pointsWithoutRepetition.length];
-		int j = 0;
-		for (int i = 0; i < pointsWithoutRepetition.length; i++) {
-			points[j] = (float) pointsWithoutRepetition[i].getxCoord();
-			points[j + 1] = (float) pointsWithoutRepetition[i].getyCoord();
-			points[j + 2] = (float) pointsWithoutRepetition[i].getzCoord();
-			j += 3;
-		}
-		return points;
-	}
-
-	/**
-	 * Method that gets the points for each slice
-	 * @param slicedImage
-	 * @param k
-	 * @param boxSize
-	 * @param xLimit
-	 * @param yLimit
-	 * @return
-	 */
-	public Object[] slicedData(IDataset slicedImage, int k, int[] boxSize, int xLimit, int yLimit){
-		
-		Map<Point, Number> values = new HashMap<Point, Number>();
-		Point[] points = new Point[2 * (xLimit/boxSize[0]) * (yLimit/boxSize[1])];
-		
-		
-		int a = 0; // index in the array of points
-
-		for(int i=0; i<xLimit; i+=boxSize[0]){
-			for(int j=0; j<yLimit; j+=boxSize[1]){
-								
-				points[a] = new Point(i,j,k);
-				points[a+1] = new Point(i,j,k+boxSize[2]);
-				values.put(points[a], slicedImage.getDouble(0,j/boxSize[1],i/boxSize[0]));
-				values.put(points[a+1], slicedImage.getDouble(1,j/boxSize[1],i/boxSize[0]));
-				
-				a+=2;
-			}
-		}
-		return new Object[]{values, points};
-	}
-	
 }
@@ -27,7 +27,9 @@ public class MarchingCubesModel extends AbstractOperationModel {
 	private int[] boxSize;
 	private double isovalueMin = Integer.MAX_VALUE;
 	private double isovalueMax = Integer.MIN_VALUE;
-	private int    vertexLimit = 1000000;
+	private int    vertexLimit = getDefaultVertexLimit();
+	private boolean parallel   = true;
+	private boolean progressive = true;
 	
 	public ILazyDataset getLazyData() {
 		return lazyData;
@@ -37,6 +39,22 @@ public class MarchingCubesModel extends AbstractOperationModel {
 		this.lazyData = lz;
 	}
 	
+	/**
+	 * Bytes held per vertex while a surface is built and plotted: points, texture
+	 * coordinates and about two triangles of faces, with the spare capacity and the
+	 * copy made when the arrays grow or the slabs are joined.
+	 */
+	private static final int BYTES_PER_VERTEX = 128;
+
+	/**
+	 * The default limit lets a surface use up to a quarter of the maximum heap,
+	 * and is never less than the old fixed limit of one million vertices.
+	 */
+	private static int getDefaultVertexLimit() {
+		final long limit = Runtime.getRuntime().maxMemory()/4/BYTES_PER_VERTEX;
+		return (int)Math.max(1000000, Math.min(SurfaceBuilder.MAX_ARRAY_SIZE/3, limit));
+	}
+
 	private void computeExtents(ILazyDataset lz) {
 		// If we have just set new data, reset the values for box size and isovalue
 		this.boxSize  = getEstimatedBoxSize(lz);
@@ -149,6 +167,8 @@ public class MarchingCubesModel extends AbstractOperationModel {
 		result = prime * result
 				+ ((lazyData == null) ? 0 : lazyData.hashCode());
 		result = prime * result + vertexLimit;
+		result = prime * result + (parallel ? 1231 : 1237);
+		result = prime * result + (progressive ? 1231 : 1237);
 		return result;
 	}
 	@Override
@@ -178,6 +198,10 @@ public class MarchingCubesModel extends AbstractOperationModel {
 			return false;
 		if (vertexLimit != other.vertexLimit)
 			return false;
+		if (parallel != other.parallel)
+			return false;
+		if (progressive != other.progressive)
+			return false;
 		return true;
 	}
 	public int getVertexLimit() {
@@ -186,5 +210,25 @@ public class MarchingCubesModel extends AbstractOperationModel {
 	public void setVertexLimit(int vertexLimit) {
 		this.vertexLimit = vertexLimit;
 	}
+	/**
+	 * 
+	 * @return true if slabs of the volume are processed on all cores at once
+	 */
+	public boolean isParallel() {
+		return parallel;
+	}
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	/**
+	 * 
+	 * @return true if a coarse preview of the surface is shown while the surface is made
+	 */
+	public boolean isProgressive() {
+		return progressive;
+	}
+	public void setProgressive(boolean progressive) {
+		this.progressive = progressive;
+	}
 
 }
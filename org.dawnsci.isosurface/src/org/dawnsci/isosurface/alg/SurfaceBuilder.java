@@ -0,0 +1,583 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.isosurface.alg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.api.dataset.ILazyDataset;
+import org.eclipse.dawnsci.analysis.api.monitor.IMonitor;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+
+/**
+ * Runs marching cubes over the planes of a volume and writes the mesh
+ * straight in to the float[] and int[] arrays which Surface holds.
+ *
+ * The grid points are every boxSize of the volume. The volume is read one
+ * plane of grid points at a time, so only two planes are held whatever the
+ * size of the volume. Each vertex is made once, on the edge of the grid which
+ * it cuts, and its index is kept in tables indexed by edge: the x and y edges
+ * of the lower and upper planes and the z edges between them. When the next
+ * plane is read the upper tables become the lower ones.
+ *
+ * The points are x,y,z in pixels of the volume. The faces are in the order
+ * which the JavaFX TriangleMesh wants, vertex then texture coordinate.
+ *
+ * With a VolumeIndex only the blocks of cells which the isosurface may cut
+ * are read and marched, once their layer of blocks is known. Whole planes
+ * which are read are added to the index.
+ *
+ * build(...) with a pool cuts the planes in to slabs which are built at the
+ * same time. A slab keeps the vertices on the x and y edges of its first and
+ * last planes, so that when the slabs are joined the vertices on the plane
+ * between two slabs are only kept once. Lazy datasets which are not in memory,
+ * such as those of HDF5 files, may not be sliced from several threads, so the
+ * slabs read their planes one at a time, locked on the lazy dataset, and march
+ * them at the same time.
+ */
+class SurfaceBuilder {
+
+	/**
+	 * The largest array which can be made.
+	 */
+	static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE-8;
+
+	/**
+	 * Values this close to the isovalue are taken to be on it.
+	 */
+	private static final double EPSILON = 0.00001;
+
+	private static final float[] TEX_COORDS = { 0, 0, 0.5f, 0.5f, 1, 1 };
+
+	/**
+	 * Fewest layers of cells in a slab, a slab reads one plane more than it builds.
+	 */
+	private static final int MIN_SLAB_LAYERS = 4;
+
+	private final ILazyDataset lazyData;
+	private final int[]        boxSize;
+	private final double       isovalue;
+	private final int          vertexLimit;
+	private final VolumeIndex  index;
+	private final int          nx, ny, nz;
+
+	private double[] lower, upper;
+	private int[]    lowerX, lowerY, upperX, upperY, edgeZ;
+
+	private float[]  points = new float[3*1024];
+	private int      vertexCount;
+	private int[]    faces  = new int[6*1024];
+	private int      faceLength;
+
+	/**
+	 * Pairs of edge key, vertex for the x and y edges of the first and last plane.
+	 */
+	private int[]    firstEdges, lastEdges;
+
+	/**
+	 *
+	 * @param lazyData 3D, z,y,x
+	 * @param boxSize x,y,z
+	 * @param isovalue
+	 * @param vertexLimit
+	 * @param index of lazyData for boxSize, may be null
+	 */
+	SurfaceBuilder(ILazyDataset lazyData, int[] boxSize, double isovalue, int vertexLimit, VolumeIndex index) {
+		this.lazyData    = lazyData;
+		this.boxSize     = boxSize;
+		this.isovalue    = isovalue;
+		this.vertexLimit = vertexLimit;
+		this.index       = index;
+
+		final int[] shape = lazyData.getShape();
+		this.nx = shape[2]/boxSize[0];
+		this.ny = shape[1]/boxSize[1];
+		this.nz = shape[0]/boxSize[2];
+	}
+
+	/**
+	 *
+	 * @return number of planes of grid points
+	 */
+	int getPlaneCount() {
+		return nz;
+	}
+
+	/**
+	 * Adds the surface in the cells between grid planes from and to.
+	 *
+	 * @param from first plane
+	 * @param to last plane, at most getPlaneCount()-1
+	 * @param monitor may be null, worked(1) is called for each layer of cells
+	 * @return false if the monitor was cancelled
+	 */
+	boolean build(int from, int to, IMonitor monitor) {
+		return build(from, to, monitor, monitor);
+	}
+
+	/**
+	 * 
+	 * @param from first plane
+	 * @param to last plane
+	 * @param cancel may be null
+	 * @param progress may be null
+	 * @return false if cancel was cancelled
+	 */
+	private boolean build(int from, int to, IMonitor cancel, IMonitor progress) {
+
+		final int size = nx*ny;
+		lower  = new double[size];
+		upper  = new double[size];
+		lowerX = new int[size];
+		lowerY = new int[size];
+		upperX = new int[size];
+		upperY = new int[size];
+		edgeZ  = new int[size];
+
+		final int[]     whole  = {0, ny, 0, nx};
+		final boolean[] active = index!=null ? new boolean[index.getBlocksY()*index.getBlocksX()] : null;
+		boolean[] blocks      = null;  // Blocks to march, null for all
+		int[]     region      = whole; // Grid points the blocks need, rows then columns
+		int[]     upperRegion = null;  // Grid points read in to upper
+		int       layer       = -1;
+		try {
+			Arrays.fill(upperX, -1);
+			Arrays.fill(upperY, -1);
+
+			for (int z = from; z < to; z++) {
+				if (cancel!=null && cancel.isCancelled()) return false;
+
+				if (z/VolumeIndex.BLOCK != layer) {
+					layer = z/VolumeIndex.BLOCK;
+					if (index!=null && index.isKnown(layer)) {
+						blocks = index.getActive(layer, isovalue, active) ? active : null;
+						region = blocks!=null ? getRegion(blocks) : null;
+					} else {
+						blocks = null;
+						region = whole;
+					}
+				}
+
+				nextPlane();
+				final int[] lowerRegion = upperRegion;
+				upperRegion = null;
+				if (region!=null) { // Else the isosurface cannot cut the layer
+					if (!contains(lowerRegion, region)) readPlane(z, lower, region);
+					readPlane(z+1, upper, region);
+					upperRegion = region;
+					march(z, blocks);
+				}
+				if (z==from) firstEdges = getEdges(lowerX, lowerY);
+				if (progress!=null) progress.worked(1);
+			}
+			lastEdges = getEdges(upperX, upperY);
+			return true;
+
+		} finally { // Only the mesh is kept
+			lower = upper = null;
+			lowerX = lowerY = upperX = upperY = edgeZ = null;
+		}
+	}
+
+	/**
+	 * Builds the surface between the first and last plane in slabs on the pool.
+	 * 
+	 * @param lazyData 3D, z,y,x
+	 * @param boxSize x,y,z
+	 * @param isovalue
+	 * @param vertexLimit
+	 * @param index of lazyData for boxSize, may be null
+	 * @param monitor may be null, worked(1) is called for each layer of cells
+	 * @param pool
+	 * @return the surface, or null if the monitor was cancelled
+	 */
+	static Surface build(final ILazyDataset lazyData, final int[] boxSize, final double isovalue, final int vertexLimit,
+			             final VolumeIndex index, final IMonitor monitor, ForkJoinPool pool) {
+
+		final int layers = new SurfaceBuilder(lazyData, boxSize, isovalue, vertexLimit, index).getPlaneCount()-1;
+		final int perSlab = Math.max(MIN_SLAB_LAYERS, (layers+4*pool.getParallelism()-1)/(4*pool.getParallelism()));
+
+		final List<RecursiveTask<SurfaceBuilder>> tasks = new ArrayList<RecursiveTask<SurfaceBuilder>>(layers/perSlab+1);
+		for (int start = 0; start < layers; start+=perSlab) {
+			final int from = start;
+			final int to   = Math.min(layers, start+perSlab);
+			tasks.add(new RecursiveTask<SurfaceBuilder>() {
+				private static final long serialVersionUID = 6393164862526301563L;
+				@Override
+				protected SurfaceBuilder compute() {
+					final SurfaceBuilder slab = new SurfaceBuilder(lazyData, boxSize, isovalue, vertexLimit, index);
+					return slab.build(from, to, monitor, null) ? slab : null;
+				}
+			});
+		}
+		for (RecursiveTask<SurfaceBuilder> task : tasks) pool.execute(task);
+
+		// Progress is reported from this thread, as slabs finish in order.
+		final SurfaceBuilder[] slabs = new SurfaceBuilder[tasks.size()];
+		try {
+			for (int i = 0; i < slabs.length; i++) {
+				slabs[i] = tasks.get(i).join();
+				if (slabs[i]==null) {
+					for (RecursiveTask<SurfaceBuilder> task : tasks) task.cancel(false);
+					return null;
+				}
+				if (monitor!=null) monitor.worked(Math.min(layers, (i+1)*perSlab)-i*perSlab);
+			}
+		} catch (RuntimeException e) {
+			for (RecursiveTask<SurfaceBuilder> task : tasks) task.cancel(false);
+			throw e;
+		} catch (Error e) {
+			// Stop the other slabs so an OutOfMemoryError frees their arrays
+			for (RecursiveTask<SurfaceBuilder> task : tasks) task.cancel(false);
+			throw e;
+		}
+		return join(slabs, vertexLimit);
+	}
+
+	/**
+	 * Joins slabs which were built one after another, each starting at the
+	 * last plane of the one before.
+	 * 
+	 * @param slabs
+	 * @param vertexLimit
+	 * @return
+	 */
+	private static Surface join(SurfaceBuilder[] slabs, int vertexLimit) {
+
+		// Vertices on the plane between two slabs are mapped to those of the slab below.
+		final int[][] maps = new int[slabs.length][];
+		int  vertices   = 0;
+		long faceLength = 0;
+		int[] last = null; // key, vertex in the surface
+		for (int s = 0; s < slabs.length; s++) {
+			final SurfaceBuilder slab = slabs[s];
+			final int[] map = new int[slab.vertexCount];
+			Arrays.fill(map, -1);
+			if (last!=null && slab.firstEdges!=null) {
+				final int[] first = slab.firstEdges;
+				for (int i = 0, j = 0; i < first.length && j < last.length; ) {
+					if (first[i]<last[j]) {
+						i+=2;
+					} else if (first[i]>last[j]) {
+						j+=2;
+					} else {
+						map[first[i+1]] = last[j+1];
+						i+=2;
+						j+=2;
+					}
+				}
+			}
+			for (int v = 0; v < map.length; v++) if (map[v]<0) map[v] = vertices++;
+			if (vertices>vertexLimit) {
+				throw new UnsupportedOperationException("The number of vertices has exceeded "+vertexLimit+". The surface cannot be rendered.");
+			}
+			faceLength += slab.faceLength;
+			if (faceLength > MAX_ARRAY_SIZE) {
+				throw new UnsupportedOperationException("The number of triangles is more than can be rendered. The surface cannot be rendered.");
+			}
+
+			last = slab.lastEdges.clone();
+			for (int i = 1; i < last.length; i+=2) last[i] = map[last[i]];
+			maps[s] = map;
+		}
+
+		final float[] points = new float[3*vertices];
+		final int[]   faces  = new int[(int)faceLength];
+		int f = 0;
+		for (int s = 0; s < slabs.length; s++) {
+			final SurfaceBuilder slab = slabs[s];
+			final int[] map = maps[s];
+			for (int v = 0; v < map.length; v++) {
+				System.arraycopy(slab.points, 3*v, points, 3*map[v], 3);
+			}
+			for (int i = 0; i < slab.faceLength; i++) {
+				faces[f++] = i%2==0 ? map[slab.faces[i]] : slab.faces[i];
+			}
+			maps[s]     = null;
+			slabs[s]    = null; // Let the slab go
+		}
+		return new Surface(points, TEX_COORDS.clone(), faces);
+	}
+
+	int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 *
+	 * @return the mesh, the arrays are trimmed to the size used
+	 */
+	Surface getSurface() {
+		final float[] p = points.length==3*vertexCount ? points : Arrays.copyOf(points, 3*vertexCount);
+		final int[]   f = faces.length==faceLength     ? faces  : Arrays.copyOf(faces, faceLength);
+		return new Surface(p, TEX_COORDS.clone(), f);
+	}
+
+	/**
+	 * 
+	 * @param xEdges
+	 * @param yEdges
+	 * @return pairs of key, vertex of the edges with vertices, in order of key
+	 */
+	private int[] getEdges(int[] xEdges, int[] yEdges) {
+		int count = 0;
+		for (int n = 0; n < xEdges.length; n++) {
+			if (xEdges[n]>=0) ++count;
+			if (yEdges[n]>=0) ++count;
+		}
+		final int[] edges = new int[2*count];
+		int i = 0;
+		for (int n = 0; n < xEdges.length; n++) {
+			if (xEdges[n]>=0) {
+				edges[i++] = 2*n;
+				edges[i++] = xEdges[n];
+			}
+			if (yEdges[n]>=0) {
+				edges[i++] = 2*n+1;
+				edges[i++] = yEdges[n];
+			}
+		}
+		return edges;
+	}
+
+	/**
+	 * The upper plane and its edges become the lower ones.
+	 */
+	private void nextPlane() {
+		double[] values = lower;
+		lower = upper;
+		upper = values;
+
+		int[] edges = lowerX;
+		lowerX = upperX;
+		upperX = edges;
+
+		edges  = lowerY;
+		lowerY = upperY;
+		upperY = edges;
+
+		Arrays.fill(upperX, -1);
+		Arrays.fill(upperY, -1);
+		Arrays.fill(edgeZ,  -1);
+	}
+
+	/**
+	 * 
+	 * @param z
+	 * @param values
+	 * @param region rows [region[0], region[1]) and columns [region[2], region[3]) of grid points
+	 */
+	private void readPlane(int z, double[] values, int[] region) {
+		final int   k     = z*boxSize[2];
+		final int[] start = new int[] {k, region[0]*boxSize[1], region[2]*boxSize[0]};
+		final int[] stop  = new int[] {k+1, (region[1]-1)*boxSize[1]+1, (region[3]-1)*boxSize[0]+1};
+		final int[] step  = new int[] {1, boxSize[1], boxSize[0]};
+		final IDataset slice;
+		if (lazyData instanceof IDataset) {
+			slice = lazyData.getSlice(start, stop, step);
+		} else {
+			synchronized (lazyData) { // Files are read by one slab at a time
+				slice = lazyData.getSlice(start, stop, step);
+			}
+		}
+		// getSlice gives a new dataset, so its elements are in order.
+		final Dataset plane = DatasetUtils.convertToDataset(slice);
+		int n = 0;
+		for (int j = region[0]; j < region[1]; j++) {
+			for (int i = region[2]; i < region[3]; i++) values[j*nx+i] = plane.getElementDoubleAbs(n++);
+		}
+		if (index!=null && region[0]==0 && region[1]==ny && region[2]==0 && region[3]==nx) index.add(z, values);
+	}
+
+	/**
+	 * 
+	 * @param blocks of a layer
+	 * @return the grid points which the true blocks need, rows then columns
+	 */
+	private int[] getRegion(boolean[] blocks) {
+		final int bx = index.getBlocksX();
+		final int[] region = {Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 0};
+		for (int b = 0; b < blocks.length; b++) {
+			if (!blocks[b]) continue;
+			final int j = (b/bx)*VolumeIndex.BLOCK;
+			final int i = (b%bx)*VolumeIndex.BLOCK;
+			region[0] = Math.min(region[0], j);
+			region[1] = Math.max(region[1], Math.min(ny, j+VolumeIndex.BLOCK+1));
+			region[2] = Math.min(region[2], i);
+			region[3] = Math.max(region[3], Math.min(nx, i+VolumeIndex.BLOCK+1));
+		}
+		return region;
+	}
+
+	private static boolean contains(int[] region, int[] other) {
+		return region!=null && region[0]<=other[0] && region[1]>=other[1] && region[2]<=other[2] && region[3]>=other[3];
+	}
+
+	/**
+	 * The cells between plane z and z+1 in the blocks.
+	 * 
+	 * @param z
+	 * @param blocks of the index, null for all cells
+	 */
+	private void march(int z, boolean[] blocks) {
+		if (blocks==null) {
+			march(z, 0, ny-1, 0, nx-1);
+			return;
+		}
+		final int bx = index.getBlocksX();
+		for (int b = 0; b < blocks.length; b++) {
+			if (!blocks[b]) continue;
+			final int j = (b/bx)*VolumeIndex.BLOCK;
+			final int i = (b%bx)*VolumeIndex.BLOCK;
+			march(z, j, Math.min(ny-1, j+VolumeIndex.BLOCK), i, Math.min(nx-1, i+VolumeIndex.BLOCK));
+		}
+	}
+
+	/**
+	 * The cells between plane z and z+1, from grid point rows [j0, j1) and
+	 * columns [i0, i1). The corners of a cell are numbered as in the tables of
+	 * MarchingCubes: 7,6,2,3 on the lower plane and 4,5,1,0 above them, 7 at
+	 * the grid point i,j.
+	 */
+	private void march(int z, int j0, int j1, int i0, int i1) {
+
+		final double iso = isovalue;
+		for (int j = j0; j < j1; j++) {
+			for (int i = i0; i < i1; i++) {
+
+				final int n = j*nx+i;
+				int cubeIndex = 0;
+				if (upper[n+nx]   < iso) cubeIndex |= 1;
+				if (upper[n+nx+1] < iso) cubeIndex |= 2;
+				if (lower[n+nx+1] < iso) cubeIndex |= 4;
+				if (lower[n+nx]   < iso) cubeIndex |= 8;
+				if (upper[n]      < iso) cubeIndex |= 16;
+				if (upper[n+1]    < iso) cubeIndex |= 32;
+				if (lower[n+1]    < iso) cubeIndex |= 64;
+				if (lower[n]      < iso) cubeIndex |= 128;
+				if (cubeIndex==0 || cubeIndex==255) continue;
+
+				final int[] triangles = MarchingCubes.triTable[cubeIndex];
+				for (int t = 0; triangles[t] != -1; t += 3) {
+					final int a = getVertex(triangles[t],   i, j, z);
+					final int b = getVertex(triangles[t+1], i, j, z);
+					final int c = getVertex(triangles[t+2], i, j, z);
+					addFace(c, b, a);
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param edge of the cell, as in the tables of MarchingCubes
+	 * @param i
+	 * @param j
+	 * @param z
+	 * @return index of the vertex on the edge, made if it is not there
+	 */
+	private int getVertex(int edge, int i, int j, int z) {
+		switch (edge) {
+		case 0:  return getVertex(upperX, upper, i,   j+1, z+1, 0);
+		case 1:  return getZVertex(i+1, j+1, z);
+		case 2:  return getVertex(lowerX, lower, i,   j+1, z,   0);
+		case 3:  return getZVertex(i,   j+1, z);
+		case 4:  return getVertex(upperX, upper, i,   j,   z+1, 0);
+		case 5:  return getZVertex(i+1, j,   z);
+		case 6:  return getVertex(lowerX, lower, i,   j,   z,   0);
+		case 7:  return getZVertex(i,   j,   z);
+		case 8:  return getVertex(upperY, upper, i,   j,   z+1, 1);
+		case 9:  return getVertex(upperY, upper, i+1, j,   z+1, 1);
+		case 10: return getVertex(lowerY, lower, i+1, j,   z,   1);
+		case 11: return getVertex(lowerY, lower, i,   j,   z,   1);
+		default: throw new IllegalArgumentException("There is no edge "+edge);
+		}
+	}
+
+	/**
+	 * The vertex on the x or y edge from grid point i,j of a plane.
+	 */
+	private int getVertex(int[] edges, double[] values, int i, int j, int z, int axis) {
+		final int n = j*nx+i;
+		if (edges[n]<0) {
+			final double v2 = axis==0 ? values[n+1] : values[n+nx];
+			edges[n] = addVertex(i, j, z, axis, values[n], v2);
+		}
+		return edges[n];
+	}
+
+	/**
+	 * The vertex on the z edge from grid point i,j of the lower plane.
+	 */
+	private int getZVertex(int i, int j, int z) {
+		final int n = j*nx+i;
+		if (edgeZ[n]<0) edgeZ[n] = addVertex(i, j, z, 2, lower[n], upper[n]);
+		return edgeZ[n];
+	}
+
+	/**
+	 * Adds the point where the isosurface cuts the edge from grid point i,j,z
+	 * along axis, by linear interpolation between the values at its ends.
+	 *
+	 * @return the index of the vertex
+	 */
+	private int addVertex(int i, int j, int z, int axis, double v1, double v2) {
+
+		if (vertexCount>=vertexLimit) {
+			throw new UnsupportedOperationException("The number of vertices has exceeded "+vertexLimit+". The surface cannot be rendered.");
+		}
+
+		double mu;
+		if (Math.abs(isovalue - v1) < EPSILON) {
+			mu = 0;
+		} else if (Math.abs(isovalue - v2) < EPSILON) {
+			mu = 1;
+		} else if (Math.abs(v2 - v1) < EPSILON) {
+			mu = 0;
+		} else {
+			mu = (isovalue - v1) / (v2 - v1);
+		}
+
+		final int p = 3*vertexCount;
+		if (p+3 > points.length) points = Arrays.copyOf(points, getLength(points.length, p+3L));
+		points[p]   = (float)((i + (axis==0 ? mu : 0)) * boxSize[0]);
+		points[p+1] = (float)((j + (axis==1 ? mu : 0)) * boxSize[1]);
+		points[p+2] = (float)((z + (axis==2 ? mu : 0)) * boxSize[2]);
+		return vertexCount++;
+	}
+
+	private void addFace(int a, int b, int c) {
+		if (faceLength+6 > faces.length) faces = Arrays.copyOf(faces, getLength(faces.length, faceLength+6L));
+		faces[faceLength]   = a;
+		faces[faceLength+1] = 0;
+		faces[faceLength+2] = b;
+		faces[faceLength+3] = 1;
+		faces[faceLength+4] = c;
+		faces[faceLength+5] = 2;
+		faceLength += 6;
+	}
+
+	/**
+	 *
+	 * @param length of the array now
+	 * @param needed length
+	 * @return new length of a growing array
+	 */
+	private static int getLength(int length, long needed) {
+		if (needed > MAX_ARRAY_SIZE) {
+			throw new UnsupportedOperationException("The number of triangles is more than can be rendered. The surface cannot be rendered.");
+		}
+		return (int)Math.min(MAX_ARRAY_SIZE, Math.max(needed, length + (length>>1)));
+	}
+}
@@ -1,83 +0,0 @@
-/*
- * Copyright (c) 2012 Diamond Light Source Ltd.
- *
- * All rights reserved. This program and the accompanying materials
- * are made available under the terms of the Eclipse Public License v1.0
- * which accompanies this distribution, and is available at
- * http://www.eclipse.org/legal/epl-v10.html
- */
-package org.dawnsci.isosurface.alg;
-
-/**
- * 
- * @author nnb55016
- * The Triangle class defines the basic triangle which is formed of three points
- */
-public class Triangle {
-
-	private Point a;
-	private Point b;
-	private Point c;
-	
-	public Triangle(Point a, Point b, Point c){
-		this.a = a;
-		this.b = b;
-		this.c = c;
-	}
-
-	public Point getA() {
-		return a;
-	}
-
-	public Point getB() {
-		return b;
-	}
-
-	public Point getC() {
-		return c;
-	}
-	
-	@Override
-	public String toString(){
-		return "{" + getA().toString() + ", " + getB().toString() + ", " + getC().toString() + "}";
-	}
-	
-
-	@Override
-	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((a == null) ? 0 : a.hashCode());
-		result = prime * result + ((b == null) ? 0 : b.hashCode());
-		result = prime * result + ((c == null) ? 0 : c.hashCode());
-		return result;
-	}
-
-	@Override
-	public boolean equals(Object obj) {
-		if (this == obj)
-			return true;
-		if (obj == null)
-			return false;
-		if (getClass() != obj.getClass())
-			return false;
-		Triangle other = (Triangle) obj;
-		if (a == null) {
-			if (other.a != null)
-				return false;
-		} else if (!a.equals(other.a))
-			return false;
-		if (b == null) {
-			if (other.b != null)
-				return false;
-		} else if (!b.equals(other.b))
-			return false;
-		if (c == null) {
-			if (other.c != null)
-				return false;
-		} else if (!c.equals(other.c))
-			return false;
-		return true;
-	}
-
-}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.isosurface.alg;
+
+import java.util.Arrays;
+
+import org.eclipse.dawnsci.analysis.api.dataset.ILazyDataset;
+
+/**
+ * The min and max of the grid points of blocks of BLOCK x BLOCK x BLOCK cells
+ * of a volume, for one box size.
+ *
+ * The isosurface can only cut a block if min < isovalue <= max, so once a layer
+ * of blocks is known the SurfaceBuilder only reads and marches the blocks which
+ * the isosurface may cut. A layer of blocks is known when all its planes have
+ * been read whole, which the first surface of a volume does.
+ *
+ * A NaN counts as above every isovalue, as it does when the cells are marched.
+ *
+ * Thread safe, the slabs of a parallel build add planes at the same time.
+ */
+class VolumeIndex {
+
+	/**
+	 * Cells along each side of a block.
+	 */
+	static final int BLOCK = 8;
+
+	private final ILazyDataset lazyData;
+	private final int[]        boxSize;
+	private final int          nx, ny, nz;    // grid points
+	private final int          bx, by, bz;    // blocks
+	private final double[]     min, max;      // bz, by, bx
+	private final boolean[]    read;          // planes read whole
+
+	/**
+	 *
+	 * @param lazyData 3D, z,y,x
+	 * @param boxSize x,y,z
+	 */
+	VolumeIndex(ILazyDataset lazyData, int[] boxSize) {
+		this.lazyData = lazyData;
+		this.boxSize  = boxSize.clone();
+
+		final int[] shape = lazyData.getShape();
+		this.nx = shape[2]/boxSize[0];
+		this.ny = shape[1]/boxSize[1];
+		this.nz = shape[0]/boxSize[2];
+		this.bx = getBlocks(nx);
+		this.by = getBlocks(ny);
+		this.bz = getBlocks(nz);
+
+		this.min  = new double[bz*by*bx];
+		this.max  = new double[bz*by*bx];
+		this.read = new boolean[nz];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 *
+	 * @param points along an axis
+	 * @return blocks along the axis
+	 */
+	private static int getBlocks(int points) {
+		return Math.max(0, (points-1+BLOCK-1)/BLOCK);
+	}
+
+	boolean isFor(ILazyDataset lazyData, int[] boxSize) {
+		return this.lazyData==lazyData && Arrays.equals(this.boxSize, boxSize);
+	}
+
+	int getBlocksX() {
+		return bx;
+	}
+
+	int getBlocksY() {
+		return by;
+	}
+
+	/**
+	 * Adds a whole plane of grid points to the blocks which have it as a corner.
+	 *
+	 * @param z plane
+	 * @param values ny x nx
+	 */
+	void add(int z, double[] values) {
+
+		synchronized (this) {
+			if (read[z]) return;
+		}
+
+		// The min and max of the plane in each block, a plane on the edge of a block is in both.
+		final double[] pmin = new double[by*bx];
+		final double[] pmax = new double[by*bx];
+		for (int b = 0; b < pmin.length; b++) {
+			final int j0 = (b/bx)*BLOCK, j1 = Math.min(ny-1, j0+BLOCK);
+			final int i0 = (b%bx)*BLOCK, i1 = Math.min(nx-1, i0+BLOCK);
+			double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+			for (int j = j0; j <= j1; j++) {
+				for (int i = i0; i <= i1; i++) {
+					final double v = values[j*nx+i];
+					if (Double.isNaN(v)) {
+						hi = Double.POSITIVE_INFINITY;
+						continue;
+					}
+					if (v<lo) lo = v;
+					if (v>hi) hi = v;
+				}
+			}
+			pmin[b] = lo;
+			pmax[b] = hi;
+		}
+
+		synchronized (this) {
+			if (read[z]) return;
+			read[z] = true;
+			if (z/BLOCK < bz)             merge(z/BLOCK,   pmin, pmax);
+			if (z%BLOCK==0 && z>0)        merge(z/BLOCK-1, pmin, pmax);
+		}
+	}
+
+	private void merge(int layer, double[] pmin, double[] pmax) {
+		final int offset = layer*by*bx;
+		for (int b = 0; b < pmin.length; b++) {
+			if (pmin[b]<min[offset+b]) min[offset+b] = pmin[b];
+			if (pmax[b]>max[offset+b]) max[offset+b] = pmax[b];
+		}
+	}
+
+	/**
+	 *
+	 * @param layer of blocks
+	 * @return true if all the planes of the layer have been added
+	 */
+	synchronized boolean isKnown(int layer) {
+		final int last = Math.min(nz-1, (layer+1)*BLOCK);
+		for (int z = layer*BLOCK; z <= last; z++) {
+			if (!read[z]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @param layer of blocks, which is known
+	 * @param isovalue
+	 * @param active by x bx, set to true for the blocks which the isosurface may cut
+	 * @return true if any block may be cut
+	 */
+	synchronized boolean getActive(int layer, double isovalue, boolean[] active) {
+		final int offset = layer*by*bx;
+		boolean any = false;
+		for (int b = 0; b < active.length; b++) {
+			active[b] = min[offset+b] < isovalue && isovalue <= max[offset+b];
+			any |= active[b];
+		}
+		return any;
+	}
+}
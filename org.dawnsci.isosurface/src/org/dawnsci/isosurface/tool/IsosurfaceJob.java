@@ -9,6 +9,7 @@
 package org.dawnsci.isosurface.tool;
 
 import org.dawb.common.ui.monitor.ProgressMonitorWrapper;
+import org.dawnsci.isosurface.alg.MarchingCubes;
 import org.dawnsci.isosurface.alg.MarchingCubesModel;
 import org.dawnsci.isosurface.alg.Surface;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -96,36 +97,34 @@ public class IsosurfaceJob extends Job {
 			if (monitor.isCanceled()) return Status.CANCEL_STATUS;
 			
 			try {
-				Surface surface    = generator.execute(null, new ProgressMonitorWrapper(monitor));
-				
-				IDataset points     = new FloatDataset(surface.getPoints(), surface.getPoints().length);
-				IDataset textCoords = new FloatDataset(surface.getTexCoords(), surface.getTexCoords().length);
-				IDataset faces      = new IntegerDataset(surface.getFaces(), surface.getFaces().length);
-				
-				if (trace == null) {
-					trace = system.createIsosurfaceTrace("isosurface");
-					trace.setData(points, textCoords, faces, null);
-				    Display.getDefault().syncExec(new Runnable() {
-				    	public void run() {
-							system.addTrace(trace); // doing this is not thread safe!
-				    	}
-				    });
-				} else {
-					trace.setData(points, textCoords, faces, null);
+				final ProgressMonitorWrapper wrapper = new ProgressMonitorWrapper(monitor);
+				if (generator instanceof MarchingCubes && generator.getModel().isProgressive()) {
+					// Something to look at while the full surface is made
+					final Surface preview = ((MarchingCubes)generator).getPreview(wrapper);
+					if (preview!=null) setSurface(system, preview);
+					if (monitor.isCanceled()) return Status.CANCEL_STATUS;
 				}
+				
+				Surface surface    = generator.execute(null, wrapper);
+				if (surface==null) return Status.CANCEL_STATUS;
+				setSurface(system, surface);
                 
 			} catch (UnsupportedOperationException e){
 				e.printStackTrace();
-				showErrorMessage("The number of vertices has exceeded "+generator.getModel().getVertexLimit(), "The surface cannot be rendered. Please increase the box size.");
+				showErrorMessage("The surface is too large", e.getMessage()+" Please increase the box size.");
 				return Status.CANCEL_STATUS;
 				
 			} catch (Exception e) {
-				logger.error("Cannot run algorithm "+generator.getClass().getSimpleName(), e);
+				if (isOutOfMemory(e)) {
+					// The loaders and the pool can wrap an OutOfMemoryError
+					showOutOfMemory(e);
+				} else {
+					logger.error("Cannot run algorithm "+generator.getClass().getSimpleName(), e);
+				}
 				return Status.CANCEL_STATUS;
 				
 			} catch (OutOfMemoryError e){
-				e.printStackTrace();
-				showErrorMessage("Out of memory Error", "There is not enough memory to render the surface. Please increase the box size.");
+				showOutOfMemory(e);
 				return Status.CANCEL_STATUS;
 			}
 					
@@ -137,6 +136,37 @@ public class IsosurfaceJob extends Job {
 		}
 	}
 
+	private static boolean isOutOfMemory(Throwable e) {
+		for (Throwable cause = e; cause!=null; cause = cause.getCause()) {
+			if (cause instanceof OutOfMemoryError) return true;
+		}
+		return false;
+	}
+
+	private void showOutOfMemory(Throwable e) {
+		e.printStackTrace();
+		showErrorMessage("Out of memory Error", "There is not enough memory to render the surface. Please increase the box size.");
+	}
+
+	private void setSurface(final IPlottingSystem system, Surface surface) {
+		
+		IDataset points     = new FloatDataset(surface.getPoints(), surface.getPoints().length);
+		IDataset textCoords = new FloatDataset(surface.getTexCoords(), surface.getTexCoords().length);
+		IDataset faces      = new IntegerDataset(surface.getFaces(), surface.getFaces().length);
+		
+		if (trace == null) {
+			trace = system.createIsosurfaceTrace("isosurface");
+			trace.setData(points, textCoords, faces, null);
+		    Display.getDefault().syncExec(new Runnable() {
+		    	public void run() {
+					system.addTrace(trace); // doing this is not thread safe!
+		    	}
+		    });
+		} else {
+			trace.setData(points, textCoords, faces, null);
+		}
+	}
+
 	private void showErrorMessage(final String title, final String message) {
 		Display.getDefault().syncExec(new Runnable(){
 			@Override
@@ -0,0 +1,228 @@
+package org.dawnsci.plotting.draw2d.swtxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.dataset.function.Downsample;
+import uk.ac.diamond.scisoft.analysis.dataset.function.DownsampleMode;
+
+/**
+ * Every tile and level of the pyramid must be what Downsample makes from the
+ * whole image, for every mode, including images whose sides are not a whole
+ * number of bins or tiles. The mean of a level is made from the means of the
+ * level below, so it may differ in the last digits.
+ */
+public class ImagePyramidTest {
+
+	private static final int TILE = ImagePyramid.TILE_SIZE;
+
+	@Test
+	public void testLevelShape() {
+		assertArrayEquals(new int[]{4, 5}, ImagePyramid.getLevelShape(new int[]{7, 9}, 2));
+		assertArrayEquals(new int[]{1, 2}, ImagePyramid.getLevelShape(new int[]{7, 9}, 8));
+		assertArrayEquals(new int[]{7, 9}, ImagePyramid.getLevelShape(new int[]{7, 9}, 1));
+	}
+
+	@Test
+	public void testWholeTiles() {
+		check(createImage(4*TILE, 8*TILE, 1));
+	}
+
+	/**
+	 * Sides which are odd, one more than a tile and one less, so that the last bins
+	 * and the last tiles of each level are cut short.
+	 */
+	@Test
+	public void testRaggedEdges() {
+		check(createImage(1100, 1300, 2));
+		check(createImage(2*TILE+1, 4*TILE-1, 3));
+		check(createImage(1027, 97, 4));
+	}
+
+	@Test
+	public void testSmallImage() {
+		final Dataset image = createImage(37, 53, 5);
+		check(image);
+		final ImagePyramid pyramid = new ImagePyramid(image, DownsampleMode.MAXIMUM);
+		try {
+			assertArrayEquals(new int[]{1, 1}, pyramid.getTileCount(2));
+			assertSame(image, pyramid.getLevel(1));
+		} finally {
+			pyramid.dispose();
+		}
+	}
+
+	/**
+	 * Tiles asked for from other threads while the build job makes the same levels,
+	 * coarsest first so that they need the tiles the job is making.
+	 */
+	@Test
+	public void testLookupWhileBuilding() throws Exception {
+		final Dataset image = createImage(1300, 1700, 6);
+		for (final DownsampleMode mode : DownsampleMode.values()) {
+			final Map<Integer, Dataset> levels = getLevels(image, mode);
+			final ImagePyramid pyramid = new ImagePyramid(image, mode);
+			try {
+				pyramid.build();
+
+				final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+				final List<Thread> threads  = new ArrayList<Thread>();
+				for (int t = 0; t < 3; t++) {
+					final long seed = t;
+					threads.add(new Thread() {
+						@Override
+						public void run() {
+							try {
+								final List<int[]> tiles = getTiles(pyramid, levels);
+								if (seed>0) Collections.shuffle(tiles, new Random(seed));
+								for (int[] tile : tiles) {
+									checkTile(levels.get(tile[0]), pyramid.getTile(tile[0], tile[1], tile[2]), tile, mode);
+								}
+							} catch (Throwable ne) {
+								failures.add(mode+": "+ne);
+							}
+						}
+					});
+				}
+				for (Thread thread : threads) thread.start();
+				for (Thread thread : threads) thread.join();
+				assertTrue(failures.toString(), failures.isEmpty());
+
+				// Once built, every tile is kept, those of the image are views of it
+				joinBuild();
+				for (int[] tile : getTiles(pyramid, levels)) {
+					if (tile[0]==1) continue;
+					assertSame(pyramid.getTile(tile[0], tile[1], tile[2]), pyramid.getTile(tile[0], tile[1], tile[2]));
+				}
+			} finally {
+				pyramid.dispose();
+			}
+		}
+	}
+
+	@Test
+	public void testDispose() throws Exception {
+		final Dataset      image   = createImage(1100, 1300, 7);
+		final ImagePyramid pyramid = new ImagePyramid(image, DownsampleMode.MEAN);
+		final Dataset      tile    = pyramid.getTile(4, 1, 1);
+		assertSame(tile, pyramid.getTile(4, 1, 1));
+
+		pyramid.build();
+		pyramid.dispose();
+		joinBuild();
+		assertTrue(pyramid.isDisposed());
+		final Dataset again = pyramid.getTile(4, 1, 1);
+		assertNotSame("Dropped from the cache", tile, again);
+		assertNotSame("Not cached after dispose", again, pyramid.getTile(4, 1, 1));
+		checkTile(getLevels(image, DownsampleMode.MEAN).get(4), again, new int[]{4, 1, 1}, DownsampleMode.MEAN);
+	}
+
+	/**
+	 * Each tile and each level against the image downsampled in one go, for every mode.
+	 */
+	private static void check(Dataset image) {
+		for (DownsampleMode mode : DownsampleMode.values()) {
+			final Map<Integer, Dataset> levels  = getLevels(image, mode);
+			final ImagePyramid          pyramid = new ImagePyramid(image, mode);
+			try {
+				for (int[] tile : getTiles(pyramid, levels)) {
+					checkTile(levels.get(tile[0]), pyramid.getTile(tile[0], tile[1], tile[2]), tile, mode);
+				}
+				for (int bin : levels.keySet()) {
+					final Dataset level = pyramid.getLevel(bin);
+					assertArrayEquals(mode+" bin "+bin, levels.get(bin).getShape(), level.getShape());
+					assertArrayEquals(pyramid.getLevelShape(bin), level.getShape());
+					checkTile(levels.get(bin), level, new int[]{bin, 0, 0}, mode);
+				}
+				// A region of tiles away from the corner
+				final int[] count = pyramid.getTileCount(2);
+				if (count[0]>1 && count[1]>1) {
+					final Dataset region = pyramid.getRegion(2, 1, 1, count[0], count[1]);
+					checkTile(levels.get(2), region, new int[]{2, 1, 1}, mode);
+				}
+			} finally {
+				pyramid.dispose();
+			}
+		}
+	}
+
+	/**
+	 * @return bin, tile row and tile column of every tile, the coarsest level first
+	 */
+	private static List<int[]> getTiles(ImagePyramid pyramid, Map<Integer, Dataset> levels) {
+		final List<Integer> bins = new ArrayList<Integer>(levels.keySet());
+		Collections.sort(bins, Collections.reverseOrder());
+		final List<int[]> tiles = new ArrayList<int[]>();
+		for (int bin : bins) {
+			final int[] count = pyramid.getTileCount(bin);
+			for (int tr = 0; tr < count[0]; tr++) {
+				for (int tc = 0; tc < count[1]; tc++) tiles.add(new int[]{bin, tr, tc});
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * The image downsampled by each bin from 1 to the level which is one tile.
+	 */
+	private static Map<Integer, Dataset> getLevels(Dataset image, DownsampleMode mode) {
+		final Map<Integer, Dataset> levels = new HashMap<Integer, Dataset>();
+		levels.put(1, image);
+		for (int bin = 2; ; bin*=2) {
+			final Dataset level = (Dataset)new Downsample(mode, new int[]{bin, bin}).value(image).get(0);
+			levels.put(bin, level);
+			if (level.getShape()[0]<=TILE && level.getShape()[1]<=TILE) break;
+		}
+		return levels;
+	}
+
+	/**
+	 * The part of the level from the start of the tile to the end of the given
+	 * dataset must match it.
+	 *
+	 * @param tile bin, tile row and tile column
+	 */
+	private static void checkTile(Dataset level, Dataset actual, int[] tile, DownsampleMode mode) {
+		final int row0 = tile[1]*TILE, col0 = tile[2]*TILE;
+		final int[] shape = actual.getShape();
+		final String name = mode+" bin "+tile[0]+" tile "+tile[1]+", "+tile[2];
+		assertTrue(name, row0+shape[0]<=level.getShape()[0] && col0+shape[1]<=level.getShape()[1]);
+		assertTrue(name+" ends at the level or a tile", row0+shape[0]==level.getShape()[0] || shape[0]%TILE==0);
+		assertTrue(name+" ends at the level or a tile", col0+shape[1]==level.getShape()[1] || shape[1]%TILE==0);
+		for (int i = 0; i < shape[0]; i++) {
+			for (int j = 0; j < shape[1]; j++) {
+				final double e = level.getDouble(row0+i, col0+j);
+				final double a = actual.getDouble(i, j);
+				assertEquals(name+" pixel "+i+", "+j, e, a, mode==DownsampleMode.MEAN ? 1e-12*Math.max(1, Math.abs(e)) : 0);
+			}
+		}
+	}
+
+	private static void joinBuild() throws InterruptedException {
+		for (Job job : Job.getJobManager().find(null)) {
+			if ("Image pyramid".equals(job.getName())) job.join();
+		}
+	}
+
+	private static Dataset createImage(int rows, int cols, long seed) {
+		final Random   random = new Random(seed);
+		final double[] data   = new double[rows*cols];
+		for (int i = 0; i < data.length; i++) data[i] = random.nextGaussian()*100 + (i%cols);
+		return new DoubleDataset(data, rows, cols);
+	}
+}
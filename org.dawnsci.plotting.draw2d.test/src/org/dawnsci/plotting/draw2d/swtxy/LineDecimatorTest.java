@@ -0,0 +1,278 @@
+package org.dawnsci.plotting.draw2d.swtxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.draw2d.geometry.Rectangle;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProvider;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProviderListener;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.ISample;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.Sample;
+import org.eclipse.nebula.visualization.xygraph.figures.Axis;
+import org.eclipse.nebula.visualization.xygraph.linearscale.Range;
+import org.junit.Test;
+
+/**
+ * The least and greatest y of each pixel column of the decimated line must be
+ * those of all the points in the column, with the first and last points of the
+ * column and one point either side of the axis.
+ */
+public class LineDecimatorTest {
+
+	private static final int SIZE  = 200000;
+	private static final int WIDTH = 500;
+
+	@Test
+	public void testMinMaxPerColumn() {
+		final Random   random = new Random(29);
+		final double[] xs     = new double[SIZE];
+		final double[] ys     = new double[SIZE];
+		for (int i = 1; i < SIZE; i++) xs[i] = xs[i-1] + random.nextDouble()*2; // Some columns have no points
+		for (int i = 0; i < SIZE; i++) ys[i] = 50*Math.sin(xs[i]/1000) + random.nextGaussian()*5;
+		for (int i = 1000; i < SIZE; i+=9973) ys[i] = Double.NaN; // Gaps in the line
+
+		final Axis axis = createAxis(xs[SIZE/4], xs[3*SIZE/4]);
+		check(new ArrayDataProvider(xs, ys), axis);
+		check(new SampleDataProvider(xs, ys), axis);
+
+		// Reaching past the data at each end
+		check(new ArrayDataProvider(xs, ys), createAxis(-100, xs[SIZE/8]));
+		check(new ArrayDataProvider(xs, ys), createAxis(xs[7*SIZE/8], xs[SIZE-1]+100));
+	}
+
+	@Test
+	public void testUnsortedIsNotDecimated() {
+		final double[] xs = {0, 1, 2, 3, 2.5, 4};
+		final double[] ys = {0, 1, 0, 1, 0, 1};
+		final Axis axis = createAxis(0, 4);
+		assertNull(new LineDecimator().getDecimated(new ArrayDataProvider(xs, ys), axis));
+		assertNull(new LineDecimator().getDecimated(new SampleDataProvider(xs, ys), axis));
+
+		final double[] nan = {0, 1, Double.NaN, 3, 4, 5};
+		assertNull(new LineDecimator().getDecimated(new SampleDataProvider(nan, ys), axis));
+
+		final double[] sorted = {0, 1, 2, 3, 3, 4};
+		assertNotNull(new LineDecimator().getDecimated(new SampleDataProvider(sorted, ys), axis));
+	}
+
+	/**
+	 * A primitive provider says whether it is sorted, the points are not looked through.
+	 */
+	@Test
+	public void testPrimitiveProviderIsAsked() {
+		final double[] xs = {0, 1, 2, 3, 4, 5};
+		final double[] ys = {0, 1, 0, 1, 0, 1};
+		final ArrayDataProvider data = new ArrayDataProvider(xs, ys);
+		final LineDecimator decimator = new LineDecimator();
+		final Axis axis = createAxis(0, 5);
+		assertNotNull(decimator.getDecimated(data, axis));
+		assertEquals(1, data.sortedCalls);
+
+		data.sorted = false;
+		assertNotNull("Not asked again until the data changes", decimator.getDecimated(data, axis));
+		decimator.dataChanged();
+		assertNull(decimator.getDecimated(data, axis));
+		assertEquals(2, data.sortedCalls);
+	}
+
+	@Test
+	public void testResultIsKept() {
+		final double[] xs = new double[10000];
+		final double[] ys = new double[10000];
+		for (int i = 0; i < xs.length; i++) {
+			xs[i] = i;
+			ys[i] = i%7;
+		}
+		final IDataProvider data      = new ArrayDataProvider(xs, ys);
+		final LineDecimator decimator = new LineDecimator();
+		final Axis          axis      = createAxis(100, 9000);
+
+		final IDataProvider first = decimator.getDecimated(data, axis);
+		assertSame(first, decimator.getDecimated(data, axis));
+
+		axis.setRange(100, 8000);
+		final IDataProvider zoomed = decimator.getDecimated(data, axis);
+		assertNotSame(first, zoomed);
+		assertSame(zoomed, decimator.getDecimated(data, axis));
+
+		axis.setBounds(new Rectangle(0, 0, WIDTH/2, 40));
+		final IDataProvider resized = decimator.getDecimated(data, axis);
+		assertNotSame(zoomed, resized);
+
+		decimator.dataChanged();
+		assertNotSame(resized, decimator.getDecimated(data, axis));
+	}
+
+	private static void check(IDataProvider data, Axis axis) {
+
+		final IDataProvider decimated = new LineDecimator().getDecimated(data, axis);
+		assertNotNull(decimated);
+
+		final double lower = axis.getRange().getLower();
+		final double upper = axis.getRange().getUpper();
+
+		// Every point on the axis, by column
+		final Map<Integer, double[]> expected = new HashMap<Integer, double[]>(); // min, max, first x, last x
+		int before = -1, after = -1, columns = 0;
+		for (int i = 0; i < data.getSize(); i++) {
+			final ISample sample = data.getSample(i);
+			final double  x = sample.getXValue(), y = sample.getYValue();
+			if (x<lower) {
+				before = i;
+				continue;
+			}
+			if (x>upper) {
+				if (after<0) after = i;
+				continue;
+			}
+			if (Double.isNaN(y)) continue;
+			final int c = getColumn(axis, x);
+			final double[] e = expected.get(c);
+			if (e==null) {
+				expected.put(c, new double[]{y, y, x, x});
+				++columns;
+			} else {
+				e[0] = Math.min(e[0], y);
+				e[1] = Math.max(e[1], y);
+				e[3] = x;
+			}
+		}
+
+		// The decimated points on the axis, by column
+		final Map<Integer, double[]> actual = new HashMap<Integer, double[]>();
+		double last = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < decimated.getSize(); i++) {
+			final ISample sample = decimated.getSample(i);
+			final double  x = sample.getXValue(), y = sample.getYValue();
+			assertTrue("Points in order", x>=last);
+			last = x;
+			if (x<lower || x>upper || Double.isNaN(y)) continue;
+			final int c = getColumn(axis, x);
+			final double[] a = actual.get(c);
+			if (a==null) {
+				actual.put(c, new double[]{y, y, x, x});
+			} else {
+				a[0] = Math.min(a[0], y);
+				a[1] = Math.max(a[1], y);
+				a[3] = x;
+			}
+		}
+
+		assertEquals(expected.keySet(), actual.keySet());
+		for (Integer c : expected.keySet()) {
+			final double[] e = expected.get(c), a = actual.get(c);
+			assertEquals("Min of column "+c, e[0], a[0], 0);
+			assertEquals("Max of column "+c, e[1], a[1], 0);
+			assertEquals("First of column "+c, e[2], a[2], 0);
+			assertEquals("Last of column "+c, e[3], a[3], 0);
+		}
+
+		// The line goes to the points either side of the axis
+		if (before>-1) assertEquals(data.getSample(before).getXValue(), decimated.getSample(0).getXValue(), 0);
+		if (after>-1)  assertEquals(data.getSample(after).getXValue(), decimated.getSample(decimated.getSize()-1).getXValue(), 0);
+
+		// At most four points a column, and each gap may split a column and adds its NaN
+		assertTrue(decimated.getSize()+" points for "+columns+" columns", decimated.getSize() <= 4*columns + 5*(SIZE/9973+1) + 2);
+		assertTrue(decimated.getSize() < data.getSize()/10);
+	}
+
+	private static int getColumn(Axis axis, double x) {
+		return (int)Math.floor(axis.getValuePosition(x, false));
+	}
+
+	private static Axis createAxis(double lower, double upper) {
+		final Axis axis = new Axis("x", false);
+		axis.setBounds(new Rectangle(0, 0, WIDTH, 40));
+		axis.setRange(lower, upper);
+		return axis;
+	}
+
+	/**
+	 * Points which are only read as samples.
+	 */
+	private static class SampleDataProvider implements IDataProvider {
+
+		protected final double[] xs, ys;
+
+		SampleDataProvider(double[] xs, double[] ys) {
+			this.xs = xs;
+			this.ys = ys;
+		}
+
+		@Override
+		public int getSize() {
+			return xs.length;
+		}
+
+		@Override
+		public ISample getSample(int index) {
+			return new Sample(xs[index], ys[index]);
+		}
+
+		@Override
+		public Range getXDataMinMax() {
+			return new Range(xs[0], xs[xs.length-1]);
+		}
+
+		@Override
+		public Range getYDataMinMax() {
+			return new Range(-100, 100);
+		}
+
+		@Override
+		public boolean isChronological() {
+			return false;
+		}
+
+		@Override
+		public void addDataProviderListener(IDataProviderListener listener) {
+			// Not changing
+		}
+
+		@Override
+		public boolean removeDataProviderListener(IDataProviderListener listener) {
+			return false;
+		}
+
+		@Override
+		public boolean hasErrors() {
+			return false;
+		}
+	}
+
+	private static class ArrayDataProvider extends SampleDataProvider implements IPrimitiveDataProvider {
+
+		Boolean sorted;
+		int     sortedCalls;
+
+		ArrayDataProvider(double[] xs, double[] ys) {
+			super(xs, ys);
+		}
+
+		@Override
+		public double getXValue(int index) {
+			return xs[index];
+		}
+
+		@Override
+		public double getYValue(int index) {
+			return ys[index];
+		}
+
+		@Override
+		public boolean isXSorted() {
+			++sortedCalls;
+			if (sorted!=null) return sorted;
+			for (int i = 1; i < xs.length; i++) if (!(xs[i]>=xs[i-1])) return false;
+			return xs.length<1 || !Double.isNaN(xs[0]);
+		}
+	}
+}
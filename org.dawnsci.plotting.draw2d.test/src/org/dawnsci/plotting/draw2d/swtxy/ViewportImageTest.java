@@ -0,0 +1,129 @@
+package org.dawnsci.plotting.draw2d.swtxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+import org.junit.Test;
+
+/**
+ * The image after any number of pans must be the one made from scratch at the
+ * same place, including where the view goes past the edges of the image.
+ */
+public class ViewportImageTest {
+
+	private static final int WIDTH  = 37; // Not a whole number of scan lines
+	private static final int HEIGHT = 23;
+
+	@Test
+	public void testRenderNearest() {
+		final ImageData source = createSource();
+		final double    scale  = 3.5;
+		final ImageData result = ViewportImage.render(source, 5, 9, 60, 40, scale, 2*scale);
+		assertEquals(60, result.width);
+		assertEquals(40, result.height);
+		for (int j = 0; j < 40; j++) {
+			for (int i = 0; i < 60; i++) {
+				final int x = (int)Math.floor((5+i+0.5)/scale);
+				final int y = (int)Math.floor((9+j+0.5)/(2*scale));
+				assertEquals("Pixel "+i+", "+j, source.getPixel(x, y), result.getPixel(i, j));
+			}
+		}
+	}
+
+	/**
+	 * Screen pixels off the image show the nearest edge pixel.
+	 */
+	@Test
+	public void testRenderClipsAtEdges() {
+		final ImageData source = createSource();
+		final int       scale  = 4;
+		final ImageData result = ViewportImage.render(source, -20, -12, WIDTH*scale+40, HEIGHT*scale+24, scale, scale);
+		for (int j = 0; j < result.height; j++) {
+			final int y = Math.max(0, Math.min(HEIGHT-1, (int)Math.floor((j-12+0.5)/scale)));
+			for (int i = 0; i < result.width; i++) {
+				final int x = Math.max(0, Math.min(WIDTH-1, (int)Math.floor((i-20+0.5)/scale)));
+				assertEquals("Pixel "+i+", "+j, source.getPixel(x, y), result.getPixel(i, j));
+			}
+		}
+		// The corners are the corner pixels
+		assertEquals(source.getPixel(0, 0), result.getPixel(0, 0));
+		assertEquals(source.getPixel(WIDTH-1, HEIGHT-1), result.getPixel(result.width-1, result.height-1));
+		assertEquals(source.getPixel(WIDTH-1, 0), result.getPixel(result.width-1, 0));
+		assertEquals(source.getPixel(0, HEIGHT-1), result.getPixel(0, result.height-1));
+	}
+
+	@Test
+	public void testPansMatchRender() {
+		final ImageData     source   = createSource();
+		final double        scale    = 5.25;
+		final int           width    = 90, height = 60;
+		final ViewportImage viewport = new ViewportImage();
+		try {
+			Image image = viewport.update(source, 0, 0, scale, scale, width, height, 1);
+			check(image, source, 0, 0, scale, width, height);
+
+			// Small pans either way, then pans which take the view off each edge
+			final double[][] views = {{1.5, 0}, {1.5, 2.25}, {0.5, 1}, {-3, -2}, {-6.5, 0.75}, {-1, 3}, {8, 5}, {16, 8}, {25, 12},
+					                  {33, 17}, {37, 21}, {30, 24}, {20, 18}, {12, 10}, {4, 3}};
+			for (double[] view : views) {
+				final Image next = viewport.update(source, view[0], view[1], scale, scale, width, height, 1);
+				assertSame("A pan of less than the view is drawn on the same image", image, next);
+				image = next;
+				check(image, source, view[0], view[1], scale, width, height);
+				assertEquals(view[0]*scale - Math.floor(view[0]*scale), viewport.getXOffset(), 1e-12);
+				assertEquals(view[1]*scale - Math.floor(view[1]*scale), viewport.getYOffset(), 1e-12);
+			}
+
+			// A pan further than the view is made again
+			final Image far = viewport.update(source, WIDTH, HEIGHT, scale, scale, width, height, 1);
+			assertNotSame(image, far);
+			check(far, source, WIDTH, HEIGHT, scale, width, height);
+		} finally {
+			viewport.dispose();
+		}
+	}
+
+	@Test
+	public void testNewPixelsAreDrawn() {
+		final ImageData     source   = createSource();
+		final ViewportImage viewport = new ViewportImage();
+		try {
+			viewport.update(source, 2, 2, 4, 4, 50, 40, 1);
+			for (int y = 0; y < HEIGHT; y++) for (int x = 0; x < WIDTH; x++) source.setPixel(x, y, (x+y)%256);
+			final Image image = viewport.update(source, 3, 2, 4, 4, 50, 40, 2);
+			check(image, source, 3, 2, 4, 50, 40);
+		} finally {
+			viewport.dispose();
+		}
+	}
+
+	private static void check(Image image, ImageData source, double viewX, double viewY, double scale, int width, int height) {
+		final ImageData actual   = image.getImageData();
+		final ImageData expected = ViewportImage.render(source, (int)Math.floor(viewX*scale), (int)Math.floor(viewY*scale), width, height, scale, scale);
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				final RGB e = expected.palette.getRGB(expected.getPixel(i, j));
+				final RGB a = actual.palette.getRGB(actual.getPixel(i, j));
+				assertEquals("View "+viewX+", "+viewY+" pixel "+i+", "+j, e, a);
+			}
+		}
+	}
+
+	/**
+	 * An 8-bit image whose palette has a different colour for each index.
+	 */
+	private static ImageData createSource() {
+		final RGB[] rgbs = new RGB[256];
+		for (int i = 0; i < rgbs.length; i++) rgbs[i] = new RGB(i, 255-i, (i*37)%256);
+		final ImageData data = new ImageData(WIDTH, HEIGHT, 8, new PaletteData(rgbs));
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) data.setPixel(x, y, (3*x+11*y)%256);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.draw2d.swtxy;
+
+import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProvider;
+
+/**
+ * A data provider whose values can be read without making an ISample
+ * for each point. Used by the LineTrace when it decimates large data.
+ */
+public interface IPrimitiveDataProvider extends IDataProvider {
+
+	/**
+	 * 
+	 * @param index
+	 * @return x of the point, NaN if there is none
+	 */
+	public double getXValue(int index);
+
+	/**
+	 * 
+	 * @param index
+	 * @return y of the point, NaN if there is none
+	 */
+	public double getYValue(int index);
+
+	/**
+	 * Providers which are appended to should keep track of this as points
+	 * are added, rather than look at every point.
+	 * 
+	 * @return true if x never decreases and has no NaNs
+	 */
+	public boolean isXSorted();
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.draw2d.swtxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.AbstractDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.diamond.scisoft.analysis.dataset.function.Downsample;
+import uk.ac.diamond.scisoft.analysis.dataset.function.DownsampleMode;
+
+/**
+ * A multi-resolution pyramid of an image for the ImageTrace.
+ *
+ * Each level is the image downsampled by a power of two bin and is cut in to
+ * square tiles of TILE_SIZE. Tiles are made when they are asked for, from the
+ * four tiles of the finer level, so a level costs a quarter of the one below it.
+ * Level one is the image itself and its tiles are slice views.
+ *
+ * Tiles of all pyramids are kept in one cache which is bounded by bytes and
+ * evicts the least recently used tile.
+ *
+ * After new data is set, build() schedules a background job which makes the
+ * coarse levels so that zooming out does not have to wait for them.
+ *
+ * Thread safe, tiles may be made by the UI and the build job at the same time.
+ */
+class ImagePyramid {
+
+	private static final Logger logger = LoggerFactory.getLogger(ImagePyramid.class);
+
+	/**
+	 * Size of the side of a tile, in pixels of its level.
+	 */
+	static final int TILE_SIZE = 256;
+
+	/**
+	 * The bytes all pyramids may use for tiles.
+	 */
+	private static final long CACHE_BYTES = Math.max(64L*1024*1024, Runtime.getRuntime().maxMemory()/8);
+
+	private static final TileCache cache = new TileCache(CACHE_BYTES);
+
+	private final Dataset        image;
+	private final DownsampleMode mode;
+	private final int            rows, cols;
+	private BuildJob             job;
+	private volatile boolean     disposed;
+
+	/**
+	 *
+	 * @param image 2D
+	 * @param mode used to reduce each bin to one value
+	 */
+	ImagePyramid(Dataset image, DownsampleMode mode) {
+		this.image = image;
+		this.mode  = mode;
+		final int[] shape = image.getShape();
+		this.rows  = shape[0];
+		this.cols  = shape[1];
+	}
+
+	Dataset getImage() {
+		return image;
+	}
+
+	DownsampleMode getMode() {
+		return mode;
+	}
+
+	/**
+	 *
+	 * @param bin
+	 * @return rows and columns of the image downsampled by bin
+	 */
+	int[] getLevelShape(int bin) {
+		return getLevelShape(new int[]{rows, cols}, bin);
+	}
+
+	/**
+	 *
+	 * @param shape of an image
+	 * @param bin
+	 * @return rows and columns of the image downsampled by bin
+	 */
+	static int[] getLevelShape(int[] shape, int bin) {
+		return new int[]{(shape[0]+bin-1)/bin, (shape[1]+bin-1)/bin};
+	}
+
+	/**
+	 *
+	 * @param bin
+	 * @return number of rows and columns of tiles in the level
+	 */
+	int[] getTileCount(int bin) {
+		final int[] shape = getLevelShape(bin);
+		return new int[]{(shape[0]+TILE_SIZE-1)/TILE_SIZE, (shape[1]+TILE_SIZE-1)/TILE_SIZE};
+	}
+
+	/**
+	 * The image downsampled by bin, the same as downsampling the whole image.
+	 * Avoid if you can, use getRegion(...) for the part which is needed.
+	 * The joined level is not cached, only its tiles are.
+	 *
+	 * @param bin
+	 * @return
+	 */
+	Dataset getLevel(int bin) {
+		if (bin==1) return image;
+		final int[] count = getTileCount(bin);
+		return getRegion(bin, 0, 0, count[0], count[1]);
+	}
+
+	/**
+	 * The tiles [tileRow0, tileRow1) x [tileCol0, tileCol1) of a level, joined in to one dataset.
+	 * The region starts at row tileRow0*TILE_SIZE and column tileCol0*TILE_SIZE of the level.
+	 *
+	 * @param bin
+	 * @param tileRow0
+	 * @param tileCol0
+	 * @param tileRow1 exclusive
+	 * @param tileCol1 exclusive
+	 * @return
+	 */
+	Dataset getRegion(int bin, int tileRow0, int tileCol0, int tileRow1, int tileCol1) {
+
+		if (bin==1) { // No copy
+			final int[] shape = getLevelShape(1);
+			return image.getSliceView(new int[]{tileRow0*TILE_SIZE, tileCol0*TILE_SIZE},
+					                  new int[]{Math.min(shape[0], tileRow1*TILE_SIZE), Math.min(shape[1], tileCol1*TILE_SIZE)},
+					                  null);
+		}
+		if (tileRow1-tileRow0==1 && tileCol1-tileCol0==1) return getTile(bin, tileRow0, tileCol0);
+
+		final IDataset[] tileRows = new IDataset[tileRow1-tileRow0];
+		for (int tr = tileRow0; tr < tileRow1; tr++) {
+			final IDataset[] row = new IDataset[tileCol1-tileCol0];
+			for (int tc = tileCol0; tc < tileCol1; tc++) row[tc-tileCol0] = getTile(bin, tr, tc);
+			tileRows[tr-tileRow0] = row.length==1 ? row[0] : DatasetUtils.concatenate(row, 1);
+		}
+		return tileRows.length==1 ? (Dataset)tileRows[0] : DatasetUtils.concatenate(tileRows, 0);
+	}
+
+	/**
+	 *
+	 * @param bin power of two
+	 * @param tileRow
+	 * @param tileCol
+	 * @return the tile, made if it is not in the cache.
+	 */
+	Dataset getTile(int bin, int tileRow, int tileCol) {
+
+		if (bin==1) return getRegion(1, tileRow, tileCol, tileRow+1, tileCol+1);
+
+		final TileKey key = new TileKey(this, bin, tileRow, tileCol);
+		Dataset tile = cache.get(key);
+		if (tile!=null) return tile;
+
+		// MEAN is not the mean of means where the bins are cut by the edge of the
+		// image, these tiles are made from the image itself. Other modes, and all
+		// tiles not on the edge, are made from the four tiles of the level below.
+		final int[]   shape  = getLevelShape(bin);
+		final boolean ragged = (rows%bin!=0 && (tileRow+1)*TILE_SIZE>=shape[0]) ||
+				               (cols%bin!=0 && (tileCol+1)*TILE_SIZE>=shape[1]);
+
+		final Dataset source;
+		final int     sourceBin;
+		if (mode==DownsampleMode.MEAN && ragged) {
+			source    = getRegion(1, tileRow*bin, tileCol*bin, (tileRow+1)*bin, (tileCol+1)*bin);
+			sourceBin = bin;
+		} else {
+			final int[] below = getTileCount(bin/2);
+			source    = getRegion(bin/2, 2*tileRow, 2*tileCol, Math.min(below[0], 2*tileRow+2), Math.min(below[1], 2*tileCol+2));
+			sourceBin = 2;
+		}
+
+		final Downsample downSampler = new Downsample(mode, new int[]{sourceBin, sourceBin});
+		tile = (Dataset)downSampler.value(source).get(0);
+		cache.put(key, tile);
+		return tile;
+	}
+
+	/**
+	 * Make the coarse levels in the background, from the tiles of bin 2 up
+	 * to the level which is one tile.
+	 */
+	synchronized void build() {
+		if (job!=null) job.cancel();
+		job = new BuildJob();
+		job.schedule();
+	}
+
+	/**
+	 * Stops building and drops the tiles of this pyramid from the cache.
+	 * Tiles made after this are not cached.
+	 */
+	synchronized void dispose() {
+		disposed = true;
+		if (job!=null) job.cancel();
+		job = null;
+		cache.removeAll(this);
+	}
+
+	boolean isDisposed() {
+		return disposed;
+	}
+
+	private class BuildJob extends Job {
+
+		BuildJob() {
+			super("Image pyramid");
+			setPriority(Job.DECORATE);
+			setUser(false);
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			try {
+				for (int bin = 2; ; bin*=2) {
+					final int[] count = getTileCount(bin);
+					for (int tr = 0; tr < count[0]; tr++) {
+						for (int tc = 0; tc < count[1]; tc++) {
+							if (monitor.isCanceled() || disposed) return Status.CANCEL_STATUS;
+							getTile(bin, tr, tc);
+						}
+					}
+					if (count[0]<=1 && count[1]<=1) break;
+				}
+			} catch (Throwable ne) {
+				logger.debug("Cannot build image pyramid", ne);
+			}
+			return Status.OK_STATUS;
+		}
+	}
+
+	private static final class TileKey {
+
+		private final ImagePyramid pyramid;
+		private final int bin, row, col;
+
+		TileKey(ImagePyramid pyramid, int bin, int row, int col) {
+			this.pyramid = pyramid;
+			this.bin     = bin;
+			this.row     = row;
+			this.col     = col;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = System.identityHashCode(pyramid);
+			result = prime * result + bin;
+			result = prime * result + row;
+			result = prime * result + col;
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof TileKey)) return false;
+			TileKey other = (TileKey) obj;
+			return pyramid==other.pyramid && bin==other.bin && row==other.row && col==other.col;
+		}
+	}
+
+	/**
+	 * Least recently used tiles, bounded by their size in bytes.
+	 */
+	private static final class TileCache {
+
+		private final long maxBytes;
+		private final LinkedHashMap<TileKey, Dataset> tiles;
+		private long bytes;
+
+		TileCache(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.tiles    = new LinkedHashMap<TileKey, Dataset>(256, 0.75f, true);
+		}
+
+		synchronized Dataset get(TileKey key) {
+			return tiles.get(key);
+		}
+
+		synchronized void put(TileKey key, Dataset tile) {
+			if (key.pyramid.disposed) return; // dispose() has removed its tiles, or will wait for us to
+			final Dataset old = tiles.put(key, tile);
+			if (old!=null) bytes-=getBytes(old);
+			bytes+=getBytes(tile);
+
+			final Iterator<Map.Entry<TileKey, Dataset>> it = tiles.entrySet().iterator();
+			while (bytes>maxBytes && it.hasNext()) {
+				final Map.Entry<TileKey, Dataset> eldest = it.next();
+				if (eldest.getKey()==key) continue;
+				bytes-=getBytes(eldest.getValue());
+				it.remove();
+			}
+		}
+
+		synchronized void removeAll(ImagePyramid pyramid) {
+			final Iterator<Map.Entry<TileKey, Dataset>> it = tiles.entrySet().iterator();
+			while (it.hasNext()) {
+				final Map.Entry<TileKey, Dataset> entry = it.next();
+				if (entry.getKey().pyramid!=pyramid) continue;
+				bytes-=getBytes(entry.getValue());
+				it.remove();
+			}
+		}
+
+		private static long getBytes(Dataset set) {
+			return (long)set.getSize()*AbstractDataset.getItemsize(set.getDtype(), set.getElementsPerItem());
+		}
+	}
+}
@@ -8,16 +8,13 @@
  */
 package org.dawnsci.plotting.draw2d.swtxy;
 
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 
 import org.dawb.common.ui.macro.TraceMacroEvent;
+import org.dawnsci.plotting.services.IImageRecyclingService;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.preferences.InstanceScope;
 import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
@@ -71,7 +68,6 @@ import org.eclipse.ui.preferences.ScopedPreferenceStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import uk.ac.diamond.scisoft.analysis.dataset.function.Downsample;
 import uk.ac.diamond.scisoft.analysis.dataset.function.DownsampleMode;
 
 /**
@@ -86,6 +82,10 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 	
 	private static final int MINIMUM_ZOOM_SIZE  = 4;
 	private static final int MINIMUM_LABEL_SIZE = 10;
+	/**
+	 * Fewest pixels of full resolution data colour mapped beyond the axes.
+	 */
+	private static final int VIEWPORT_MARGIN    = 32;
 
 	private String           name;
 	private String           dataName;
@@ -241,6 +241,27 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 	}
 	private Image            scaledImage;
 	private ImageData        imageData;
+	/**
+	 * The last image data, kept after new data is set so that its
+	 * buffer can be refilled if the new data has the same shape.
+	 */
+	private ImageData        recyclableImageData;
+	/**
+	 * The part of the current level which imageData was made from, [row0, col0, row1, col1)
+	 * in pixels of the level, or null if it is the whole level. Used to see if the image
+	 * still covers the axes.
+	 */
+	private int[]            imageRegion;
+	/**
+	 * Where imageData is in the whole level, in the coordinates of the image drawn:
+	 * [x, y, width of level, height of level]
+	 */
+	private int[]            imageBounds;
+	/**
+	 * Incremented each time imageData is colour mapped.
+	 */
+	private long             imageGeneration;
+	private ViewportImage    viewportImage;
 	private boolean          imageCreationAllowed = true;
 	/**
 	 * When this is called the SWT image is created
@@ -278,6 +299,14 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
         		requireImageGeneration = true;
         	}
         }
+        
+        // If only part of the level was imaged, we need a new image when the axes leave it.
+        if (!requireImageGeneration && imageRegion!=null && image!=null && currentDownSampleBin>0) {
+        	final int[] visible = getVisibleRegion(image, currentDownSampleBin, false);
+        	if (visible[0]<imageRegion[0] || visible[1]<imageRegion[1] || visible[2]>imageRegion[2] || visible[3]>imageRegion[3]) {
+        		requireImageGeneration = true;
+        	}
+        }
 
 		final XYRegionGraph graph  = (XYRegionGraph)getXAxis().getParent();
 		final Rectangle     rbounds = graph.getRegionArea().getBounds();
@@ -290,17 +319,9 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 			try {
 				imageCreationAllowed = false;
 				if (image==null) return false;
-				IDataset reducedFullImage = getDownsampled(image);
+				final int bin = updateDownsampleBin();
 
-				imageServiceBean.setImage(reducedFullImage);
 				imageServiceBean.setMonitor(monitor);
-				if (fullMask!=null) {
-					// For masks, we preserve the min (the falses) to avoid losing fine lines
-					// which are masked.
-					imageServiceBean.setMask(getDownsampled(fullMask, DownsampleMode.MINIMUM));
-				} else {
-					imageServiceBean.setMask(null); // Ensure we lose the mask!
-				}
 				
 				if (rescaleType==ImageScaleType.REHISTOGRAM) { // Avoids changing colouring to 
 					                                           // max and min of new selection.
@@ -314,7 +335,50 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 
 				}
 								
-				this.imageData   = service.getImageData(imageServiceBean);
+				// Only the part of the level which is on the screen, and a margin, is colour mapped,
+				// so only the tiles under it are read from the pyramid. The bean keeps the data itself,
+				// as it does after setData(...), for the tools which histogram it.
+				// We cannot do this if the histogram is not set or the image service must log the data,
+				// as these use the whole image.
+				final boolean isRegion = imageServiceBean.getMin()!=null && imageServiceBean.getMax()!=null &&
+						                 !imageServiceBean.isLogColorScale() && !image.isComplex() && !(image instanceof RGBDataset);
+				ImageServiceBean imageBean = imageServiceBean;
+				int[] region = null;
+				if (isRegion) {
+					imageServiceBean.setImage(image);
+					imageServiceBean.setMask(fullMask);
+					
+					region = getVisibleRegion(image, bin, true);
+					final int[] level = ImagePyramid.getLevelShape(image.getShape(), bin);
+					if (region[0]==0 && region[1]==0 && region[2]==level[0] && region[3]==level[1]) {
+						region = null; // The whole level is on the screen
+					}
+					imageBean = imageServiceBean.clone();
+					imageBean.setPalette(imageServiceBean.getPalette()); // Cut colours are set on the palette of the trace
+					imageBean.setImage(getRegion(image, getDownsampleTypeDiamond(), bin, region!=null ? region : new int[]{0, 0, level[0], level[1]}));
+					if (fullMask!=null) {
+						imageBean.setMask(getRegion(fullMask, DownsampleMode.MINIMUM, bin, region!=null ? region : new int[]{0, 0, level[0], level[1]}));
+					}
+				} else {
+					imageServiceBean.setImage(getDownsampled(image, getDownsampleTypeDiamond(), bin));
+					if (fullMask!=null) {
+						// For masks, we preserve the min (the falses) to avoid losing fine lines
+						// which are masked.
+						imageServiceBean.setMask(getDownsampled(fullMask, DownsampleMode.MINIMUM, bin));
+					} else {
+						imageServiceBean.setMask(null); // Ensure we lose the mask!
+					}
+				}
+				
+				// We hand back the last image so that its buffer is reused if the shape is the same.
+				final ImageData previous = imageData!=null ? imageData : recyclableImageData;
+				recyclableImageData = null;
+				this.imageData   = service instanceof IImageRecyclingService
+						         ? ((IImageRecyclingService)service).getImageData(imageBean, previous)
+						         : service.getImageData(imageBean);
+				this.imageRegion = region;
+				this.imageBounds = imageData!=null ? getRegionBounds(region, imageData) : null;
+				++imageGeneration;
 				
 				try {
 					ImageServiceBean intensityScaleBean = imageServiceBean.clone();
@@ -352,7 +416,8 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 			
 			isMaximumZoom = false;
 			isLabelZoom   = false;
-			if (imageData!=null && imageData.width==bounds.width && imageData.height==bounds.height) { 
+			final boolean isWholeLevel = imageBounds==null || (imageBounds[0]==0 && imageBounds[1]==0 && imageBounds[2]==imageData.width && imageBounds[3]==imageData.height);
+			if (isWholeLevel && imageData!=null && imageData.width==bounds.width && imageData.height==bounds.height) { 
 				// No slice, faster
 				if (monitor!=null && monitor.isCanceled()) return false;
 				if (scaledImage!=null &&!scaledImage.isDisposed()) scaledImage.dispose(); // IMPORTANT
@@ -376,8 +441,9 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 				double minY = yRange.getLower()/currentDownSampleBin;
 				double maxX = xRange.getUpper()/currentDownSampleBin;
 				double maxY = yRange.getUpper()/currentDownSampleBin;
-				int xSize = imageData.width;
-				int ySize = imageData.height;
+				// Sizes of the whole level, imageData may be only the part on the screen.
+				int xSize = imageBounds!=null ? imageBounds[2] : imageData.width;
+				int ySize = imageBounds!=null ? imageBounds[3] : imageData.height;
 				
 				// check as getLower and getUpper don't work as expected
 				if(maxX < minX){
@@ -410,11 +476,11 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 				
 				// Force a minimum size on the system
 				if (fullWidth <= MINIMUM_ZOOM_SIZE) {
-					if (fullWidth > imageData.width) fullWidth = MINIMUM_ZOOM_SIZE;
+					if (fullWidth > xSize) fullWidth = MINIMUM_ZOOM_SIZE;
 					isMaximumZoom = true;
 				}
 				if (fullHeight <= MINIMUM_ZOOM_SIZE) {
-					if (fullHeight > imageData.height) fullHeight = MINIMUM_ZOOM_SIZE;
+					if (fullHeight > ySize) fullHeight = MINIMUM_ZOOM_SIZE;
 					isMaximumZoom = true;
 				}
 				if (fullWidth <= MINIMUM_LABEL_SIZE && fullHeight <= MINIMUM_LABEL_SIZE) {
@@ -456,9 +522,28 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 					yOffset = (yPixD - yPix)*yScale;
 					break;
 				}
-				if (xPix < 0 || yPix < 0 || xPix+fullWidth > xSize || yPix+fullHeight > ySize) {
+				if (imageBounds!=null) { // Move in to the part of the level which was imaged
+					xPix -= imageBounds[0];
+					yPix -= imageBounds[1];
+				}
+				if (xPix < 0 || yPix < 0 || xPix+fullWidth > imageData.width || yPix+fullHeight > imageData.height) {
 					return false; // prevent IAE in calling getPixel
 				}
+				
+				// Zoomed in, the screen image is kept and moved when panning. Only the
+				// strips which come in to view are drawn.
+				if (xScale>=1 && yScale>=1 && imageData.depth==8 && !imageData.palette.isDirect) {
+					if (monitor!=null && monitor.isCanceled()) return false;
+					if (viewportImage==null) viewportImage = new ViewportImage();
+					final Image screenImage = viewportImage.update(imageData, xPix+xOffset/xScale, yPix+yOffset/yScale, xScale, yScale,
+							                                       rbounds.width+1, rbounds.height+1, imageGeneration);
+					if (scaledImage!=null && scaledImage!=screenImage && !scaledImage.isDisposed()) scaledImage.dispose(); // IMPORTANT
+					scaledImage = screenImage;
+					xOffset     = viewportImage.getXOffset();
+					yOffset     = viewportImage.getYOffset();
+					return true;
+				}
+				
 				// Slice the data.
 				// Pixel slice on downsampled data = fast!
 				if (imageData.depth <= 8) {
@@ -530,8 +615,8 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 				(int) Math.ceil(xr.getUpper()), (int) Math.ceil(yr.getUpper())};
 	}
 
-	private Map<Integer, Reference<Object>> mipMap;
-	private Map<Integer, Reference<Object>> maskMap;
+	private ImagePyramid pyramid;
+	private ImagePyramid maskPyramid;
 	private Collection<IDownSampleListener> downsampleListeners;
 	
 	private IDataset getDownsampled(Dataset image) {
@@ -539,60 +624,163 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 		return getDownsampled(image, getDownsampleTypeDiamond());
  	}
 	
+	private IDataset getDownsampled(Dataset image, DownsampleMode mode) {
+		return getDownsampled(image, mode, updateDownsampleBin());
+	}
+	
 	/**
-	 * Uses caches based on bin, not DownsampleMode.
+	 * The whole level at bin, joined from the tiles of the image pyramid.
+	 * Only used when all of the level is needed, the paint reads the visible tiles.
 	 * @param image
 	 * @param mode
+	 * @param bin
 	 * @return
 	 */
-	private IDataset getDownsampled(Dataset image, DownsampleMode mode) {
+	private IDataset getDownsampled(Dataset image, DownsampleMode mode, int bin) {
+		if (bin==1) {
+	        logger.trace("No downsample bin (or bin=1)");
+			return image; // nothing to downsample
+		}
+		return getPyramid(image, mode).getLevel(bin);
+	}
+	
+	/**
+	 * Down sample, no point histogramming the whole thing.
+	 * Sets the current bin, and fires a downsample event if it has changed.
+	 * @return the bin
+	 */
+	private int updateDownsampleBin() {
 		
-		// Down sample, no point histogramming the whole thing
         final int bin = getDownsampleBin();
-        
-        boolean newBin = false;
-        if (currentDownSampleBin!=bin) newBin = true;
-        
-        try {
-	        this.currentDownSampleBin = bin;
-			if (bin==1) {
-		        logger.trace("No downsample bin (or bin=1)");
-				return image; // nothing to downsample
-			}
-			
-			if (image.getDtype()!=Dataset.BOOL) {
-				if (mipMap!=null && mipMap.containsKey(bin) && mipMap.get(bin).get()!=null) {
-			        logger.trace("Downsample bin used, "+bin);
-					return (Dataset)mipMap.get(bin).get();
-				}
-			} else {
-				if (maskMap!=null && maskMap.containsKey(bin) && maskMap.get(bin).get()!=null) {
-			        logger.trace("Downsample mask bin used, "+bin);
-					return (Dataset)maskMap.get(bin).get();
-				}
-			}
-			
-			final Downsample downSampler = new Downsample(mode, new int[]{bin,bin});
-			List<? extends IDataset>   sets = downSampler.value(image);
-			final IDataset set = sets.get(0);
-			
-			if (image.getDtype()!=Dataset.BOOL) {
-				if (mipMap==null) mipMap = new HashMap<Integer,Reference<Object>>(3);
-				mipMap.put(bin, new SoftReference<Object>(set));
-		        logger.trace("Downsample bin created, "+bin);
-			} else {
-				if (maskMap==null) maskMap = new HashMap<Integer,Reference<Object>>(3);
-				maskMap.put(bin, new SoftReference<Object>(set));
-		        logger.trace("Downsample mask bin created, "+bin);
-			}
-	      
-			return set;
-			
-        } finally {
-        	if (newBin) { // We fire a downsample event.
-        		fireDownsampleListeners(new DownSampleEvent(this, bin));
-        	}
+        if (currentDownSampleBin!=bin) {
+        	this.currentDownSampleBin = bin;
+        	fireDownsampleListeners(new DownSampleEvent(this, bin));
         }
+        return bin;
+	}
+	
+	/**
+	 * The pyramid of the image or of the mask (a BOOL dataset), made again if the
+	 * dataset or mode has changed.
+	 * @param data
+	 * @param mode
+	 * @return
+	 */
+	private ImagePyramid getPyramid(Dataset data, DownsampleMode mode) {
+		if (data.getDtype()==Dataset.BOOL) {
+			if (maskPyramid==null || maskPyramid.getImage()!=data || maskPyramid.getMode()!=mode) {
+				if (maskPyramid!=null) maskPyramid.dispose();
+				maskPyramid = new ImagePyramid(data, mode);
+			}
+			return maskPyramid;
+		}
+		if (pyramid==null || pyramid.getImage()!=data || pyramid.getMode()!=mode) {
+			if (pyramid!=null) pyramid.dispose();
+			pyramid = new ImagePyramid(data, mode);
+		}
+		return pyramid;
+	}
+	
+	private void disposePyramids(boolean image, boolean mask) {
+		if (image && pyramid!=null) {
+			pyramid.dispose();
+			pyramid = null;
+		}
+		if (mask && maskPyramid!=null) {
+			maskPyramid.dispose();
+			maskPyramid = null;
+		}
+	}
+	
+	/**
+	 * The part of the level at bin which the axes show. Axis values are data
+	 * coordinates, x is the columns unless the image is rotated by the origin.
+	 * 
+	 * @param image
+	 * @param bin
+	 * @param margin true to add a margin, so that small pans do not need a new image.
+	 *               Downsampled levels are rounded out to whole tiles and have one more 
+	 *               tile all round. The full level is a slice view so a few pixels are added.
+	 * @return [row0, col0, row1, col1) in pixels of the level
+	 */
+	private int[] getVisibleRegion(Dataset image, int bin, boolean margin) {
+		
+		final ImageOrigin origin  = getImageOrigin();
+		final boolean     rotated = origin==ImageOrigin.BOTTOM_LEFT || origin==ImageOrigin.TOP_RIGHT;
+		final Range       rows    = rotated ? xAxis.getRange() : yAxis.getRange();
+		final Range       cols    = rotated ? yAxis.getRange() : xAxis.getRange();
+		
+		int row0 = (int)Math.floor(Math.min(rows.getLower(), rows.getUpper())/bin);
+		int col0 = (int)Math.floor(Math.min(cols.getLower(), cols.getUpper())/bin);
+		int row1 = (int)Math.ceil(Math.max(rows.getLower(), rows.getUpper())/bin);
+		int col1 = (int)Math.ceil(Math.max(cols.getLower(), cols.getUpper())/bin);
+		
+		if (margin && bin>1) {
+			final int size = ImagePyramid.TILE_SIZE;
+			row0 = (Math.max(0, row0)/size-1)*size;
+			col0 = (Math.max(0, col0)/size-1)*size;
+			row1 = ((Math.max(0, row1)+size-1)/size+1)*size;
+			col1 = ((Math.max(0, col1)+size-1)/size+1)*size;
+		} else if (margin) {
+			final int rowMargin = Math.max(VIEWPORT_MARGIN, (row1-row0)/4);
+			final int colMargin = Math.max(VIEWPORT_MARGIN, (col1-col0)/4);
+			row0-=rowMargin;
+			col0-=colMargin;
+			row1+=rowMargin;
+			col1+=colMargin;
+		}
+		
+		final int[] level = ImagePyramid.getLevelShape(image.getShape(), bin);
+		return new int[] {
+			Math.max(0, Math.min(level[0], row0)),
+			Math.max(0, Math.min(level[1], col0)),
+			Math.max(0, Math.min(level[0], row1)),
+			Math.max(0, Math.min(level[1], col1))
+		};
+	}
+	
+	/**
+	 * Part of a level, the full level is sliced and others are read from the pyramid.
+	 * @param data
+	 * @param mode
+	 * @param bin
+	 * @param region from getVisibleRegion(...) with a margin
+	 * @return
+	 */
+	private Dataset getRegion(Dataset data, DownsampleMode mode, int bin, int[] region) {
+		if (bin==1) {
+			return data.getSliceView(new int[]{region[0], region[1]}, new int[]{region[2], region[3]}, null);
+		}
+		final int size = ImagePyramid.TILE_SIZE;
+		return getPyramid(data, mode).getRegion(bin, region[0]/size, region[1]/size, (region[2]+size-1)/size, (region[3]+size-1)/size);
+	}
+	
+	/**
+	 * Where the image made from part of a level is in the whole level, allowing for the origin.
+	 * 
+	 * @param region null if the image is the whole level
+	 * @param data the image
+	 * @return [x, y, width of level, height of level]
+	 */
+	private int[] getRegionBounds(int[] region, ImageData data) {
+		
+		if (region==null) return new int[]{0, 0, data.width, data.height};
+		
+		final int[] level = ImagePyramid.getLevelShape(image.getShape(), currentDownSampleBin);
+		final int rows = level[0], cols = level[1];
+		final int r0   = region[0], c0 = region[1], r1 = region[2], c1 = region[3];
+		
+		switch (getImageOrigin()) {
+		case TOP_LEFT:
+			return new int[]{c0,      r0,      cols, rows};
+		case BOTTOM_LEFT:
+			return new int[]{r0,      cols-c1, rows, cols};
+		case BOTTOM_RIGHT:
+			return new int[]{cols-c1, rows-r1, cols, rows};
+		case TOP_RIGHT:
+			return new int[]{rows-r1, c0,      rows, cols};
+		}
+		return new int[]{0, 0, data.width, data.height};
 	}
 	
 	protected void fireDownsampleListeners(DownSampleEvent evt) {
@@ -717,15 +905,17 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 //	}
 	
 	public void sleep() {
-		if (mipMap!=null)           mipMap.clear();
-		if (maskMap!=null)          maskMap.clear();
+		disposePyramids(true, true);
+		if (viewportImage!=null)    viewportImage.dispose();
 		if (scaledImage!=null)      scaledImage.dispose();
 	}
 	public void remove() {
 		
-		if (mipMap!=null)           mipMap.clear();
-		if (maskMap!=null)          maskMap.clear();
+		disposePyramids(true, true);
+		if (viewportImage!=null)    viewportImage.dispose();
 		if (scaledImage!=null)      scaledImage.dispose();
+		imageRegion = null;
+		imageBounds = null;
 		
 		if (paletteListeners!=null) paletteListeners.clear();
 		paletteListeners = null;
@@ -751,6 +941,8 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 		this.image            = null;
 		this.rgbDataset       = null;
 		this.fullMask         = null;
+		this.imageData           = null;
+		this.recyclableImageData = null;
 	}
 	
 	public void dispose() {
@@ -892,7 +1084,6 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 	}
 
 	public void setImageOrigin(ImageOrigin imageOrigin) {
-		if (this.mipMap!=null) mipMap.clear();
 		imageServiceBean.setOrigin(imageOrigin);
 		createAxisBounds();
 		performAutoscale();
@@ -977,14 +1168,20 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 		// method, we allow for the fact that the dataset is in a different orientation to 
 		// what is plotted.
 		this.image = (Dataset)im;
-		if (this.mipMap!=null)  mipMap.clear();
+		disposePyramids(true, false);
 		if (scaledImage!=null && !scaledImage.isDisposed()) scaledImage.dispose();
 		scaledImage = null;
+		if (imageData!=null) recyclableImageData = imageData;
 		imageData   = null;
 		
 		if (imageServiceBean==null) imageServiceBean = new ImageServiceBean();
 		imageServiceBean.setImage(im);
 		
+		// The coarse levels are made in the background, ready for zooming out.
+		if (image.getRank()==2 && image.getSize()>4*ImagePyramid.TILE_SIZE*ImagePyramid.TILE_SIZE && !(image instanceof RGBDataset)) {
+			getPyramid(image, getDownsampleTypeDiamond()).build();
+		}
+		
 		if (service==null) service = (IImageService)PlatformUI.getWorkbench().getService(IImageService.class);
 		if (rescaleHistogram) {
 			final double[] fa = service.getFastStatistics(imageServiceBean);
@@ -1176,8 +1373,7 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 	public void setDownsampleType(DownsampleType type) {
 		
 		DownsampleType orig = this.downsampleType;
-		if (this.mipMap!=null)  mipMap.clear();
-		if (this.maskMap!=null) maskMap.clear();
+		disposePyramids(true, true);
 		this.downsampleType = type;
 		createScaledImage(ImageScaleType.FORCE_REIMAGE, null);
 		getPreferenceStore().setValue(BasePlottingConstants.DOWNSAMPLE_PREF, type.getLabel());
@@ -1390,7 +1586,7 @@ public class ImageTrace extends Figure implements IImageTrace, IAxisListener, IT
 
 			mask = maskDataset;
 		}
-		if (maskMap!=null) maskMap.clear();
+		disposePyramids(false, true); // The mask may have been changed in place
 		fullMask = (Dataset)mask;
 		remask();
 	}
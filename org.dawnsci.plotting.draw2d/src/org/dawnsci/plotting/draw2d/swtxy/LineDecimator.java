@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.draw2d.swtxy;
+
+import java.util.Arrays;
+
+import org.eclipse.draw2d.geometry.Rectangle;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProvider;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProviderListener;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.ISample;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.Sample;
+import org.eclipse.nebula.visualization.xygraph.figures.Axis;
+import org.eclipse.nebula.visualization.xygraph.linearscale.Range;
+
+/**
+ * Reduces a line with many more points than the x axis has pixels to
+ * those which can be seen.
+ *
+ * For each pixel column the points with the min and max y are kept, with
+ * the first and last points in the column so that the lines joining the
+ * columns are drawn as before. The drawn line is the same as with all the
+ * points but there are at most four points per pixel. Points off the axis
+ * are dropped except for the one each side, which the line goes to.
+ *
+ * Only data sorted by x can be decimated. An IPrimitiveDataProvider is asked
+ * whether it is sorted, so that live data is not looked through on every
+ * append, other providers are checked when their data changes. The result is
+ * kept until the data, axis range or axis size change.
+ */
+class LineDecimator {
+
+	private IDataProvider source;
+	private boolean       dataChanged = true;
+	private boolean       sorted;
+
+	private double        lower, upper;
+	private boolean       log;
+	private Rectangle     bounds;
+	private IDataProvider result;
+
+	/**
+	 * Call when the data of the source has changed.
+	 */
+	void dataChanged() {
+		dataChanged = true;
+		result      = null;
+	}
+
+	/**
+	 *
+	 * @param data
+	 * @param xAxis
+	 * @return the points to draw, or null if the data cannot be decimated.
+	 */
+	IDataProvider getDecimated(IDataProvider data, Axis xAxis) {
+
+		if (data!=source) {
+			source = data;
+			dataChanged();
+		}
+		if (dataChanged) {
+			sorted      = data instanceof IPrimitiveDataProvider ? ((IPrimitiveDataProvider)data).isXSorted() : isSorted(data);
+			dataChanged = false;
+		}
+		if (!sorted) return null;
+
+		final Range     range  = xAxis.getRange();
+		final Rectangle bounds = xAxis.getBounds();
+		if (result!=null && range.getLower()==lower && range.getUpper()==upper &&
+			xAxis.isLogScaleEnabled()==log && bounds.equals(this.bounds)) {
+			return result;
+		}
+
+		this.lower  = range.getLower();
+		this.upper  = range.getUpper();
+		this.log    = xAxis.isLogScaleEnabled();
+		this.bounds = bounds.getCopy();
+		this.result = decimate(data, xAxis, Math.min(lower, upper), Math.max(lower, upper));
+		return result;
+	}
+
+	private static IDataProvider decimate(IDataProvider data, Axis xAxis, double min, double max) {
+
+		final int size = data.getSize();
+		final int from = Math.max(0,    search(data, min, false)-1);
+		final int to   = Math.min(size, search(data, max, true)+1);
+
+		final Points points = new Points(data, Math.min(to-from, 4*Math.max(1, xAxis.getBounds().width)+16));
+		final int[]  column = new int[4]; // first, min, max, last
+		int col = Integer.MIN_VALUE;
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			final double x = getX(data, i);
+			final double y = getY(data, i);
+			if (Double.isNaN(y) || x<min || x>max) { // A gap in the line, or the point either side of the axis
+				points.add(column, count);
+				points.add(i);
+				col   = Integer.MIN_VALUE;
+				count = 0;
+				continue;
+			}
+			final int c = (int)Math.floor(xAxis.getValuePosition(x, false));
+			if (c!=col || count==0) {
+				points.add(column, count);
+				col       = c;
+				column[0] = column[1] = column[2] = column[3] = i;
+				count     = 1;
+			} else {
+				column[3] = i;
+				if (y<getY(data, column[1])) column[1] = i;
+				if (y>getY(data, column[2])) column[2] = i;
+				++count;
+			}
+		}
+		points.add(column, count);
+		return points;
+	}
+
+	/**
+	 * @return first index with x > value, or x >= value if not after
+	 */
+	private static int search(IDataProvider data, double value, boolean after) {
+		int lo = 0, hi = data.getSize();
+		while (lo<hi) {
+			final int    mid = (lo+hi) >>> 1;
+			final double x   = getX(data, mid);
+			if (after ? x<=value : x<value) {
+				lo = mid+1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static boolean isSorted(IDataProvider data) {
+		final int size = data.getSize();
+		double last = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < size; i++) {
+			final double x = getX(data, i);
+			if (!(x>=last)) return false; // Also false for NaN
+			last = x;
+		}
+		return true;
+	}
+
+	private static double getX(IDataProvider data, int index) {
+		if (data instanceof IPrimitiveDataProvider) return ((IPrimitiveDataProvider)data).getXValue(index);
+		final ISample sample = data.getSample(index);
+		return sample!=null ? sample.getXValue() : Double.NaN;
+	}
+
+	private static double getY(IDataProvider data, int index) {
+		if (data instanceof IPrimitiveDataProvider) return ((IPrimitiveDataProvider)data).getYValue(index);
+		final ISample sample = data.getSample(index);
+		return sample!=null ? sample.getYValue() : Double.NaN;
+	}
+
+	/**
+	 * The points which are kept, in the order of the data.
+	 */
+	private static final class Points implements IDataProvider {
+
+		private final IDataProvider data;
+		private double[] xs, ys;
+		private int      size;
+		private int      last = -1;
+
+		Points(IDataProvider data, int capacity) {
+			this.data = data;
+			this.xs   = new double[Math.max(16, capacity)];
+			this.ys   = new double[xs.length];
+		}
+
+		void add(int[] column, int count) {
+			if (count<1) return;
+			// The min and max may be either way round
+			if (column[1]>column[2]) {
+				final int tmp = column[1];
+				column[1] = column[2];
+				column[2] = tmp;
+			}
+			for (int i = 0; i < column.length; i++) add(column[i]);
+		}
+
+		void add(int index) {
+			if (index<=last) return; // Already added
+			if (size==xs.length) {
+				xs = Arrays.copyOf(xs, 2*size);
+				ys = Arrays.copyOf(ys, 2*size);
+			}
+			xs[size] = getX(data, index);
+			ys[size] = getY(data, index);
+			++size;
+			last = index;
+		}
+
+		@Override
+		public int getSize() {
+			return size;
+		}
+
+		@Override
+		public ISample getSample(int index) {
+			return new Sample(xs[index], ys[index], 0d, 0d, 0d, 0d);
+		}
+
+		@Override
+		public Range getXDataMinMax() {
+			return data.getXDataMinMax();
+		}
+
+		@Override
+		public Range getYDataMinMax() {
+			return data.getYDataMinMax();
+		}
+
+		@Override
+		public boolean isChronological() {
+			return true;
+		}
+
+		@Override
+		public void addDataProviderListener(IDataProviderListener listener) {
+			// Not changing
+		}
+
+		@Override
+		public boolean removeDataProviderListener(IDataProviderListener listener) {
+			return false;
+		}
+
+		@Override
+		public boolean hasErrors() {
+			return false;
+		}
+	}
+}
@@ -13,6 +13,7 @@ import org.eclipse.dawnsci.plotting.api.preferences.PlottingConstants;
 import org.eclipse.dawnsci.plotting.api.trace.ITrace;
 import org.eclipse.dawnsci.plotting.api.trace.ITraceContainer;
 import org.eclipse.draw2d.ColorConstants;
+import org.eclipse.draw2d.Graphics;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProvider;
 import org.eclipse.nebula.visualization.xygraph.figures.Axis;
@@ -22,13 +23,23 @@ import org.eclipse.ui.preferences.ScopedPreferenceStore;
 /**
  * Trace with drawPolyline(...) for faster rendering.
  * 
+ * Lines with many more points than the x axis has pixels are drawn from
+ * the points which can be seen, see LineDecimator.
+ * 
  * @author Matthew Gerring
  *
  */
 public class LineTrace extends Trace implements ITraceContainer {
 	
+	/**
+	 * Lines with fewer points are drawn as they are.
+	 */
+	private static final int MIN_DECIMATION_SIZE = 4096;
+	
 	protected String internalName; 
 	
+	private final LineDecimator decimator = new LineDecimator();
+	
 	public LineTrace(String name) {
 		super(name);
 	}
@@ -69,6 +80,42 @@ public class LineTrace extends Trace implements ITraceContainer {
 		traceDataProvider=null;
 	}
 
+	@Override
+	protected void paintFigure(Graphics graphics) {
+		
+		final IDataProvider data      = traceDataProvider;
+		final IDataProvider decimated = isDecimatable(data) ? decimator.getDecimated(data, xAxis) : null;
+		if (decimated==null) {
+			super.paintFigure(graphics);
+			return;
+		}
+		try {
+			traceDataProvider = decimated;
+			super.paintFigure(graphics);
+		} finally {
+			traceDataProvider = data;
+		}
+	}
+	
+	/**
+	 * Lines and areas only, points, bars, steps and error bars need every point.
+	 * @param data
+	 * @return
+	 */
+	private boolean isDecimatable(IDataProvider data) {
+		if (data==null || xAxis==null) return false;
+		if (data.getSize() < Math.max(MIN_DECIMATION_SIZE, 4*xAxis.getBounds().width)) return false;
+		if (getPointStyle()!=PointStyle.NONE || isErrorBarEnabled()) return false;
+		final TraceType type = getTraceType();
+		return type==TraceType.SOLID_LINE || type==TraceType.DASH_LINE || type==TraceType.AREA;
+	}
+	
+	@Override
+	public void dataChanged(IDataProvider dataProvider) {
+		decimator.dataChanged();
+		super.dataChanged(dataProvider);
+	}
+
 	public boolean isDisposed() {
 		return xyGraph==null;
 	}
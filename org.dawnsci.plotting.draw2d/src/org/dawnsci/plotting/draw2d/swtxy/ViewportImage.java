@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.draw2d.swtxy;
+
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * The screen resolution image of a zoomed in ImageTrace.
+ *
+ * Each screen pixel shows the nearest pixel of the colour mapped image, worked
+ * out from the absolute screen position at the current scale. So when the user
+ * pans by whole screen pixels the image already drawn is still right. It is
+ * moved with copyArea(...) and only the strips which come in to view are made,
+ * which saves sending the whole image to the display on every pan.
+ *
+ * The image is made again if the scale, size or colour mapped image change.
+ */
+class ViewportImage {
+
+	/**
+	 * Relative change in scale which is taken to be rounding in the axes.
+	 */
+	private static final double SCALE_TOLERANCE = 1e-9;
+
+	private Image     image;
+	private ImageData source;
+	private long      generation;
+	private int       x, y, width, height;
+	private double    xScale, yScale;
+	private double    xOffset, yOffset;
+
+	/**
+	 *
+	 * @param source 8-bit colour mapped image
+	 * @param viewX  left of the view in pixels of source
+	 * @param viewY  top of the view in pixels of source
+	 * @param xScale screen pixels per source pixel, at least one
+	 * @param yScale screen pixels per source pixel, at least one
+	 * @param width  of the view in screen pixels
+	 * @param height of the view in screen pixels
+	 * @param generation changes whenever source has new pixels
+	 * @return image to draw at minus getXOffset(), getYOffset()
+	 */
+	Image update(ImageData source, double viewX, double viewY, double xScale, double yScale, int width, int height, long generation) {
+
+		// Keep the scale if it has only changed by rounding, so that pans line up with what we have.
+		if (image!=null && Math.abs(xScale-this.xScale)<=SCALE_TOLERANCE*xScale) xScale = this.xScale;
+		if (image!=null && Math.abs(yScale-this.yScale)<=SCALE_TOLERANCE*yScale) yScale = this.yScale;
+
+		final int x = (int)Math.floor(viewX*xScale);
+		final int y = (int)Math.floor(viewY*yScale);
+		this.xOffset = viewX*xScale - x;
+		this.yOffset = viewY*yScale - y;
+
+		final boolean canShift = image!=null && !image.isDisposed() &&
+				                 source==this.source && generation==this.generation &&
+				                 xScale==this.xScale && yScale==this.yScale &&
+				                 width==this.width   && height==this.height &&
+				                 Math.abs(x-this.x)<width && Math.abs(y-this.y)<height;
+
+		if (!canShift) {
+			if (image!=null && !image.isDisposed()) image.dispose();
+			image = new Image(Display.getDefault(), render(source, x, y, width, height, xScale, yScale));
+		} else if (x!=this.x || y!=this.y) {
+			final int dx = this.x - x; // Where the old pixels go
+			final int dy = this.y - y;
+			final GC  gc = new GC(image);
+			try {
+				gc.copyArea(0, 0, width, height, dx, dy);
+				// Columns which came in to view, then the rows between them.
+				if (dx>0) draw(gc, source, x, y, 0,        0, dx,  height, xScale, yScale);
+				if (dx<0) draw(gc, source, x, y, width+dx, 0, -dx, height, xScale, yScale);
+				final int left  = Math.max(0, dx);
+				final int right = Math.min(width, width+dx);
+				if (dy>0) draw(gc, source, x, y, left, 0,         right-left, dy,  xScale, yScale);
+				if (dy<0) draw(gc, source, x, y, left, height+dy, right-left, -dy, xScale, yScale);
+			} finally {
+				gc.dispose();
+			}
+		}
+
+		this.source     = source;
+		this.generation = generation;
+		this.x          = x;
+		this.y          = y;
+		this.width      = width;
+		this.height     = height;
+		this.xScale     = xScale;
+		this.yScale     = yScale;
+		return image;
+	}
+
+	double getXOffset() {
+		return xOffset;
+	}
+
+	double getYOffset() {
+		return yOffset;
+	}
+
+	void dispose() {
+		if (image!=null && !image.isDisposed()) image.dispose();
+		image  = null;
+		source = null;
+	}
+
+	private static void draw(GC gc, ImageData source, int x, int y, int px, int py, int width, int height, double xScale, double yScale) {
+		if (width<1 || height<1) return;
+		final Image strip = new Image(gc.getDevice(), render(source, x+px, y+py, width, height, xScale, yScale));
+		try {
+			gc.drawImage(strip, px, py);
+		} finally {
+			strip.dispose();
+		}
+	}
+
+	/**
+	 * The nearest source pixel to the centre of each screen pixel.
+	 *
+	 * @param source 8-bit
+	 * @param x screen pixel of the left of the result
+	 * @param y screen pixel of the top of the result
+	 * @param width
+	 * @param height
+	 * @param xScale
+	 * @param yScale
+	 * @return 8-bit image with the palette of source
+	 */
+	static ImageData render(ImageData source, int x, int y, int width, int height, double xScale, double yScale) {
+
+		final int[] cols = new int[width];
+		for (int i = 0; i < width; i++) {
+			cols[i] = clamp((int)Math.floor((x+i+0.5)/xScale), source.width);
+		}
+
+		final byte[] data   = source.data;
+		final byte[] pixels = new byte[width*height];
+		for (int j = 0; j < height; j++) {
+			final int row   = clamp((int)Math.floor((y+j+0.5)/yScale), source.height)*source.bytesPerLine;
+			final int index = j*width;
+			for (int i = 0; i < width; i++) pixels[index+i] = data[row+cols[i]];
+		}
+		return new ImageData(width, height, 8, source.palette, 1, pixels);
+	}
+
+	private static final int clamp(int pixel, int size) {
+		return pixel<0 ? 0 : pixel>=size ? size-1 : pixel;
+	}
+}
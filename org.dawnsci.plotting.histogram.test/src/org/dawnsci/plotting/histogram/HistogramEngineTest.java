@@ -0,0 +1,135 @@
+package org.dawnsci.plotting.histogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.IndexIterator;
+import org.eclipse.dawnsci.analysis.dataset.impl.IntegerDataset;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.dataset.function.Histogram;
+
+public class HistogramEngineTest {
+
+	@Test
+	public void testIntegerImageIsExact() {
+
+		final Random random = new Random(42);
+		final int[]  data   = new int[1024*1024];
+		for (int i = 0; i < data.length; i++) data[i] = 100 + (int)Math.abs(random.nextGaussian()*500);
+		final IntegerDataset image = new IntegerDataset(data, 1024, 1024);
+
+		final HistogramEngine engine = HistogramEngine.create(image);
+		assertEquals(image.min(true).doubleValue(), engine.getMin(), 0);
+		assertEquals(image.max(true).doubleValue(), engine.getMax(), 0);
+		assertEquals(0, engine.getResolution(), 0);
+
+		for (double[] range : new double[][]{{engine.getMin(), engine.getMax()}, {150, 900}, {101.5, 102.5}}) {
+			for (int numBins : new int[]{1, 7, 256, 2048}) {
+				checkCounts(image, engine, numBins, range[0], range[1]);
+			}
+		}
+	}
+
+	@Test
+	public void testFloatImage() {
+
+		final Random   random = new Random(7);
+		final double[] data   = new double[512*700];
+		for (int i = 0; i < data.length; i++) data[i] = random.nextGaussian();
+		data[10] = Double.NaN;
+		data[20] = Double.POSITIVE_INFINITY;
+		final DoubleDataset image = new DoubleDataset(data, 512, 700);
+
+		final HistogramEngine engine = HistogramEngine.create(image);
+		assertEquals(image.min(true).doubleValue(), engine.getMin(), 0);
+		assertEquals(image.max(true).doubleValue(), engine.getMax(), 0);
+		assertEquals(data.length-2, engine.getCount());
+
+		assertEquals((engine.getMax()-engine.getMin())/HistogramEngine.BASE_BINS, engine.getResolution(), 1e-12);
+
+		for (int numBins : new int[]{1, 7, 256, 2048}) {
+			final long[] counts = checkCounts(image, engine, numBins, engine.getMin(), engine.getMax());
+			long total = 0;
+			for (long c : counts) total += c;
+			assertEquals(engine.getCount(), total);
+		}
+		checkCounts(image, engine, 100, -1, 1);
+	}
+
+	/**
+	 * A few hot pixels make the fine bins wider than the bins of a zoomed
+	 * range, which are then counted from the pixels.
+	 */
+	@Test
+	public void testZoomedRangeWithHotPixels() {
+
+		final Random   random = new Random(11);
+		final double[] data   = new double[512*512];
+		for (int i = 0; i < data.length; i++) data[i] = random.nextGaussian();
+		data[100] = 1e6;
+		data[200] = 5e5;
+		final DoubleDataset image = new DoubleDataset(data, 512, 512);
+
+		final HistogramEngine engine = HistogramEngine.create(image);
+		assertTrue(engine.getResolution()>1);
+
+		for (int numBins : new int[]{1, 7, 100, 2048}) {
+			final List<? extends Dataset> expected = new Histogram(numBins, -1, 1, true).value(image);
+			final long[] counts    = engine.getCounts(numBins, -1, 1);
+			final long[] tolerance = getNearEdges(image, 1e-9, numBins, -1, 1);
+			for (int i = 0; i < numBins; i++) {
+				assertEquals("Bin "+i+" of "+numBins, expected.get(0).getLong(i), counts[i], tolerance[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testView() {
+		final Dataset image = new DoubleDataset(new double[]{0,1,2,3,4,5,6,7,8,9,10,11}, 3, 4).getSliceView(new int[]{0,1}, new int[]{3,4}, new int[]{2,2});
+		final HistogramEngine engine = HistogramEngine.create(image);
+		assertEquals(1, engine.getMin(), 0);
+		assertEquals(11, engine.getMax(), 0);
+		assertEquals(4, engine.getCount());
+	}
+
+	/**
+	 * Bins are exact unless they have values within the resolution of one of
+	 * their edges, and then they may only be out by the number of those values.
+	 */
+	private static long[] checkCounts(Dataset image, HistogramEngine engine, int numBins, double lower, double upper) {
+		final List<? extends Dataset> expected = new Histogram(numBins, lower, upper, true).value(image);
+		final long[] counts    = engine.getCounts(numBins, lower, upper);
+		final long[] tolerance = getNearEdges(image, engine.getResolution(), numBins, lower, upper);
+		for (int i = 0; i < numBins; i++) {
+			assertEquals("Bin "+i+" of "+numBins+" from "+lower+" to "+upper, expected.get(0).getLong(i), counts[i], tolerance[i]);
+		}
+		return counts;
+	}
+
+	/**
+	 * 
+	 * @return for each bin, the number of values within resolution of either of its edges
+	 */
+	private static long[] getNearEdges(Dataset image, double resolution, int numBins, double lower, double upper) {
+		final long[] near = new long[numBins];
+		if (resolution<=0) return near;
+
+		final double width = (upper-lower)/numBins;
+		final IndexIterator it = image.getIterator();
+		while (it.hasNext()) {
+			final double value = image.getElementDoubleAbs(it.index);
+			if (Double.isNaN(value) || Double.isInfinite(value)) continue;
+			final int edge = (int)Math.round((value-lower)/width);
+			if (edge<0 || edge>numBins || Math.abs(value-(lower+edge*width))>resolution) continue;
+			if (edge>0)       ++near[edge-1];
+			if (edge<numBins) ++near[edge];
+		}
+		return near;
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.IndexIterator;
+
+/**
+ * Histograms of an image, for the histogram tool and provider.
+ *
+ * The pixels are read twice when the engine is made, once for the min and max
+ * and once to count them in BASE_BINS fine bins between the two. Both passes
+ * run in blocks of rows on a fork/join pool, each block counting in to its own
+ * bins which are then added together.
+ *
+ * The histogram for any number of bins and range is then made from the fine
+ * bins, without looking at the pixels again: each fine bin is put whole in to
+ * the bin its value falls in. Integer images with fewer than BASE_BINS values
+ * have a fine bin for each value so their histograms are exact, others are
+ * exact to within one fine bin, 1/BASE_BINS of the range of the data.
+ *
+ * When a range is asked for whose bins are narrower than MIN_FINE_BINS fine bins,
+ * for instance when the histogram is zoomed or a few hot pixels stretch the range
+ * of the data, the pixels in the range are counted again in the bins asked for.
+ *
+ * Like max(true) and min(true), NaNs and infinities are ignored.
+ */
+class HistogramEngine {
+
+	/**
+	 * Images smaller than this are done on the calling thread.
+	 */
+	private static final int PARALLEL_THRESHOLD = 256*256;
+
+	/**
+	 * The fewest pixels we put in one block, so that adding up the bins
+	 * does not cost more than counting.
+	 */
+	private static final int BLOCK_SIZE = 1024*1024;
+
+	static final int BASE_BINS = 1 << 16;
+
+	/**
+	 * The fewest fine bins a bin is made from, narrower bins are counted from the pixels.
+	 */
+	static final int MIN_FINE_BINS = 16;
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * One pool for all the histograms, the tool and provider may both
+	 * be open.
+	 */
+	private static synchronized ForkJoinPool getPool() {
+		if (pool==null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	private final Dataset image;
+	private double        min = Double.POSITIVE_INFINITY;
+	private double        max = Double.NEGATIVE_INFINITY;
+	private long          count;
+
+	/**
+	 * Fine bins from min, base[i] counts values in [min+i/scale, min+(i+1)/scale)
+	 * with the max in the last bin.
+	 */
+	private long[]        base;
+	private double        scale;
+	private boolean       exact;
+
+	private HistogramEngine(Dataset image) {
+		this.image = image;
+	}
+
+	/**
+	 * Read an image and count its values.
+	 *
+	 * @param image
+	 * @return engine for the image
+	 */
+	static HistogramEngine create(final Dataset image) {
+
+		final HistogramEngine engine = new HistogramEngine(image);
+
+		final Pass range = new Pass(image, null, 0);
+		run(image, range);
+		engine.min   = range.min;
+		engine.max   = range.max;
+		engine.count = range.count;
+		if (engine.count<1) {
+			engine.base  = new long[1];
+			engine.scale = 1;
+			engine.exact = true;
+			return engine;
+		}
+
+		final double span = engine.max-engine.min;
+		if (!image.hasFloatingPointElements() && span < BASE_BINS) {
+			engine.exact = true;
+			engine.scale = 1;
+			engine.base  = new long[(int)span+1];
+		} else {
+			engine.scale = span>0 ? BASE_BINS/span : 1;
+			engine.base  = new long[span>0 ? BASE_BINS : 1];
+		}
+
+		final Pass bins = new Pass(image, engine.base, engine.scale);
+		bins.min = engine.min;
+		run(image, bins);
+		return engine;
+	}
+
+	/**
+	 * Runs a pass over all the pixels, in parallel blocks of rows for large 2D images.
+	 * The counts of the blocks are added to pass.
+	 */
+	private static void run(final Dataset image, final Pass pass) {
+
+		final int[] shape = image.getShape();
+		if (shape.length!=2 || image.getElementsPerItem()!=1) {
+			pass.addAll();
+			return;
+		}
+
+		final int rows = shape[0];
+		final int cols = shape[1];
+		if (rows*cols < PARALLEL_THRESHOLD) {
+			pass.addRows(0, rows);
+			return;
+		}
+
+		// Few enough blocks that each thread has about one set of bins.
+		final int threads      = getPool().getParallelism();
+		final int rowsPerBlock = Math.max(Math.max(1, BLOCK_SIZE / Math.max(1, cols)), (rows+threads-1)/threads);
+		final List<RecursiveTask<Pass>> tasks = new ArrayList<RecursiveTask<Pass>>(rows/rowsPerBlock+1);
+		for (int start = 0; start < rows; start+=rowsPerBlock) {
+			final int from = start;
+			final int to   = Math.min(rows, start+rowsPerBlock);
+			tasks.add(new RecursiveTask<Pass>() {
+				private static final long serialVersionUID = 4129570624120593471L;
+				@Override
+				protected Pass compute() {
+					final Pass block = pass.copy();
+					block.addRows(from, to);
+					return block;
+				}
+			});
+		}
+
+		final ForkJoinPool pool = getPool();
+		for (RecursiveTask<Pass> task : tasks) pool.execute(task);
+		for (RecursiveTask<Pass> task : tasks) pass.merge(task.join());
+	}
+
+	/**
+	 *
+	 * @param image
+	 * @return true if this engine was made from the image
+	 */
+	boolean isFor(Dataset image) {
+		return this.image==image;
+	}
+
+	/**
+	 * @return smallest finite value, or +infinity if there are none
+	 */
+	double getMin() {
+		return min;
+	}
+
+	/**
+	 * @return largest finite value, or -infinity if there are none
+	 */
+	double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return number of finite values
+	 */
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * Values are counted at the middle of their fine bin, so a value within
+	 * this of the edge of a bin may be counted in the bin next to it.
+	 *
+	 * @return the width of the fine bins, 0 if each has a single value and
+	 *         the histograms are exact
+	 */
+	double getResolution() {
+		return exact || base.length==1 ? 0 : 1/scale;
+	}
+
+	/**
+	 * Bins as for the uk.ac.diamond.scisoft.analysis.dataset.function.Histogram,
+	 * with outliers ignored.
+	 *
+	 * @param numBins
+	 * @param lower
+	 * @param upper
+	 * @return number of values in each of numBins equal bins from lower to upper
+	 */
+	long[] getCounts(int numBins, double lower, double upper) {
+
+		final long[] counts = new long[numBins];
+		if (count<1 || numBins<1 || !(upper>=lower)) return counts;
+
+		final double width = (upper-lower)/numBins;
+		if (width>0 && width<MIN_FINE_BINS*getResolution()) {
+			final Pass range = new Pass(image, counts, numBins/(upper-lower));
+			range.min   = lower;
+			range.upper = upper;
+			run(image, range);
+			return counts;
+		}
+
+		for (int i = 0; i < base.length; i++) {
+			final long n = base[i];
+			if (n==0) continue;
+			final double value = getValue(i);
+			if (value<lower || value>upper) continue;
+			final int bin = value<upper ? (int)((value-lower)/width) : numBins-1;
+			counts[bin<numBins ? bin : numBins-1] += n;
+		}
+		return counts;
+	}
+
+	/**
+	 * The value of a fine bin, its middle unless it has one value.
+	 */
+	private double getValue(int i) {
+		if (exact)           return min+i;
+		if (base.length==1)  return min;
+		return min+(i+0.5)/scale;
+	}
+
+	/**
+	 * The histogram as plotted by the tool, without making datasets for the
+	 * intermediate steps.
+	 *
+	 * @param numBins
+	 * @param lower
+	 * @param upper
+	 * @return log10 of count+1 named "Histogram" and the lower edges of the bins named "Intensity"
+	 */
+	Dataset[] getLogHistogram(int numBins, double lower, double upper) {
+
+		final long[]   counts = getCounts(numBins, lower, upper);
+		final double[] y      = new double[numBins];
+		final double[] x      = new double[numBins];
+		final double   width  = (upper-lower)/numBins;
+		for (int i = 0; i < numBins; i++) {
+			y[i] = Math.log10(counts[i]+1d);
+			x[i] = lower + i*width;
+		}
+
+		final DoubleDataset histogramY = new DoubleDataset(y, numBins);
+		histogramY.setName("Histogram");
+		final DoubleDataset histogramX = new DoubleDataset(x, numBins);
+		histogramX.setName("Intensity");
+		return new Dataset[]{histogramY, histogramX};
+	}
+
+	/**
+	 * One pass over the pixels, either for the min and max, or
+	 * if it has bins, counting in to them.
+	 */
+	private static final class Pass {
+
+		private final Dataset image;
+		private final long[]  bins;
+		private final double  scale;
+		private double        min = Double.POSITIVE_INFINITY;
+		private double        max = Double.NEGATIVE_INFINITY;
+		private long          count;
+
+		/**
+		 * When counting a range, values above this or below min are left out.
+		 * The fine bins are counted from the min of the data so none are.
+		 */
+		private double        upper = Double.POSITIVE_INFINITY;
+
+		Pass(Dataset image, long[] bins, double scale) {
+			this.image = image;
+			this.bins  = bins;
+			this.scale = scale;
+		}
+
+		Pass copy() {
+			final Pass copy = new Pass(image, bins!=null ? new long[bins.length] : null, scale);
+			if (bins!=null) {
+				copy.min   = min;
+				copy.upper = upper;
+			}
+			return copy;
+		}
+
+		void merge(Pass other) {
+			count += other.count;
+			if (bins!=null) {
+				for (int i = 0; i < bins.length; i++) bins[i]+=other.bins[i];
+			} else {
+				if (other.min < min) min = other.min;
+				if (other.max > max) max = other.max;
+			}
+		}
+
+		/**
+		 * Rows [start, end) of a 2D image, read from the buffer using the strides.
+		 */
+		void addRows(int start, int end) {
+
+			final int[]  shape   = image.getShape();
+			final int    cols    = shape[1];
+			final int[]  strides = image.getStrides(); // null unless a view
+			final int    s0      = strides!=null ? strides[0] : cols;
+			final int    s1      = strides!=null ? strides[1] : 1;
+			final int    offset  = strides!=null ? image.getOffset() : 0;
+			final Object buffer  = image.getBuffer();
+
+			for (int r = start; r < end; ++r) {
+				int pos = offset + r*s0;
+				if (buffer instanceof double[]) {
+					final double[] d = (double[])buffer;
+					for (int c = 0; c < cols; ++c, pos+=s1) add(d[pos]);
+				} else if (buffer instanceof float[]) {
+					final float[] d = (float[])buffer;
+					for (int c = 0; c < cols; ++c, pos+=s1) add(d[pos]);
+				} else if (buffer instanceof int[]) {
+					final int[] d = (int[])buffer;
+					for (int c = 0; c < cols; ++c, pos+=s1) add(d[pos]);
+				} else if (buffer instanceof short[]) {
+					final short[] d = (short[])buffer;
+					for (int c = 0; c < cols; ++c, pos+=s1) add(d[pos]);
+				} else {
+					for (int c = 0; c < cols; ++c, pos+=s1) add(image.getElementDoubleAbs(pos));
+				}
+			}
+		}
+
+		/**
+		 * Any rank, on this thread.
+		 */
+		void addAll() {
+			final IndexIterator it = image.getIterator();
+			while (it.hasNext()) add(image.getElementDoubleAbs(it.index));
+		}
+
+		private final void add(final double val) {
+			if (Double.isNaN(val) || Double.isInfinite(val)) return;
+			if (bins==null) {
+				++count;
+				if (val < min) min = val;
+				if (val > max) max = val;
+			} else {
+				if (val < min || val > upper) return;
+				++count;
+				final int bin = val<upper ? (int)((val-min)*scale) : bins.length-1;
+				++bins[bin<0 ? 0 : bin<bins.length ? bin : bins.length-1];
+			}
+		}
+	}
+}
@@ -10,7 +10,6 @@ package org.dawnsci.plotting.histogram;
 
 import java.util.Arrays;
 import java.util.EventObject;
-import java.util.List;
 
 import org.dawnsci.common.widgets.decorator.BoundsDecorator;
 import org.dawnsci.common.widgets.decorator.FloatDecorator;
@@ -20,11 +19,9 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.preferences.InstanceScope;
-import org.eclipse.dawnsci.analysis.api.dataset.Slice;
 import org.eclipse.dawnsci.analysis.dataset.impl.AbstractDataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
-import org.eclipse.dawnsci.analysis.dataset.impl.Maths;
 import org.eclipse.dawnsci.analysis.dataset.roi.RectangularROI;
 import org.eclipse.dawnsci.plotting.api.IPlottingSystem;
 import org.eclipse.dawnsci.plotting.api.PlotType;
@@ -81,8 +78,6 @@ import org.eclipse.ui.progress.UIJob;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import uk.ac.diamond.scisoft.analysis.dataset.function.Histogram;
-
 public class HistogramToolPage extends AbstractToolPage {
 
 	private static final String ZINGER_LABEL = "Zinger Min value cutoff";
@@ -114,6 +109,7 @@ public class HistogramToolPage extends AbstractToolPage {
 	private double histoMin = 25.0;
 
 	private Dataset imageDataset;
+	private HistogramEngine histogramEngine;
 
 	private Dataset histogramX;
 	private Dataset histogramY;
@@ -231,6 +227,9 @@ public class HistogramToolPage extends AbstractToolPage {
 			public void traceWillPlot(TraceWillPlotEvent evt) {
 				if (!isActive()) return;
 
+				// The data may have been changed in place, so the pixels are counted again.
+				histogramEngine = null;
+
 				// Does not all update(...) intentionally.
 				IPaletteTrace it = null;
 				if (evt.getSource() instanceof IPaletteTrace) {
@@ -947,6 +946,7 @@ public class HistogramToolPage extends AbstractToolPage {
 
 			// get the image data
 			imageDataset = getImageData(image);
+			histogramEngine = null;
 
 			if (AbstractDataset.getDType(imageDataset) == Dataset.RGB ) {
 				hide();
@@ -964,8 +964,10 @@ public class HistogramToolPage extends AbstractToolPage {
 				numBins = MAX_BINS;
 			} else {
 				// set the number of points to the range
-				numBins = (Integer) imageDataset.max(true).intValue() - imageDataset.min(true).intValue();
+				final HistogramEngine engine = getHistogramEngine();
+				numBins = (int)engine.getMax() - (int)engine.getMin();
 				if (numBins > MAX_BINS) numBins = MAX_BINS;
+				if (numBins < 1) numBins = 1;
 			}
 
 			ImageServiceBean bean = image.getImageServiceBean();
@@ -1060,23 +1062,33 @@ public class HistogramToolPage extends AbstractToolPage {
 	}
 
 
+	/**
+	 * The pixels are counted once for each image, changing the range
+	 * or bins only re-bins the counts.
+	 * 
+	 * @return engine for the current image
+	 */
+	private HistogramEngine getHistogramEngine() {
+		if (histogramEngine==null || !histogramEngine.isFor(imageDataset)) {
+			histogramEngine = HistogramEngine.create(imageDataset);
+		}
+		return histogramEngine;
+	}
+
 	/**
 	 * This will take an image, and pull out all the parameters required to calculate the histogram
 	 */
 	private void generateHistogram() {
 		// calculate the histogram for the whole image
+		final HistogramEngine engine = getHistogramEngine();
 		double rMax = rangeMax;
 		double rMin = rangeMin;
-		if (Double.isInfinite(rMax)) rMax = imageDataset.max(true).doubleValue();
-		if (Double.isInfinite(rMin)) rMin = imageDataset.min(true).doubleValue();
+		if (Double.isInfinite(rMax)) rMax = engine.getMax();
+		if (Double.isInfinite(rMin)) rMin = engine.getMin();
 
-		Histogram hist = new Histogram(numBins, rMin, rMax, true);
-		List<? extends Dataset> histogram_values = hist.value(imageDataset);
-		histogramX = histogram_values.get(1).getSliceView(new Slice(numBins));
-		histogramX.setName("Intensity");
-		histogramY = histogram_values.get(0);
-		histogramY = Maths.log10((Maths.add(histogramY, 1.0)));
-		histogramY.setName("Histogram");
+		final Dataset[] histogram = engine.getLogHistogram(numBins, rMin, rMax);
+		histogramY = histogram[0];
+		histogramX = histogram[1];
 
 		histogramDirty = true;
 	}
@@ -1096,8 +1108,8 @@ public class HistogramToolPage extends AbstractToolPage {
 
 		imageDataset = getImageData(image);
 
-		if (Double.isInfinite(scaleMaxTemp)) scaleMaxTemp = imageDataset.max(true).doubleValue();
-		if (Double.isInfinite(scaleMinTemp)) scaleMinTemp = imageDataset.min(true).doubleValue();
+		if (Double.isInfinite(scaleMaxTemp)) scaleMaxTemp = getHistogramEngine().getMax();
+		if (Double.isInfinite(scaleMinTemp)) scaleMinTemp = getHistogramEngine().getMin();
 
 		if (mode == FIXED) {
 			if (scaleMaxTemp > scaleMax) scaleMax = scaleMaxTemp;
@@ -1,15 +1,11 @@
 package org.dawnsci.plotting.histogram;
 
-import java.util.List;
-
 import org.dawnsci.plotting.histogram.ui.HistogramViewer;
 import org.eclipse.core.runtime.Assert;
 import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
-import org.eclipse.dawnsci.analysis.api.dataset.Slice;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
 import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
-import org.eclipse.dawnsci.analysis.dataset.impl.Maths;
 import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean;
 import org.eclipse.dawnsci.plotting.api.trace.IPaletteListener;
 import org.eclipse.dawnsci.plotting.api.trace.IPaletteTrace;
@@ -17,8 +13,6 @@ import org.eclipse.dawnsci.plotting.api.trace.PaletteEvent;
 import org.eclipse.jface.viewers.Viewer;
 import org.eclipse.swt.graphics.PaletteData;
 
-import uk.ac.diamond.scisoft.analysis.dataset.function.Histogram;
-
 public class ImageHistogramProvider implements IHistogramProvider {
 
 	private static final int MAX_BINS = 2048;
@@ -30,6 +24,7 @@ public class ImageHistogramProvider implements IHistogramProvider {
 
 	private IDataset imageDataset;
 	private ImageServiceBean bean;
+	private HistogramEngine histogramEngine;
 
 	/**
 	 * Calculated histogram, index 0 for Y values, 1 for X values
@@ -44,6 +39,7 @@ public class ImageHistogramProvider implements IHistogramProvider {
 		this.image = null;
 		this.imageDataset = null;
 		this.bean = null;
+		this.histogramEngine = null;
 	}
 
 	private void setImage(IPaletteTrace image){
@@ -51,6 +47,21 @@ public class ImageHistogramProvider implements IHistogramProvider {
 		this.image = image;
 		this.imageDataset = getImageData(image);
 		this.bean = image.getImageServiceBean();
+		this.histogramEngine = null;
+	}
+
+	/**
+	 * The pixels are counted once for each image, the histograms for
+	 * new ranges are made from those counts.
+	 *
+	 * @return engine for the current image
+	 */
+	private HistogramEngine getHistogramEngine() {
+		final Dataset set = (Dataset) imageDataset;
+		if (histogramEngine == null || !histogramEngine.isFor(set)) {
+			histogramEngine = HistogramEngine.create(set);
+		}
+		return histogramEngine;
 	}
 
 	/**
@@ -75,10 +86,12 @@ public class ImageHistogramProvider implements IHistogramProvider {
 			return MAX_BINS;
 		} else {
 			// set the number of points to the range
-			int numBins = (Integer) imageDataset.max(true).intValue()
-					- imageDataset.min(true).intValue();
+			final HistogramEngine engine = getHistogramEngine();
+			int numBins = (int) engine.getMax() - (int) engine.getMin();
 			if (numBins > MAX_BINS)
 				numBins = MAX_BINS;
+			if (numBins < 1)
+				numBins = 1;
 			return numBins;
 		}
 	}
@@ -86,14 +99,14 @@ public class ImageHistogramProvider implements IHistogramProvider {
 	public double getMaximumRange() {
 		double max = bean.getMaximumCutBound().getBound().doubleValue();
 		if (Double.isInfinite(max))
-			max = imageDataset.max(true).doubleValue();
+			max = getHistogramEngine().getMax();
 		return max;
 	}
 
 	public double getMininumRange() {
 		double rMin = bean.getMinimumCutBound().getBound().doubleValue();
 		if (Double.isInfinite(rMin))
-			rMin = imageDataset.min(true).doubleValue();
+			rMin = getHistogramEngine().getMin();
 		return rMin;
 	}
 
@@ -153,18 +166,7 @@ public class ImageHistogramProvider implements IHistogramProvider {
 		double rangeMax = getMaximumRange();
 		double rangeMin = getMininumRange();
 
-		Histogram hist = new Histogram(numBins, rangeMin, rangeMax, true);
-		List<? extends Dataset> histogram_values = hist.value(imageDataset);
-
-		Dataset histogramX = histogram_values.get(1).getSliceView(
-				new Slice(numBins));
-		histogramX.setName("Intensity");
-
-		Dataset histogramY = histogram_values.get(0);
-		histogramY = Maths.log10((Maths.add(histogramY, 1.0)));
-		histogramY.setName("Histogram");
-
-		return new IDataset[] { histogramY, histogramX };
+		return getHistogramEngine().getLogHistogram(numBins, rangeMin, rangeMax);
 	}
 
 	@Override
@@ -310,6 +312,10 @@ public class ImageHistogramProvider implements IHistogramProvider {
 				// set listeners
 			}
 
+		} else if (newInput instanceof IPaletteTrace) {
+			// The same trace is set again when its data is plotted, the data
+			// may be a new dataset or changed in place so it is counted again.
+			setImage((IPaletteTrace) newInput);
 		}
 	}
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.rmi.registry.LocateRegistry;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+
+/**
+ * Times a scan updating a line plot once a point, over a loopback JMX
+ * connection to a plotting system which only counts the calls made to it,
+ * waiting for each call and then in asynchronous mode.
+ *
+ * Run as a java application, the arguments are the port, the number of
+ * points and the length of the line, default 9898 2000 1000.
+ */
+class JMXPlottingBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		final int port   = args.length>0 ? Integer.parseInt(args[0]) : 9898;
+		final int points = args.length>1 ? Integer.parseInt(args[1]) : 2000;
+		final int length = args.length>2 ? Integer.parseInt(args[2]) : 1000;
+
+		LocateRegistry.createRegistry(port);
+		final MBeanServer  server = ManagementFactory.getPlatformMBeanServer();
+		final CountingPlot plot   = new CountingPlot();
+		server.registerMBean(plot, new ObjectName("remote.plotting.system/benchmark:type=RemotePlottingSystem"));
+		final JMXServiceURL      url       = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:"+port+"/plottingservice");
+		final JMXConnectorServer connector = JMXConnectorServerFactory.newJMXConnectorServer(url, null, server);
+		connector.start();
+
+		try {
+			final JMXPlottingSystem system = new JMXPlottingSystem("benchmark", "localhost", port);
+			run(system, plot, points, length); // Warm up
+			system.setAsynchronous(false);
+			report("Waiting for each call", run(system, plot, points, length), points, plot.calls.get());
+			system.setAsynchronous(true);
+			report("Asynchronous", run(system, plot, points, length), points, plot.calls.get());
+		} finally {
+			connector.stop();
+		}
+	}
+
+	/**
+	 * A scan, each point making the line one longer and plotting it.
+	 *
+	 * @return time in ms for all the points to be plotted
+	 */
+	private static long run(JMXPlottingSystem system, CountingPlot plot, int points, int length) {
+
+		final double[] x = new double[length];
+		final double[] y = new double[length];
+		for (int i = 0; i < length; i++) x[i] = i;
+
+		plot.calls.set(0);
+		final long start = System.currentTimeMillis();
+		for (int point = 0; point < points; point++) {
+			y[point%length] = Math.sin(point/10d);
+			final DoubleDataset xs = new DoubleDataset(x, length);
+			final DoubleDataset ys = new DoubleDataset(y, length);
+			ys.setName("scan");
+			final List<IDataset> lines = Arrays.<IDataset>asList(ys);
+			system.updatePlot1D(xs, lines, null);
+		}
+		system.flush();
+		return System.currentTimeMillis()-start;
+	}
+
+	private static void report(String mode, long time, int points, int calls) {
+		System.out.println(String.format("%s: %d points in %d ms, %.0f points/s, %d calls made", mode, points, time, points*1000d/Math.max(1, time), calls));
+	}
+
+	/**
+	 * The remote plotting system, it counts the calls.
+	 */
+	public static final class CountingPlot implements DynamicMBean {
+
+		final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			calls.incrementAndGet();
+			return null;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			return new MBeanInfo(getClass().getName(), "Counts plotting calls", null, null, null, null);
+		}
+
+		@Override
+		public Object getAttribute(String attribute) {
+			return null;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) {
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.dawnsci.plotting.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServerConnection;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.junit.Test;
+
+/**
+ * The calls are made to a fake connection which records them, and which
+ * can hold the sender in its first call so that the queue fills up.
+ */
+public class JMXSystemObjectTest {
+
+	@Test
+	public void testCoalescingKeepsOrder() throws Exception {
+		final FakeConnection connection = new FakeConnection(true);
+		final JMXSystemObject system = new JMXSystemObject(connection.getClient(), "test");
+		system.setAsynchronous(true);
+
+		system.send("a", "first", 0);
+		connection.awaitStarted();
+
+		system.send("a", "update", 1);
+		system.send(null, "append", 2);
+		system.send("b", "other", 3);
+		system.send("a", "update", 4);
+		system.send(null, "append", 5);
+
+		connection.release();
+		system.flush();
+		assertEquals(Arrays.asList("first 0", "append 2", "other 3", "update 4", "append 5"), connection.getCalls());
+	}
+
+	@Test
+	public void testSynchronousIsNotQueued() throws Exception {
+		final FakeConnection connection = new FakeConnection(false);
+		final JMXSystemObject system = new JMXSystemObject(connection.getClient(), "test");
+
+		system.send("a", "update", 1);
+		system.send("a", "update", 2);
+		assertEquals(Arrays.asList("update 1", "update 2"), connection.getCalls());
+	}
+
+	@Test
+	public void testCallWaitsForQueue() throws Exception {
+		final FakeConnection connection = new FakeConnection(false);
+		final JMXSystemObject system = new JMXSystemObject(connection.getClient(), "test");
+		system.setAsynchronous(true);
+
+		for (int i = 0; i < 10; i++) system.send(null, "append", i);
+		system.call("getTitle");
+		assertEquals(11, connection.getCalls().size());
+		assertEquals("getTitle", connection.getCalls().get(10));
+	}
+
+	@Test
+	public void testMaxPendingBlocksCaller() throws Exception {
+		final FakeConnection connection = new FakeConnection(true);
+		final JMXSystemObject system = new JMXSystemObject(connection.getClient(), "test");
+		system.setAsynchronous(true);
+
+		system.send(null, "append", -1);
+		connection.awaitStarted();
+
+		final AtomicInteger queued = new AtomicInteger();
+		final Thread script = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i <= JMXSystemObject.MAX_PENDING; i++) {
+					system.send(null, "append", i);
+					queued.incrementAndGet();
+				}
+			}
+		});
+		script.start();
+
+		final long end = System.currentTimeMillis()+10000;
+		while (queued.get()<JMXSystemObject.MAX_PENDING && System.currentTimeMillis()<end) Thread.sleep(10);
+		Thread.sleep(200);
+		assertEquals(JMXSystemObject.MAX_PENDING, queued.get());
+		assertTrue(script.isAlive());
+
+		connection.release();
+		script.join(10000);
+		system.flush();
+
+		final List<String> calls = connection.getCalls();
+		assertEquals(JMXSystemObject.MAX_PENDING+2, calls.size());
+		for (int i = 0; i < calls.size(); i++) assertEquals("append "+(i-1), calls.get(i));
+	}
+
+	@Test
+	public void testKeys() throws Exception {
+		final IDataset y1 = new DoubleDataset(new double[]{1, 2}, 2);
+		final IDataset y2 = new DoubleDataset(new double[]{3, 4}, 2);
+		y1.setName("y1");
+		y2.setName("y2");
+		assertEquals("updatePlot1D|y1|y2", JMXPlottingSystem.getKey("updatePlot1D", Arrays.asList(y1, y2)));
+		assertEquals("updatePlot2D|y1", JMXPlottingSystem.getKey("updatePlot2D", y1));
+
+		y2.setName(null);
+		assertNull(JMXPlottingSystem.getKey("updatePlot1D", Arrays.asList(y1, y2)));
+		assertNull(JMXPlottingSystem.getKey("updatePlot1D", Arrays.asList(y1, null)));
+		assertNull(JMXPlottingSystem.getKey("updatePlot1D", (List<IDataset>)null));
+		assertNull(JMXPlottingSystem.getKey("updatePlot2D", y2));
+		assertNull(JMXPlottingSystem.getKey("updatePlot2D", (IDataset)null));
+	}
+
+	/**
+	 * Unnamed datasets cannot be told apart, so none of their updates are dropped.
+	 */
+	@Test
+	public void testUnnamedUpdatesAreAllSent() throws Exception {
+		final FakeConnection connection = new FakeConnection(true);
+		final JMXPlottingSystem system = new JMXPlottingSystem(connection.getClient(), "test");
+		system.setAsynchronous(true);
+
+		system.setTitle("start");
+		connection.awaitStarted();
+
+		for (int i = 0; i < 3; i++) {
+			final IDataset y = new DoubleDataset(new double[]{i, i}, 2);
+			y.setName(null);
+			system.updatePlot1D(null, Collections.singletonList(y), null);
+		}
+		final IDataset named = new DoubleDataset(new double[]{0, 0}, 2);
+		named.setName("named");
+		system.updatePlot1D(null, Collections.singletonList(named), null);
+		system.updatePlot1D(null, Collections.singletonList(named), null);
+
+		connection.release();
+		system.flush();
+		assertEquals(Arrays.asList("setTitle start", "updatePlot1D", "updatePlot1D", "updatePlot1D", "updatePlot1D"),
+				     connection.getCalls());
+	}
+
+	private static class FakeConnection implements InvocationHandler {
+
+		private final List<String>   calls   = Collections.synchronizedList(new ArrayList<String>());
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release;
+
+		/**
+		 * @param hold true to hold the first call made until release()
+		 */
+		FakeConnection(boolean hold) {
+			this.release = new CountDownLatch(hold ? 1 : 0);
+		}
+
+		MBeanServerConnection getClient() {
+			return (MBeanServerConnection)Proxy.newProxyInstance(getClass().getClassLoader(),
+					                                             new Class<?>[]{MBeanServerConnection.class}, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (!"invoke".equals(method.getName())) throw new UnsupportedOperationException(method.getName());
+
+			final Object[] params = (Object[])args[2];
+			final boolean  single = params!=null && params.length==1 && !(params[0] instanceof IDataset);
+			calls.add(single ? args[1]+" "+params[0] : (String)args[1]);
+
+			started.countDown();
+			assertTrue(release.await(10, TimeUnit.SECONDS));
+			return null;
+		}
+
+		void awaitStarted() throws InterruptedException {
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+		}
+
+		void release() {
+			release.countDown();
+		}
+
+		List<String> getCalls() {
+			synchronized (calls) {
+				return new ArrayList<String>(calls);
+			}
+		}
+	}
+}
@@ -8,6 +8,11 @@
  */
 package org.dawnsci.plotting.jmx;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
@@ -15,10 +20,39 @@ import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+
+/**
+ * Calls the remote plotting system, each call waiting for the remote one to return.
+ * 
+ * In asynchronous mode the calls which update the plot, see send(...), are instead
+ * queued and the caller carries on. A sender thread makes the queued calls in order,
+ * at most one batch each FRAME_INTERVAL. An update queued while the same update is
+ * still waiting replaces it, the earlier one is dropped and the new one goes at the
+ * end of the queue, so a script updating the plot faster than it can be
+ * drawn only sends the latest. Datasets are copied when they are queued, so the
+ * caller may change them and only their own elements are sent, not the whole buffer
+ * of a view. Calls which return something first wait for the queue to be sent.
+ */
 class JMXSystemObject {
 
+	/**
+	 * Time between batches of queued calls, in ms.
+	 */
+	private static final long FRAME_INTERVAL = 40;
+	
+	/**
+	 * Queued calls, after which the caller waits.
+	 */
+	static final int          MAX_PENDING    = 1024;
+
 	private ObjectName            remotePlotName;
 	private MBeanServerConnection client;
+	
+	private volatile boolean      asynchronous;
+	private final LinkedList<Call> pending = new LinkedList<Call>();
+	private Thread                sender;
+	private boolean               sending, flushing;
 
 	/**
 	 * The name of the plotting system as registered in the PlottingFactory.
@@ -34,21 +68,15 @@ class JMXSystemObject {
 	    this.remotePlotName = new ObjectName("remote.plotting.system/"+plotName+":type=RemotePlottingSystem");
 	}
 
-	protected static final String getMethodName ( StackTraceElement ste[] ) {  
-		   
-	    String methodName = "";  
-	    boolean flag = false;  
-	   
-	    for ( StackTraceElement s : ste ) {  
-	   
-	        if ( flag ) {  
-	   
-	            methodName = s.getMethodName();  
-	            break;  
-	        }  
-	        flag = s.getMethodName().equals( "getStackTrace" );  
-	    }  
-	    return methodName;  
+	/**
+	 * Talks to the plotting system through a connection which is already made.
+	 * @param client
+	 * @param plotName
+	 * @throws MalformedObjectNameException 
+	 */
+	JMXSystemObject(final MBeanServerConnection client, final String plotName) throws MalformedObjectNameException {
+		this.client         = client;
+	    this.remotePlotName = new ObjectName("remote.plotting.system/"+plotName+":type=RemotePlottingSystem");
 	}
 
 	/**
@@ -57,12 +85,7 @@ class JMXSystemObject {
 	 * @param args
 	 */
 	protected Object call(final String methodName, final Object... args) {
-		
-		final String[] classes = args!=null ? new String[args.length] : null;
-		if (classes!=null) {
-			for (int i = 0; i < args.length; i++) classes[i]=args[i].getClass().getName();
-		}
-		return call(methodName, classes, args);
+		return call(methodName, getClassNames(args), args);
 	}
 	
 	/**
@@ -72,6 +95,136 @@ class JMXSystemObject {
 	 */
 	protected Object call(final String methodName, final String[] classes, final Object... args) {
 		
+		if (asynchronous) flush();
+		return invoke(methodName, classes, args);
+	}
+	
+	/**
+	 * Calls a method which updates the plot, queued in asynchronous mode.
+	 * 
+	 * @param key calls with the same key replace each other while they are queued, may be null
+	 * @param methodName
+	 * @param args
+	 * @return result of the call, or null in asynchronous mode
+	 */
+	protected Object send(final String key, final String methodName, final Object... args) {
+		return send(key, methodName, getClassNames(args), args);
+	}
+
+	/**
+	 * Calls a method which updates the plot, queued in asynchronous mode.
+	 * 
+	 * @param key calls with the same key replace each other while they are queued, may be null
+	 * @param methodName
+	 * @param classes
+	 * @param args
+	 * @return result of the call, or null in asynchronous mode
+	 */
+	protected Object send(final String key, final String methodName, final String[] classes, final Object... args) {
+		
+		if (!asynchronous) return invoke(methodName, classes, args);
+		
+		final Call call = new Call(key, methodName, classes, copy(args));
+		synchronized (pending) {
+			if (key!=null) {
+				// Dropped and queued last, so this call is still made after those queued before it
+				for (Iterator<Call> it = pending.iterator(); it.hasNext();) {
+					if (key.equals(it.next().key)) {
+						it.remove();
+						break;
+					}
+				}
+			}
+			while (pending.size()>=MAX_PENDING) {
+				try {
+					pending.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			pending.add(call);
+			if (sender==null) {
+				sender = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						sendPending();
+					}
+				}, "Remote plotting "+remotePlotName);
+				sender.setDaemon(true);
+				sender.start();
+			}
+			pending.notifyAll();
+		}
+		return null;
+	}
+	
+	/**
+	 * 
+	 * @param asynchronous true to queue the updates to the plot, false to make each call and wait for it.
+	 */
+	protected void setAsynchronous(boolean asynchronous) {
+		if (!asynchronous) flush();
+		this.asynchronous = asynchronous;
+	}
+	
+	protected boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	/**
+	 * Waits until all the queued calls have been made.
+	 */
+	protected void flush() {
+		synchronized (pending) {
+			flushing = true;
+			pending.notifyAll();
+			try {
+				while (!pending.isEmpty() || sending) pending.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				flushing = false;
+			}
+		}
+	}
+	
+	private void sendPending() {
+		
+		while (true) {
+			final List<Call> batch;
+			synchronized (pending) {
+				try {
+					while (pending.isEmpty()) pending.wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+				batch = new ArrayList<Call>(pending);
+				pending.clear();
+				sending = true;
+				pending.notifyAll();
+			}
+			
+			for (Call call : batch) invoke(call.methodName, call.classes, call.args);
+			
+			synchronized (pending) {
+				sending = false;
+				pending.notifyAll();
+				// Wait for the frame unless there is a flush, updates queued meanwhile replace each other.
+				final long end = System.currentTimeMillis()+FRAME_INTERVAL;
+				try {
+					for (long wait = FRAME_INTERVAL; wait>0 && !flushing; wait = end-System.currentTimeMillis()) {
+						pending.wait(wait);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private Object invoke(final String methodName, final String[] classes, final Object... args) {
+		
 		try {
 			return client.invoke(remotePlotName, methodName, args, classes);
 		} catch (Throwable e) {
@@ -80,5 +233,55 @@ class JMXSystemObject {
 			return null;
 		}
 	}
-
+	
+	private static String[] getClassNames(final Object... args) {
+		
+		final String[] classes = args!=null ? new String[args.length] : null;
+		if (classes!=null) {
+			for (int i = 0; i < args.length; i++) classes[i] = args[i]!=null ? args[i].getClass().getName() : Object.class.getName();
+		}
+		return classes;
+	}
+	
+	/**
+	 * Copies of the datasets and lists of datasets in args, with just the elements they use.
+	 */
+	private static Object[] copy(final Object... args) {
+		
+		if (args==null) return null;
+		final Object[] copy = args.clone();
+		for (int i = 0; i < copy.length; i++) {
+			if (copy[i] instanceof IDataset) {
+				copy[i] = copy((IDataset)copy[i]);
+			} else if (copy[i] instanceof List<?>) {
+				final List<Object> list = new ArrayList<Object>((List<?>)copy[i]);
+				for (int j = 0; j < list.size(); j++) {
+					if (list.get(j) instanceof IDataset) list.set(j, copy((IDataset)list.get(j)));
+				}
+				copy[i] = list;
+			}
+		}
+		return copy;
+	}
+	
+	private static IDataset copy(IDataset data) {
+		try {
+			return data.getSlice();
+		} catch (Exception ne) {
+			return data;
+		}
+	}
+	
+	private static final class Call {
+		final String   key;
+		final String   methodName;
+		final String[] classes;
+		final Object[] args;
+		Call(String key, String methodName, String[] classes, Object[] args) {
+			this.key        = key;
+			this.methodName = methodName;
+			this.classes    = classes;
+			this.args       = args;
+		}
+	}
 }
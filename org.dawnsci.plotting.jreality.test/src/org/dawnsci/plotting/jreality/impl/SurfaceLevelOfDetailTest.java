@@ -0,0 +1,169 @@
+package org.dawnsci.plotting.jreality.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.plotting.api.jreality.core.ScaleType;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.dataset.function.DownsampleMode;
+
+/**
+ * Whatever the camera and the budget, the tiles selected must cover every tile
+ * of the data once, be finer nearer the camera and keep to the budget.
+ */
+public class SurfaceLevelOfDetailTest {
+
+	private static final int HEIGHT = 1000;
+	private static final int WIDTH  = 1500;
+
+	@Test
+	public void testSmallDataIsOneTile() {
+		final Dataset data = createData(40, 60, 1);
+		final SurfaceLevelOfDetail lod = create(data);
+		final List<Long> tiles = lod.select(new double[]{0, 0, 0}, 1000, Integer.MAX_VALUE);
+		assertEquals(1, tiles.size());
+		assertEquals(SurfaceLevelOfDetail.getKey(0, 0, 0), (long)tiles.get(0));
+	}
+
+	@Test
+	public void testNoCameraIsTopLevel() {
+		final SurfaceLevelOfDetail lod = create(createData(HEIGHT, WIDTH, 2));
+		final List<Long> tiles = lod.select(null, 1000, Integer.MAX_VALUE);
+		final int top = getLevels(lod)-1;
+		for (long key : tiles) assertEquals(top, lod.getRange(key)[0]);
+		checkCovered(lod, tiles);
+	}
+
+	@Test
+	public void testFinerNearCamera() {
+		final SurfaceLevelOfDetail lod = create(createData(HEIGHT, WIDTH, 3));
+		final List<Long> tiles = lod.select(new double[]{10, 20, 10}, 100, Integer.MAX_VALUE);
+		checkCovered(lod, tiles);
+
+		// The camera is over the first tile, which is drawn from the data
+		assertTrue(tiles.contains(SurfaceLevelOfDetail.getKey(0, 0, 0)));
+
+		// The far corner is under a coarser tile
+		assertFalse(tiles.contains(SurfaceLevelOfDetail.getKey(0, getTiles(WIDTH)-1, getTiles(HEIGHT)-1)));
+		assertTrue(tiles.size() < getTiles(WIDTH)*getTiles(HEIGHT));
+	}
+
+	@Test
+	public void testFlatDataIsNotSplit() {
+		final Dataset data = new DoubleDataset(new double[HEIGHT*WIDTH], HEIGHT, WIDTH);
+		final SurfaceLevelOfDetail lod = create(data);
+		final List<Long> tiles = lod.select(new double[]{10, 20, 10}, 1000, Integer.MAX_VALUE);
+		final int top = getLevels(lod)-1;
+		for (long key : tiles) assertEquals(top, lod.getRange(key)[0]);
+	}
+
+	@Test
+	public void testBudget() {
+		final SurfaceLevelOfDetail lod = create(createData(HEIGHT, WIDTH, 4));
+		final double[] eye = {WIDTH/2, 50, HEIGHT/2};
+		final int topVertices = getVertices(lod, lod.select(null, 1000, 0));
+
+		for (int budget : new int[]{0, 10000, 50000, 200000, 1000000, Integer.MAX_VALUE}) {
+			final List<Long> tiles = lod.select(eye, 1000, budget);
+			checkCovered(lod, tiles);
+			final int vertices = getVertices(lod, tiles);
+			assertTrue("Budget "+budget+" has "+vertices, vertices <= Math.max(budget, topVertices));
+		}
+	}
+
+	@Test
+	public void testLevelValues() {
+		final Dataset data = createData(300, 200, 5);
+		final SurfaceLevelOfDetail max = new SurfaceLevelOfDetail(data, new int[]{0, 0}, new int[]{300, 200}, DownsampleMode.MAXIMUM);
+		for (int y = 0; y < max.getHeight(1); y++) {
+			for (int x = 0; x < max.getWidth(1); x++) {
+				double expected = Double.NEGATIVE_INFINITY;
+				for (int j = 2*y; j < Math.min(2*y+2, 300); j++) {
+					for (int i = 2*x; i < Math.min(2*x+2, 200); i++) expected = Math.max(expected, data.getDouble(j, i));
+				}
+				assertEquals((float)expected, max.getValue(1, x, y), 0);
+			}
+		}
+		assertEquals(data.min().doubleValue(), max.getMin(), 0);
+		assertEquals(data.max().doubleValue(), max.getMax(), 0);
+	}
+
+	/**
+	 * Every tile of the data must be under exactly one selected tile.
+	 */
+	private static void checkCovered(SurfaceLevelOfDetail lod, List<Long> tiles) {
+		final Set<Long> selected = new HashSet<Long>(tiles);
+		assertEquals("Tiles selected twice", tiles.size(), selected.size());
+
+		final int levels = getLevels(lod);
+		final int tilesX = getTiles(lod.getWidth(0));
+		final int tilesY = getTiles(lod.getHeight(0));
+		final Set<Long> used = new HashSet<Long>();
+		for (int y = 0; y < tilesY; y++) {
+			for (int x = 0; x < tilesX; x++) {
+				int count = 0;
+				for (int l = 0; l < levels; l++) {
+					final long key = SurfaceLevelOfDetail.getKey(l, x >> l, y >> l);
+					if (selected.contains(key)) {
+						++count;
+						used.add(key);
+					}
+				}
+				assertEquals("Data tile "+x+", "+y, 1, count);
+			}
+		}
+		assertEquals("Tiles selected which are not over the data", selected, used);
+	}
+
+	private static int getTiles(int size) {
+		return Math.max(1, (size-1+SurfaceLevelOfDetail.TILE-1)/SurfaceLevelOfDetail.TILE);
+	}
+
+	private static int getLevels(SurfaceLevelOfDetail lod) {
+		int levels = 1;
+		while (Math.max(lod.getWidth(levels-1), lod.getHeight(levels-1)) > SurfaceLevelOfDetail.TILE+1) ++levels;
+		return levels;
+	}
+
+	private static int getVertices(SurfaceLevelOfDetail lod, List<Long> tiles) {
+		int vertices = 0;
+		for (long key : tiles) {
+			final int[] range = lod.getRange(key);
+			vertices += (range[2]-range[1]+3)*(range[4]-range[3]+3);
+		}
+		return vertices;
+	}
+
+	/**
+	 * The graph has a unit for each column and row of the data, and for each unit of value.
+	 */
+	private static SurfaceLevelOfDetail create(Dataset data) {
+		final int[] shape = data.getShape();
+		final SurfaceLevelOfDetail lod = new SurfaceLevelOfDetail(data, new int[]{0, 0}, shape, DownsampleMode.MEAN);
+		lod.setFrame(0, 1, 0, 1, ScaleType.LINEAR, 0, 1);
+		return lod;
+	}
+
+	/**
+	 * Hills with noise on them, so that every tile differs from the data.
+	 */
+	private static Dataset createData(int height, int width, long seed) {
+		final Random   random = new Random(seed);
+		final double[] data   = new double[height*width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				data[y*width+x] = 10*Math.sin(x/50d)*Math.cos(y/70d) + random.nextGaussian();
+			}
+		}
+		return new DoubleDataset(data, height, width);
+	}
+}
@@ -224,6 +224,14 @@ public class JRealityPlotViewer extends IPlottingSystemViewer.Stub implements IP
 		stack.setActive(true);
 	}
 	
+	/**
+	 * @return true if JOGL is used, in which case large surfaces are drawn with
+	 * a level of detail
+	 */
+	boolean isHardwareEnabled() {
+		return hasJOGL;
+	}
+
 	public boolean isTraceTypeSupported(Class<? extends ITrace> trace) {
 		if (ISurfaceTrace.class.isAssignableFrom(trace)) {
 			return true;
@@ -665,7 +673,7 @@ public class JRealityPlotViewer extends IPlottingSystemViewer.Stub implements IP
 
 		try {
 			if (window == null && mode == PlottingMode.SURF2D) {
-				window = SurfaceTrace.createSurfacePlotROI(data.get(0));
+				window = SurfaceTrace.createSurfacePlotROI(data.get(0), hasJOGL);
 			}
 			if (mode == PlottingMode.SURF2D && window instanceof SurfacePlotROI && !window.equals(getDataWindow())) {
 				((DataSet3DPlot3D) plotter).setDataWindow(data, (SurfacePlotROI)window, null);
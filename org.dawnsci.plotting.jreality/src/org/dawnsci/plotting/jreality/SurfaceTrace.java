@@ -88,7 +88,7 @@ public class SurfaceTrace extends Image3DTrace implements ISurfaceTrace{
 	@Override
 	public void setData(final IDataset data, List<? extends IDataset> axes) {
 		if (window == null)
-			window = SurfaceTrace.createSurfacePlotROI(data);
+			window = SurfaceTrace.createSurfacePlotROI(data, plotter!=null && plotter.isHardwareEnabled());
 
 		if (imageServiceBean==null) imageServiceBean = new ImageServiceBean();
 		imageServiceBean.setImage(data);
@@ -119,9 +119,19 @@ public class SurfaceTrace extends Image3DTrace implements ISurfaceTrace{
 	 * Creates a SurfacePlotROI 1/4 the size of the dataset given as a parameter
 	 */
 	public static SurfacePlotROI createSurfacePlotROI(IDataset data) {
+		return createSurfacePlotROI(data, false);
+	}
+
+	/**
+	 * Creates a SurfacePlotROI of the dataset given as a parameter
+	 * @param data
+	 * @param full true for the whole dataset, which with JOGL is drawn at the detail
+	 * needed where the camera is, otherwise 1/4 the size
+	 */
+	public static SurfacePlotROI createSurfacePlotROI(IDataset data, boolean full) {
 		// Apply some downsampling to the surfacePlotROI
-		int width = data.getShape()[1]/2;
-		int height = data.getShape()[0]/2;
+		int width = full ? data.getShape()[1] : data.getShape()[1]/2;
+		int height = full ? data.getShape()[0] : data.getShape()[0]/2;
 		int binShape = 1, samplingMode = 0;
 		binShape = PlottingUtils.getBinShape(width, height, false);
 		if (binShape != 1) {
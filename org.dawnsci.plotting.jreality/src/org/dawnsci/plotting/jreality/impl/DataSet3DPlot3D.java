@@ -10,8 +10,15 @@
 package org.dawnsci.plotting.jreality.impl;
 
 import java.awt.Color;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.dawnsci.plotting.jreality.core.IDataSet3DCorePlot;
 import org.dawnsci.plotting.jreality.tick.Tick;
@@ -21,6 +28,7 @@ import org.dawnsci.plotting.roi.SurfacePlotROI;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
 import org.eclipse.dawnsci.analysis.api.roi.IROI;
 import org.eclipse.dawnsci.plotting.api.jreality.core.AxisMode;
@@ -45,8 +53,14 @@ import de.jreality.scene.Geometry;
 import de.jreality.scene.IndexedLineSet;
 import de.jreality.scene.PointSet;
 import de.jreality.scene.SceneGraphComponent;
+import de.jreality.scene.SceneGraphNode;
+import de.jreality.scene.SceneGraphPath;
+import de.jreality.scene.Transformation;
+import de.jreality.scene.Viewer;
 import de.jreality.scene.data.Attribute;
 import de.jreality.scene.data.DataList;
+import de.jreality.scene.event.TransformationEvent;
+import de.jreality.scene.event.TransformationListener;
 import de.jreality.shader.CommonAttributes;
 import de.jreality.shader.DefaultGeometryShader;
 import de.jreality.shader.DefaultPointShader;
@@ -151,6 +165,18 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 	private SurfPlotStyles currentStyle = SurfPlotStyles.FILLED;
 
 	private SurfacePlotROI roi;
+
+	/**
+	 * ms to wait after the camera moves before the tiles are changed
+	 */
+	private static final long DETAIL_DELAY = 100;
+
+	private volatile SurfaceLevelOfDetail lod; // null unless the window is too large to draw at once
+	private final Map<Long, SceneGraphComponent> tiles = new LinkedHashMap<Long, SceneGraphComponent>();
+	private final List<Transformation> watched = new ArrayList<Transformation>();
+	private TransformationListener cameraListener;
+	private volatile boolean cameraMoved;
+	private Job detailJob;
 	
 	/**
 	 * Constructor of a DataSet3DPlot3D
@@ -641,6 +667,9 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 	
 	protected Geometry createGraphGeometry(int xAspect, int yAspect)
 	{
+		if (lod != null) return createLevelOfDetail(xAspect, yAspect);
+		removeTiles();
+
 		int xSize = displayData.getShape()[1];
 		int ySize = displayData.getShape()[0];
 		determineGraphSize(xAspect,yAspect);
@@ -660,35 +689,7 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 				coords[(x + y * xSize) * 3] = -xSpan * 0.5f + xStep * x;
 				coords[(x + y * xSize) * 3 + 1] = zScale * (ScalingUtility.valueScaler(dataEntry,zScaling) - min); 
 				coords[(x + y * xSize) * 3 + 2] = (ySpan * -HANDNESS) + y * HANDNESS * yStep;
-				if (colourTable == null) {
-					colours[(x + y * xSize) * 3] = 0.25;
-					colours[(x + y * xSize) * 3 + 1] = (ScalingUtility.valueScaler(dataEntry, zScaling) - min) / (max - min);
-					colours[(x + y * xSize) * 3 + 2] = 0.25;
-				} else {
-					double cmin = ScalingUtility.valueScaler(colourTableMin, zScaling);
-					double cmax = ScalingUtility.valueScaler(colourTableMax, zScaling);
-					if (hasJOGL) {
-						int index = (int) (colourTable.getWidth() * ((ScalingUtility.valueScaler(dataEntry,zScaling) - cmin) / (cmax - cmin)));
-						index = Math.min(Math.max(0,index),colourTable.getWidth()-1);
-						int packedRGBcolour = colourTable.get(index);
-						int red = (packedRGBcolour >> 16) & 0xff;
-						int green = (packedRGBcolour >> 8) & 0xff;
-						int blue = (packedRGBcolour) & 0xff;							
-						colours[(x+y*xSize) * 3] = red / 255.0;
-						colours[(x+y*xSize) * 3 + 1] = green / 255.0;
-						colours[(x+y*xSize) * 3 + 2] = blue / 255.0;
-					} else {
-						int x1 = Math.min(x, colourTable.getWidth()-1);
-						int y1 = Math.min(y, colourTable.getHeight()-1);
-						int packedRGBcolour = colourTable.get(x1 + y1 * colourTable.getWidth());
-						int red = (packedRGBcolour >> 16) & 0xff;
-						int green = (packedRGBcolour >> 8) & 0xff;
-						int blue = (packedRGBcolour) & 0xff;							
-						colours[(x+y*xSize) * 3] = red / 255.0;
-						colours[(x+y*xSize) * 3 + 1] = green / 255.0;
-						colours[(x+y*xSize) * 3 + 2] = blue / 255.0;
-					}
-				}
+				setVertexColour(colours, x + y * xSize, dataEntry, min, max, x, y);
 			}
 		}
 		QuadMeshFactory quadFactory = new QuadMeshFactory();		
@@ -706,8 +707,259 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 		return quadFactory.getIndexedFaceSet();
 	}
 	
+	private void setVertexColour(double[] colours, int vertex, double dataEntry, double min, double max, int x, int y) {
+		if (colourTable == null) {
+			colours[vertex * 3] = 0.25;
+			colours[vertex * 3 + 1] = (ScalingUtility.valueScaler(dataEntry, zScaling) - min) / (max - min);
+			colours[vertex * 3 + 2] = 0.25;
+		} else {
+			double cmin = ScalingUtility.valueScaler(colourTableMin, zScaling);
+			double cmax = ScalingUtility.valueScaler(colourTableMax, zScaling);
+			int packedRGBcolour;
+			if (hasJOGL) {
+				int index = (int) (colourTable.getWidth() * ((ScalingUtility.valueScaler(dataEntry,zScaling) - cmin) / (cmax - cmin)));
+				index = Math.min(Math.max(0,index),colourTable.getWidth()-1);
+				packedRGBcolour = colourTable.get(index);
+			} else {
+				int x1 = Math.min(x, colourTable.getWidth()-1);
+				int y1 = Math.min(y, colourTable.getHeight()-1);
+				packedRGBcolour = colourTable.get(x1 + y1 * colourTable.getWidth());
+			}
+			int red = (packedRGBcolour >> 16) & 0xff;
+			int green = (packedRGBcolour >> 8) & 0xff;
+			int blue = (packedRGBcolour) & 0xff;
+			colours[vertex * 3] = red / 255.0;
+			colours[vertex * 3 + 1] = green / 255.0;
+			colours[vertex * 3 + 2] = blue / 255.0;
+		}
+	}
+
+	/**
+	 * Sets where the tiles of the level of detail surface are drawn and shows
+	 * those needed from where the camera is. The graph itself has no geometry.
+	 */
+	private Geometry createLevelOfDetail(int xAspect, int yAspect) {
+		final SurfaceLevelOfDetail lod = this.lod;
+		determineGraphSize(xAspect,yAspect);
+		setScalingSmallFlag(globalZmin);
+		double min = ScalingUtility.valueScaler(globalZmin, zScaling);
+		double max = ScalingUtility.valueScaler(globalZmax, zScaling);
+		lod.setFrame(-xSpan * 0.5, xSpan / lod.getWidth(0), ySpan * -HANDNESS, HANDNESS * ySpan / lod.getHeight(0),
+				     zScaling, min, MAXZ / (max - min));
+		watchCamera();
+		updateLevelOfDetail(true);
+		// The viewer may not have its size yet
+		cameraMoved = true;
+		getDetailJob().schedule(DETAIL_DELAY);
+		return null;
+	}
+
+	/**
+	 * Swaps the tiles of the surface for those needed from where the camera is now,
+	 * only the tiles which were not shown before are made.
+	 *
+	 * @param all true to make every tile again, for instance with new colours
+	 */
+	private void updateLevelOfDetail(boolean all) {
+		synchronized (tiles) {
+			final SurfaceLevelOfDetail lod = this.lod;
+			if (lod == null || graph == null) return;
+
+			final Set<Long> keys = new HashSet<Long>(lod.select(getEye(), getPixelsPerUnit(), MAXDIMSQR));
+			final Map<Long, SceneGraphComponent> made = new HashMap<Long, SceneGraphComponent>();
+			for (Long key : keys) {
+				if (!all && tiles.containsKey(key)) continue;
+				final SceneGraphComponent tile = new SceneGraphComponent("Surface tile");
+				tile.setGeometry(createTileGeometry(lod, key));
+				made.put(key, tile);
+			}
+			// New tiles are added before the old ones go so that there are no holes
+			for (SceneGraphComponent tile : made.values()) graph.addChild(tile);
+			final Iterator<Map.Entry<Long, SceneGraphComponent>> it = tiles.entrySet().iterator();
+			while (it.hasNext()) {
+				final Map.Entry<Long, SceneGraphComponent> tile = it.next();
+				if (all || !keys.contains(tile.getKey())) {
+					graph.removeChild(tile.getValue());
+					it.remove();
+				}
+			}
+			tiles.putAll(made);
+		}
+	}
+
+	/**
+	 * A tile of the level of detail surface. Unless it is drawn as lines it has
+	 * a ring of extra vertices, lowered by the error of the tile, hiding the gaps
+	 * to tiles of other levels. There is no skirt along the edges of the data.
+	 */
+	private Geometry createTileGeometry(SurfaceLevelOfDetail lod, long key) {
+		final int[] range = lod.getRange(key);
+		final int level = range[0];
+		final boolean lines = currentStyle == SurfPlotStyles.LINEGRAPH;
+		final int ring = lines ? 0 : 1;
+		final int xSize = range[2] - range[1] + 1 + 2 * ring;
+		final int ySize = range[4] - range[3] + 1 + 2 * ring;
+		final double skirt = lod.getSkirt(key);
+		setScalingSmallFlag(globalZmin);
+		double min = ScalingUtility.valueScaler(globalZmin, zScaling);
+		double max = ScalingUtility.valueScaler(globalZmax, zScaling);
+		double[] coords = new double[xSize * ySize * 3];
+		double[] colours = new double[xSize * ySize * 3];
+		for (int y = 0; y < ySize; y++)
+		{
+			final int j = Math.min(Math.max(range[3] + y - ring, range[3]), range[4]);
+			final boolean yEdge = ring > 0 && ((y == 0 && range[3] > 0) || (y == ySize - 1 && range[4] < lod.getHeight(level) - 1));
+			for (int x = 0; x < xSize; x++)
+			{
+				final int i = Math.min(Math.max(range[1] + x - ring, range[1]), range[2]);
+				final boolean edge = yEdge || (ring > 0 && ((x == 0 && range[1] > 0) || (x == xSize - 1 && range[2] < lod.getWidth(level) - 1)));
+				double dataEntry = lod.getValue(level, i, j);
+				coords[(x + y * xSize) * 3] = lod.getX(level, i);
+				coords[(x + y * xSize) * 3 + 1] = lod.getHeight(dataEntry) - (edge ? skirt : 0);
+				coords[(x + y * xSize) * 3 + 2] = lod.getZ(level, j);
+				setVertexColour(colours, x + y * xSize, dataEntry, min, max, i, j);
+			}
+		}
+		if (lines) {
+			IndexedLineSetFactory lineFactory = new IndexedLineSetFactory();
+			lineFactory.setVertexCount(xSize * ySize);
+			lineFactory.setEdgeCount((xSize - 1) * ySize);
+			lineFactory.setVertexCoordinates(coords);
+			lineFactory.setVertexColors(colours);
+			int edgeFaces[][] = new int[(xSize - 1) * ySize][2];
+			for (int y = 0; y < ySize; y++)
+				for (int x = 0; x < xSize - 1; x++) {
+					edgeFaces[x + y * (xSize - 1)][0] = x + y * xSize;
+					edgeFaces[x + y * (xSize - 1)][1] = x + 1 + y * xSize;
+				}
+			lineFactory.setEdgeIndices(edgeFaces);
+			lineFactory.update();
+			return lineFactory.getIndexedLineSet();
+		}
+		QuadMeshFactory quadFactory = new QuadMeshFactory();
+		quadFactory.setVLineCount(ySize);
+		quadFactory.setULineCount(xSize);
+		quadFactory.setClosedInUDirection(false);
+		quadFactory.setClosedInVDirection(false);
+		quadFactory.setVertexCoordinates(coords);
+		quadFactory.setVertexColors(colours);
+		quadFactory.setGenerateFaceNormals(false);
+		quadFactory.setGenerateTextureCoordinates(false);
+		quadFactory.setGenerateEdgesFromFaces(true);
+		quadFactory.setEdgeFromQuadMesh(false);
+		quadFactory.update();
+		return quadFactory.getIndexedFaceSet();
+	}
+
+	private void removeTiles() {
+		synchronized (tiles) {
+			if (graph != null) {
+				for (SceneGraphComponent tile : tiles.values()) graph.removeChild(tile);
+			}
+			tiles.clear();
+		}
+		unwatchCamera();
+	}
+
+	/**
+	 * @return position of the camera in the coordinates of the graph, null if it is not known
+	 */
+	private double[] getEye() {
+		final Viewer viewer = app.getCurrentViewer();
+		final SceneGraphPath cameraPath = viewer.getCameraPath();
+		final List<SceneGraphPath> graphPaths = SceneGraphUtility.getPathsBetween(viewer.getSceneRoot(), graph);
+		if (cameraPath == null || graphPaths.isEmpty()) return null;
+
+		final double[] camera  = cameraPath.getMatrix(null);
+		final double[] inverse = graphPaths.get(0).getInverseMatrix(null);
+		final double[] world   = {camera[3], camera[7], camera[11], camera[15]};
+		final double[] eye     = new double[4];
+		for (int r = 0; r < 4; r++) {
+			for (int c = 0; c < 4; c++) eye[r] += inverse[r * 4 + c] * world[c];
+		}
+		return new double[] {eye[0] / eye[3], eye[1] / eye[3], eye[2] / eye[3]};
+	}
+
+	/**
+	 * @return pixels on the screen for one unit of the graph one unit from the camera
+	 */
+	private double getPixelsPerUnit() {
+		int height = app.getCurrentViewer().getViewingComponentSize().height;
+		if (height == 0)
+			height = FONT_SIZE_PIXELS_HEIGHT;
+		double fov = Math.toRadians(CameraUtility.getCamera(app.getCurrentViewer()).getFieldOfView());
+		return height / (2.0 * Math.tan(fov * 0.5));
+	}
+
+	/**
+	 * Listens to the transformations between the scene and the camera and the
+	 * graph, which the rotation, drag and zoom tools change.
+	 */
+	private void watchCamera() {
+		unwatchCamera();
+		if (cameraListener == null) {
+			cameraListener = new TransformationListener() {
+				@Override
+				public void transformationMatrixChanged(TransformationEvent ev) {
+					cameraMoved = true;
+					Job job = getDetailJob();
+					if (job.getState() == Job.NONE) job.schedule(DETAIL_DELAY);
+				}
+			};
+		}
+		final Viewer viewer = app.getCurrentViewer();
+		final List<SceneGraphPath> paths = new ArrayList<SceneGraphPath>(SceneGraphUtility.getPathsBetween(viewer.getSceneRoot(), graph));
+		if (viewer.getCameraPath() != null) paths.add(viewer.getCameraPath());
+		for (SceneGraphPath path : paths) {
+			for (Iterator<SceneGraphNode> it = path.iterator(); it.hasNext();) {
+				final SceneGraphNode node = it.next();
+				if (!(node instanceof SceneGraphComponent)) continue;
+				final Transformation trans = ((SceneGraphComponent) node).getTransformation();
+				if (trans != null && !watched.contains(trans)) {
+					trans.addTransformationListener(cameraListener);
+					watched.add(trans);
+				}
+			}
+		}
+	}
+
+	private void unwatchCamera() {
+		for (Transformation trans : watched) trans.removeTransformationListener(cameraListener);
+		watched.clear();
+	}
+
+	/**
+	 * @return job changing the tiles after the camera has moved, running again
+	 * if the camera moves while it runs
+	 */
+	private synchronized Job getDetailJob() {
+		if (detailJob == null) {
+			detailJob = new Job("Surface detail") {
+				@Override
+				protected IStatus run(IProgressMonitor monitor) {
+					if (lod == null || monitor.isCanceled()) return Status.CANCEL_STATUS; // Cleaned up
+					cameraMoved = false;
+					updateLevelOfDetail(false);
+					if (cameraMoved && lod != null) schedule(DETAIL_DELAY);
+					return Status.OK_STATUS;
+				}
+			};
+			detailJob.setSystem(true);
+		}
+		return detailJob;
+	}
+
+	private static DownsampleMode getLevelOfDetailMode(int samplingMode) {
+		switch (samplingMode) {
+			case 3: return DownsampleMode.MAXIMUM;
+			case 4: return DownsampleMode.MINIMUM;
+			default: return DownsampleMode.MEAN;
+		}
+	}
+
 	protected void buildDisplayDataSet()
 	{
+		lod = null;
 		int dimX = currentData.getShape()[1];
 		int dimY = currentData.getShape()[0];
 		if (dimX * dimY > MAXDIMSQR)
@@ -873,6 +1125,17 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 
 		if (monitor != null && monitor.isCanceled()) return Status.CANCEL_STATUS;
 
+		// Large windows are drawn as tiles at the detail the camera needs,
+		// which needs the colour table lookup of JOGL.
+		if (hasJOGL && (endP[0]-startP[0])*(endP[1]-startP[1]) > MAXDIMSQR) {
+			DownsampleMode mode = getLevelOfDetailMode(roi.getXSamplingMode());
+			if (lod == null || !lod.isFor(currentData, startP, endP, mode))
+				lod = new SurfaceLevelOfDetail(currentData, startP, endP, mode);
+			displayData = lod.getOverview();
+			return Status.OK_STATUS;
+		}
+		lod = null;
+
 		displayData = currentData.getSlice(startP,endP, null);
 		if (roi.getXSamplingMode() > 0 ||
 			roi.getYSamplingMode() > 0) {
@@ -995,6 +1258,10 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 			
 			globalZmin = displayData.min().doubleValue();
 			globalZmax = displayData.max().doubleValue();
+			if (lod != null) {
+				globalZmin = lod.getMin();
+				globalZmax = lod.getMax();
+			}
 			graphAppearance = new Appearance();
 			graph.setGeometry(createGraphGeometry(0,0));
 			graph.setAppearance(graphAppearance);
@@ -1239,6 +1506,11 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 		if (yAxisLabel != null) yAxisLabel.setGeometry(null);
 		if (zAxisLabel != null) zAxisLabel.setGeometry(null);
 		if (zLabelNode != null) zLabelNode.setGeometry(null);
+		lod = null;
+		synchronized (this) {
+			if (detailJob != null) detailJob.cancel();
+		}
+		removeTiles();
 	}
 
 	@Override
@@ -1249,7 +1521,9 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 			this.colourTable = colourTable;
 			colourTableMin = minValue;
 			colourTableMax = maxValue;
-			if (graph.getGeometry() != null) {
+			if (lod != null) {
+				updateLevelOfDetail(true);
+			} else if (graph.getGeometry() != null) {
 				PointSet geom = (PointSet)graph.getGeometry();
 				int width = displayData.getShape()[1];
 				int height = displayData.getShape()[0];
@@ -1429,6 +1703,10 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 		setGlobalMinMax();
 		globalZmin = displayData.min().doubleValue();
 		globalZmax = displayData.max().doubleValue();
+		if (lod != null) {
+			globalZmin = lod.getMin();
+			globalZmax = lod.getMax();
+		}
 		graph.setGeometry(createGraphGeometry(xAspect,yAspect));
 		if (axis != null) {
 			axis.setGeometry(createAxisGeometry());
@@ -1483,12 +1761,17 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 	public void setStyle(SurfPlotStyles newStyle) {
 		if (newStyle != currentStyle) {
 			
-			if (currentStyle == SurfPlotStyles.LINEGRAPH)
-				graph.setGeometry(switchToStandardGraphGeometry());
-
-			if (currentStyle != SurfPlotStyles.LINEGRAPH &&
-				newStyle == SurfPlotStyles.LINEGRAPH)
-				graph.setGeometry(switchToLineGraphGeometry());
+			// The tiles of a level of detail surface are made again instead
+			final boolean lines = currentStyle == SurfPlotStyles.LINEGRAPH ||
+			                      newStyle == SurfPlotStyles.LINEGRAPH;
+			if (lod == null) {
+				if (currentStyle == SurfPlotStyles.LINEGRAPH)
+					graph.setGeometry(switchToStandardGraphGeometry());
+
+				if (currentStyle != SurfPlotStyles.LINEGRAPH &&
+					newStyle == SurfPlotStyles.LINEGRAPH)
+					graph.setGeometry(switchToLineGraphGeometry());
+			}
 			
 			switch (newStyle) {
 				case FILLED:
@@ -1513,6 +1796,7 @@ public class DataSet3DPlot3D implements IDataSet3DCorePlot {
 				break;
 			}
 			currentStyle = newStyle;
+			if (lod != null && lines) updateLevelOfDetail(true);
 		}
 	}
 
@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.dawnsci.plotting.jreality.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+import org.eclipse.dawnsci.analysis.dataset.impl.FloatDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.IndexIterator;
+import org.eclipse.dawnsci.plotting.api.jreality.core.ScaleType;
+import org.eclipse.dawnsci.plotting.api.jreality.util.ScalingUtility;
+
+import uk.ac.diamond.scisoft.analysis.dataset.function.DownsampleMode;
+
+/**
+ * A surface too large to draw at once, as a quadtree of tiles at different
+ * levels of detail. Level 0 is the data, each level above it is half the
+ * size of the one below, each value the mean, maximum or minimum of four.
+ * Every level is cut in to tiles of TILE x TILE cells, and a tile has four
+ * children one level down, down to the data.
+ *
+ * Each tile keeps the minimum and maximum of the data under it, and how far
+ * its values may be from the data, which together with the distance to the
+ * camera gives its error in pixels. select(...) starts from the top tiles
+ * and splits the one with the largest error until they are all within
+ * TOLERANCE pixels or the number of vertices would be over the budget.
+ *
+ * Neighbouring tiles at different levels do not meet, the tiles hang a skirt
+ * as deep as their error from their inside edges to cover the gaps.
+ */
+class SurfaceLevelOfDetail {
+
+	/**
+	 * Cells along the side of a tile.
+	 */
+	static final int TILE = 64;
+
+	/**
+	 * Pixels which a tile may be from the data.
+	 */
+	private static final double TOLERANCE = 1.5;
+
+	private final IDataset       source;
+	private final Dataset        data;
+	private final int[]          start, end;
+	private final DownsampleMode mode;
+
+	private final int            levels;
+	private final int[]          widths, heights, tilesX, tilesY;
+	private final float[][]      values;    // each level above 0, null for 0 which is the data
+	private final float[][]      tileMin, tileMax, tileError;
+	private final double         min, max;
+
+	// Where the data is drawn in the graph
+	private double    xOrigin, xStep, zOrigin, zStep, heightMin, heightScale;
+	private ScaleType scaling = ScaleType.LINEAR;
+
+	/**
+	 * A window which reaches the last row and column is taken as the whole
+	 * data, so that it is not copied.
+	 *
+	 * @param source 2D
+	 * @param start of the window
+	 * @param end of the window
+	 * @param mode MEAN, MAXIMUM or MINIMUM for the levels above the data
+	 */
+	SurfaceLevelOfDetail(IDataset source, int[] start, int[] end, DownsampleMode mode) {
+
+		final int[]   shape = source.getShape();
+		final boolean whole = start[0]==0 && start[1]==0 && end[0]>=shape[0]-1 && end[1]>=shape[1]-1;
+		this.source = source;
+		this.data   = DatasetUtils.convertToDataset(whole ? source : source.getSlice(start, end, null));
+		this.start  = start.clone();
+		this.end    = end.clone();
+		this.mode   = mode;
+
+		int w = data.getShape()[1], h = data.getShape()[0], count = 1;
+		while (Math.max(w, h) > TILE+1) {
+			w = (w+1)/2;
+			h = (h+1)/2;
+			++count;
+		}
+		this.levels    = count;
+		this.widths    = new int[levels];
+		this.heights   = new int[levels];
+		this.tilesX    = new int[levels];
+		this.tilesY    = new int[levels];
+		this.values    = new float[levels][];
+		this.tileMin   = new float[levels][];
+		this.tileMax   = new float[levels][];
+		this.tileError = new float[levels][];
+
+		widths[0]  = data.getShape()[1];
+		heights[0] = data.getShape()[0];
+		for (int l = 0; l < levels; l++) {
+			if (l>0) {
+				widths[l]  = (widths[l-1]+1)/2;
+				heights[l] = (heights[l-1]+1)/2;
+				values[l]  = new float[widths[l]*heights[l]];
+			}
+			tilesX[l] = Math.max(1, (widths[l]-1+TILE-1)/TILE);
+			tilesY[l] = Math.max(1, (heights[l]-1+TILE-1)/TILE);
+			final int tiles = tilesX[l]*tilesY[l];
+			tileMin[l]   = new float[tiles];
+			tileMax[l]   = new float[tiles];
+			tileError[l] = new float[tiles];
+			Arrays.fill(tileMin[l], Float.NaN);
+			Arrays.fill(tileMax[l], Float.NaN);
+		}
+
+		// The data is read once, a pair of rows at a time, for level 1.
+		final IndexIterator it   = data.getIterator();
+		final double[]      row0 = new double[widths[0]];
+		final double[]      row1 = new double[widths[0]];
+		double lo = Double.NaN, hi = Double.NaN;
+		for (int y = 0; y < heights[0]; y+=2) {
+			final boolean pair = y+1 < heights[0];
+			for (int x = 0; x < widths[0]; x++) {
+				it.hasNext();
+				row0[x] = data.getElementDoubleAbs(it.index);
+			}
+			if (pair) {
+				for (int x = 0; x < widths[0]; x++) {
+					it.hasNext();
+					row1[x] = data.getElementDoubleAbs(it.index);
+				}
+			}
+			for (int x = 0; x < widths[0]; x++) {
+				lo = least(lo, row0[x]);
+				hi = greatest(hi, row0[x]);
+				extend(0, x, y, row0[x]);
+				if (pair) {
+					lo = least(lo, row1[x]);
+					hi = greatest(hi, row1[x]);
+					extend(0, x, y+1, row1[x]);
+				}
+			}
+			if (levels>1) reduce(1, y/2, row0, pair ? row1 : null);
+		}
+		this.min = lo;
+		this.max = hi;
+
+		final double[] above = new double[levels>1 ? widths[1] : 0];
+		final double[] below = new double[above.length];
+		for (int l = 2; l < levels; l++) {
+			final int w1 = widths[l-1];
+			for (int y = 0; y < heights[l-1]; y+=2) {
+				for (int x = 0; x < w1; x++) above[x] = values[l-1][y*w1+x];
+				final boolean pair = y+1 < heights[l-1];
+				if (pair) for (int x = 0; x < w1; x++) below[x] = values[l-1][(y+1)*w1+x];
+				reduce(l, y/2, above, pair ? below : null);
+			}
+		}
+
+		// A tile is as far from the data as it is from its children, and they are from the data.
+		for (int l = 1; l < levels; l++) {
+			for (int ty = 0; ty < tilesY[l]; ty++) {
+				for (int tx = 0; tx < tilesX[l]; tx++) {
+					final int t = ty*tilesX[l]+tx;
+					float error = 0;
+					for (int cy = 2*ty; cy <= 2*ty+1 && cy < tilesY[l-1]; cy++) {
+						for (int cx = 2*tx; cx <= 2*tx+1 && cx < tilesX[l-1]; cx++) {
+							final int c = cy*tilesX[l-1]+cx;
+							tileMin[l][t] = (float)least(tileMin[l][t], tileMin[l-1][c]);
+							tileMax[l][t] = (float)greatest(tileMax[l][t], tileMax[l-1][c]);
+							error = Math.max(error, tileError[l-1][c]);
+						}
+					}
+					tileError[l][t] += error;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes row y of a level from two rows of the level below, keeping
+	 * how far each value is from the four it stands for.
+	 */
+	private void reduce(int level, int y, double[] above, double[] below) {
+
+		final int     w    = widths[level];
+		final int     wb   = widths[level-1];
+		final int     t0   = Math.min(y/TILE, tilesY[level]-1)*tilesX[level];
+		final float[] row  = values[level];
+		final float[] errs = tileError[level];
+		for (int x = 0; x < w; x++) {
+			final int x0 = 2*x, x1 = Math.min(2*x+1, wb-1);
+			double value;
+			switch (mode) {
+			case MAXIMUM:
+				value = greatest(greatest(above[x0], above[x1]), below!=null ? greatest(below[x0], below[x1]) : Double.NaN);
+				break;
+			case MINIMUM:
+				value = least(least(above[x0], above[x1]), below!=null ? least(below[x0], below[x1]) : Double.NaN);
+				break;
+			default:
+				double sum = 0;
+				int    n   = 0;
+				if (above[x0]==above[x0]) { sum += above[x0]; ++n; }
+				if (x1!=x0 && above[x1]==above[x1]) { sum += above[x1]; ++n; }
+				if (below!=null && below[x0]==below[x0]) { sum += below[x0]; ++n; }
+				if (below!=null && x1!=x0 && below[x1]==below[x1]) { sum += below[x1]; ++n; }
+				value = n>0 ? sum/n : Double.NaN;
+			}
+			row[y*w+x] = (float)value;
+
+			double error = Math.max(distance(above[x0], value), distance(above[x1], value));
+			if (below!=null) error = Math.max(error, Math.max(distance(below[x0], value), distance(below[x1], value)));
+			final int t = t0 + Math.min(x/TILE, tilesX[level]-1);
+			if (error>errs[t]) errs[t] = (float)error;
+		}
+	}
+
+	private void extend(int level, int x, int y, double value) {
+		if (value!=value) return;
+		final int t = Math.min(y/TILE, tilesY[level]-1)*tilesX[level] + Math.min(x/TILE, tilesX[level]-1);
+		tileMin[level][t] = (float)least(tileMin[level][t], value);
+		tileMax[level][t] = (float)greatest(tileMax[level][t], value);
+	}
+
+	private static double distance(double a, double b) {
+		final double d = Math.abs(a-b);
+		return d==d ? d : 0;
+	}
+
+	private static double least(double a, double b) {
+		if (a!=a) return b;
+		if (b!=b) return a;
+		return Math.min(a, b);
+	}
+
+	private static double greatest(double a, double b) {
+		if (a!=a) return b;
+		if (b!=b) return a;
+		return Math.max(a, b);
+	}
+
+	/**
+	 *
+	 * @param source
+	 * @param start
+	 * @param end
+	 * @param mode
+	 * @return true if this was made for the same window of the same data
+	 */
+	boolean isFor(IDataset source, int[] start, int[] end, DownsampleMode mode) {
+		return this.source==source && this.mode==mode && Arrays.equals(this.start, start) && Arrays.equals(this.end, end);
+	}
+
+	/**
+	 * @return the top level, small enough to be used for the aspect and the labels
+	 */
+	Dataset getOverview() {
+		final int top = levels-1;
+		if (top==0) return data;
+		return new FloatDataset(values[top], heights[top], widths[top]);
+	}
+
+	/**
+	 * @return least value of the data, NaNs left out
+	 */
+	double getMin() {
+		return min;
+	}
+
+	/**
+	 * @return greatest value of the data, NaNs left out
+	 */
+	double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return number of columns of a level, 0 is the data
+	 */
+	int getWidth(int level) {
+		return widths[level];
+	}
+
+	/**
+	 * @return number of rows of a level
+	 */
+	int getHeight(int level) {
+		return heights[level];
+	}
+
+	/**
+	 * Sets where the data is drawn, the graph x of data column i is xOrigin+i*xStep,
+	 * its depth is zOrigin+j*zStep for row j and its height is
+	 * heightScale*(scaled value - heightMin).
+	 */
+	void setFrame(double xOrigin, double xStep, double zOrigin, double zStep, ScaleType scaling, double heightMin, double heightScale) {
+		this.xOrigin     = xOrigin;
+		this.xStep       = xStep;
+		this.zOrigin     = zOrigin;
+		this.zStep       = zStep;
+		this.scaling     = scaling;
+		this.heightMin   = heightMin;
+		this.heightScale = heightScale;
+	}
+
+	/**
+	 * Which tiles to draw.
+	 *
+	 * @param eye position of the camera in the graph, null to show only the top level
+	 * @param pixelsPerUnit size on the screen of one unit of the graph at a distance of one
+	 * @param budget most vertices to draw
+	 * @return keys of the tiles, which cover the data once
+	 */
+	List<Long> select(double[] eye, double pixelsPerUnit, int budget) {
+
+		final PriorityQueue<Tile> queue = new PriorityQueue<Tile>();
+		int vertices = 0;
+		for (int ty = 0; ty < tilesY[levels-1]; ty++) {
+			for (int tx = 0; tx < tilesX[levels-1]; tx++) {
+				final Tile tile = new Tile(levels-1, tx, ty, eye, pixelsPerUnit);
+				queue.add(tile);
+				vertices += tile.vertices;
+			}
+		}
+
+		final List<Long> selected = new ArrayList<Long>();
+		while (!queue.isEmpty()) {
+			final Tile tile = queue.poll();
+			if (tile.level==0 || tile.error<=TOLERANCE) {
+				selected.add(tile.getKey());
+				continue;
+			}
+			final List<Tile> children = new ArrayList<Tile>(4);
+			int cost = -tile.vertices;
+			for (int cy = 2*tile.y; cy <= 2*tile.y+1 && cy < tilesY[tile.level-1]; cy++) {
+				for (int cx = 2*tile.x; cx <= 2*tile.x+1 && cx < tilesX[tile.level-1]; cx++) {
+					final Tile child = new Tile(tile.level-1, cx, cy, eye, pixelsPerUnit);
+					children.add(child);
+					cost += child.vertices;
+				}
+			}
+			if (vertices+cost > budget) {
+				selected.add(tile.getKey());
+				continue;
+			}
+			vertices += cost;
+			queue.addAll(children);
+		}
+		return selected;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return level, first and last column and first and last row of the values of the tile
+	 */
+	int[] getRange(long key) {
+		final int level = getLevel(key), tx = getX(key), ty = getY(key);
+		return new int[]{level, tx*TILE, Math.min((tx+1)*TILE, widths[level]-1), ty*TILE, Math.min((ty+1)*TILE, heights[level]-1)};
+	}
+
+	/**
+	 *
+	 * @param level
+	 * @param x
+	 * @param y
+	 * @return value drawn at column x and row y of a level
+	 */
+	double getValue(int level, int x, int y) {
+		if (level==0) return data.getDouble(y, x);
+		return values[level][y*widths[level]+x];
+	}
+
+	/**
+	 * @return graph x of column i of a level, the middle of the data it stands for
+	 */
+	double getX(int level, int i) {
+		return xOrigin + xStep*getCentre(level, i, widths[0]);
+	}
+
+	/**
+	 * @return graph depth of row j of a level
+	 */
+	double getZ(int level, int j) {
+		return zOrigin + zStep*getCentre(level, j, heights[0]);
+	}
+
+	/**
+	 * @return graph height of a value
+	 */
+	double getHeight(double value) {
+		return heightScale*(ScalingUtility.valueScaler(value, scaling) - heightMin);
+	}
+
+	/**
+	 * @return depth of the skirt of a tile, in the graph
+	 */
+	double getSkirt(long key) {
+		final int t = getY(key)*tilesX[getLevel(key)] + getX(key);
+		return getGraphError(getLevel(key), t) + 1e-3*Math.abs(heightScale);
+	}
+
+	private static double getCentre(int level, int i, int size) {
+		final int first = i << level;
+		final int last  = Math.min((i+1) << level, size) - 1;
+		return (first+last)/2d;
+	}
+
+	/**
+	 * How far a tile may be from the data, as a height in the graph. The error of
+	 * a scaled surface is not more than the scaled range of the tile.
+	 */
+	private double getGraphError(int level, int t) {
+		if (level==0 || tileMax[level][t]!=tileMax[level][t]) return 0;
+		if (scaling==ScaleType.LINEAR) return Math.abs(heightScale)*tileError[level][t];
+		final double range = ScalingUtility.valueScaler(tileMax[level][t], scaling) - ScalingUtility.valueScaler(tileMin[level][t], scaling);
+		return range==range ? Math.abs(heightScale*range) : 0;
+	}
+
+	static long getKey(int level, int x, int y) {
+		return ((long)level << 48) | ((long)y << 24) | x;
+	}
+
+	private static int getLevel(long key) {
+		return (int)(key >>> 48);
+	}
+
+	private static int getY(long key) {
+		return (int)((key >>> 24) & 0xffffff);
+	}
+
+	private static int getX(long key) {
+		return (int)(key & 0xffffff);
+	}
+
+	/**
+	 * A tile being selected, ordered by its error in pixels, largest first.
+	 */
+	private final class Tile implements Comparable<Tile> {
+
+		final int    level, x, y, vertices;
+		final double error;
+
+		Tile(int level, int x, int y, double[] eye, double pixelsPerUnit) {
+			this.level = level;
+			this.x     = x;
+			this.y     = y;
+
+			final int[] range = getRange(SurfaceLevelOfDetail.getKey(level, x, y));
+			this.vertices = (range[2]-range[1]+3)*(range[4]-range[3]+3);
+
+			final int    t          = y*tilesX[level]+x;
+			final double graphError = getGraphError(level, t);
+			if (eye==null || graphError==0) {
+				this.error = 0;
+				return;
+			}
+			// Distance from the eye to the box around the tile
+			final double x0 = getX(level, range[1]), x1 = getX(level, range[2]);
+			final double z0 = getZ(level, range[3]), z1 = getZ(level, range[4]);
+			final double h0 = getHeight(tileMin[level][t]), h1 = getHeight(tileMax[level][t]);
+			final double dx = outside(eye[0], x0, x1);
+			final double dh = h0==h0 && h1==h1 ? outside(eye[1], h0, h1) : 0;
+			final double dz = outside(eye[2], z0, z1);
+			final double distance = Math.sqrt(dx*dx+dh*dh+dz*dz);
+			this.error = distance>0 ? graphError*pixelsPerUnit/distance : Double.MAX_VALUE;
+		}
+
+		private double outside(double v, double a, double b) {
+			final double lo = Math.min(a, b), hi = Math.max(a, b);
+			return v<lo ? lo-v : v>hi ? v-hi : 0;
+		}
+
+		long getKey() {
+			return SurfaceLevelOfDetail.getKey(level, x, y);
+		}
+
+		@Override
+		public int compareTo(Tile other) {
+			return Double.compare(other.error, error);
+		}
+	}
+}
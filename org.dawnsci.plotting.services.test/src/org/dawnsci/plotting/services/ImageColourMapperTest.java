@@ -0,0 +1,132 @@
+package org.dawnsci.plotting.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.BooleanDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean.ImageOrigin;
+import org.junit.Test;
+
+public class ImageColourMapperTest {
+
+	private static final double MIN = 10, MAX = 900, MIN_CUT = 5, MAX_CUT = 990;
+	private static final double SCALE = 252 / (MAX - MIN);
+
+	/**
+	 * Small enough to be mapped on the calling thread.
+	 */
+	@Test
+	public void testSmallImageAllOrigins() {
+		checkAllOrigins(37, 53, false);
+		checkAllOrigins(37, 53, true);
+	}
+
+	/**
+	 * Large enough to be split in to bands on the pool.
+	 */
+	@Test
+	public void testLargeImageAllOrigins() {
+		checkAllOrigins(700, 513, false);
+		checkAllOrigins(700, 513, true);
+	}
+
+	@Test
+	public void testIntegerImage() {
+		final Dataset image = DatasetUtils.cast(createImage(600, 400), Dataset.INT32);
+		for (ImageOrigin origin : ImageOrigin.values()) {
+			check(image, null, origin);
+		}
+	}
+
+	/**
+	 * Views share the buffer of the original and are walked by their strides.
+	 */
+	@Test
+	public void testSliceView() {
+		final Dataset        image = createImage(700, 513).getSliceView(new int[]{5,7}, new int[]{605,507}, new int[]{1,2});
+		final BooleanDataset mask  = (BooleanDataset)createMask(700, 513).getSliceView(new int[]{5,7}, new int[]{605,507}, new int[]{1,2});
+		for (ImageOrigin origin : ImageOrigin.values()) {
+			check(image, null, origin);
+			check(image, mask, origin);
+		}
+	}
+
+	private void checkAllOrigins(int rows, int cols, boolean masked) {
+		final Dataset        image = createImage(rows, cols);
+		final BooleanDataset mask  = masked ? createMask(rows, cols) : null;
+		for (ImageOrigin origin : ImageOrigin.values()) {
+			check(image, mask, origin);
+		}
+	}
+
+	private void check(Dataset image, BooleanDataset mask, ImageOrigin origin) {
+
+		final ImageServiceBean bean = new ImageServiceBean();
+		bean.setOrigin(origin);
+
+		final ImageColourMapper mapper = new ImageColourMapper(bean, image, mask, MIN, MAX, SCALE, MAX-MIN, MIN_CUT, MAX_CUT);
+		final byte[] actual = new byte[image.getSize()];
+		mapper.map(actual);
+
+		final int[]  shape    = image.getShape();
+		final byte[] expected = map(image, mask, origin);
+		final boolean swapped = origin==ImageOrigin.BOTTOM_LEFT || origin==ImageOrigin.TOP_RIGHT;
+		assertEquals(swapped ? shape[0] : shape[1], mapper.getWidth());
+		assertEquals(swapped ? shape[1] : shape[0], mapper.getHeight());
+		assertArrayEquals("Origin "+origin, expected, actual);
+	}
+
+	/**
+	 * The per-pixel loops which the ImageService used before the mapper.
+	 */
+	private byte[] map(Dataset image, BooleanDataset mask, ImageOrigin origin) {
+
+		final int[]  shape = image.getShape();
+		final byte[] bytes = new byte[image.getSize()];
+		int index = 0;
+		switch (origin) {
+		case TOP_LEFT:
+			for (int i = 0; i<shape[0]; ++i) for (int j = 0; j<shape[1]; ++j) bytes[index++] = pixel(image, mask, i, j);
+			break;
+		case BOTTOM_LEFT:
+			for (int i = shape[1]-1; i>=0; --i) for (int j = 0; j<shape[0]; ++j) bytes[index++] = pixel(image, mask, j, i);
+			break;
+		case BOTTOM_RIGHT:
+			for (int i = shape[0]-1; i>=0; --i) for (int j = shape[1]-1; j>=0; --j) bytes[index++] = pixel(image, mask, i, j);
+			break;
+		case TOP_RIGHT:
+			for (int i = 0; i<shape[1]; ++i) for (int j = shape[0]-1; j>=0; --j) bytes[index++] = pixel(image, mask, j, i);
+			break;
+		}
+		return bytes;
+	}
+
+	private byte pixel(Dataset image, BooleanDataset mask, int i, int j) {
+		return mask==null || mask.getBoolean(i,j)
+			   ? ImageService.getPixelColorIndex(image.getDouble(i,j), MIN, MAX, SCALE, MAX-MIN, MIN_CUT, MAX_CUT)
+			   : ImageService.NAN_PIX_BYTE;
+	}
+
+	private Dataset createImage(int rows, int cols) {
+		final Random   random = new Random(rows*cols);
+		final double[] data   = new double[rows*cols];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = random.nextDouble()*1000;
+			if (i%97==0) data[i] = Double.NaN;
+		}
+		return new DoubleDataset(data, rows, cols);
+	}
+
+	private BooleanDataset createMask(int rows, int cols) {
+		final Random    random = new Random(rows+cols);
+		final boolean[] data   = new boolean[rows*cols];
+		for (int i = 0; i < data.length; i++) data[i] = random.nextInt(10)!=0;
+		return new BooleanDataset(data, rows, cols);
+	}
+}
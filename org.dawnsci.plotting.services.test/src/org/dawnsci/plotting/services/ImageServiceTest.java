@@ -2,13 +2,19 @@ package org.dawnsci.plotting.services;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.util.HashMap;
 import java.util.Map;
 
 import org.eclipse.dawnsci.analysis.dataset.impl.AbstractDataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Maths;
 import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
 import org.junit.Test;
 
 public class ImageServiceTest {
@@ -84,4 +90,47 @@ public class ImageServiceTest {
 			assertArrayEquals(expectedResults.get(toggle), result, EPSILON);
 		}
 	}
+
+	@Test
+	public void testRecycledImageData() {
+
+		ImageService imageService = new ImageService();
+		ImageServiceBean bean = createBean(AbstractDataset.arange(100*80, AbstractDataset.FLOAT64).reshape(100, 80));
+
+		ImageData first = imageService.getImageData(bean, null);
+		byte[] firstBytes = first.data.clone();
+
+		// Same shape, the buffer is refilled in place
+		ImageBufferStatistics before = imageService.getBufferStatistics();
+		bean.setImage(Maths.multiply(AbstractDataset.arange(100*80, AbstractDataset.FLOAT64).reshape(100, 80), -1));
+		ImageData second = imageService.getImageData(bean, first);
+		assertSame(first, second);
+		assertArrayEquals(imageService.getImageData(bean).data, second.data);
+
+		ImageBufferStatistics diff = imageService.getBufferStatistics().minus(before);
+		assertEquals(1, diff.getRecycles());
+		assertEquals(100*80, diff.getRecycledBytes());
+
+		// New shape, a new image is created
+		bean.setImage(AbstractDataset.arange(100*80, AbstractDataset.FLOAT64).reshape(80, 100));
+		ImageData third = imageService.getImageData(bean, second);
+		assertNotSame(second, third);
+		assertEquals(100, third.width);
+		assertEquals(80, third.height);
+
+		// The original values come back the same as the first time
+		bean.setImage(AbstractDataset.arange(100*80, AbstractDataset.FLOAT64).reshape(100, 80));
+		assertArrayEquals(firstBytes, imageService.getImageData(bean, second).data);
+	}
+
+	private ImageServiceBean createBean(Dataset image) {
+		RGB[] rgbs = new RGB[256];
+		for (int i = 0; i < rgbs.length; i++) rgbs[i] = new RGB(i, i, i);
+		ImageServiceBean bean = new ImageServiceBean();
+		bean.setImage(image);
+		bean.setPalette(new PaletteData(rgbs));
+		bean.setMin(0);
+		bean.setMax(100*80);
+		return bean;
+	}
 }
@@ -0,0 +1,36 @@
+package org.dawnsci.plotting.services;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean.HistoType;
+
+/**
+ * Compares the time of the median statistics with the path which was used before,
+ * an iterator for min, max and mean followed by Stats.median(...).
+ *
+ * Run as a java application, the argument is the size of the side of the
+ * image, 4096 if there is none. It is not run with the unit tests.
+ */
+class ImageStatisticsBenchmark {
+
+	public static void main(String[] args) {
+
+		final int              size    = args.length>0 ? Integer.parseInt(args[0]) : 4096;
+		final Dataset          image   = ImageStatisticsTest.createImage(size, size, 0);
+		final ImageServiceBean bean    = new ImageServiceBean(image, HistoType.MEDIAN);
+		final ImageService     service = new ImageService();
+
+		for (int i = 0; i < 3; i++) {
+			long start = System.currentTimeMillis();
+			final double[] current = service.getFastStatistics(bean);
+			final long current_ms  = System.currentTimeMillis()-start;
+
+			start = System.currentTimeMillis();
+			final double[] previous = ImageStatisticsTest.getPreviousFastStatistics(image, bean);
+			final long previous_ms  = System.currentTimeMillis()-start;
+
+			System.out.println("Median statistics of "+size+"x"+size+": "+current_ms+"ms, previously "+previous_ms+"ms"+
+			                   ", median "+current[2]+", previously "+previous[2]);
+		}
+	}
+}
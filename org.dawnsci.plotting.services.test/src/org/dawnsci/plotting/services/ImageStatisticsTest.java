@@ -0,0 +1,141 @@
+package org.dawnsci.plotting.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.BooleanDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.IndexIterator;
+import org.eclipse.dawnsci.analysis.dataset.impl.Stats;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean.HistoType;
+import org.junit.Test;
+
+public class ImageStatisticsTest {
+
+	@Test
+	public void testMinMaxMean() {
+		final Dataset image = createImage(1024, 1024, 0);
+		final ImageStatistics stats = ImageStatistics.create(image, null, new ImageServiceBean(), false);
+
+		assertEquals(((Number)image.min(true)).doubleValue(), stats.getMin(), 0);
+		assertEquals(((Number)image.max(true)).doubleValue(), stats.getMax(), 0);
+		assertEquals(((Number)image.mean(true)).doubleValue(), stats.getMean(), 1e-6);
+		assertEquals(image.getSize()/97+1, stats.getNanCount());
+		assertEquals(image.getSize()-stats.getNanCount(), stats.getCount());
+	}
+
+	@Test
+	public void testMedian() {
+		checkMedian(createImage(1024, 1024, 0), null);
+		checkMedian(createImage(1024, 1024, -500), null);
+		checkMedian(DatasetUtils.cast(createImage(700, 900, 0), Dataset.INT32), null);
+	}
+
+	@Test
+	public void testMaskedMedian() {
+		final Dataset        image = createImage(1024, 1024, 0);
+		final boolean[]      data  = new boolean[image.getSize()];
+		for (int i = 0; i < data.length; i++) data[i] = i < data.length/2; // Top half only
+		final BooleanDataset mask  = new BooleanDataset(data, 1024, 1024);
+		checkMedian(image, mask);
+	}
+
+	@Test
+	public void testSmallIntegersAreExact() {
+		final Dataset image = DatasetUtils.cast(createImage(300, 300, 0), Dataset.INT32);
+		image.idivide(10); // 0-100
+		final ImageStatistics stats = ImageStatistics.create(image, null, new ImageServiceBean(), true);
+		assertEquals(getMedian(image, null), stats.getMedian(), 0.5);
+	}
+
+	/**
+	 * The median statistics are those of the path which was used before, an iterator
+	 * for min, max and mean followed by Stats.median(...).
+	 */
+	@Test
+	public void testFastStatistics() {
+
+		final Dataset          image   = createImage(512, 512, 0);
+		final ImageServiceBean bean    = new ImageServiceBean(image, HistoType.MEDIAN);
+		final double[]         current  = new ImageService().getFastStatistics(bean);
+		final double[]         previous = getPreviousFastStatistics(image, bean);
+		assertEquals(previous[0], current[0], 0);
+		assertEquals(previous[2], current[2], Math.abs(previous[2])*0.01);
+	}
+
+	/**
+	 * Unlike the path which was used before, the median is of the pixels which are not masked.
+	 */
+	@Test
+	public void testMaskedFastStatistics() {
+
+		final Dataset        image = createImage(512, 512, 0);
+		final boolean[]      data  = new boolean[image.getSize()];
+		for (int i = 0; i < data.length; i++) data[i] = image.getElementDoubleAbs(i) < 500; // Lower half of the values
+		final BooleanDataset mask  = new BooleanDataset(data, 512, 512);
+
+		final ImageServiceBean bean    = new ImageServiceBean(image, HistoType.MEDIAN);
+		bean.setMask(mask);
+		final double[]         current = new ImageService().getFastStatistics(bean);
+		final double           median  = getMedian(image, mask);
+		assertEquals(median, current[2], Math.abs(median)*0.01);
+		assertTrue(current[2] < 500);
+	}
+
+	private void checkMedian(Dataset image, BooleanDataset mask) {
+		final ImageStatistics stats  = ImageStatistics.create(image, mask, new ImageServiceBean(), true);
+		final double          median = getMedian(image, mask);
+		final double          range  = stats.getMax()-stats.getMin();
+		assertTrue("Median "+stats.getMedian()+" should be close to "+median,
+				   Math.abs(stats.getMedian()-median) <= Math.max(Math.abs(median)*0.01, range*1e-4));
+		assertEquals(stats.getMin(), stats.getPercentile(0), 0);
+		assertEquals(stats.getMax(), stats.getPercentile(100), 0);
+	}
+
+	static double getMedian(Dataset image, BooleanDataset mask) {
+		final DoubleDataset values = new DoubleDataset(image.getSize());
+		int count = 0;
+		final IndexIterator it = image.getIterator(true);
+		final int[] pos = it.getPos();
+		while (it.hasNext()) {
+			if (mask!=null && !mask.getBoolean(pos)) continue;
+			final double val = image.getDouble(pos);
+			if (Double.isNaN(val)) continue;
+			values.setAbs(count++, val);
+		}
+		return ((Number)Stats.median(values.getSlice(new int[]{0}, new int[]{count}, null))).doubleValue();
+	}
+
+	/**
+	 * The median path of ImageService.getFastStatistics(...) before ImageStatistics.
+	 */
+	static double[] getPreviousFastStatistics(Dataset image, ImageServiceBean bean) {
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		final IndexIterator it = image.getIterator();
+		while (it.hasNext()) {
+			final double val = image.getElementDoubleAbs(it.index);
+			if (Double.isNaN(val))      continue;
+			if (!bean.isInBounds(val))  continue;
+			if (val < min) min = val;
+			if (val > max) max = val;
+		}
+		double median = ((Number)Stats.median(image)).doubleValue();
+		return new double[]{min, Math.min(2*median, max), median, max};
+	}
+
+	static Dataset createImage(int rows, int cols, double offset) {
+		final Random   random = new Random(rows*cols);
+		final double[] data   = new double[rows*cols];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = offset + random.nextGaussian()*100+500;
+			if (i%97==0) data[i] = Double.NaN;
+		}
+		return new DoubleDataset(data, rows, cols);
+	}
+}
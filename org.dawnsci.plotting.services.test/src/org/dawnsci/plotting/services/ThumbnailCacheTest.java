@@ -0,0 +1,119 @@
+package org.dawnsci.plotting.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThumbnailCacheTest {
+
+	private File dir, file;
+
+	@Before
+	public void before() throws Exception {
+		dir  = File.createTempFile("thumbnails", "");
+		dir.delete();
+		dir.mkdirs();
+		file = File.createTempFile("thumbnail", ".dat");
+		write(file, "first");
+	}
+
+	@After
+	public void after() {
+		for (File f : dir.listFiles()) f.delete();
+		dir.delete();
+		file.delete();
+	}
+
+	@Test
+	public void testMemoryAndDisk() throws Exception {
+
+		final CountingCache cache = new CountingCache(dir);
+		final ImageData data = cache.getImageData(file, 16, 8);
+		assertEquals(16, data.width);
+		assertEquals(8,  data.height);
+		cache.getImageData(file, 16, 8);
+		assertEquals("Second is from memory", 1, cache.created.get());
+
+		cache.getImageData(file, 32, 32);
+		assertEquals("Another size is another thumbnail", 2, cache.created.get());
+
+		final CountingCache other = new CountingCache(dir);
+		final ImageData read = other.getImageData(file, 16, 8);
+		assertEquals("Read from disk", 0, other.created.get());
+		assertEquals(data.palette.getRGB(data.getPixel(3, 5)), read.palette.getRGB(read.getPixel(3, 5)));
+		assertNotNull(other.getCachedImageData(file, 32, 32));
+
+		write(file, "changed file");
+		assertNull(other.getCachedImageData(file, 16, 8));
+		other.getImageData(file, 16, 8);
+		assertEquals("Changed file is made again", 1, other.created.get());
+
+		cache.dispose();
+		other.dispose();
+	}
+
+	@Test
+	public void testSubmit() throws Exception {
+
+		final CountingCache cache = new CountingCache(dir);
+		final ImageData data = cache.submit(file, 20, 10).get();
+		assertEquals(20, data.width);
+		assertEquals(data, cache.submit(file, 20, 10).get());
+		assertEquals(1, cache.created.get());
+
+		final File none = new File(dir, "none.dat");
+		assertNull(cache.submit(none, 20, 10).get());
+		assertNull(cache.getImageData(none, 20, 10));
+		assertEquals("Files without thumbnails are remembered", 2, cache.created.get());
+
+		cache.dispose();
+	}
+
+	private static void write(File file, String contents) throws Exception {
+		final FileWriter writer = new FileWriter(file);
+		writer.write(contents);
+		writer.close();
+		file.setLastModified(file.lastModified()+1000); // Changes within a second may not change the time
+	}
+
+	/**
+	 * Makes a gradient rather than reading the file, files which do not exist have no thumbnail.
+	 */
+	private static class CountingCache extends ThumbnailCache {
+
+		final AtomicInteger created = new AtomicInteger();
+
+		CountingCache(File dir) {
+			super(dir, 1024*1024, 1024*1024);
+		}
+
+		@Override
+		protected String getKey(File file, int width, int height) {
+			return file.getAbsolutePath()+"|"+file.lastModified()+"|"+file.length()+"|"+width+"x"+height;
+		}
+
+		@Override
+		protected ImageData createImageData(File file, int width, int height) {
+			created.incrementAndGet();
+			if (!file.exists()) return null;
+			final RGB[] rgbs = new RGB[256];
+			for (int i = 0; i < rgbs.length; i++) rgbs[i] = new RGB(i, i, i);
+			final ImageData data = new ImageData(width, height, 8, new PaletteData(rgbs));
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) data.setPixel(x, y, (x*y) & 0xFF);
+			}
+			return data;
+		}
+	}
+}
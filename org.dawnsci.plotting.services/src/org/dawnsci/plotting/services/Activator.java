@@ -49,6 +49,7 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		ThumbnailCache.disposeDefault();
 		plugin = null;
 		super.stop(context);
 	}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.services;
+
+import org.eclipse.dawnsci.plotting.api.histogram.IImageService;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean;
+import org.eclipse.swt.graphics.ImageData;
+
+/**
+ * Pooled-buffer mode for the image service.
+ *
+ * Traces which redraw the same image many times, for instance during palette
+ * drags or histogram changes, may hand back the ImageData they were given last
+ * time. If the image has not changed shape its pixel buffer is refilled in place
+ * instead of allocating a new byte[] and ImageData.
+ *
+ * The IImageService obtained from the workbench implements this interface.
+ * The ImageTrace of the draw2d plugin, which requires this plugin, checks for
+ * it before asking for an image.
+ */
+public interface IImageRecyclingService extends IImageService {
+
+	/**
+	 * As getImageData(ImageServiceBean) but reuses the previous image if it
+	 * is compatible. The caller must no longer use previous for anything else,
+	 * if it is reused it is the object returned.
+	 *
+	 * @param bean
+	 * @param previous may be null, in which case a new ImageData is created.
+	 * @return the image, either previous refilled or a new one. Null if the bean was cancelled.
+	 */
+	public ImageData getImageData(ImageServiceBean bean, ImageData previous);
+
+	/**
+	 *
+	 * @return counters of the image buffers allocated and recycled, and of the
+	 * garbage collections which have run, since the service started.
+	 */
+	public ImageBufferStatistics getBufferStatistics();
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.services;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * A snapshot of the image buffer counters of the image service. Take one
+ * before and one after some redraws and use minus(...) to measure them.
+ */
+public final class ImageBufferStatistics {
+
+	private final long allocations;
+	private final long allocatedBytes;
+	private final long recycles;
+	private final long recycledBytes;
+	private final long gcCount;
+	private final long gcTime;
+
+	ImageBufferStatistics(long allocations, long allocatedBytes, long recycles, long recycledBytes) {
+		this(allocations, allocatedBytes, recycles, recycledBytes, getCollectionCount(), getCollectionTime());
+	}
+
+	private ImageBufferStatistics(long allocations, long allocatedBytes, long recycles, long recycledBytes, long gcCount, long gcTime) {
+		this.allocations    = allocations;
+		this.allocatedBytes = allocatedBytes;
+		this.recycles       = recycles;
+		this.recycledBytes  = recycledBytes;
+		this.gcCount        = gcCount;
+		this.gcTime         = gcTime;
+	}
+
+	private static long getCollectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (gc.getCollectionCount()>0) count+=gc.getCollectionCount();
+		}
+		return count;
+	}
+
+	private static long getCollectionTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			if (gc.getCollectionTime()>0) time+=gc.getCollectionTime();
+		}
+		return time;
+	}
+
+	/**
+	 *
+	 * @param before
+	 * @return the counts which happened between before and this snapshot.
+	 */
+	public ImageBufferStatistics minus(ImageBufferStatistics before) {
+		return new ImageBufferStatistics(allocations-before.allocations,
+				                         allocatedBytes-before.allocatedBytes,
+				                         recycles-before.recycles,
+				                         recycledBytes-before.recycledBytes,
+				                         gcCount-before.gcCount,
+				                         gcTime-before.gcTime);
+	}
+
+	/**
+	 * @return number of new image buffers created
+	 */
+	public long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * @return bytes of new image buffers created
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return number of images refilled in place
+	 */
+	public long getRecycles() {
+		return recycles;
+	}
+
+	/**
+	 * @return bytes which were refilled in place rather than allocated
+	 */
+	public long getRecycledBytes() {
+		return recycledBytes;
+	}
+
+	/**
+	 * @return garbage collections run by the JVM, all collectors.
+	 */
+	public long getGcCount() {
+		return gcCount;
+	}
+
+	/**
+	 * @return time in ms spent on garbage collection by the JVM, all collectors.
+	 */
+	public long getGcTime() {
+		return gcTime;
+	}
+
+	@Override
+	public String toString() {
+		return "ImageBufferStatistics [allocations=" + allocations
+				+ ", allocatedBytes=" + allocatedBytes + ", recycles="
+				+ recycles + ", recycledBytes=" + recycledBytes + ", gcCount="
+				+ gcCount + ", gcTime=" + gcTime + "]";
+	}
+}
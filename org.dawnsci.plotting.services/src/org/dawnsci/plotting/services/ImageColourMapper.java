@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.BooleanDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean.ImageOrigin;
+
+/**
+ * Maps a 2D dataset to 8-bit palette indices for the ImageService.
+ *
+ * The output image is split into bands of rows which are mapped on a
+ * shared fork/join pool. Each band reads the primitive buffer of the
+ * dataset directly, walking it with a row step and column step which
+ * are made from the strides of the dataset and encode the ImageOrigin.
+ * This replaces four copies of a loop calling getDouble(i,j) and
+ * getBoolean(i,j) per pixel.
+ *
+ * The bytes written are identical to those the per-pixel loop produced.
+ */
+class ImageColourMapper {
+
+	/**
+	 * Images smaller than this are mapped on the calling thread, the fork/join
+	 * overhead is not worth it.
+	 */
+	private static final int PARALLEL_THRESHOLD = 256*256;
+
+	/**
+	 * The number of pixels we aim to put in one band.
+	 */
+	private static final int BAND_SIZE = 128*1024;
+
+	private final ImageServiceBean bean;
+	private final Object           buffer;
+	private final Dataset          image;
+	private final boolean[]        mask;
+	private final double min, max, scale, maxPixel, minCut, maxCut;
+
+	// Geometry of the output image and how it walks the data and mask buffers.
+	private final int  width, height;
+	private final Walk data, maskWalk;
+
+	/**
+	 *
+	 * @param bean used for cancellation only
+	 * @param image 2D, non-compound dataset
+	 * @param mask may be null, same shape as image
+	 */
+	ImageColourMapper(ImageServiceBean bean,
+			          Dataset          image,
+			          BooleanDataset   mask,
+			          double min, double max, double scale, double maxPixel, double minCut, double maxCut) {
+
+		this.bean     = bean;
+		this.image    = image;
+		this.buffer   = image.getBuffer();
+		this.mask     = mask!=null ? mask.getData() : null;
+		this.min      = min;
+		this.max      = max;
+		this.scale    = scale;
+		this.maxPixel = maxPixel;
+		this.minCut   = minCut;
+		this.maxCut   = maxCut;
+
+		ImageOrigin origin = bean.getOrigin();
+		if (origin==null) origin = ImageOrigin.TOP_LEFT;
+
+		final int[] shape = image.getShape();
+		final boolean swap = origin==ImageOrigin.BOTTOM_LEFT || origin==ImageOrigin.TOP_RIGHT;
+		this.width    = swap ? shape[0] : shape[1];
+		this.height   = swap ? shape[1] : shape[0];
+		this.data     = new Walk(image, origin);
+		this.maskWalk = mask!=null ? new Walk(mask, origin) : null;
+	}
+
+	/**
+	 * Where row r, column c of the output image is in the buffer of a dataset:
+	 * base + r*rowStep + c*colStep
+	 */
+	private static final class Walk {
+
+		final int base, rowStep, colStep;
+
+		Walk(Dataset set, ImageOrigin origin) {
+
+			final int[] shape   = set.getShape();
+			final int[] strides = set.getStrides(); // null unless a view
+			final int   rows    = shape[0];
+			final int   cols    = shape[1];
+			final int   s0      = strides!=null ? strides[0] : cols;
+			final int   s1      = strides!=null ? strides[1] : 1;
+			final int   offset  = strides!=null ? set.getOffset() : 0;
+
+			switch (origin) {
+			case BOTTOM_LEFT: // row r is column cols-1-r of the data
+				base    = offset + (cols-1)*s1;
+				rowStep = -s1;
+				colStep = s0;
+				break;
+			case BOTTOM_RIGHT:
+				base    = offset + (rows-1)*s0 + (cols-1)*s1;
+				rowStep = -s0;
+				colStep = -s1;
+				break;
+			case TOP_RIGHT: // row r is column r of the data, read bottom up
+				base    = offset + (rows-1)*s0;
+				rowStep = s1;
+				colStep = -s0;
+				break;
+			case TOP_LEFT:
+			default:
+				base    = offset;
+				rowStep = s0;
+				colStep = s1;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Width of the ImageData which should be created from the mapped bytes.
+	 * @return
+	 */
+	int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Height of the ImageData which should be created from the mapped bytes.
+	 * @return
+	 */
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Fills the bytes with palette indices. The array must be at least width*height long.
+	 *
+	 * @param scaledImageAsByte
+	 * @return false if the bean was cancelled while mapping, in which case the bytes are incomplete.
+	 */
+	boolean map(final byte[] scaledImageAsByte) {
+
+		final int len = width*height;
+		if (len < PARALLEL_THRESHOLD) {
+			return mapBand(scaledImageAsByte, 0, height);
+		}
+
+		final int rowsPerBand = Math.max(1, BAND_SIZE / Math.max(1, width));
+		final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(height/rowsPerBand+1);
+		for (int start = 0; start < height; start+=rowsPerBand) {
+			final int end = Math.min(height, start+rowsPerBand);
+			tasks.add(new BandAction(scaledImageAsByte, start, end));
+		}
+
+		final ForkJoinPool pool = ImageService.getPool();
+		for (ForkJoinTask<?> task : tasks) pool.execute(task);
+		for (ForkJoinTask<?> task : tasks) task.join();
+
+		return !bean.isCancelled();
+	}
+
+	private final class BandAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 4466418457281409262L;
+
+		private final byte[] bytes;
+		private final int    start, end;
+
+		BandAction(byte[] bytes, int start, int end) {
+			this.bytes = bytes;
+			this.start = start;
+			this.end   = end;
+		}
+
+		@Override
+		protected void compute() {
+			mapBand(bytes, start, end);
+		}
+	}
+
+	/**
+	 * Maps the output rows [start, end).
+	 * @return false if cancelled
+	 */
+	private boolean mapBand(final byte[] out, final int start, final int end) {
+
+		for (int r = start; r < end; ++r) {
+			if (bean.isCancelled()) return false;
+
+			int index = r*width;
+			int pos   = data.base + r*data.rowStep;
+			final int step  = data.colStep;
+			int mpos        = maskWalk!=null ? maskWalk.base + r*maskWalk.rowStep : 0;
+			final int mstep = maskWalk!=null ? maskWalk.colStep : 0;
+
+			// The loops are repeated per buffer type so that the inner loop
+			// is a plain primitive array read.
+			if (buffer instanceof double[]) {
+				final double[] d = (double[])buffer;
+				for (int c = 0; c < width; ++c, ++index, pos+=step, mpos+=mstep) {
+					out[index] = mask==null || mask[mpos] ? getPixelColorIndex(d[pos]) : ImageService.NAN_PIX_BYTE;
+				}
+			} else if (buffer instanceof float[]) {
+				final float[] d = (float[])buffer;
+				for (int c = 0; c < width; ++c, ++index, pos+=step, mpos+=mstep) {
+					out[index] = mask==null || mask[mpos] ? getPixelColorIndex(d[pos]) : ImageService.NAN_PIX_BYTE;
+				}
+			} else if (buffer instanceof int[]) {
+				final int[] d = (int[])buffer;
+				for (int c = 0; c < width; ++c, ++index, pos+=step, mpos+=mstep) {
+					out[index] = mask==null || mask[mpos] ? getPixelColorIndex(d[pos]) : ImageService.NAN_PIX_BYTE;
+				}
+			} else if (buffer instanceof short[]) {
+				final short[] d = (short[])buffer;
+				for (int c = 0; c < width; ++c, ++index, pos+=step, mpos+=mstep) {
+					out[index] = mask==null || mask[mpos] ? getPixelColorIndex(d[pos]) : ImageService.NAN_PIX_BYTE;
+				}
+			} else if (buffer instanceof long[]) {
+				final long[] d = (long[])buffer;
+				for (int c = 0; c < width; ++c, ++index, pos+=step, mpos+=mstep) {
+					out[index] = mask==null || mask[mpos] ? getPixelColorIndex(d[pos]) : ImageService.NAN_PIX_BYTE;
+				}
+			} else if (buffer instanceof byte[]) {
+				final byte[] d = (byte[])buffer;
+				for (int c = 0; c < width; ++c, ++index, pos+=step, mpos+=mstep) {
+					out[index] = mask==null || mask[mpos] ? getPixelColorIndex(d[pos]) : ImageService.NAN_PIX_BYTE;
+				}
+			} else { // Other element types go through the dataset, still without the position arithmetic of getDouble(i,j)
+				for (int c = 0; c < width; ++c, ++index, pos+=step, mpos+=mstep) {
+					out[index] = mask==null || mask[mpos] ? getPixelColorIndex(image.getElementDoubleAbs(pos)) : ImageService.NAN_PIX_BYTE;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * private finals inline well by the compiler.
+	 * @param val
+	 */
+	private final byte getPixelColorIndex(final double val) {
+		return ImageService.getPixelColorIndex(val, min, max, scale, maxPixel, minCut, maxCut);
+	}
+}
@@ -13,6 +13,8 @@ import java.awt.image.ColorModel;
 import java.awt.image.DirectColorModel;
 import java.awt.image.IndexColorModel;
 import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.dawb.common.services.ServiceManager;
 import org.dawnsci.plotting.services.util.SWTImageUtils;
@@ -20,7 +22,6 @@ import org.eclipse.core.runtime.preferences.InstanceScope;
 import org.eclipse.dawnsci.analysis.dataset.impl.BooleanDataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
-import org.eclipse.dawnsci.analysis.dataset.impl.IndexIterator;
 import org.eclipse.dawnsci.analysis.dataset.impl.Maths;
 import org.eclipse.dawnsci.analysis.dataset.impl.RGBDataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.Stats;
@@ -78,7 +79,7 @@ import uk.ac.diamond.scisoft.analysis.io.LoaderFactory;
  * @author Matthew Gerring
  *
  */
-public class ImageService extends AbstractServiceFactory implements IImageService {
+public class ImageService extends AbstractServiceFactory implements IImageRecyclingService {
 	
 	
 	static {
@@ -102,14 +103,34 @@ public class ImageService extends AbstractServiceFactory implements IImageServic
 		return new Image(Display.getCurrent(), data);
 	}
 	
-	private static final int MIN_PIX_INDEX = 253;
-	private static final int NAN_PIX_INDEX = 254;
-	private static final int MAX_PIX_INDEX = 255;
+	static final int MIN_PIX_INDEX = 253;
+	static final int NAN_PIX_INDEX = 254;
+	static final int MAX_PIX_INDEX = 255;
 	
-	private static final byte MIN_PIX_BYTE = (byte)(MIN_PIX_INDEX & 0xFF);
-	private static final byte NAN_PIX_BYTE = (byte)(NAN_PIX_INDEX & 0xFF);
-	private static final byte MAX_PIX_BYTE = (byte)(MAX_PIX_INDEX & 0xFF);
+	static final byte MIN_PIX_BYTE = (byte)(MIN_PIX_INDEX & 0xFF);
+	static final byte NAN_PIX_BYTE = (byte)(NAN_PIX_INDEX & 0xFF);
+	static final byte MAX_PIX_BYTE = (byte)(MAX_PIX_INDEX & 0xFF);
 	
+	private static ForkJoinPool pool;
+
+	/**
+	 * Shared by all image services, we only ever need one pool of
+	 * threads for colour mapping and statistics.
+	 */
+	static synchronized ForkJoinPool getPool() {
+		if (pool==null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	/**
+	 * Counters for the pooled-buffer mode, shared by all services as OSGI
+	 * may create more than one.
+	 */
+	private static final AtomicLong allocations    = new AtomicLong();
+	private static final AtomicLong allocatedBytes = new AtomicLong();
+	private static final AtomicLong recycles       = new AtomicLong();
+	private static final AtomicLong recycledBytes  = new AtomicLong();
+
 	/**
 	 * getImageData(...) provides an image in a given palette data and origin.
 	 * Faster than getting a resolved image
@@ -117,6 +138,22 @@ public class ImageService extends AbstractServiceFactory implements IImageServic
 	 * This method should be thread safe.
 	 */
 	public ImageData getImageData(ImageServiceBean bean) {
+		return getImageData(bean, null);
+	}
+
+	@Override
+	public ImageBufferStatistics getBufferStatistics() {
+		return new ImageBufferStatistics(allocations.get(), allocatedBytes.get(), recycles.get(), recycledBytes.get());
+	}
+
+	/**
+	 * getImageData(...) provides an image in a given palette data and origin.
+	 * If previous is an 8-bit image of the same size its buffer is refilled
+	 * rather than allocating a new one.
+	 * 
+	 * This method should be thread safe.
+	 */
+	public ImageData getImageData(ImageServiceBean bean, ImageData previous) {
 		Dataset oImage    = (Dataset)bean.getImage();
 		Dataset image    = oImage;
 		ImageOrigin     origin   = bean.getOrigin();
@@ -196,7 +233,6 @@ public class ImageService extends AbstractServiceFactory implements IImageServic
 			//if (depth == 32) palette = new PaletteData(0xFF00, 0xFF0000, 0xFF000000);
 		}
 		
-		final int[]   shape = image.getShape();
 		if (bean.isCancelled()) return null;	
 				
 		int len = image.getSize();
@@ -221,85 +257,42 @@ public class ImageService extends AbstractServiceFactory implements IImageServic
 							? (BooleanDataset)DatasetUtils.cast((Dataset)bean.getMask(), Dataset.BOOL)
 							: null;
 
-		ImageData imageData = null;
+		// The mapper reads the data buffer in rows of the output image, this replaces
+		// one loop per origin which reordered the data for the axes.
+		final ImageColourMapper mapper = new ImageColourMapper(bean, image, mask, min, max, scale, maxPixel, minCut, maxCut);
+
+		if (isRecyclable(previous, mapper.getWidth(), mapper.getHeight())) {
+			if (!mapper.map(previous.data)) return null;
+			previous.palette = palette;
+			recycles.incrementAndGet();
+			recycledBytes.addAndGet(len);
+			return previous;
+		}
 
 		// We use a byte array directly as this is faster than using setPixel(...)
 		// on image data. Set pixel does extra floating point operations. The downside
 		// is that by doing this we certainly have to have 8 bit as getPixelColorIndex(...)
 		// forces the use of on byte.
 		final byte[] scaledImageAsByte = new byte[len];
+		allocations.incrementAndGet();
+		allocatedBytes.addAndGet(len);
 
-		if (origin==ImageOrigin.TOP_LEFT) { 
-			
-			int index = 0;
-			// This loop is usually the same as the image is read in but not always depending on loader.
-			for (int i = 0; i<shape[0]; ++i) {
-				if (bean.isCancelled()) return null;				
-				for (int j = 0; j<shape[1]; ++j) {
-					
-					// This saves a value lookup when the pixel is certainly masked.
-					scaledImageAsByte[index] = mask==null || mask.getBoolean(i,j)
-									? getPixelColorIndex(image.getDouble(i,j), min, max, scale, maxPixel, minCut, maxCut)
-									: NAN_PIX_BYTE;
-					++index;
-				}
-			}
-			imageData = new ImageData(shape[1], shape[0], 8, palette, 1, scaledImageAsByte);
-	
-		} else if (origin==ImageOrigin.BOTTOM_LEFT) {
-
-			int index = 0;
-			// This loop is slower than looping over all data and using image.getElementDoubleAbs(...)
-			// However it reorders data for the axes
-			for (int i = shape[1]-1; i>=0; --i) {
-				if (bean.isCancelled()) return null;
-				for (int j = 0; j<shape[0]; ++j) {
-					
-					// This saves a value lookup when the pixel is certainly masked.
-					scaledImageAsByte[index]  = mask==null || mask.getBoolean(j,i)
-									? getPixelColorIndex(image.getDouble(j,i), min, max, scale, maxPixel, minCut, maxCut)
-									: NAN_PIX_BYTE;
-					index++;
-				}
-			}
-			imageData = new ImageData(shape[0], shape[1], 8, palette, 1, scaledImageAsByte);
-			
-		} else if (origin==ImageOrigin.BOTTOM_RIGHT) {
-
-			int index = 0;
-			// This loop is slower than looping over all data and using image.getElementDoubleAbs(...)
-			// However it reorders data for the axes
-			for (int i = shape[0]-1; i>=0; --i) {
-				if (bean.isCancelled()) return null;
-				for (int j = shape[1]-1; j>=0; --j) {
-
-					// This saves a value lookup when the pixel is certainly masked.
-					scaledImageAsByte[index] = mask==null || mask.getBoolean(i,j)
-									? getPixelColorIndex(image.getDouble(i,j), min, max, scale, maxPixel, minCut, maxCut)
-									: NAN_PIX_BYTE;
-						index++;
-				}
-			}
-			imageData = new ImageData(shape[1], shape[0], 8, palette, 1, scaledImageAsByte);
-			
-		} else if (origin==ImageOrigin.TOP_RIGHT) {
-
-			int index = 0;
-			// This loop is slower than looping over all data and using image.getElementDoubleAbs(...)
-			// However it reorders data for the axes
-			for (int i = 0; i<shape[1]; ++i) {
-				if (bean.isCancelled()) return null;
-				for (int j = shape[0]-1; j>=0; --j) {
-					scaledImageAsByte[index]  = mask==null || mask.getBoolean(j,i)
-									? getPixelColorIndex(image.getDouble(j, i), min, max, scale, maxPixel, minCut, maxCut)
-									: NAN_PIX_BYTE;
-					index++;
-				}
-			}
-			imageData = new ImageData(shape[0], shape[1], 8, palette, 1, scaledImageAsByte);
-		}
+		if (!mapper.map(scaledImageAsByte)) return null;
 
-		return imageData;
+		return new ImageData(mapper.getWidth(), mapper.getHeight(), 8, palette, 1, scaledImageAsByte);
+	}
+
+	/**
+	 * True if the image is one we created with this width and height and nobody
+	 * has added transparency to it.
+	 */
+	private static boolean isRecyclable(ImageData previous, int width, int height) {
+		if (previous==null) return false;
+		return previous.width==width && previous.height==height &&
+			   previous.depth==8 && previous.bytesPerLine==width &&
+			   previous.data!=null && previous.data.length==width*height &&
+			   previous.palette!=null && !previous.palette.isDirect &&
+			   previous.transparentPixel==-1 && previous.alpha==-1 && previous.alphaData==null && previous.maskData==null;
 	}
 
 	private double getMax(ImageServiceBean bean) {
@@ -391,7 +384,7 @@ public class ImageService extends AbstractServiceFactory implements IImageServic
 	 * @param maxPixel
 	 * @param scaledImageAsByte
 	 */
-	private final static byte getPixelColorIndex(final double  val, 
+	final static byte getPixelColorIndex(final double  val, 
 												 final double  min, 
 												 final double  max, 
 												 final double  scale, 
@@ -492,52 +485,29 @@ public class ImageService extends AbstractServiceFactory implements IImageServic
 			return ret;
 		}
 		
-		double min = Double.MAX_VALUE;
-		double max = -Double.MAX_VALUE;
-		double sum = 0.0;
-		int size = 0;
-		
 		BooleanDataset mask = bean.getMask()!=null
 	                        ? (BooleanDataset) DatasetUtils.cast(bean.getMask(), Dataset.BOOL)
 	                        : null;
 
-	    // Big loop warning:
-	    final IndexIterator it = image.getIterator();
-	    final IndexIterator mit = mask == null ? null : mask.getIterator();
-		while (it.hasNext()) {
-			
-			final double val = image.getElementDoubleAbs(it.index);
-			if (mit != null && mit.hasNext()) {
-				if (!mask.getElementBooleanAbs(mit.index)) {
-					continue; // Masked!
-			    }
-			}
-
-			if (Double.isNaN(val))      continue;
-			if (!bean.isInBounds(val))  continue;
-
-			sum += val;
-			if (val < min) min = val;
-			if (val > max) max = val;
-			size++;
-		}
+		// One pass over the image, in parallel. For the median a histogram sketch of the
+		// values is made at the same time, this avoids sorting the image. Like the min,
+		// max and mean the median is of the pixels which are not masked.
+		final boolean         isMedian = bean.getHistogramType()==HistoType.MEDIAN;
+		final ImageStatistics stats    = ImageStatistics.create(image, mask, bean, isMedian);
+		final double min = stats.getMin();
+		final double max = stats.getMax();
 		
 		double retMax = Double.NaN;
 		double retExtra = Double.NaN;
 		
-		if (bean.getHistogramType()==HistoType.MEDIAN) { 
+		if (isMedian) { 
 			
-			double median = Double.NaN;
-			try {
-				median = ((Number)Stats.median(image)).doubleValue(); // SLOW
-			} catch (Exception ne) {
-				median = ((Number)Stats.median(image.cast(Dataset.INT16))).doubleValue();// SLOWER
-			}
+			final double median = stats.getMedian();
 			retMax = 2 * median;
 			retExtra=median;
 			
 		} else { // Use mean based histo
-			double mean = sum / size;
+			double mean = stats.getMean();
 			retMax = (Math.E)*mean; // Not statistical, E seems to be better than 3...
 			retExtra=mean;
 
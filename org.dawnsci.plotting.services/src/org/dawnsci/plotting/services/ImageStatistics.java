@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.BooleanDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.IndexIterator;
+import org.eclipse.dawnsci.plotting.api.histogram.ImageServiceBean;
+
+/**
+ * Single pass statistics of an image for the ImageService.
+ *
+ * Min, max, sum, count and NaN count are calculated together in blocks of rows
+ * which run in parallel, each thread taking blocks until there are none left,
+ * and the statistics of the threads are then merged. If a sketch is asked for, each value
+ * is also counted in a histogram bucket made from the top 16 bits of its float
+ * representation. These buckets are ordered like the values and are about 1%
+ * wide relative to the value, so median and percentiles can be read from them
+ * without sorting the image. Small integers, up to 256, have a bucket each.
+ *
+ * Masked pixels and those which the bean says are out of bounds are ignored.
+ */
+class ImageStatistics {
+
+	/**
+	 * Images smaller than this are done on the calling thread.
+	 */
+	private static final int PARALLEL_THRESHOLD = 256*256;
+
+	/**
+	 * The number of pixels we aim to put in one block.
+	 */
+	private static final int BLOCK_SIZE = 256*1024;
+
+	private static final int BUCKET_SHIFT = 16;
+	private static final int BUCKETS      = 1 << (32-BUCKET_SHIFT);
+
+	private double min   = Double.MAX_VALUE;
+	private double max   = -Double.MAX_VALUE;
+	private double sum   = 0.0;
+	private long   count = 0;
+	private long   nanCount = 0;
+	private int[]  buckets;
+
+	private ImageStatistics(boolean sketch) {
+		if (sketch) buckets = new int[BUCKETS];
+	}
+
+	/**
+	 * Calculate the statistics of an image.
+	 *
+	 * @param image
+	 * @param mask may be null, same shape as image
+	 * @param bean used for the bounds only
+	 * @param sketch true to record the value distribution, needed for median and percentiles.
+	 * @return statistics
+	 */
+	static ImageStatistics create(final Dataset image, final BooleanDataset mask, final ImageServiceBean bean, final boolean sketch) {
+
+		final int[] shape = image.getShape();
+		if (shape.length!=2 || image.getElementsPerItem()!=1) {
+			final ImageStatistics stats = new ImageStatistics(sketch);
+			stats.addAll(image, mask, bean);
+			return stats;
+		}
+
+		final int rows = shape[0];
+		final int cols = shape[1];
+		if (rows*cols < PARALLEL_THRESHOLD) {
+			final ImageStatistics stats = new ImageStatistics(sketch);
+			stats.addRows(image, mask, bean, 0, rows);
+			return stats;
+		}
+
+		final int rowsPerBlock = Math.max(1, BLOCK_SIZE / Math.max(1, cols));
+		final int blocks       = (rows+rowsPerBlock-1) / rowsPerBlock;
+
+		// One task a thread, not a block, so that there is one sketch for each thread.
+		final ForkJoinPool  pool    = ImageService.getPool();
+		final int           workers = Math.min(blocks, pool.getParallelism());
+		final AtomicInteger next    = new AtomicInteger();
+		final List<RecursiveTask<ImageStatistics>> tasks = new ArrayList<RecursiveTask<ImageStatistics>>(workers);
+		for (int i = 0; i < workers; i++) {
+			tasks.add(new RecursiveTask<ImageStatistics>() {
+				private static final long serialVersionUID = -2310462434427906474L;
+				@Override
+				protected ImageStatistics compute() {
+					final ImageStatistics stats = new ImageStatistics(sketch);
+					for (int block = next.getAndIncrement(); block < blocks; block = next.getAndIncrement()) {
+						final int from = block*rowsPerBlock;
+						stats.addRows(image, mask, bean, from, Math.min(rows, from+rowsPerBlock));
+					}
+					return stats;
+				}
+			});
+		}
+		for (RecursiveTask<ImageStatistics> task : tasks) pool.execute(task);
+
+		final ImageStatistics stats = tasks.get(0).join();
+		for (int i = 1; i < tasks.size(); i++) stats.merge(tasks.get(i).join());
+		return stats;
+	}
+
+	/**
+	 * Rows [start, end) of a 2D image, read from the buffer using the strides.
+	 */
+	private void addRows(Dataset image, BooleanDataset mask, ImageServiceBean bean, int start, int end) {
+
+		final int[]     shape   = image.getShape();
+		final int       cols    = shape[1];
+		final int[]     strides = image.getStrides(); // null unless a view
+		final int       s0      = strides!=null ? strides[0] : cols;
+		final int       s1      = strides!=null ? strides[1] : 1;
+		final int       offset  = strides!=null ? image.getOffset() : 0;
+		final Object    buffer  = image.getBuffer();
+
+		final boolean[] mdata    = mask!=null ? mask.getData() : null;
+		final int[]     mstrides = mask!=null ? mask.getStrides() : null;
+		final int       m0       = mstrides!=null ? mstrides[0] : cols;
+		final int       m1       = mstrides!=null ? mstrides[1] : 1;
+		final int       moffset  = mstrides!=null ? mask.getOffset() : 0;
+
+		for (int r = start; r < end; ++r) {
+			int pos  = offset  + r*s0;
+			int mpos = moffset + r*m0;
+			if (buffer instanceof double[]) {
+				final double[] d = (double[])buffer;
+				for (int c = 0; c < cols; ++c, pos+=s1, mpos+=m1) {
+					if (mdata==null || mdata[mpos]) add(d[pos], bean);
+				}
+			} else if (buffer instanceof float[]) {
+				final float[] d = (float[])buffer;
+				for (int c = 0; c < cols; ++c, pos+=s1, mpos+=m1) {
+					if (mdata==null || mdata[mpos]) add(d[pos], bean);
+				}
+			} else if (buffer instanceof int[]) {
+				final int[] d = (int[])buffer;
+				for (int c = 0; c < cols; ++c, pos+=s1, mpos+=m1) {
+					if (mdata==null || mdata[mpos]) add(d[pos], bean);
+				}
+			} else if (buffer instanceof short[]) {
+				final short[] d = (short[])buffer;
+				for (int c = 0; c < cols; ++c, pos+=s1, mpos+=m1) {
+					if (mdata==null || mdata[mpos]) add(d[pos], bean);
+				}
+			} else {
+				for (int c = 0; c < cols; ++c, pos+=s1, mpos+=m1) {
+					if (mdata==null || mdata[mpos]) add(image.getElementDoubleAbs(pos), bean);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Any rank, on this thread.
+	 */
+	private void addAll(Dataset image, BooleanDataset mask, ImageServiceBean bean) {
+		final IndexIterator it  = image.getIterator();
+		final IndexIterator mit = mask == null ? null : mask.getIterator();
+		while (it.hasNext()) {
+			if (mit != null && mit.hasNext()) {
+				if (!mask.getElementBooleanAbs(mit.index)) continue; // Masked!
+			}
+			add(image.getElementDoubleAbs(it.index), bean);
+		}
+	}
+
+	private final void add(final double val, final ImageServiceBean bean) {
+
+		if (Double.isNaN(val)) {
+			++nanCount;
+			return;
+		}
+		if (!bean.isInBounds(val)) return;
+
+		sum += val;
+		if (val < min) min = val;
+		if (val > max) max = val;
+		++count;
+
+		if (buckets!=null) ++buckets[getBucket(val)];
+	}
+
+	private void merge(ImageStatistics other) {
+		sum      += other.sum;
+		count    += other.count;
+		nanCount += other.nanCount;
+		if (other.min < min) min = other.min;
+		if (other.max > max) max = other.max;
+		if (buckets!=null) {
+			final int[] ob = other.buckets;
+			for (int i = 0; i < BUCKETS; i++) buckets[i]+=ob[i];
+		}
+	}
+
+	/**
+	 * Float bits made to sort like the values, then the top bits are the bucket.
+	 */
+	private static final int getBucket(double val) {
+		final int bits     = Float.floatToIntBits((float)val);
+		final int sortable = bits>=0 ? bits : bits ^ 0x7fffffff;
+		return (sortable >> BUCKET_SHIFT) + BUCKETS/2;
+	}
+
+	/**
+	 * The smallest value which goes in to a bucket.
+	 */
+	private static final double getBucketStart(int bucket) {
+		if (bucket>=BUCKETS) return Double.POSITIVE_INFINITY;
+		final int sortable = (bucket - BUCKETS/2) << BUCKET_SHIFT;
+		final int bits     = sortable>=0 ? sortable : sortable ^ 0x7fffffff;
+		return Float.intBitsToFloat(bits);
+	}
+
+	double getMin() {
+		return min;
+	}
+
+	double getMax() {
+		return max;
+	}
+
+	double getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return number of values used, not masked, NaN or out of bounds.
+	 */
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return number of NaNs which were not masked.
+	 */
+	long getNanCount() {
+		return nanCount;
+	}
+
+	double getMean() {
+		return sum / count;
+	}
+
+	double getMedian() {
+		return getPercentile(50);
+	}
+
+	/**
+	 * Approximate percentile, interpolated within the bucket it falls in.
+	 *
+	 * @param percent 0-100
+	 * @return value or NaN if there are no values or no sketch was made.
+	 */
+	double getPercentile(double percent) {
+
+		if (buckets==null || count<1) return Double.NaN;
+		if (percent<=0)   return min;
+		if (percent>=100) return max;
+
+		final double rank = percent/100d * (count-1);
+		long below = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			final int n = buckets[i];
+			if (n==0) continue;
+			if (below+n > rank) {
+				final double lower = Math.max(min, getBucketStart(i));
+				final double upper = Math.min(max, getBucketStart(i+1));
+				if (n==1 || !(upper>lower)) return lower;
+				// Assume the values are spread evenly in the bucket.
+				return lower + (upper-lower) * Math.min(1d, (rank-below) / (n-1));
+			}
+			below+=n;
+		}
+		return max;
+	}
+}
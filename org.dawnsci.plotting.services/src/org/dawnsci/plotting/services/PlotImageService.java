@@ -33,6 +33,8 @@ import org.dawnsci.plotting.services.util.SWTImageUtils;
 import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.core.runtime.preferences.InstanceScope;
 import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.api.dataset.ILazyDataset;
+import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
 import org.eclipse.dawnsci.analysis.api.io.ILoaderService;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.DatasetFactory;
@@ -50,6 +52,8 @@ import org.eclipse.dawnsci.plotting.api.histogram.functions.GlobalColourMaps;
 import org.eclipse.dawnsci.plotting.api.trace.ISurfaceTrace;
 import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.jface.resource.ImageRegistry;
+import org.eclipse.jface.util.IPropertyChangeListener;
+import org.eclipse.jface.util.PropertyChangeEvent;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.GC;
 import org.eclipse.swt.graphics.Image;
@@ -109,8 +113,11 @@ public class PlotImageService extends AbstractServiceFactory implements IPlotIma
 		}
 		
 		try {
-			final Dataset thumb = getThumbnail(f, width, height);
-		    return createImageSWT(thumb, null);
+			// Made on the pool of the cache, if this request is dropped for newer ones the future
+			// is cancelled and the icon of the file is used.
+			final ImageData thumb = ThumbnailCache.getDefault().submit(f, width, height).get();
+			if (thumb==null) throw new Exception("No thumbnail for "+f);
+		    return new Image(Display.getDefault(), thumb);
 		    
 		} catch (Throwable ne) {
 			
@@ -138,16 +145,110 @@ public class PlotImageService extends AbstractServiceFactory implements IPlotIma
         return blank;
 	}
 	
-	private Dataset getThumbnail(final File f, final int wdith, final int height) throws Throwable {
+	/**
+	 * Makes the thumbnail of a file, the ThumbnailCache calls this when it
+	 * does not have one. May be called from any thread.
+	 * 
+	 * @param f
+	 * @param width
+	 * @param height
+	 * @return the thumbnail, or null if the file has no 2D data
+	 * @throws Exception
+	 */
+	static ImageData createImageData(final File f, final int width, final int height) throws Exception {
+		
+		final Dataset thumb = getThumbnail(f, width, height);
+		if (thumb==null) return null;
+		
+		final IImageService service = (IImageService)ServiceManager.getService(IImageService.class);
+		return service.getImageData(createBean(thumb));
+	}
+	
+	private static ScopedPreferenceStore plottingStore;
+	private static String                thumbnailStyle;
+	
+	/**
+	 * Read once and again when the plotting preferences change, as it
+	 * is part of the key of every thumbnail.
+	 * 
+	 * @return the preferences which change how a thumbnail looks
+	 */
+	static synchronized String getThumbnailStyle() {
+		if (plottingStore==null) {
+			plottingStore = new ScopedPreferenceStore(InstanceScope.INSTANCE, "org.dawnsci.plotting");
+			plottingStore.addPropertyChangeListener(new IPropertyChangeListener() {
+				@Override
+				public void propertyChange(PropertyChangeEvent event) {
+					synchronized (PlotImageService.class) {
+						thumbnailStyle = null;
+					}
+				}
+			});
+		}
+		if (thumbnailStyle==null) {
+			thumbnailStyle = plottingStore.getString("org.dawb.plotting.system.colourSchemeName")+"|"+plottingStore.getString("org.dawb.plotting.system.originChoice");
+		}
+		return thumbnailStyle;
+	}
+	
+	private static Dataset getThumbnail(final File f, final int width, final int height) throws Exception {
 		
-	    if (H5Loader.isH5(f.getAbsolutePath())) return null; // Cannot risk loading large datasets!
+	    if (H5Loader.isH5(f.getAbsolutePath())) return getLazyThumbnail(f, width, height);
 		final ILoaderService loader = (ILoaderService)ServiceManager.getService(ILoaderService.class);
 		final Dataset set   = (Dataset)loader.getDataset(f.getAbsolutePath(), null);
-		final Dataset thumb = getThumbnail(set, wdith, height);
+		final Dataset thumb = downsample(set, width, height);
 		return thumb;
 	}
+	
+	/**
+	 * HDF5 files may be very large so only the points of the first image
+	 * which are in the thumbnail are read, through the lazy dataset.
+	 * 
+	 * @param f
+	 * @param width
+	 * @param height
+	 * @return thumbnail of the first dataset with images, or null if there is none
+	 * @throws Exception
+	 */
+	private static Dataset getLazyThumbnail(final File f, final int width, final int height) throws Exception {
+		
+		final IDataHolder holder = LoaderFactory.getData(f.getAbsolutePath(), false, true, null);
+		if (holder==null) return null;
+		
+		for (String name : holder.getNames()) {
+			final ILazyDataset lazy = holder.getLazyDataset(name);
+			if (lazy==null) continue;
+			
+			final int[] shape = lazy.getShape();
+			final int   rank  = shape.length;
+			if (rank<2 || shape[rank-2]<2 || shape[rank-1]<2) continue;
+			
+			final int[] start = new int[rank];
+			final int[] stop  = new int[rank];
+			final int[] step  = new int[rank];
+			for (int i = 0; i < rank-2; i++) { // First image
+				stop[i] = 1;
+				step[i] = 1;
+			}
+			stop[rank-2] = shape[rank-2];
+			stop[rank-1] = shape[rank-1];
+			step[rank-2] = Math.max(1, shape[rank-2] / height);
+			step[rank-1] = Math.max(1, shape[rank-1] / width);
+			
+			final Dataset thumb = (Dataset)lazy.getSlice(start, stop, step);
+			thumb.squeeze();
+			if (thumb.getRank()!=2) continue;
+			thumb.setName(lazy.getName());
+			return thumb;
+		}
+		return null;
+	}
 
 	public Dataset getThumbnail(final IDataset ds,  final int w, final int h) {
+		return downsample(ds, w, h);
+	}
+	
+	private static Dataset downsample(final IDataset ds,  final int w, final int h) {
 
 		if (ds!=null && ds.getRank() == 2) { // 2D datasets only!!!
 			int width = ds.getShape()[1];
@@ -174,19 +275,33 @@ public class PlotImageService extends AbstractServiceFactory implements IPlotIma
 	 */
 	public Image createImageSWT(final IDataset thumbnail, ImageServiceBean bean) throws Exception {
         
-		final ScopedPreferenceStore store = new ScopedPreferenceStore(InstanceScope.INSTANCE, "org.dawnsci.plotting");
-		
 		if (bean==null) {
-			bean = new ImageServiceBean();
-			final IPaletteService pservice = (IPaletteService)ServiceManager.getService(IPaletteService.class);
-			bean.setPalette(pservice.getDirectPaletteData(store.getString("org.dawb.plotting.system.colourSchemeName")));	
-			bean.setOrigin(ImageOrigin.forLabel(store.getString("org.dawb.plotting.system.originChoice")));
+			bean = createBean(thumbnail);
+		} else {
+			bean.setImage(thumbnail);
 		}
-		bean.setImage(thumbnail);
 		
 		final IImageService service = (IImageService)ServiceManager.getService(IImageService.class);
 		return  service.getImage(bean);
 	}
+	
+	/**
+	 * 
+	 * @param thumbnail
+	 * @return bean with the palette and origin of the plotting preferences
+	 * @throws Exception
+	 */
+	private static ImageServiceBean createBean(final IDataset thumbnail) throws Exception {
+		
+		final ScopedPreferenceStore store = new ScopedPreferenceStore(InstanceScope.INSTANCE, "org.dawnsci.plotting");
+		
+		final ImageServiceBean bean = new ImageServiceBean();
+		final IPaletteService pservice = (IPaletteService)ServiceManager.getService(IPaletteService.class);
+		bean.setPalette(pservice.getDirectPaletteData(store.getString("org.dawb.plotting.system.colourSchemeName")));	
+		bean.setOrigin(ImageOrigin.forLabel(store.getString("org.dawb.plotting.system.originChoice")));
+		bean.setImage(thumbnail);
+		return bean;
+	}
 	/**
 	 * Modified from GDA
 	 * @param thumbnail
@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.services;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.ImageLoader;
+import org.eclipse.swt.graphics.PaletteData;
+import org.eclipse.swt.graphics.RGB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thumbnails of data files, kept in memory and on disk.
+ *
+ * A thumbnail is found by the path, modified time and length of the file and
+ * the size asked for, so a file which changes gets a new thumbnail. The most
+ * recently used thumbnails are kept in memory up to MEMORY_BYTES and all of
+ * them are written as png files to a directory which is kept under DISK_BYTES
+ * by deleting the least recently used. The size of the directory is counted
+ * as files are written, and the directory is only listed to trim it when the
+ * count is over DISK_BYTES and TRIM_PERIOD has passed since it was last trimmed.
+ *
+ * getImageData(...) makes a thumbnail in the calling thread if it is not
+ * cached. submit(...) makes it on a small pool of background threads, if the
+ * queue of the pool is full the oldest request is dropped (and its future
+ * cancelled) as it is probably for a file which has been scrolled past.
+ * The PlotImageService uses submit(...). The default cache is disposed when
+ * this plugin stops.
+ *
+ * Files which cannot be made in to a thumbnail are remembered in memory so
+ * that they are not loaded again.
+ *
+ * Thread safe.
+ */
+public class ThumbnailCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(ThumbnailCache.class);
+
+	private static final long MEMORY_BYTES = 32L*1024*1024;
+	private static final long DISK_BYTES   = 256L*1024*1024;
+	private static final int  QUEUE_SIZE   = 256;
+	private static final long TRIM_PERIOD  = 60*1000;
+
+	/**
+	 * Put in memory for files without a thumbnail.
+	 */
+	private static final ImageData NONE = new ImageData(1, 1, 1, new PaletteData(new RGB[]{new RGB(0,0,0), new RGB(255,255,255)}));
+
+	private static ThumbnailCache instance;
+
+	/**
+	 *
+	 * @return the cache shared by the plot image services, in the state location of this plugin
+	 */
+	public static synchronized ThumbnailCache getDefault() {
+		if (instance==null) {
+			final Activator plugin = Activator.getDefault();
+			final File dir = plugin!=null
+					       ? plugin.getStateLocation().append("thumbnails").toFile()
+					       : new File(System.getProperty("java.io.tmpdir"), "dawn-thumbnails");
+			instance = new ThumbnailCache(dir, MEMORY_BYTES, DISK_BYTES);
+		}
+		return instance;
+	}
+
+	/**
+	 * Stops the background threads of the default cache, if it was made.
+	 * The next getDefault() makes a new one.
+	 */
+	static synchronized void disposeDefault() {
+		if (instance!=null) instance.dispose();
+		instance = null;
+	}
+
+	private final File                          dir;
+	private final long                          memoryBytes, diskBytes;
+	private final LinkedHashMap<String, ImageData> memory;
+	private final Map<String, ThumbnailTask>    pending;
+	private final ThreadPoolExecutor            workers;
+	private long                                memoryUsed;
+	private long                                diskUsed = -1; // Not known until the first write
+	private long                                lastTrim;
+
+	/**
+	 *
+	 * @param dir for the png files, made if it does not exist
+	 * @param memoryBytes
+	 * @param diskBytes
+	 */
+	public ThumbnailCache(File dir, long memoryBytes, long diskBytes) {
+		this.dir         = dir;
+		this.memoryBytes = memoryBytes;
+		this.diskBytes   = diskBytes;
+		this.memory      = new LinkedHashMap<String, ImageData>(256, 0.75f, true);
+		this.pending     = new HashMap<String, ThumbnailTask>();
+
+		final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()/2));
+		this.workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				                              new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+				                              new WorkerFactory(),
+				                              new DropOldest());
+		workers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * The thumbnail of a file, made now if it is not cached.
+	 *
+	 * @param file
+	 * @param width
+	 * @param height
+	 * @return the thumbnail, or null if the file has none
+	 */
+	public ImageData getImageData(File file, int width, int height) {
+
+		final String key = getKey(file, width, height);
+		ImageData data = getMemory(key);
+		if (data!=null) return data==NONE ? null : data;
+
+		final ThumbnailTask task;
+		synchronized (pending) {
+			task = pending.get(key);
+		}
+		if (task!=null && !task.isCancelled()) {
+			try {
+				return task.get();
+			} catch (Exception ne) {
+				// Made again below
+			}
+		}
+		return load(key, file, width, height);
+	}
+
+	/**
+	 * The thumbnail of a file if it is in memory or on disk, without making it.
+	 *
+	 * @param file
+	 * @param width
+	 * @param height
+	 * @return the thumbnail, or null if it is not cached or the file has none
+	 */
+	public ImageData getCachedImageData(File file, int width, int height) {
+		final String key  = getKey(file, width, height);
+		ImageData    data = getMemory(key);
+		if (data==null) data = read(key);
+		return data==NONE ? null : data;
+	}
+
+	/**
+	 * Makes the thumbnail of a file in the background, if it is not cached.
+	 *
+	 * @param file
+	 * @param width
+	 * @param height
+	 * @return the thumbnail, or null if the file has none. Cancelled if the
+	 *         request was dropped because there were many newer ones.
+	 */
+	public Future<ImageData> submit(final File file, final int width, final int height) {
+
+		final String key = getKey(file, width, height);
+		final ImageData data = getMemory(key);
+		if (data!=null) {
+			final FutureTask<ImageData> done = new FutureTask<ImageData>(new Callable<ImageData>() {
+				@Override
+				public ImageData call() {
+					return data==NONE ? null : data;
+				}
+			});
+			done.run();
+			return done;
+		}
+
+		final ThumbnailTask task;
+		synchronized (pending) {
+			final ThumbnailTask existing = pending.get(key);
+			if (existing!=null && !existing.isDone()) return existing;
+			task = new ThumbnailTask(key, file, width, height);
+			pending.put(key, task);
+		}
+		workers.execute(task);
+		return task;
+	}
+
+	/**
+	 * Stops the background threads, waiting requests are cancelled.
+	 */
+	public void dispose() {
+		for (Runnable r : workers.shutdownNow()) {
+			if (r instanceof Future) ((Future<?>)r).cancel(false);
+		}
+	}
+
+	/**
+	 * Makes the thumbnail of a file.
+	 *
+	 * @param file
+	 * @param width
+	 * @param height
+	 * @return the thumbnail or null if the file has none
+	 * @throws Exception
+	 */
+	protected ImageData createImageData(File file, int width, int height) throws Exception {
+		return PlotImageService.createImageData(file, width, height);
+	}
+
+	/**
+	 * From disk or made, then kept.
+	 */
+	private ImageData load(String key, File file, int width, int height) {
+
+		ImageData data = read(key);
+		if (data==null) {
+			try {
+				data = createImageData(file, width, height);
+			} catch (Throwable ne) {
+				logger.trace("Cannot make thumbnail of "+file, ne);
+				data = null;
+			}
+			if (data!=null) {
+				write(key, data);
+			} else {
+				data = NONE;
+			}
+		}
+		putMemory(key, data);
+		return data==NONE ? null : data;
+	}
+
+	/**
+	 *
+	 * @param file
+	 * @param width
+	 * @param height
+	 * @return key of the path, modified time and length of the file, the size
+	 *         and the preferences which change how thumbnails look.
+	 */
+	protected String getKey(File file, int width, int height) {
+		return file.getAbsolutePath()+"|"+file.lastModified()+"|"+file.length()+"|"+width+"x"+height+"|"+PlotImageService.getThumbnailStyle();
+	}
+
+	private synchronized ImageData getMemory(String key) {
+		return memory.get(key);
+	}
+
+	private synchronized void putMemory(String key, ImageData data) {
+		final ImageData old = memory.put(key, data);
+		if (old!=null) memoryUsed -= getBytes(old);
+		memoryUsed += getBytes(data);
+
+		final Iterator<Map.Entry<String, ImageData>> it = memory.entrySet().iterator();
+		while (memoryUsed>memoryBytes && it.hasNext()) {
+			final Map.Entry<String, ImageData> eldest = it.next();
+			if (eldest.getKey().equals(key)) continue;
+			memoryUsed -= getBytes(eldest.getValue());
+			it.remove();
+		}
+	}
+
+	private static long getBytes(ImageData data) {
+		return data.data.length + (data.alphaData!=null ? data.alphaData.length : 0) + 64;
+	}
+
+	private ImageData read(String key) {
+		final File file = getFile(key);
+		if (!file.exists()) return null;
+		try {
+			final ImageData data = new ImageLoader().load(file.getAbsolutePath())[0];
+			file.setLastModified(System.currentTimeMillis()); // Recently used
+			return data;
+		} catch (Throwable ne) {
+			logger.debug("Cannot read thumbnail "+file, ne);
+			file.delete();
+			return null;
+		}
+	}
+
+	private void write(String key, ImageData data) {
+		final File file = getFile(key);
+		try {
+			dir.mkdirs();
+			final File tmp = new File(dir, file.getName()+"."+Thread.currentThread().getId()+".tmp");
+			final ImageLoader loader = new ImageLoader();
+			loader.data = new ImageData[]{data};
+			loader.save(tmp.getAbsolutePath(), SWT.IMAGE_PNG);
+			if (!tmp.renameTo(file)) { // Another thread wrote it first
+				tmp.delete();
+				return;
+			}
+			trimDisk(file.length());
+		} catch (Throwable ne) {
+			logger.debug("Cannot write thumbnail "+file, ne);
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files if the directory is too large.
+	 *
+	 * The directory is listed once to count it, then only when the count
+	 * is over diskBytes and it was not trimmed in the last TRIM_PERIOD.
+	 *
+	 * @param written bytes just written
+	 */
+	private synchronized void trimDisk(long written) {
+		if (diskUsed<0) {
+			diskUsed = 0;
+			final File[] files = dir.listFiles();
+			if (files!=null) for (File f : files) diskUsed += f.length();
+		} else {
+			diskUsed += written;
+		}
+		if (diskUsed<=diskBytes) return;
+
+		final long now = System.currentTimeMillis();
+		if (now-lastTrim<TRIM_PERIOD) return;
+		lastTrim = now;
+
+		final File[] files = dir.listFiles();
+		if (files==null) return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				final long m1 = o1.lastModified(), m2 = o2.lastModified();
+				return m1<m2 ? -1 : m1==m2 ? 0 : 1;
+			}
+		});
+		diskUsed = 0;
+		for (File f : files) diskUsed += f.length();
+		for (int i = 0; i < files.length && diskUsed>diskBytes*3/4; i++) {
+			final long length = files[i].length();
+			if (files[i].delete()) diskUsed -= length;
+		}
+	}
+
+	private File getFile(String key) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			final byte[]        hash   = digest.digest(key.getBytes("UTF-8"));
+			final StringBuilder name   = new StringBuilder(2*hash.length+4);
+			for (byte b : hash) name.append(Character.forDigit((b>>4)&0xF, 16)).append(Character.forDigit(b&0xF, 16));
+			return new File(dir, name.append(".png").toString());
+		} catch (NoSuchAlgorithmException ne) {
+			throw new RuntimeException(ne); // Every JVM has SHA-1
+		} catch (UnsupportedEncodingException ne) {
+			throw new RuntimeException(ne); // and UTF-8
+		}
+	}
+
+	private final class ThumbnailTask extends FutureTask<ImageData> {
+
+		private final String key;
+
+		ThumbnailTask(final String key, final File file, final int width, final int height) {
+			super(new Callable<ImageData>() {
+				@Override
+				public ImageData call() {
+					return load(key, file, width, height);
+				}
+			});
+			this.key = key;
+		}
+
+		@Override
+		protected void done() {
+			synchronized (pending) {
+				if (pending.get(key)==this) pending.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * When the queue is full the oldest request is cancelled to make room.
+	 */
+	private static final class DropOldest implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				if (r instanceof Future) ((Future<?>)r).cancel(false);
+				return;
+			}
+			final Runnable oldest = executor.getQueue().poll();
+			if (oldest instanceof Future) ((Future<?>)oldest).cancel(false);
+			executor.execute(r);
+		}
+	}
+
+	private static final class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, "Thumbnail worker "+count.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package org.dawnsci.plotting.system;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProvider;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProviderListener;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.ISample;
+import org.eclipse.nebula.visualization.xygraph.linearscale.Range;
+import org.junit.Test;
+
+/**
+ * The buffer is checked after every point against a list of all the points
+ * appended, of which it must hold the last capacity.
+ */
+public class RingBufferDataProviderTest {
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNoCapacity() {
+		new RingBufferDataProvider(0);
+	}
+
+	@Test
+	public void testEmpty() {
+		final RingBufferDataProvider data = new RingBufferDataProvider(5);
+		assertEquals(0, data.getSize());
+		assertNull(data.getSample(0));
+		assertEquals(Double.NaN, data.getXValue(0), 0);
+		assertNull(data.getX());
+		assertNull(data.getY());
+		checkRange(new Range(0, 100), data.getXDataMinMax());
+		checkRange(new Range(0, 100), data.getYDataMinMax());
+	}
+
+	@Test
+	public void testWrapAround() {
+		for (int capacity : new int[]{1, 2, 7, 64}) {
+			final RingBufferDataProvider data = new RingBufferDataProvider(capacity);
+			final List<double[]> points = new ArrayList<double[]>();
+			final Random random = new Random(capacity);
+			for (int i = 0; i < 5*capacity+3; i++) {
+				final double[] point = {i*0.5, random.nextGaussian()*10};
+				points.add(point);
+				data.append(point[0], point[1]);
+				check(data, points, capacity);
+			}
+		}
+	}
+
+	/**
+	 * The ranges must forget the points written over, and leave out NaNs.
+	 */
+	@Test
+	public void testRangesWithNaNs() {
+		final int capacity = 9;
+		final RingBufferDataProvider data = new RingBufferDataProvider(capacity);
+		final List<double[]> points = new ArrayList<double[]>();
+		final Random random = new Random(3);
+		for (int i = 0; i < 500; i++) {
+			// Rising and falling runs, so that the extremes are often the oldest points
+			final double y = random.nextInt(5)==0 ? Double.NaN : 20*Math.sin(i/6d) + random.nextInt(3);
+			final double x = random.nextInt(20)==0 ? Double.NaN : 100-i;
+			final double[] point = {x, y};
+			points.add(point);
+			data.append(x, y);
+			check(data, points, capacity);
+		}
+	}
+
+	/**
+	 * Whether x is sorted is kept as points are appended, so it must forget the
+	 * descents and NaNs written over.
+	 */
+	@Test
+	public void testSortedWhileAppending() {
+		for (int capacity : new int[]{1, 2, 7}) {
+			final RingBufferDataProvider data = new RingBufferDataProvider(capacity);
+			final List<Double> xs = new ArrayList<Double>();
+			final Random random = new Random(capacity+11);
+			double x = 0;
+			for (int i = 0; i < 400; i++) {
+				final int r = random.nextInt(30);
+				if (r==0) {
+					xs.add(Double.NaN);
+				} else {
+					x += r<4 ? -random.nextDouble() : r<6 ? 0 : random.nextDouble();
+					xs.add(x);
+				}
+				data.append(xs.get(xs.size()-1), i);
+
+				final List<Double> last = xs.subList(Math.max(0, xs.size()-capacity), xs.size());
+				boolean sorted = !Double.isNaN(last.get(0));
+				for (int j = 1; j < last.size(); j++) sorted = sorted && last.get(j)>=last.get(j-1);
+				assertEquals("capacity "+capacity+" point "+i, sorted, data.isXSorted());
+			}
+			data.setData(null, new DoubleDataset(new double[]{3, 2, 1}, 3));
+			assertTrue(data.isXSorted());
+		}
+	}
+
+	@Test
+	public void testAllNaN() {
+		final RingBufferDataProvider data = new RingBufferDataProvider(3);
+		data.append(1, Double.NaN);
+		data.append(2, Double.NaN);
+		assertEquals(2, data.getSize());
+		checkRange(new Range(1, 2), data.getXDataMinMax());
+		checkRange(new Range(0, 100), data.getYDataMinMax());
+		data.append(3, 4);
+		checkRange(new Range(4, 4), data.getYDataMinMax());
+	}
+
+	@Test
+	public void testSetDataKeepsLast() {
+		final RingBufferDataProvider data = new RingBufferDataProvider(4);
+		final int[] fired = new int[1];
+		data.addDataProviderListener(new IDataProviderListener() {
+			@Override
+			public void dataChanged(IDataProvider dataProvider) {
+				++fired[0];
+			}
+		});
+
+		data.setData(new DoubleDataset(new double[]{10, 11, 12, 13, 14, 15}, 6), new DoubleDataset(new double[]{1, 2, 3, 4, 5, 6}, 6));
+		assertEquals(1, fired[0]);
+		assertEquals(4, data.getSize());
+		assertArrayEquals(new double[]{12, 13, 14, 15}, (double[])data.getX().getBuffer(), 0);
+		assertArrayEquals(new double[]{3, 4, 5, 6}, (double[])data.getY().getBuffer(), 0);
+
+		// Without x the points are numbered from the start of the data
+		data.setData(null, new DoubleDataset(new double[]{7, 8, 9, 10, 11}, 5));
+		assertArrayEquals(new double[]{1, 2, 3, 4}, (double[])data.getX().getBuffer(), 0);
+		assertArrayEquals(new double[]{8, 9, 10, 11}, (double[])data.getY().getBuffer(), 0);
+
+		data.setData(null, new DoubleDataset(new double[]{5, 6}, 2));
+		assertEquals(2, data.getSize());
+		assertArrayEquals(new double[]{0, 1}, (double[])data.getX().getBuffer(), 0);
+
+		// Appending after setData carries on from its points
+		data.append(2, 7);
+		data.append(3, 8);
+		data.append(4, 9);
+		assertArrayEquals(new double[]{1, 2, 3, 4}, (double[])data.getX().getBuffer(), 0);
+		assertArrayEquals(new double[]{6, 7, 8, 9}, (double[])data.getY().getBuffer(), 0);
+	}
+
+	private static void check(RingBufferDataProvider data, List<double[]> points, int capacity) {
+
+		final int size = Math.min(capacity, points.size());
+		assertEquals(capacity, data.getCapacity());
+		assertEquals(size, data.getSize());
+
+		final List<double[]> last = points.subList(points.size()-size, points.size());
+		final double[] xs = new double[size], ys = new double[size];
+		double xMin = Double.NaN, xMax = Double.NaN, yMin = Double.NaN, yMax = Double.NaN;
+		for (int i = 0; i < size; i++) {
+			xs[i] = last.get(i)[0];
+			ys[i] = last.get(i)[1];
+			assertEquals(xs[i], data.getXValue(i), 0);
+			assertEquals(ys[i], data.getYValue(i), 0);
+			final ISample sample = data.getSample(i);
+			assertEquals(xs[i], sample.getXValue(), 0);
+			assertEquals(ys[i], sample.getYValue(), 0);
+			if (!Double.isNaN(xs[i])) {
+				xMin = Double.isNaN(xMin) ? xs[i] : Math.min(xMin, xs[i]);
+				xMax = Double.isNaN(xMax) ? xs[i] : Math.max(xMax, xs[i]);
+			}
+			if (!Double.isNaN(ys[i])) {
+				yMin = Double.isNaN(yMin) ? ys[i] : Math.min(yMin, ys[i]);
+				yMax = Double.isNaN(yMax) ? ys[i] : Math.max(yMax, ys[i]);
+			}
+		}
+		assertNull(data.getSample(size));
+		assertArrayEquals(xs, (double[])data.getX().getBuffer(), 0);
+		assertArrayEquals(ys, (double[])data.getY().getBuffer(), 0);
+
+		checkRange(Double.isNaN(xMin) ? new Range(0, 100) : new Range(xMin, xMax), data.getXDataMinMax());
+		checkRange(Double.isNaN(yMin) ? new Range(0, 100) : new Range(yMin, yMax), data.getYDataMinMax());
+	}
+
+	private static void checkRange(Range expected, Range actual) {
+		assertEquals(expected.getLower(), actual.getLower(), 0);
+		assertEquals(expected.getUpper(), actual.getUpper(), 0);
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.system;
+
+import org.eclipse.dawnsci.plotting.api.trace.ILineTrace;
+
+/**
+ * A line trace which can keep only its last N points, for live data.
+ *
+ * When a buffer size is set, IPlottingSystem.append(...) adds the point to
+ * a ring buffer in O(1), dropping the oldest point when the buffer is full. It
+ * may be called from any thread without waiting for the UI thread, the plot
+ * is told of appended points in batches.
+ *
+ * The line traces made by the plotting system implement this interface.
+ */
+public interface ILiveLineTrace extends ILineTrace {
+
+	/**
+	 * Set the number of points which the trace keeps. The points already
+	 * plotted are kept, up to size.
+	 *
+	 * @param size 0 or less to keep all points, the default.
+	 */
+	public void setBufferSize(int size);
+
+	/**
+	 *
+	 * @return the number of points which the trace keeps, 0 if all are kept.
+	 */
+	public int getBufferSize();
+}
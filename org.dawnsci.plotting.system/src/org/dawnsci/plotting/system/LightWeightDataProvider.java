@@ -11,13 +11,13 @@ package org.dawnsci.plotting.system;
 import java.util.Collection;
 import java.util.HashSet;
 
+import org.dawnsci.plotting.draw2d.swtxy.IPrimitiveDataProvider;
 import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
 import org.eclipse.dawnsci.analysis.api.dataset.IErrorDataset;
 import org.eclipse.dawnsci.analysis.api.dataset.ILazyDataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
 import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
-import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProvider;
 import org.eclipse.nebula.visualization.xygraph.dataprovider.IDataProviderListener;
 import org.eclipse.nebula.visualization.xygraph.dataprovider.ISample;
 import org.eclipse.nebula.visualization.xygraph.dataprovider.Sample;
@@ -29,13 +29,14 @@ import org.eclipse.nebula.visualization.xygraph.linearscale.Range;
  * @author Matthew Gerring
  *
  */
-class LightWeightDataProvider implements IDataProvider {
+class LightWeightDataProvider implements IPrimitiveDataProvider {
 	
 	private Dataset x;
 	private Dataset y;
 	private Dataset xerr;
 	private Dataset yerr;
 	private Range cachedXRange, cachedYRange;
+	private Boolean cachedSorted;
 
 	public LightWeightDataProvider() {
 		
@@ -67,6 +68,34 @@ class LightWeightDataProvider implements IDataProvider {
 		}
 	}
 
+	@Override
+	public double getXValue(int index) {
+		if (x==null) return Double.NaN;
+		return x.getDouble(index);
+	}
+
+	@Override
+	public double getYValue(int index) {
+		if (y==null) return Double.NaN;
+		return y.getDouble(index);
+	}
+
+	@Override
+	public boolean isXSorted() {
+		if (cachedSorted==null) {
+			final int size = getSize();
+			double last = Double.NEGATIVE_INFINITY;
+			boolean sorted = true;
+			for (int i = 0; i < size && sorted; i++) {
+				final double value = getXValue(i);
+				sorted = value>=last; // Also false for NaN
+				last   = value;
+			}
+			cachedSorted = sorted;
+		}
+		return cachedSorted;
+	}
+
 	@Override
 	public Range getXDataMinMax() {
 		if (x==null) return new Range(0,100);
@@ -138,9 +167,10 @@ class LightWeightDataProvider implements IDataProvider {
 		if (yel != null) this.yerr = DatasetUtils.convertToDataset(yel.getSlice());
 		this.cachedXRange = null;
 		this.cachedYRange = null;
+		this.cachedSorted = null;
 	}
 
-	private void fireDataProviderListeners() {
+	void fireDataProviderListeners() {
 		if (listeners==null) return;
 		for (IDataProviderListener l : listeners) {
 			l.dataChanged(this);
@@ -157,8 +187,8 @@ class LightWeightDataProvider implements IDataProvider {
 
 	/**
 	 * Works if x and y have not been set yet.
-	 * Should be possible to make this faster by adding mode whereby viewed size is constant and
-	 * append adds to end and removes from start.
+	 * This copies the data each time, for live data use a RingBufferDataProvider
+	 * (ILiveLineTrace.setBufferSize(...)) which keeps a constant size and appends in O(1).
 	 * 
 	 * @param xValue
 	 * @param yValue
@@ -176,6 +206,7 @@ class LightWeightDataProvider implements IDataProvider {
 	    System.arraycopy(xArray, 0, xa, 0, xArray.length);
 	    xa[xa.length-1] = xValue.doubleValue();
 	    this.x = new DoubleDataset(xa, xa.length);
+	    if (cachedSorted!=null) cachedSorted = cachedSorted && xa[xa.length-1]>=(xArray.length>0 ? xArray[xArray.length-1] : Double.NEGATIVE_INFINITY);
 	    
 	    final double[] ya = new double[yArray.length+1];
 	    System.arraycopy(yArray, 0, ya, 0, yArray.length);
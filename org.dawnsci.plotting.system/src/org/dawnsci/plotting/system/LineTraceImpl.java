@@ -43,7 +43,7 @@ import org.eclipse.ui.preferences.ScopedPreferenceStore;
  * @author Matthew Gerring
  *
  */
-public class LineTraceImpl implements ILineTrace, ITraceListener{
+public class LineTraceImpl implements ILiveLineTrace, ITraceListener{
 
 	private static IMacroService mservice;
 	public static void setMacroService(IMacroService s) {
@@ -58,6 +58,11 @@ public class LineTraceImpl implements ILineTrace, ITraceListener{
 	private AbstractPlottingSystem sys;
 	private boolean errorBarExplicitySet;
 
+	/**
+	 * The data provider when a buffer size is set, read by append(...) from any thread.
+	 */
+	private volatile RingBufferDataProvider ringBuffer;
+
 	LineTraceImpl(AbstractPlottingSystem sys, final LineTrace trace) {
 		this.sys   = sys;
 		this.trace = trace;
@@ -65,6 +70,7 @@ public class LineTraceImpl implements ILineTrace, ITraceListener{
 			((ITraceContainer)trace).setTrace(this);
 		}
 		IDataProvider prov = trace.getDataProvider();
+		if (prov instanceof RingBufferDataProvider) ringBuffer = (RingBufferDataProvider)prov;
 		if (prov!=null && prov.hasErrors()) {
 			trace.setErrorBarEnabled(getPreferenceStore().getBoolean(PlottingConstants.GLOBAL_SHOW_ERROR_BARS));
 			trace.setErrorBarColor(ColorConstants.red);
@@ -375,6 +381,36 @@ public class LineTraceImpl implements ILineTrace, ITraceListener{
 		return trace;
 	}
 
+	@Override
+	public void setBufferSize(int size) {
+		if (size==getBufferSize()) return;
+		
+		final LightWeightDataProvider prov = (LightWeightDataProvider)trace.getDataProvider();
+		final LightWeightDataProvider next = size>0 ? new RingBufferDataProvider(size) : new LightWeightDataProvider();
+		if (prov!=null) {
+			prov.removeDataProviderListener(trace);
+			if (prov.getY()!=null) next.setData(prov.getX(), prov.getY());
+		}
+		trace.setDataProvider(next);
+		ringBuffer = size>0 ? (RingBufferDataProvider)next : null;
+		trace.repaint();
+	}
+
+	@Override
+	public int getBufferSize() {
+		final RingBufferDataProvider buffer = ringBuffer;
+		return buffer!=null ? buffer.getCapacity() : 0;
+	}
+
+	/**
+	 * May be called from any thread.
+	 *
+	 * @return the ring buffer the points are appended to, or null if the trace keeps all its points
+	 */
+	RingBufferDataProvider getRingBuffer() {
+		return ringBuffer;
+	}
+
 	private boolean settingLineData = false;
 	/**
 	 * You may need a repaint after calling this
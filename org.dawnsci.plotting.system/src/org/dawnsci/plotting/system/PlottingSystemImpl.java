@@ -478,6 +478,15 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 		if (name == null || "".equals(name))
 			throw new IllegalArgumentException("The dataset name must not be null or empty string!");
 
+		// Live traces are thread safe and tell the plot in batches, so we do not wait for the UI thread.
+		// The traces are changed on the UI thread, so they are looked up in the snapshot.
+		final LineTraceImpl          live   = lineTraces.get(name);
+		final RingBufferDataProvider buffer = live!=null ? live.getRingBuffer() : null;
+		if (buffer!=null) {
+			buffer.append(xValue, yValue);
+			return;
+		}
+		
 		if (getDisplay().getThread() == Thread.currentThread()) {
 			appendInternal(name, xValue, yValue, monitor);
 		} else {
@@ -638,6 +647,7 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 			clearPlotViewer(); // Only one image at a time!
 			if (traceMap==null) traceMap = new LinkedHashMap<String, ITrace>(31);
 			traceMap.clear();
+			updateLineTraces();
 			
 			String traceName = data.getName();
 			if (part!=null&&(traceName==null||"".equals(traceName))) {
@@ -708,6 +718,20 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 	 */
 	private Map<String, ITrace> traceMap; // Warning can be mem leak
 
+	/**
+	 * The line traces of traceMap, for append(...) to read from any thread. The
+	 * map is not changed, a new one is made on the UI thread when traceMap changes.
+	 */
+	private volatile Map<String, LineTraceImpl> lineTraces = Collections.emptyMap();
+
+	private void updateLineTraces() {
+		final Map<String, LineTraceImpl> lines = new HashMap<String, LineTraceImpl>();
+		if (traceMap!=null) for (Map.Entry<String, ITrace> entry : traceMap.entrySet()) {
+			if (entry.getValue() instanceof LineTraceImpl) lines.put(entry.getKey(), (LineTraceImpl)entry.getValue());
+		}
+		lineTraces = lines;
+	}
+
 	private List<ITrace> createPlot1DInternal(final IDataset              xIn, 
 										      final List<? extends IDataset> ysIn,
 										      final List<String>   dataNames,
@@ -788,6 +812,7 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 			traceMap.put(trace.getName(), trace);
 			traces = Arrays.asList((ITrace)trace);
 		}
+		updateLineTraces();
 		
 		Collection<ITrace> lineTraces = getTraces(ILineTrace.class);
 		if (lineTraces!=null) for (ITrace iTrace : lineTraces) {
@@ -928,6 +953,7 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 
 		if (traceMap==null) this.traceMap = new HashMap<String, ITrace>(7);
 		traceMap.put(trace.getName(), trace);
+		updateLineTraces();
 
 		fireTraceAdded(new TraceEvent(trace));
 	}
@@ -939,6 +965,7 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 	 */
 	public void removeTrace(ITrace trace) {
 		if (traceMap!=null) traceMap.remove(trace.getName());
+		updateLineTraces();
 		
 		IPlottingSystemViewer viewer = getViewer(trace.getClass());
 		viewer.removeTrace(trace);
@@ -951,6 +978,7 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 		trace.setName(name);
 		if (traceMap==null) traceMap = new LinkedHashMap<String, ITrace>(3);
 		traceMap.put(name, trace);
+		updateLineTraces();
 	}
 	@Override
 	public void moveTrace(final String oldName, String name) {
@@ -960,6 +988,7 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 			ITrace trace = traceMap.remove(oldName);
 			traceMap.put(name, trace);
 		}
+		updateLineTraces();
 	}
 
 	public Collection<ITrace> getTraces() {
@@ -1073,6 +1102,7 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 
 	private void resetInternal() {
 		if (traceMap!=null) traceMap.clear();
+		updateLineTraces();
 		if (colorMap!=null) colorMap.clear();
 		for (IPlottingSystemViewer v : viewers) {
 			if (v.getControl()!=null) v.reset(true);
@@ -1154,6 +1184,7 @@ public class PlottingSystemImpl extends AbstractPlottingSystem {
 		  if (v.getControl()!=null)  v.clearTraces();
 		}
 		if (traceMap!=null) traceMap.clear();
+		updateLineTraces();
 		fireTracesCleared(new TraceEvent(this));
 	}
 
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.system;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.ISample;
+import org.eclipse.nebula.visualization.xygraph.dataprovider.Sample;
+import org.eclipse.nebula.visualization.xygraph.linearscale.Range;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * A data provider which keeps the last capacity points in primitive
+ * ring buffers, for live line traces.
+ *
+ * append(...) is O(1) and may be called from any thread. The listeners
+ * are told on the UI thread, once for all the points appended since they
+ * were last told. The min and max of x and y are kept up to date as points
+ * are added and dropped, so getting the ranges does not look at the data.
+ * So is whether x is sorted, by counting the neighbouring points which
+ * are out of order.
+ *
+ * getX() and getY() copy the buffers in to datasets, in order.
+ */
+class RingBufferDataProvider extends LightWeightDataProvider {
+
+	private final int      capacity;
+	private final double[] xs, ys;
+	private final Extreme  xMin, xMax, yMin, yMax;
+
+	/**
+	 * The number of points ever appended, the next point goes at appended % capacity.
+	 */
+	private long           appended;
+	private int            size;
+	private boolean        notifyPending;
+
+	/**
+	 * Neighbouring points whose x decreases or is NaN, and the NaNs in x.
+	 */
+	private int            descents, xNaNs;
+
+	RingBufferDataProvider(int capacity) {
+		if (capacity<1) throw new IllegalArgumentException("The capacity must be at least one!");
+		this.capacity = capacity;
+		this.xs       = new double[capacity];
+		this.ys       = new double[capacity];
+		this.xMin     = new Extreme(xs, false);
+		this.xMax     = new Extreme(xs, true);
+		this.yMin     = new Extreme(ys, false);
+		this.yMax     = new Extreme(ys, true);
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public synchronized int getSize() {
+		return size;
+	}
+
+	@Override
+	public synchronized ISample getSample(int index) {
+		if (index<0 || index>=size) return null;
+		final int i = getIndex(appended-size+index);
+		return new Sample(xs[i], ys[i], 0d, 0d, 0d, 0d);
+	}
+
+	@Override
+	public synchronized double getXValue(int index) {
+		if (index<0 || index>=size) return Double.NaN;
+		return xs[getIndex(appended-size+index)];
+	}
+
+	@Override
+	public synchronized double getYValue(int index) {
+		if (index<0 || index>=size) return Double.NaN;
+		return ys[getIndex(appended-size+index)];
+	}
+
+	@Override
+	public synchronized boolean isXSorted() {
+		return descents==0 && xNaNs==0;
+	}
+
+	@Override
+	public synchronized Range getXDataMinMax() {
+		return getRange(xMin, xMax);
+	}
+
+	@Override
+	public synchronized Range getYDataMinMax() {
+		return getRange(yMin, yMax);
+	}
+
+	private Range getRange(Extreme min, Extreme max) {
+		if (size<1 || min.isEmpty()) return new Range(0,100);
+		return new Range(min.get(), max.get());
+	}
+
+	/**
+	 * Replaces the points with the last capacity points of the data.
+	 * @param xData may be null for the index
+	 * @param yData
+	 */
+	@Override
+	public void setData(IDataset xData, IDataset yData) {
+		synchronized (this) {
+			clear();
+			if (yData!=null) {
+				final Dataset x = xData!=null ? DatasetUtils.convertToDataset(xData) : null;
+				final Dataset y = DatasetUtils.convertToDataset(yData);
+				final int     n = y.getSize();
+				for (int i = Math.max(0, n-capacity); i < n; i++) {
+					add(x!=null ? x.getElementDoubleAbs(i) : i, y.getElementDoubleAbs(i));
+				}
+			}
+		}
+		fireDataProviderListeners();
+	}
+
+	@Override
+	public void append(Number xValue, Number yValue) {
+		synchronized (this) {
+			add(xValue.doubleValue(), yValue.doubleValue());
+			if (notifyPending) return;
+			notifyPending = true;
+		}
+
+		final Display display = Display.getDefault();
+		if (display==null || display.isDisposed()) return;
+		display.asyncExec(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (RingBufferDataProvider.this) {
+					notifyPending = false;
+				}
+				fireDataProviderListeners();
+			}
+		});
+	}
+
+	@Override
+	public synchronized Dataset getX() {
+		return size>0 ? copy(xs) : null;
+	}
+
+	@Override
+	public synchronized Dataset getY() {
+		return size>0 ? copy(ys) : null;
+	}
+
+	@Override
+	public boolean hasErrors() {
+		return false;
+	}
+
+	private Dataset copy(double[] buffer) {
+		final double[] data  = new double[size];
+		final int      start = getIndex(appended-size);
+		final int      first = Math.min(size, capacity-start);
+		System.arraycopy(buffer, start, data, 0, first);
+		System.arraycopy(buffer, 0, data, first, size-first);
+		return new DoubleDataset(data, size);
+	}
+
+	private void add(double x, double y) {
+
+		final long seq = appended;
+		if (size==capacity) {
+			// The oldest point is about to be written over
+			final long oldest = seq-capacity+1;
+			xMin.evict(oldest);
+			xMax.evict(oldest);
+			yMin.evict(oldest);
+			yMax.evict(oldest);
+
+			final double gone = xs[getIndex(seq-capacity)];
+			if (Double.isNaN(gone)) --xNaNs;
+			if (capacity>1 && isDescent(gone, xs[getIndex(oldest)])) --descents;
+		} else {
+			++size;
+		}
+
+		if (Double.isNaN(x)) ++xNaNs;
+		if (size>1 && isDescent(xs[getIndex(seq-1)], x)) ++descents;
+
+		final int i = getIndex(seq);
+		xs[i] = x;
+		ys[i] = y;
+		xMin.add(seq);
+		xMax.add(seq);
+		yMin.add(seq);
+		yMax.add(seq);
+		++appended;
+	}
+
+	private static boolean isDescent(double previous, double next) {
+		return !(next>=previous); // Also true for NaN
+	}
+
+	private void clear() {
+		appended  = 0;
+		size      = 0;
+		descents  = 0;
+		xNaNs     = 0;
+		xMin.clear();
+		xMax.clear();
+		yMin.clear();
+		yMax.clear();
+	}
+
+	private final int getIndex(long seq) {
+		return (int)(seq % capacity);
+	}
+
+	/**
+	 * Minimum or maximum of the points in the buffer. Keeps a deque of the points
+	 * which could still become the extreme, in order, so that adding a point and
+	 * dropping the oldest are O(1) amortised. NaNs are ignored.
+	 */
+	private final class Extreme {
+
+		private final double[] values;
+		private final boolean  max;
+		private final long[]   seqs;
+		private int            head, length;
+
+		Extreme(double[] values, boolean max) {
+			this.values = values;
+			this.max    = max;
+			this.seqs   = new long[capacity];
+		}
+
+		void add(long seq) {
+			final double value = values[getIndex(seq)];
+			if (Double.isNaN(value)) return;
+			// Points before this one which are no better can never be the extreme again
+			while (length>0) {
+				final double last = values[getIndex(seqs[(head+length-1) % capacity])];
+				if (max ? last>value : last<value) break;
+				--length;
+			}
+			seqs[(head+length) % capacity] = seq;
+			++length;
+		}
+
+		/**
+		 * Drop points older than oldest.
+		 * @param oldest
+		 */
+		void evict(long oldest) {
+			while (length>0 && seqs[head]<oldest) {
+				head = (head+1) % capacity;
+				--length;
+			}
+		}
+
+		boolean isEmpty() {
+			return length<1;
+		}
+
+		double get() {
+			return values[getIndex(seqs[head])];
+		}
+
+		void clear() {
+			head   = 0;
+			length = 0;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.dawnsci.plotting.expression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.FloatDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.IntegerDataset;
+import org.junit.Test;
+
+/**
+ * Expressions which return null are left to the expression engine, so those
+ * are checked as well as the values of the ones which compile.
+ */
+public class FusedExpressionTest {
+
+	private static final double[] A = {1, 2, 3, 4, 5, 6};
+	private static final double[] B = {2, 4, 8, 16, 32, 64};
+	private static final double[] C = {-1, 0.5, 3, -7, 11, 0.25};
+
+	@Test
+	public void testPrecedence() {
+		check("a + b * c", new Function() { public double value(double a, double b, double c) { return a + b * c; } });
+		check("(a + b) * c", new Function() { public double value(double a, double b, double c) { return (a + b) * c; } });
+		check("a - b - c", new Function() { public double value(double a, double b, double c) { return a - b - c; } });
+		check("a / b / c", new Function() { public double value(double a, double b, double c) { return a / b / c; } });
+		check("a - b / c * a + b", new Function() { public double value(double a, double b, double c) { return a - b / c * a + b; } });
+		check("(a - c) / (b - c)", new Function() { public double value(double a, double b, double c) { return (a - c) / (b - c); } });
+	}
+
+	@Test
+	public void testUnaryMinus() {
+		check("-a * b", new Function() { public double value(double a, double b, double c) { return -a * b; } });
+		check("a - -b", new Function() { public double value(double a, double b, double c) { return a - -b; } });
+		check("-(a + b) * -c", new Function() { public double value(double a, double b, double c) { return -(a + b) * -c; } });
+		check("+a - +c", new Function() { public double value(double a, double b, double c) { return a - c; } });
+		check("--a", new Function() { public double value(double a, double b, double c) { return a; } });
+	}
+
+	@Test
+	public void testConstants() {
+		check("2 * a + 1.5e1", new Function() { public double value(double a, double b, double c) { return 2 * a + 15; } });
+		check("a / .5 - 3", new Function() { public double value(double a, double b, double c) { return a / .5 - 3; } });
+	}
+
+	@Test
+	public void testScalarBroadcast() {
+		final FusedExpression expression = FusedExpression.compile("(a - s) * b");
+		final Map<String, Dataset> values = getValues();
+		values.put("s", new DoubleDataset(new double[]{0.5}, 1));
+
+		final Dataset result = expression.evaluate(values);
+		assertArrayEquals(new int[]{2, 3}, result.getShape());
+		for (int i = 0; i < A.length; i++) {
+			assertEquals((A[i] - 0.5) * B[i], result.getElementDoubleAbs(i), 1e-12);
+		}
+	}
+
+	@Test
+	public void testVariableNames() {
+		assertEquals(Arrays.asList("a", "dark", "flat"), FusedExpression.compile("(a - dark) / (flat - dark)").getVariableNames());
+	}
+
+	/**
+	 * Functions, namespaces, methods, comparisons and anything else which
+	 * is not arithmetic do not compile and are evaluated by the engine.
+	 */
+	@Test
+	public void testNotArithmeticIsLeftToEngine() {
+		for (String expression : new String[]{"sin(a)", "dnp:abs(a)", "a.max()", "a[0]", "a > b", "a == b",
+				                              "a % b", "a ^ b", "a div b", "true", "a +", "(a + b", "2L * a", "a b"}) {
+			assertNull(expression, FusedExpression.compile(expression));
+		}
+		assertNull(FusedExpression.compile(null));
+		assertNotNull(FusedExpression.compile(" a * 2 "));
+	}
+
+	@Test
+	public void testValuesLeftToEngine() {
+		final FusedExpression expression = FusedExpression.compile("a + b");
+
+		final Map<String, Dataset> missing = new HashMap<String, Dataset>();
+		missing.put("a", new DoubleDataset(A, 2, 3));
+		assertNull("Missing variable", expression.evaluate(missing));
+
+		final Map<String, Dataset> transposed = new HashMap<String, Dataset>();
+		transposed.put("a", new DoubleDataset(A, 2, 3));
+		transposed.put("b", new DoubleDataset(B, 3, 2));
+		assertNull("Same size but not the same shape", expression.evaluate(transposed));
+
+		final Map<String, Dataset> integers = new HashMap<String, Dataset>();
+		integers.put("a", new IntegerDataset(new int[]{7, 9}, 2));
+		integers.put("b", new IntegerDataset(new int[]{2, 4}, 2));
+		assertNull("Integer division", FusedExpression.compile("a / b").evaluate(integers));
+		assertNull("Integer division first", FusedExpression.compile("a / b * 1.0").evaluate(integers));
+		assertNotNull(FusedExpression.compile("a * b").evaluate(integers));
+	}
+
+	@Test
+	public void testDtype() {
+		final Map<String, Dataset> floats = new HashMap<String, Dataset>();
+		floats.put("a", new FloatDataset(new float[]{1, 2, 3}, 3));
+		floats.put("b", new FloatDataset(new float[]{4, 5, 6}, 3));
+		final Dataset product = FusedExpression.compile("a * b + 0.5").evaluate(floats);
+		assertEquals(Dataset.FLOAT32, product.getDtype());
+		assertEquals(12.5, product.getDouble(1), 0);
+
+		final Map<String, Dataset> integers = new HashMap<String, Dataset>();
+		integers.put("a", new IntegerDataset(new int[]{7, 9}, 2));
+		integers.put("b", new IntegerDataset(new int[]{2, 4}, 2));
+		assertEquals(Dataset.INT32, FusedExpression.compile("a * b - 1").evaluate(integers).getDtype());
+		assertEquals(Dataset.FLOAT64, FusedExpression.compile("a * 0.5").evaluate(integers).getDtype());
+
+		final Map<String, Dataset> mixed = new HashMap<String, Dataset>();
+		mixed.put("a", new FloatDataset(new float[]{1, 2}, 2));
+		mixed.put("b", new DoubleDataset(new double[]{3, 4}, 2));
+		assertEquals(Dataset.FLOAT64, FusedExpression.compile("a + b").evaluate(mixed).getDtype());
+	}
+
+	/**
+	 * More values than one block, from views, so that the blocks and strides are used.
+	 */
+	@Test
+	public void testLargeViews() {
+		final double[] data = new double[3000*2];
+		for (int i = 0; i < data.length; i++) data[i] = i%17 - 8;
+		final Dataset a = new DoubleDataset(data, 3000, 2).getSliceView(new int[]{0, 0}, new int[]{3000, 1}, null);
+		final Dataset b = new DoubleDataset(data, 3000, 2).getSliceView(new int[]{0, 1}, new int[]{3000, 2}, null);
+
+		final Map<String, Dataset> values = new HashMap<String, Dataset>();
+		values.put("a", a);
+		values.put("b", b);
+		final Dataset result = FusedExpression.compile("a * b - a").evaluate(values);
+		assertArrayEquals(new int[]{3000, 1}, result.getShape());
+		for (int i = 0; i < 3000; i++) {
+			assertEquals(a.getDouble(i, 0) * b.getDouble(i, 0) - a.getDouble(i, 0), result.getDouble(i, 0), 0);
+		}
+	}
+
+	private interface Function {
+		double value(double a, double b, double c);
+	}
+
+	private static void check(String text, Function expected) {
+		final FusedExpression expression = FusedExpression.compile(text);
+		assertNotNull(text, expression);
+		final Dataset result = expression.evaluate(getValues());
+		assertNotNull(text, result);
+		assertArrayEquals(text, new int[]{2, 3}, result.getShape());
+		for (int i = 0; i < A.length; i++) {
+			assertEquals(text, expected.value(A[i], B[i], C[i]), result.getElementDoubleAbs(i), 1e-12);
+		}
+	}
+
+	private static Map<String, Dataset> getValues() {
+		final Map<String, Dataset> values = new HashMap<String, Dataset>();
+		values.put("a", new DoubleDataset(A, 2, 3));
+		values.put("b", new DoubleDataset(B, 2, 3));
+		values.put("c", new DoubleDataset(C, 2, 3));
+		return values;
+	}
+}
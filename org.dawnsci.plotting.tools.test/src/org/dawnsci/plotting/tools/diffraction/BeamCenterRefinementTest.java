@@ -0,0 +1,165 @@
+package org.dawnsci.plotting.tools.diffraction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.vecmath.Vector3d;
+
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.analysis.dataset.roi.SectorROI;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.diffraction.QSpace;
+import uk.ac.diamond.scisoft.analysis.fitting.functions.Gaussian;
+import uk.ac.diamond.scisoft.analysis.fitting.functions.IPeak;
+import uk.ac.diamond.scisoft.analysis.io.DiffractionMetadata;
+import uk.ac.diamond.scisoft.analysis.roi.ROIProfile;
+import uk.ac.diamond.scisoft.analysis.roi.XAxis;
+
+/**
+ * Positions are evaluated at the same time with their own copies of the geometry, the
+ * profiles must be those of ROIProfile with the beam centre moved.
+ */
+public class BeamCenterRefinementTest {
+
+	private static final int      SIZE   = 256;
+	private static final double[] CENTRE = {128.3, 127.6};
+
+	@Test
+	public void testProfile() {
+		final Dataset   image = createImage();
+		final SectorROI sroi  = new SectorROI(CENTRE[0], CENTRE[1], 30, 100, 0.2, 1.4);
+		final BeamCenterRefinement refinement = new BeamCenterRefinement(image, null, sroi);
+
+		final double[]  beamxy   = {129.1, 126.4};
+		final Dataset[] expected = getProfile(image, sroi, beamxy);
+		final Dataset[] actual   = refinement.getProfile(beamxy);
+		check(expected[0], actual[0]);
+		check(expected[4], actual[1]);
+
+		// The metadata is only changed when the optimiser has finished
+		final double[] bc = ((DiffractionMetadata)image.getMetadata()).getDetector2DProperties().getBeamCentreCoords();
+		assertArrayEquals(CENTRE, bc, 0);
+	}
+
+	@Test
+	public void testConcurrentProfiles() throws Exception {
+		final Dataset   image = createImage();
+		final SectorROI sroi  = new SectorROI(CENTRE[0], CENTRE[1], 30, 100, 0.2, 1.4);
+		final BeamCenterRefinement refinement = new BeamCenterRefinement(image, null, sroi);
+
+		final List<double[]> positions = new ArrayList<double[]>();
+		for (int i = 0; i < 16; i++) positions.add(new double[]{CENTRE[0]+0.37*(i%4)-0.5, CENTRE[1]+0.29*(i/4)-0.5});
+
+		final ExecutorService      pool     = Executors.newFixedThreadPool(4);
+		final List<Future<Dataset[]>> profiles = new ArrayList<Future<Dataset[]>>();
+		try {
+			for (final double[] beamxy : positions) {
+				profiles.add(pool.submit(new Callable<Dataset[]>() {
+					@Override
+					public Dataset[] call() throws Exception {
+						return refinement.getProfile(beamxy);
+					}
+				}));
+			}
+			for (int i = 0; i < positions.size(); i++) {
+				final Dataset[] expected = getProfile(image, sroi, positions.get(i));
+				final Dataset[] actual   = profiles.get(i).get();
+				check(expected[0], actual[0]);
+				check(expected[4], actual[1]);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The peak fitting of each position runs on its own thread, with the optimiser
+	 * evaluating a population at once. The values must be those found one at a time.
+	 * The fit starts from random parameters, so they are compared to 1%.
+	 */
+	@Test
+	public void testConcurrentValues() throws Exception {
+		final Dataset   image = createImage();
+		final SectorROI sroi  = new SectorROI(CENTRE[0], CENTRE[1], 30, 100, 0.2, 1.4);
+		final BeamCenterRefinement refinement = new BeamCenterRefinement(image, null, sroi);
+		refinement.setInitPeaks(Arrays.<IPeak>asList(new Gaussian(0.3, 0.02, 10)));
+
+		final List<double[]> positions = new ArrayList<double[]>();
+		for (int i = 0; i < 8; i++) positions.add(new double[]{CENTRE[0]+0.7*(i%4)-1, CENTRE[1]+0.9*(i/4)-0.5});
+
+		final double[] expected = new double[positions.size()];
+		for (int i = 0; i < expected.length; i++) expected[i] = refinement.value(positions.get(i));
+
+		final ExecutorService    pool   = Executors.newFixedThreadPool(4);
+		final List<Future<Double>> values = new ArrayList<Future<Double>>();
+		try {
+			for (final double[] beamxy : positions) {
+				values.add(pool.submit(new Callable<Double>() {
+					@Override
+					public Double call() throws Exception {
+						return refinement.value(beamxy);
+					}
+				}));
+			}
+			for (int i = 0; i < positions.size(); i++) {
+				final double value = values.get(i).get();
+				assertFalse("Position "+i, Double.isNaN(value));
+				assertEquals("Position "+i, expected[i], value, Math.abs(expected[i])*0.01);
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		final double[] bc = ((DiffractionMetadata)image.getMetadata()).getDetector2DProperties().getBeamCentreCoords();
+		assertArrayEquals(CENTRE, bc, 0);
+	}
+
+	private static Dataset[] getProfile(Dataset image, SectorROI sroi, double[] beamxy) {
+		final DiffractionMetadata md = (DiffractionMetadata)image.getMetadata();
+		final DetectorProperties  dp = md.getDetector2DProperties().clone();
+		dp.setBeamCentreCoords(beamxy.clone());
+		final QSpace    qSpace = new QSpace(dp, md.getDiffractionCrystalEnvironment().clone());
+		final SectorROI roi    = new SectorROI(sroi.getPointX(), sroi.getPointY(), sroi.getRadius(0), sroi.getRadius(1),
+				                               sroi.getAngle(0), sroi.getAngle(1), 1.0, true, sroi.getSymmetry());
+		return ROIProfile.sector(image, null, roi, true, false, false, qSpace, XAxis.Q, false);
+	}
+
+	private static void check(Dataset expected, Dataset actual) {
+		assertEquals(expected.getSize(), actual.getSize());
+		for (int i = 0; i < actual.getSize(); i++) {
+			assertEquals(expected.getDouble(i), actual.getDouble(i), 0);
+		}
+	}
+
+	/**
+	 * A ring about the beam centre on a detector 200mm away.
+	 */
+	private static Dataset createImage() {
+		final double[] data = new double[SIZE*SIZE];
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				final double r = Math.hypot(x+0.5-CENTRE[0], y+0.5-CENTRE[1]);
+				data[y*SIZE+x] = 10 + 1000*Math.exp(-(r-60)*(r-60)/8);
+			}
+		}
+		final Dataset image = new DoubleDataset(data, SIZE, SIZE);
+
+		final DetectorProperties dp = new DetectorProperties(new Vector3d(SIZE/2*0.172, SIZE/2*0.172, 200), SIZE, SIZE, 0.172, 0.172, 0, 0, 0);
+		dp.setBeamCentreCoords(CENTRE.clone());
+		image.setMetadata(new DiffractionMetadata(null, dp, new DiffractionCrystalEnvironment(1.0, 0, 0, 1)));
+		return image;
+	}
+}
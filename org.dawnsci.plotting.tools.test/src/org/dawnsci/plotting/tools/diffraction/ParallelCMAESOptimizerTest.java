@@ -0,0 +1,113 @@
+package org.dawnsci.plotting.tools.diffraction;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.SimpleBounds;
+import org.apache.commons.math3.optim.SimplePointChecker;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.CMAESOptimizer;
+import org.apache.commons.math3.random.Well19937a;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.junit.Test;
+
+/**
+ * The optimiser should find what CMAESOptimizer finds, with the settings the beam
+ * centre refinement uses.
+ */
+public class ParallelCMAESOptimizerTest {
+
+	private static final double[] START = {0, 0};
+	private static final double[] LOWER = {-20, -20};
+	private static final double[] UPPER = {20, 20};
+
+	/**
+	 * A 2D Gaussian peak.
+	 */
+	private static final MultivariateFunction PEAK = new MultivariateFunction() {
+		@Override
+		public double value(double[] point) {
+			final double dx = point[0]-3, dy = point[1]+2;
+			return 10*Math.exp(-(dx*dx+dy*dy)/8);
+		}
+	};
+
+	/**
+	 * A narrow ridge at 45 degrees, which needs the covariance matrix to be learnt.
+	 */
+	private static final MultivariateFunction RIDGE = new MultivariateFunction() {
+		@Override
+		public double value(double[] point) {
+			final double u = (point[0]-1+point[1]-2)/Math.sqrt(2), v = (point[0]-1-point[1]+2)/Math.sqrt(2);
+			return -(u*u+1e4*v*v);
+		}
+	};
+
+	/**
+	 * Highest outside the bounds, at (25, 0).
+	 */
+	private static final MultivariateFunction OUTSIDE = new MultivariateFunction() {
+		@Override
+		public double value(double[] point) {
+			final double dx = point[0]-25, dy = point[1];
+			return -(dx*dx+dy*dy);
+		}
+	};
+
+	@Test
+	public void testPeak() throws Exception {
+		check(PEAK, new double[]{3, -2});
+	}
+
+	@Test
+	public void testRidge() throws Exception {
+		check(RIDGE, new double[]{1, 2});
+	}
+
+	@Test
+	public void testBounds() throws Exception {
+		check(OUTSIDE, new double[]{20, 0});
+	}
+
+	@Test
+	public void testNaN() throws Exception {
+		final MultivariateFunction function = new MultivariateFunction() {
+			@Override
+			public double value(double[] point) {
+				return point[0]<0 ? Double.NaN : PEAK.value(point);
+			}
+		};
+		final PointValuePair result = createOptimizer().maximize(function, new double[]{1, 1}, LOWER, UPPER, new NullProgressMonitor());
+		assertEquals(3,  result.getPoint()[0], 1e-3);
+		assertEquals(-2, result.getPoint()[1], 1e-3);
+	}
+
+	private static void check(MultivariateFunction function, double[] expected) throws Exception {
+
+		final PointValuePair parallel = createOptimizer().maximize(function, START, LOWER, UPPER, new NullProgressMonitor());
+
+		final CMAESOptimizer optimizer = new CMAESOptimizer(10000, 0.0, true, 0, 10, new Well19937a(1), false,
+				                                            new SimplePointChecker<PointValuePair>(1e-10, 1e-10));
+		final PointValuePair serial = optimizer.optimize(new MaxEval(10000),
+				                                         new ObjectiveFunction(function),
+				                                         GoalType.MAXIMIZE,
+				                                         new CMAESOptimizer.PopulationSize(15),
+				                                         new CMAESOptimizer.Sigma(new double[]{3, 3}),
+				                                         new SimpleBounds(LOWER, UPPER),
+				                                         new InitialGuess(START));
+
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], serial.getPoint()[i],   1e-3);
+			assertEquals(expected[i], parallel.getPoint()[i], 1e-3);
+		}
+		assertEquals(serial.getValue(), parallel.getValue(), 1e-3*Math.max(1, Math.abs(serial.getValue())));
+	}
+
+	private static ParallelCMAESOptimizer createOptimizer() {
+		return new ParallelCMAESOptimizer(15, new double[]{3, 3}, 10000, 10, new SimplePointChecker<PointValuePair>(1e-10, 1e-10), new Well19937a(1));
+	}
+}
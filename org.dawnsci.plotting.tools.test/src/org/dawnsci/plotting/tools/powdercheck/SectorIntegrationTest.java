@@ -0,0 +1,133 @@
+package org.dawnsci.plotting.tools.powdercheck;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import javax.vecmath.Vector3d;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.diffraction.powder.NonPixelSplittingIntegration;
+import uk.ac.diamond.scisoft.analysis.io.DiffractionMetadata;
+import uk.ac.diamond.scisoft.analysis.roi.XAxis;
+
+/**
+ * The profiles of the sectors must be those which PowderCheckJob made before, with
+ * NonPixelSplittingIntegration and setAzimuthalRange(...) once for each sector.
+ */
+public class SectorIntegrationTest {
+
+	private static final int SECTORS = 36;
+	private static final int HEIGHT  = 200;
+	private static final int WIDTH   = 300;
+
+	@Test
+	public void testFlatDetector() {
+		final DiffractionMetadata md = createMetadata(new double[]{131.7, 92.4}, 0, 0, 0);
+		check(createImage(md), md, XAxis.Q);
+		check(createImage(md), md, XAxis.PIXEL);
+	}
+
+	@Test
+	public void testTiltedDetector() {
+		final DiffractionMetadata md = createMetadata(new double[]{131.7, 92.4}, 0, 12, 30);
+		check(createImage(md), md, XAxis.Q);
+		check(createImage(md), md, XAxis.ANGLE);
+	}
+
+	@Test
+	public void testBeamCentreOffDetector() {
+		final DiffractionMetadata md = createMetadata(new double[]{-40.5, 250.2}, 3, -5, 0);
+		check(createImage(md), md, XAxis.Q);
+	}
+
+	@Test
+	public void testIntegerImage() {
+		final DiffractionMetadata md    = createMetadata(new double[]{131.7, 92.4}, 0, 12, 30);
+		final Dataset             image = DatasetUtils.cast(createImage(md), Dataset.INT32);
+		image.setMetadata(md);
+		check(image, md, XAxis.Q);
+	}
+
+	@Test
+	public void testCache() {
+		final DiffractionMetadata md = createMetadata(new double[]{131.7, 92.4}, 0, 0, 0);
+		final int[] shape = {HEIGHT, WIDTH};
+		final SectorIntegration integration = SectorIntegration.getIntegration(md, shape, XAxis.Q, SECTORS);
+		assertSame(integration, SectorIntegration.getIntegration(md, shape, XAxis.Q, SECTORS));
+		assertSame(integration, SectorIntegration.getIntegration(createMetadata(new double[]{131.7, 92.4}, 0, 0, 0), shape, XAxis.Q, SECTORS));
+
+		assertNotSame(integration, SectorIntegration.getIntegration(md, shape, XAxis.PIXEL, SECTORS));
+		assertNotSame(integration, SectorIntegration.getIntegration(md, shape, XAxis.Q, 4));
+		assertNotSame(integration, SectorIntegration.getIntegration(md, new int[]{HEIGHT, WIDTH+1}, XAxis.Q, SECTORS));
+		assertNotSame(integration, SectorIntegration.getIntegration(createMetadata(new double[]{131.7, 92.4}, 0, 1, 0), shape, XAxis.Q, SECTORS));
+	}
+
+	private static void check(Dataset image, DiffractionMetadata md, XAxis xAxis) {
+
+		final SectorIntegration integration = SectorIntegration.getIntegration(md, image.getShape(), xAxis, SECTORS);
+		final List<IDataset>    profiles    = integration.integrate(image);
+		final Dataset           axis        = integration.getAxis();
+		assertEquals(SECTORS, profiles.size());
+
+		final NonPixelSplittingIntegration npsi = new NonPixelSplittingIntegration(md);
+		npsi.setAxisType(xAxis);
+		final int width = 360/SECTORS;
+		for (int s = 0; s < SECTORS; s++) {
+			final int start = -180 + s*width;
+			npsi.setAzimuthalRange(new double[]{start, start+width});
+			final List<Dataset> expected = npsi.integrate(image);
+
+			final String sector = xAxis+" sector "+start+" to "+(start+width);
+			assertEquals(sector, expected.get(0).getSize(), axis.getSize());
+			assertEquals(sector, expected.get(1).getSize(), profiles.get(s).getSize());
+			for (int i = 0; i < axis.getSize(); i++) {
+				final double x = expected.get(0).getDouble(i);
+				assertEquals(sector+" axis "+i, x, axis.getDouble(i), Math.abs(x)*1e-6);
+
+				final double y = expected.get(1).getDouble(i);
+				assertEquals(sector+" bin "+i, y, profiles.get(s).getDouble(i), Math.max(1, Math.abs(y))*1e-9);
+			}
+		}
+	}
+
+	/**
+	 * @param beam centre in pixels
+	 * @param yaw in degrees
+	 * @param pitch in degrees
+	 * @param roll in degrees
+	 */
+	private static DiffractionMetadata createMetadata(double[] beam, double yaw, double pitch, double roll) {
+		final DetectorProperties dp = new DetectorProperties(new Vector3d(WIDTH/2*0.172, HEIGHT/2*0.172, 150), HEIGHT, WIDTH, 0.172, 0.172, yaw, pitch, roll);
+		dp.setBeamCentreCoords(beam.clone());
+		return new DiffractionMetadata(null, dp, new DiffractionCrystalEnvironment(1.0, 0, 0, 1));
+	}
+
+	/**
+	 * Rings about the beam centre which vary around the azimuth, with a few NaNs.
+	 */
+	private static Dataset createImage(DiffractionMetadata md) {
+		final double[] bc   = md.getDetector2DProperties().getBeamCentreCoords();
+		final double[] data = new double[HEIGHT*WIDTH];
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				final double r = Math.hypot(x+0.5-bc[0], y+0.5-bc[1]);
+				final double a = Math.atan2(y+0.5-bc[1], x+0.5-bc[0]);
+				data[y*WIDTH+x] = 10 + (1+0.5*Math.cos(3*a))*(1000*Math.exp(-(r-60)*(r-60)/20) + 500*Math.exp(-(r-110)*(r-110)/30));
+			}
+		}
+		for (int i = 0; i < data.length; i+=211) data[i] = Double.NaN;
+		final Dataset image = new DoubleDataset(data, HEIGHT, WIDTH);
+		image.setMetadata(md);
+		return image;
+	}
+}
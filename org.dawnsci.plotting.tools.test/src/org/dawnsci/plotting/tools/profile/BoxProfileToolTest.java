@@ -0,0 +1,58 @@
+package org.dawnsci.plotting.tools.profile;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.RGBDataset;
+import org.eclipse.dawnsci.analysis.dataset.roi.RectangularROI;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.roi.ROIProfile;
+
+/**
+ * The box profiles which cannot be read from the summed area table are those of ROIProfile.
+ */
+public class BoxProfileToolTest {
+
+	private static final RectangularROI BOX = new RectangularROI(10, 20, 100, 50, 0);
+
+	@Test
+	public void testNaN() {
+		final Dataset image = createImage(200, 150);
+		image.set(Double.NaN, 30, 40);
+		check(ROIProfile.box(image, null, BOX, true), BoxProfileTool.getBox(image, null, BOX));
+		check(ROIProfile.boxMean(image, null, BOX, true), BoxProfileTool.getBoxMean(image, null, BOX));
+	}
+
+	@Test
+	public void testRGB() {
+		final Random     random = new Random(3);
+		final RGBDataset image  = new RGBDataset(200, 150);
+		for (int y = 0; y < 200; y++) {
+			for (int x = 0; x < 150; x++) {
+				image.setItem(new short[]{(short)random.nextInt(256), (short)random.nextInt(256), (short)random.nextInt(256)}, y, x);
+			}
+		}
+		check(ROIProfile.box(image, null, BOX, true), BoxProfileTool.getBox(image, null, BOX));
+		check(ROIProfile.boxMean(image, null, BOX, true), BoxProfileTool.getBoxMean(image, null, BOX));
+	}
+
+	private static void check(Dataset[] expected, Dataset[] actual) {
+		for (int i = 0; i < 2; i++) {
+			assertEquals(expected[i].getSize(), actual[i].getSize());
+			for (int j = 0; j < actual[i].getSize(); j++) {
+				assertEquals(expected[i].getDouble(j), actual[i].getDouble(j), 1e-6);
+			}
+		}
+	}
+
+	private static Dataset createImage(int rows, int cols) {
+		final Random   random = new Random(1);
+		final double[] data   = new double[rows*cols];
+		for (int i = 0; i < data.length; i++) data[i] = 1000*random.nextDouble();
+		return new DoubleDataset(data, rows, cols);
+	}
+}
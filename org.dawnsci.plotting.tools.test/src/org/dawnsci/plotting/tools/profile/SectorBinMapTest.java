@@ -0,0 +1,247 @@
+package org.dawnsci.plotting.tools.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.BooleanDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.FloatDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.IntegerDataset;
+import org.eclipse.dawnsci.analysis.dataset.roi.SectorROI;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.roi.ROIProfile;
+import uk.ac.diamond.scisoft.analysis.roi.XAxis;
+
+/**
+ * Every bin of every profile is checked against each part of each pixel of the
+ * whole image binned one by one. The profile binned in one pass, as while a sector
+ * is dragged, must be the same as the one from the map to the last bit, so that
+ * the profile does not change when the map is made.
+ */
+public class SectorBinMapTest {
+
+	private static final int ROWS = 200, COLS = 180;
+
+	private static final SectorROI SECTOR = new SectorROI(90.3, 101.7, 10, 80, 0.3, 2.1, 1.0, false, SectorROI.NONE);
+
+	@Test
+	public void testRadialProfile() {
+		check(createImage(ROWS, COLS), SECTOR, null, true);
+	}
+
+	@Test
+	public void testAzimuthalProfile() {
+		check(createImage(ROWS, COLS), SECTOR, null, false);
+	}
+
+	@Test
+	public void testMask() {
+		final Dataset        image = createImage(ROWS, COLS);
+		final BooleanDataset mask  = createMask(ROWS, COLS);
+		check(image, SECTOR, mask, true);
+		check(image, SECTOR, mask, false);
+	}
+
+	/**
+	 * Sectors past the edges of the image, across the start angle and from the
+	 * centre, where the bins are only partly on the image or nearly empty.
+	 */
+	@Test
+	public void testClippedSectors() {
+		final Dataset image = createImage(ROWS, COLS);
+		final SectorROI[] sectors = {
+			new SectorROI(5.5, 190.2, 0, 120, -0.4, 1.2, 1.0, false, SectorROI.NONE),
+			new SectorROI(170.1, 3.9, 2.5, 60.5, 1.9, 4.4, 1.0, false, SectorROI.NONE),
+			new SectorROI(90.5, 100.5, 0, 30, 5.9, 6.9, 1.0, false, SectorROI.NONE),
+			new SectorROI(-20.3, -15.8, 30, 90, 0.2, 1.4, 1.0, false, SectorROI.NONE),
+		};
+		for (SectorROI sroi : sectors) {
+			check(image, sroi, null, true);
+			check(image, sroi, null, false);
+		}
+	}
+
+	@Test
+	public void testNaNs() {
+		final float[] data = new float[ROWS*COLS];
+		final Random  random = new Random(5);
+		for (int i = 0; i < data.length; i++) data[i] = random.nextInt(25)==0 ? Float.NaN : random.nextFloat()*1000;
+		final Dataset image = new FloatDataset(data, ROWS, COLS);
+		check(image, SECTOR, null, true);
+		check(image, SECTOR, createMask(ROWS, COLS), false);
+	}
+
+	/**
+	 * Large counts lose digits if the weights are multiplied in float.
+	 */
+	@Test
+	public void testIntegerImage() {
+		final int[]  data   = new int[ROWS*COLS];
+		final Random random = new Random(6);
+		for (int i = 0; i < data.length; i++) data[i] = 50000000 + random.nextInt(1000);
+		final Dataset image = new IntegerDataset(data, ROWS, COLS);
+		check(image, SECTOR, null, true);
+		check(image, SECTOR, null, false);
+	}
+
+	@Test
+	public void testSliceView() {
+		final Dataset image = createImage(ROWS+10, COLS+20).getSliceView(new int[]{4, 9}, new int[]{4+ROWS, 9+COLS}, null);
+		check(image, SECTOR, null, true);
+		check(image, SECTOR, null, false);
+	}
+
+	/**
+	 * Enough pixels for the map to be integrated in blocks of bins on the pool.
+	 */
+	@Test
+	public void testLargeImage() {
+		final SectorROI sroi = new SectorROI(700.2, 699.6, 5, 690, 0.1, 6.0, 1.0, false, SectorROI.NONE);
+		check(createImage(1400, 1400), sroi, null, true);
+	}
+
+	/**
+	 * ROIProfile interpolates where the map splits pixels, so only the totals are close.
+	 */
+	@Test
+	public void testTotalsAgreeWithROIProfile() {
+		final Dataset image = createImage(ROWS, COLS);
+		final Dataset radial = ROIProfile.sector(image, null, SECTOR, true, false, false, null, XAxis.PIXEL, false)[0];
+		final Dataset actual = SectorBinMap.getProfile(image, SECTOR, null, true);
+		assertEquals(radial.getSize(), actual.getSize());
+		assertEquals(sum(radial), sum(actual), 0.01*sum(radial));
+
+		final Dataset azimuthal = ROIProfile.sector(image, null, SECTOR, false, true, false)[1];
+		assertEquals(azimuthal.getSize(), SectorBinMap.getProfile(image, SECTOR, null, false).getSize());
+	}
+
+	@Test
+	public void testNotMappable() {
+		assertFalse(SectorBinMap.isMappable(new SectorROI(90, 100, 10, 80, 0.3, 2.1, 2.0, false, SectorROI.NONE)));
+		assertFalse(SectorBinMap.isMappable(new SectorROI(90, 100, 10, 80, 0.3, 2.1, 1.0, true, SectorROI.NONE)));
+		assertFalse(SectorBinMap.isMappable(new SectorROI(90, 100, 10, 80, 0.3, 2.1, 1.0, false, SectorROI.FULL)));
+		assertTrue(SectorBinMap.isMappable(SECTOR));
+	}
+
+	/**
+	 * Masks are edited in place, the sector tools clear the maps when they are told.
+	 */
+	@Test
+	public void testClear() {
+		final BooleanDataset mask = createMask(ROWS, COLS);
+		final SectorBinMap   map  = getMap(mask.getShape(), SECTOR, mask, true);
+		assertSame(map, SectorBinMap.getMap(mask.getShape(), SECTOR, mask, true));
+
+		SectorBinMap.clear();
+		assertNotSame(map, getMap(mask.getShape(), SECTOR, mask, true));
+	}
+
+	/**
+	 * While a sector is dragged each geometry is new and no map is made.
+	 */
+	@Test
+	public void testOnlyRepeatedGeometryIsMapped() {
+		SectorBinMap.clear();
+		final int[] shape = new int[]{ROWS, COLS};
+		assertNull(SectorBinMap.getMap(shape, new SectorROI(90.3, 101.7, 10, 80, 0.3, 2.1, 1.0, false, SectorROI.NONE), null, true));
+		assertNull(SectorBinMap.getMap(shape, new SectorROI(91.3, 101.7, 10, 80, 0.3, 2.1, 1.0, false, SectorROI.NONE), null, true));
+		assertNull(SectorBinMap.getMap(shape, new SectorROI(92.3, 101.7, 10, 80, 0.3, 2.1, 1.0, false, SectorROI.NONE), null, true));
+
+		final SectorROI sroi = new SectorROI(92.3, 101.7, 10, 80, 0.3, 2.1, 1.0, false, SectorROI.NONE);
+		final SectorBinMap map = SectorBinMap.getMap(shape, sroi, null, true);
+		assertNotNull(map);
+		assertSame(map, SectorBinMap.getMap(shape, sroi, null, true));
+	}
+
+	/**
+	 * The profile binned in one pass, then from the map, against the reference.
+	 */
+	private static void check(Dataset image, SectorROI sroi, Dataset mask, boolean radial) {
+
+		assertTrue(SectorBinMap.isMappable(sroi));
+		SectorBinMap.clear();
+		final Dataset once   = SectorBinMap.getProfile(image, sroi, mask, radial);
+		final Dataset mapped = SectorBinMap.getProfile(image, sroi, mask, radial);
+		assertNotNull("Mapped on the second call", SectorBinMap.getMap(image.getShape(), sroi, mask, radial));
+
+		final double[] expected = getReference(image, sroi, mask, radial);
+		assertEquals(expected.length, once.getSize());
+		assertEquals(expected.length, mapped.getSize());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("Bin "+i+" of "+sroi, once.getDouble(i), mapped.getDouble(i), 0);
+			assertEquals("Bin "+i+" of "+sroi, expected[i], mapped.getDouble(i), 1e-10*Math.max(1, Math.abs(expected[i])));
+		}
+	}
+
+	/**
+	 * Each quarter of each pixel of the image is binned by its centre.
+	 */
+	private static double[] getReference(Dataset image, SectorROI sroi, Dataset mask, boolean radial) {
+
+		final int    height = image.getShape()[0], width = image.getShape()[1];
+		final double cx = sroi.getPointX(), cy = sroi.getPointY();
+		final double r0 = sroi.getRadius(0), r1 = sroi.getRadius(1), a0 = sroi.getAngle(0);
+		final double span  = Math.min(sroi.getAngle(1)-a0, 2*Math.PI);
+		final int    bins  = Math.max(1, radial ? (int)Math.ceil(r1-r0) : (int)Math.ceil(span*r1));
+		final double scale = radial ? bins/(r1-r0) : bins/span;
+
+		final double[] profile = new double[bins];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (mask!=null && !mask.getBoolean(y, x)) continue;
+				final double v = image.getDouble(y, x);
+				if (Double.isNaN(v)) continue;
+				for (int sy = 0; sy < 2; sy++) {
+					for (int sx = 0; sx < 2; sx++) {
+						final double dx = x+(sx+0.5)*0.5 - cx, dy = y+(sy+0.5)*0.5 - cy;
+						final double r  = Math.sqrt(dx*dx+dy*dy);
+						if (r<r0 || r>=r1) continue;
+						double a = Math.atan2(dy, dx) - a0;
+						a -= 2*Math.PI*Math.floor(a/(2*Math.PI));
+						if (a>=span) continue;
+						profile[Math.min(bins-1, (int)((radial ? r-r0 : a)*scale))] += 0.25*v;
+					}
+				}
+			}
+		}
+		return profile;
+	}
+
+	/**
+	 * The first call with a geometry makes no map, the second does.
+	 */
+	private static SectorBinMap getMap(int[] shape, SectorROI sroi, Dataset mask, boolean radial) {
+		final SectorBinMap map = SectorBinMap.getMap(shape, sroi, mask, radial);
+		return map!=null ? map : SectorBinMap.getMap(shape, sroi, mask, radial);
+	}
+
+	private static double sum(Dataset profile) {
+		double sum = 0;
+		for (int i = 0; i < profile.getSize(); i++) sum += profile.getDouble(i);
+		return sum;
+	}
+
+	private static Dataset createImage(int rows, int cols) {
+		final double[] data = new double[rows*cols];
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < cols; x++) data[y*cols+x] = 100 + 0.5*x + 0.3*y + 20*Math.sin(x*y/97d);
+		}
+		return new DoubleDataset(data, rows, cols);
+	}
+
+	private static BooleanDataset createMask(int rows, int cols) {
+		final Random    random = new Random(2);
+		final boolean[] data   = new boolean[rows*cols];
+		for (int i = 0; i < data.length; i++) data[i] = random.nextInt(10)!=0;
+		return new BooleanDataset(data, rows, cols);
+	}
+}
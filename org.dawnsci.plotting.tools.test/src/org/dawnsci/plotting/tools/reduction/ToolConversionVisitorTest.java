@@ -0,0 +1,177 @@
+package org.dawnsci.plotting.tools.reduction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.dawb.common.services.conversion.IConversionContext;
+import org.dawb.common.ui.plot.tools.IDataReductionToolPage;
+import org.dawb.common.ui.plot.tools.IDataReductionToolPage.DataReductionInfo;
+import org.dawb.common.ui.plot.tools.IDataReductionToolPage.DataReductionSlice;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.dawnsci.analysis.api.io.IDataHolder;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.io.LoaderFactory;
+
+/**
+ * A tool which exports several datasets a slice is run with and without the
+ * workers, the files must have the same data in the same order.
+ */
+public class ToolConversionVisitorTest {
+
+	private static final int SLICES = 50;
+
+	@Test
+	public void testParallelWritesSameFile() throws Exception {
+
+		final List<Dataset> slices = createSlices();
+
+		final File serial   = File.createTempFile("serial_reduction", ".h5");
+		final File parallel = File.createTempFile("parallel_reduction", ".h5");
+		serial.delete();
+		parallel.delete();
+		try {
+			final List<Thread> stateThreads = Collections.synchronizedList(new ArrayList<Thread>());
+			reduce(createTool(false, stateThreads, null, null), serial, slices);
+			reduce(createTool(true, stateThreads, null, null), parallel, slices);
+			if (Runtime.getRuntime().availableProcessors()>1) {
+				assertEquals("The state is read once", 1, stateThreads.size());
+				assertEquals("The state is read on the calling thread", Thread.currentThread(), stateThreads.get(0));
+			}
+
+			final IDataHolder expected = LoaderFactory.getData(serial.getAbsolutePath(), false, true, null);
+			final IDataHolder actual   = LoaderFactory.getData(parallel.getAbsolutePath(), false, true, null);
+			assertArrayEquals(expected.getNames(), actual.getNames());
+			assertTrue(expected.getNames().length>=3);
+			for (String name : expected.getNames()) {
+				final Dataset e = (Dataset)expected.getDataset(name);
+				final Dataset a = (Dataset)actual.getDataset(name);
+				assertArrayEquals(name, e.getShape(), a.getShape());
+				assertEquals(name, e, a);
+			}
+		} finally {
+			serial.delete();
+			parallel.delete();
+		}
+	}
+
+	/**
+	 * An Error in the export of a slice on a worker is thrown on the calling thread,
+	 * as it was thrown, and the slices after it do not wait for it for ever.
+	 */
+	@Test(timeout=60000)
+	public void testErrorInWorker() throws Exception {
+
+		final List<Dataset> slices = createSlices();
+		final Error         error  = new Error("Export of slice 10 failed");
+		final File          file   = File.createTempFile("failed_reduction", ".h5");
+		file.delete();
+		Error thrown = null;
+		try {
+			final List<Thread> stateThreads = Collections.synchronizedList(new ArrayList<Thread>());
+			reduce(createTool(true, stateThreads, slices.get(10), error), file, slices);
+		} catch (Error ne) {
+			thrown = ne;
+		} finally {
+			file.delete();
+		}
+		assertSame(error, thrown);
+	}
+
+	private static List<Dataset> createSlices() {
+		final List<Dataset> slices = new ArrayList<Dataset>(SLICES);
+		final Random random = new Random(11);
+		for (int i = 0; i < SLICES; i++) {
+			final double[] data = new double[64*48];
+			for (int j = 0; j < data.length; j++) data[j] = random.nextGaussian()*10+i;
+			slices.add(new DoubleDataset(data, 64, 48));
+		}
+		return slices;
+	}
+
+	private static void reduce(IDataReductionToolPage tool, File file, List<Dataset> slices) throws Exception {
+		final IConversionContext    context = createContext(file);
+		final ToolConversionVisitor visitor = new ToolConversionVisitor(tool);
+		visitor.init(context);
+		try {
+			for (Dataset slice : slices) visitor.visit(context, slice);
+		} finally {
+			visitor.close(context);
+		}
+	}
+
+	/**
+	 * The export writes the sums of the rows scaled by the state, the maxima of
+	 * the rows and the first row.
+	 *
+	 * @param failing slice whose export throws the error, may be null
+	 */
+	private static IDataReductionToolPage createTool(boolean parallel, final List<Thread> stateThreads, final Dataset failing, final Error error) {
+		final Class<?> type = parallel ? IParallelReductionToolPage.class : IDataReductionToolPage.class;
+		return (IDataReductionToolPage)Proxy.newProxyInstance(ToolConversionVisitorTest.class.getClassLoader(), new Class<?>[]{type}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				final String name = method.getName();
+				if ("getTitle".equals(name))       return "Test reduction";
+				if ("exportInit".equals(name))     return "test";
+				if ("exportFinished".equals(name)) return null;
+				if ("getExportState".equals(name)) {
+					stateThreads.add(Thread.currentThread());
+					return 2d;
+				}
+				if ("export".equals(name)) {
+					final DataReductionSlice slice = (DataReductionSlice)args[0];
+					final double             scale = args.length>1 ? (Double)args[1] : 2d;
+					final Dataset            data  = (Dataset)slice.getData();
+					if (failing!=null && failing.equals(data)) throw error;
+
+					final Dataset sum = data.sum(1);
+					sum.imultiply(scale);
+					sum.setName("sum");
+					slice.appendData(sum);
+
+					final Dataset max = data.max(1);
+					max.setName("max");
+					slice.appendData(max);
+
+					final Dataset first = data.getSlice(new int[]{0, 0}, new int[]{1, data.getShape()[1]}, null).squeeze();
+					first.setName("first_row");
+					slice.appendData(first);
+					return new DataReductionInfo(Status.OK_STATUS);
+				}
+				return getDefault(method.getReturnType());
+			}
+		});
+	}
+
+	private static IConversionContext createContext(final File file) {
+		return (IConversionContext)Proxy.newProxyInstance(ToolConversionVisitorTest.class.getClassLoader(), new Class<?>[]{IConversionContext.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getOutputPath".equals(method.getName())) return file.getAbsolutePath();
+				return getDefault(method.getReturnType());
+			}
+		});
+	}
+
+	private static Object getDefault(Class<?> type) {
+		if (type==boolean.class) return false;
+		if (type==int.class)     return 0;
+		if (type==long.class)    return 0L;
+		if (type==double.class)  return 0d;
+		return null;
+	}
+}
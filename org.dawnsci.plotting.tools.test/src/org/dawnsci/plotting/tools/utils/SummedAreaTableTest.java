@@ -0,0 +1,215 @@
+package org.dawnsci.plotting.tools.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.BooleanDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.RGBDataset;
+import org.eclipse.dawnsci.analysis.dataset.roi.RectangularROI;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.roi.ROIProfile;
+
+public class SummedAreaTableTest {
+
+	private static final int ROWS = 301, COLS = 257;
+
+	private static final int[][] BOXES = {{0, 0, COLS, ROWS}, {10, 20, 100, 50}, {200, 250, 57, 51}, {5, 7, 1, 1}};
+
+	@Test
+	public void testDoubleImage() {
+		checkBoxes(createImage(ROWS, COLS), null);
+	}
+
+	@Test
+	public void testIntegerImage() {
+		checkBoxes(DatasetUtils.cast(createImage(ROWS, COLS), Dataset.INT32), null);
+	}
+
+	@Test
+	public void testMask() {
+		checkBoxes(createImage(ROWS, COLS), createMask(ROWS, COLS));
+		checkBoxes(DatasetUtils.cast(createImage(ROWS, COLS), Dataset.INT32), createMask(ROWS, COLS));
+	}
+
+	/**
+	 * Views share the buffer of the original and are read by their strides.
+	 */
+	@Test
+	public void testSliceView() {
+		final Dataset image = createImage(2*ROWS+9, 2*COLS+5).getSliceView(new int[]{3,1}, new int[]{3+2*ROWS,1+2*COLS}, new int[]{2,2});
+		final Dataset mask  = createMask(2*ROWS+9, 2*COLS+5).getSliceView(new int[]{3,1}, new int[]{3+2*ROWS,1+2*COLS}, new int[]{2,2});
+		checkBoxes(image, null);
+		checkBoxes(image, mask);
+	}
+
+	/**
+	 * NaNs are left out of the table, the box tools go to ROIProfile for them.
+	 */
+	@Test
+	public void testNaN() {
+		final Dataset image = createImage(ROWS, COLS);
+		final SummedAreaTable finite = SummedAreaTable.getTable(image, null);
+		assertTrue(finite.isFinite());
+
+		image.set(Double.NaN, 40, 30);
+		SummedAreaTable.clear();
+		final SummedAreaTable table = SummedAreaTable.getTable(image, null);
+		assertFalse(table.isFinite());
+		assertEquals(1, COLS*ROWS - table.getCount(0, 0, COLS, ROWS));
+		assertEquals(sum(image, null, 0, 0, COLS, ROWS), table.getSum(0, 0, COLS, ROWS), 1e-6);
+
+		final BooleanDataset mask = createMask(ROWS, COLS);
+		mask.set(false, 40, 30);
+		assertTrue(SummedAreaTable.getTable(image, mask).isFinite());
+	}
+
+	/**
+	 * Boxes dragged past each edge of the image are clipped as ROIProfile clips
+	 * them, the table gives the profiles of the part on the image.
+	 */
+	@Test
+	public void testClippedBox() {
+		final Dataset        image = createImage(ROWS, COLS);
+		final BooleanDataset mask  = createMask(ROWS, COLS);
+		final int[][] boxes = {{COLS-40, ROWS-30, 100, 80}, {-25, -12, 60, 45}, {-5, 100, COLS+10, 20}, {50, -3, 10, ROWS+9}};
+		for (Dataset m : new Dataset[]{null, mask}) {
+			SummedAreaTable.clear();
+			final SummedAreaTable table = SummedAreaTable.getTable(image, m);
+			for (int[] box : boxes) {
+				final RectangularROI roi = new RectangularROI(box[0], box[1], box[2], box[3], 0);
+				final int x0 = Math.max(0, box[0]), x1 = Math.min(box[0]+box[2], COLS);
+				final int y0 = Math.max(0, box[1]), y1 = Math.min(box[1]+box[3], ROWS);
+
+				assertEquals(sum(image, m, x0, y0, x1, y1), table.getSum(x0, y0, x1, y1), 1e-6);
+				check(ROIProfile.box(image, m, roi, true), table.getBoxProfiles(x0, y0, x1, y1));
+				check(ROIProfile.boxMean(image, m, roi, true), table.getBoxMeans(x0, y0, x1, y1));
+			}
+		}
+	}
+
+	/**
+	 * The region sum tool sums without the mask and the box tools with it, each
+	 * keeps its table while the other is used.
+	 */
+	@Test
+	public void testTablesWithAndWithoutMask() {
+		SummedAreaTable.clear();
+		final Dataset        image = createImage(ROWS, COLS);
+		final BooleanDataset mask  = createMask(ROWS, COLS);
+		final SummedAreaTable unmasked = SummedAreaTable.getTable(image, null);
+		final SummedAreaTable masked   = SummedAreaTable.getTable(image, mask);
+		assertNotSame(unmasked, masked);
+		assertTrue(unmasked.isFor(image, null));
+		assertTrue(masked.isFor(image, mask));
+		for (int i = 0; i < 3; i++) {
+			assertSame(unmasked, SummedAreaTable.getTable(image, null));
+			assertSame(masked, SummedAreaTable.getTable(image, mask));
+		}
+
+		// Equal values in another object are other data
+		final Dataset copy = image.clone();
+		assertNotSame(unmasked, SummedAreaTable.getTable(copy, null));
+		assertSame(unmasked, SummedAreaTable.getTable(image, null));
+	}
+
+	/**
+	 * Only the last few tables are kept, the one used last is never dropped.
+	 */
+	@Test
+	public void testOldestTableDropped() {
+		SummedAreaTable.clear();
+		final Dataset first = createImage(20, 30);
+		final SummedAreaTable table = SummedAreaTable.getTable(first, null);
+		final Dataset[] others = new Dataset[10];
+		for (int i = 0; i < others.length; i++) {
+			others[i] = createImage(20, 30);
+			SummedAreaTable.getTable(others[i], null);
+		}
+		assertNotSame(table, SummedAreaTable.getTable(first, null));
+		final SummedAreaTable last = SummedAreaTable.getTable(others[others.length-1], null);
+		assertSame(last, SummedAreaTable.getTable(others[others.length-1], null));
+	}
+
+	@Test
+	public void testRGBIsNotSummable() {
+		assertFalse(SummedAreaTable.isSummable(new RGBDataset(ROWS, COLS)));
+		assertTrue(SummedAreaTable.isSummable(createImage(ROWS, COLS)));
+	}
+
+	/**
+	 * Masks are edited in place, the tools clear the table when they are told.
+	 */
+	@Test
+	public void testClear() {
+		final Dataset        image = createImage(ROWS, COLS);
+		final BooleanDataset mask  = createMask(ROWS, COLS);
+		final SummedAreaTable table = SummedAreaTable.getTable(image, mask);
+		assertSame(table, SummedAreaTable.getTable(image, mask));
+
+		mask.set(!mask.getBoolean(3, 4), 3, 4);
+		SummedAreaTable.clear();
+		final SummedAreaTable edited = SummedAreaTable.getTable(image, mask);
+		assertNotSame(table, edited);
+		assertEquals(sum(image, mask, 0, 0, COLS, ROWS), edited.getSum(0, 0, COLS, ROWS), 1e-6);
+	}
+
+	private static void checkBoxes(Dataset image, Dataset mask) {
+
+		SummedAreaTable.clear();
+		final SummedAreaTable table = SummedAreaTable.getTable(image, mask);
+		for (int[] box : BOXES) {
+			final RectangularROI roi = new RectangularROI(box[0], box[1], box[2], box[3], 0);
+			final int x0 = box[0], y0 = box[1], x1 = box[0]+box[2], y1 = box[1]+box[3];
+
+			assertEquals(sum(image, mask, x0, y0, x1, y1), table.getSum(x0, y0, x1, y1), 1e-6);
+
+			check(ROIProfile.box(image, mask, roi, true), table.getBoxProfiles(x0, y0, x1, y1));
+			check(ROIProfile.boxMean(image, mask, roi, true), table.getBoxMeans(x0, y0, x1, y1));
+		}
+	}
+
+	private static void check(Dataset[] expected, Dataset[] actual) {
+		for (int i = 0; i < 2; i++) {
+			assertEquals(expected[i].getSize(), actual[i].getSize());
+			for (int j = 0; j < actual[i].getSize(); j++) {
+				final double e = expected[i].getDouble(j);
+				assertEquals(e, actual[i].getDouble(j), Math.max(1e-6, Math.abs(e)*1e-10));
+			}
+		}
+	}
+
+	private static double sum(Dataset image, Dataset mask, int x0, int y0, int x1, int y1) {
+		double sum = 0;
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				if (mask!=null && !mask.getBoolean(y, x)) continue;
+				final double v = image.getDouble(y, x);
+				if (!Double.isNaN(v)) sum += v;
+			}
+		}
+		return sum;
+	}
+
+	private static Dataset createImage(int rows, int cols) {
+		final Random   random = new Random(1);
+		final double[] data   = new double[rows*cols];
+		for (int i = 0; i < data.length; i++) data[i] = Math.round(1000*random.nextDouble());
+		return new DoubleDataset(data, rows, cols);
+	}
+
+	private static BooleanDataset createMask(int rows, int cols) {
+		final Random    random = new Random(2);
+		final boolean[] data   = new boolean[rows*cols];
+		for (int i = 0; i < data.length; i++) data[i] = random.nextInt(10)!=0;
+		return new BooleanDataset(data, rows, cols);
+	}
+}
@@ -15,6 +15,7 @@ import org.dawb.common.ui.menu.CheckableActionGroup;
 import org.dawb.common.ui.menu.MenuAction;
 import org.dawb.common.ui.widgets.FontExtenderWidget;
 import org.dawb.common.util.number.DoubleUtils;
+import org.dawnsci.plotting.tools.utils.SummedAreaTable;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
@@ -130,6 +131,7 @@ public class RegionSumTool extends AbstractToolPage implements IROIListener {
 
 			@Override
 			protected void update(TraceEvent evt) {
+				SummedAreaTable.clear(); // The data may have been changed in place
 				RegionSumTool.this.update(region, currentROI, false);
 			}
 		};
@@ -465,17 +467,32 @@ public class RegionSumTool extends AbstractToolPage implements IROIListener {
 		Dataset dataRegion = (Dataset)image.getData();
 
 		if(dataRegion == null) return;
-		try {
-			dataRegion = dataRegion.getSlice(
-					new int[] { yStartPt, xStartPt },
-					new int[] { yStopPt, xStopPt },
-					new int[] {yInc, xInc});
-			if (monitor!= null && monitor.isCanceled()) return;
-		} catch (IllegalArgumentException e) {
-			logger.debug("Error getting region data:"+ e);
+
+		// The rows and columns of the slice, reversed if the box is drawn backwards
+		final int x0 = xInc>0 ? xStartPt : xStopPt+1;
+		final int x1 = xInc>0 ? xStopPt  : xStartPt+1;
+		final int y0 = yInc>0 ? yStartPt : yStopPt+1;
+		final int y1 = yInc>0 ? yStopPt  : yStartPt+1;
+		final int[] shape = dataRegion.getShape();
+
+		double sum;
+		if (SummedAreaTable.isSummable(dataRegion) && x0>=0 && y0>=0 && x0<x1 && y0<y1 && x1<=shape[1] && y1<=shape[0]) {
+			// Dragging a large box would sum every pixel in it for each event
+			sum = SummedAreaTable.getTable(dataRegion, null).getSum(x0, y0, x1, y1);
+		} else {
+			try {
+				dataRegion = dataRegion.getSlice(
+						new int[] { yStartPt, xStartPt },
+						new int[] { yStopPt, xStopPt },
+						new int[] {yInc, xInc});
+				if (monitor!= null && monitor.isCanceled()) return;
+			} catch (IllegalArgumentException e) {
+				logger.debug("Error getting region data:"+ e);
+			}
+			sum = (Double)dataRegion.sum(true);
 		}
 		//round the Sum to n decimal
-		double value = DoubleUtils.roundDouble((Double)dataRegion.sum(true), precision);
+		double value = DoubleUtils.roundDouble(sum, precision);
 
 		if(isSciNotation){
 			sumStr = sciNotationFormat.format(value);
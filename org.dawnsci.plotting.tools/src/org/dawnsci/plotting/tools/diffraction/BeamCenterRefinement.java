@@ -14,14 +14,8 @@ import java.util.List;
 
 import org.apache.commons.math3.analysis.MultivariateFunction;
 import org.apache.commons.math3.optim.ConvergenceChecker;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
-import org.apache.commons.math3.optim.InitialGuess;
-import org.apache.commons.math3.optim.MaxEval;
 import org.apache.commons.math3.optim.PointValuePair;
-import org.apache.commons.math3.optim.SimpleBounds;
 import org.apache.commons.math3.optim.SimplePointChecker;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.CMAESOptimizer;
 import org.apache.commons.math3.random.Well19937a;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
@@ -48,6 +42,13 @@ import uk.ac.diamond.scisoft.analysis.roi.XAxis;
 
 /**
  * Class for optimising sector region position to increase base on 1D radial profile
+ * 
+ * Each position is evaluated with its own copy of the detector geometry, so the metadata
+ * is only changed once the optimiser has finished and positions may be evaluated at the
+ * same time.
+ * 
+ * Each position is integrated by ROIProfile.sector(...) with clipping compensation, and
+ * the positions of each population are evaluated in parallel by ParallelCMAESOptimizer.
  */
 public class BeamCenterRefinement implements MultivariateFunction {
 
@@ -57,6 +58,8 @@ public class BeamCenterRefinement implements MultivariateFunction {
 	private Dataset dataset, mask;
 	private SectorROI sroi;
 	private XAxis axis;
+	private DetectorProperties detprops;
+	private DiffractionCrystalEnvironment diffexp;
 
 	private int cmaesLambda = 15;
 	private double[] cmaesInputSigma = new double[] { 3.0, 3.0 };
@@ -72,6 +75,26 @@ public class BeamCenterRefinement implements MultivariateFunction {
 		this.mask = mask;
 		this.sroi = sroi;
 		this.axis = XAxis.Q;	// TODO: set this values from Radial Profile and/or Peak Fitting tools 
+		readGeometry();
+	}
+
+	/**
+	 * Copies the geometry of the metadata, positions are evaluated with their own copies of this.
+	 */
+	private void readGeometry() {
+		IMetadata metadata = dataset.getMetadata();
+		if (metadata instanceof IDiffractionMetadata) {
+			IDiffractionMetadata dm = (IDiffractionMetadata)metadata;
+			DetectorProperties detprops = dm.getDetector2DProperties();
+			DiffractionCrystalEnvironment diffexp = dm.getDiffractionCrystalEnvironment();
+			if (detprops != null && diffexp != null) {
+				this.detprops = detprops.clone();
+				this.diffexp = diffexp.clone();
+				return;
+			}
+		}
+		this.detprops = null;
+		this.diffexp = null;
 	}
 
 	/**
@@ -131,30 +154,11 @@ public class BeamCenterRefinement implements MultivariateFunction {
 	@Override
 	public double value(final double[] beamxy) {
 
-		if (monitor.isCanceled()) {
+		if (monitor != null && monitor.isCanceled()) {
 			return Double.NaN;
 		}
-		Display.getDefault().syncExec(new Runnable() {
-			@Override
-			public void run() {
-				((IDiffractionMetadata) dataset.getMetadata()).getDetector2DProperties().setBeamCentreCoords(
-						beamxy);
-			}
-		});
-		SectorROI tmpRoi = new SectorROI(sroi.getPointX(), sroi.getPointY(), sroi.getRadius(0), sroi.getRadius(1), sroi.getAngle(0),
-				sroi.getAngle(1), 1.0, true, sroi.getSymmetry());
-		QSpace qSpace = null;
-		IMetadata metadata = dataset.getMetadata();
-		if (metadata instanceof IDiffractionMetadata) {
-			IDiffractionMetadata dm = (IDiffractionMetadata)metadata;
-			DetectorProperties detprops = dm.getDetector2DProperties();
-	    	DiffractionCrystalEnvironment diffexp = dm.getDiffractionCrystalEnvironment();
-	    	if (detprops != null && diffexp != null) {
-		    	qSpace = new QSpace(detprops, diffexp);
-	    	}
-		}
-		Dataset[] intresult = ROIProfile.sector(dataset, mask, tmpRoi, true, false, false, qSpace, axis, false);
-		Dataset axis = intresult[4];
+		Dataset[] intresult = getProfile(beamxy);
+		Dataset axis = intresult[1];
 		double error = 0.0;
 		ArrayList<IPeak> peaks = new ArrayList<IPeak>(initPeaks.size());
 		List<CompositeFunction> fittedGaussian = Generic1DFitter.fitPeakFunctions(axis, intresult[0], Gaussian.class, new GeneticAlg(0.0001),
@@ -177,6 +181,26 @@ public class BeamCenterRefinement implements MultivariateFunction {
 		return error;
 	}
 
+	/**
+	 * The radial profile of the sector region for a position, with the beam centre of a copy
+	 * of the detector geometry moved to the position.
+	 * 
+	 * @param beamxy
+	 * @return radial profile of the sector region and its axis
+	 */
+	Dataset[] getProfile(double[] beamxy) {
+		QSpace qSpace = null;
+		if (detprops != null && diffexp != null) {
+			DetectorProperties dp = detprops.clone();
+			dp.setBeamCentreCoords(beamxy.clone());
+			qSpace = new QSpace(dp, diffexp.clone());
+		}
+		SectorROI tmpRoi = new SectorROI(sroi.getPointX(), sroi.getPointY(), sroi.getRadius(0), sroi.getRadius(1), sroi.getAngle(0),
+				sroi.getAngle(1), 1.0, true, sroi.getSymmetry());
+		Dataset[] intresult = ROIProfile.sector(dataset, mask, tmpRoi, true, false, false, qSpace, axis, false);
+		return new Dataset[] { intresult[0], intresult[4] };
+	}
+
 	private boolean checkPeakOverlap(ArrayList<IPeak> peaks) {
 		if (peaks.size() < 2)
 			return false;
@@ -195,7 +219,8 @@ public class BeamCenterRefinement implements MultivariateFunction {
 	}
 
 	/**
-	 * Run optimisation of sector region position in a separate job. 
+	 * Run optimisation of sector region position in a separate job. The positions of each
+	 * population of the optimiser are evaluated at the same time.
 	 * 
 	 * @param startPosition Initial position of sector region
 	 */
@@ -206,6 +231,7 @@ public class BeamCenterRefinement implements MultivariateFunction {
 		final int cmaesCheckFeasableCount = this.cmaesCheckFeasableCount;
 		final ConvergenceChecker<PointValuePair> cmaesChecker = this.cmaesChecker;
 		final BeamCenterRefinement function = this;
+		readGeometry();
 		Job job = new Job("Beam Position Refinement") {
 			@Override
 			protected IStatus run(IProgressMonitor monitor) {
@@ -215,21 +241,22 @@ public class BeamCenterRefinement implements MultivariateFunction {
 
 				final double[] lB = new double [] {startPosition[0] - 20, startPosition[1] - 20};
 				final double[] uB = new double [] {startPosition[0] + 20, startPosition[1] + 20};
-				CMAESOptimizer beamPosOptimizer = new CMAESOptimizer(cmaesMaxIterations,
-						0.0,
-						true,
-						0,
+				ParallelCMAESOptimizer beamPosOptimizer = new ParallelCMAESOptimizer(cmaesLambda,
+						cmaesInputSigma,
+						cmaesMaxIterations,
 						cmaesCheckFeasableCount,
-						new Well19937a(),
-						false,
-						cmaesChecker);
-				final PointValuePair result = beamPosOptimizer.optimize(new MaxEval(cmaesMaxIterations),
-						new ObjectiveFunction(function),
-						GoalType.MAXIMIZE,
-						new CMAESOptimizer.PopulationSize(cmaesLambda),
-						new CMAESOptimizer.Sigma(cmaesInputSigma),
-						new SimpleBounds(lB, uB),
-						new InitialGuess(startPosition));
+						cmaesChecker,
+						new Well19937a());
+				final PointValuePair result;
+				try {
+					result = beamPosOptimizer.maximize(function, startPosition, lB, uB, monitor);
+				} catch (Exception e) {
+					logger.error("Beam position optimisation failed", e);
+					return Status.CANCEL_STATUS;
+				}
+				if (result == null || monitor.isCanceled()) {
+					return Status.CANCEL_STATUS;
+				}
 				
 				final double[] newBeamPosition = result.getPoint();
 				logger.info("Optimiser terminated at beam position ({}, {}) with the value {}", new Object[] { newBeamPosition[0], newBeamPosition[1], result.getValue() });
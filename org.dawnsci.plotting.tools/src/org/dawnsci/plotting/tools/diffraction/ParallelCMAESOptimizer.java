@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.tools.diffraction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.optim.ConvergenceChecker;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/**
+ * CMA-ES which maximises a function by evaluating each population at the same time
+ * on a pool of threads. CMAESOptimizer asks for the value of each candidate as it
+ * is made, so its population is always evaluated one candidate after another.
+ *
+ * The strategy is that of CMAESOptimizer with a full, active covariance matrix:
+ * weighted recombination of the best half of the population, cumulative step size
+ * adaption, rank-one and rank-mu updates of the covariance matrix and a negative
+ * update from the worst half. Like CMAESOptimizer a candidate outside the bounds is
+ * drawn again up to checkFeasableCount times, then the function is evaluated at the
+ * nearest point on the bounds and the distance to it taken off the value. Candidates
+ * for which the function is NaN are the worst of their population.
+ *
+ * The function must be safe to call from several threads at once.
+ */
+class ParallelCMAESOptimizer {
+
+	private static ExecutorService pool;
+
+	private static synchronized ExecutorService getPool() {
+		if (pool==null) {
+			pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "Beam position refinement");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return pool;
+	}
+
+	private final int                                lambda;
+	private final double[]                           inputSigma;
+	private final int                                maxIterations;
+	private final int                                checkFeasableCount;
+	private final ConvergenceChecker<PointValuePair> checker;
+	private final RandomGenerator                    random;
+
+	/**
+	 *
+	 * @param lambda population size
+	 * @param inputSigma initial search volume in each direction
+	 * @param maxIterations most generations, also the most evaluations
+	 * @param checkFeasableCount number of times a candidate out of bounds is drawn again
+	 * @param checker convergence of the best candidate of consecutive generations
+	 * @param random
+	 */
+	ParallelCMAESOptimizer(int lambda, double[] inputSigma, int maxIterations, int checkFeasableCount,
+			               ConvergenceChecker<PointValuePair> checker, RandomGenerator random) {
+		this.lambda             = lambda;
+		this.inputSigma         = inputSigma;
+		this.maxIterations      = maxIterations;
+		this.checkFeasableCount = checkFeasableCount;
+		this.checker            = checker;
+		this.random             = random;
+	}
+
+	/**
+	 *
+	 * @param function
+	 * @param start
+	 * @param lower bounds
+	 * @param upper bounds
+	 * @param monitor
+	 * @return best point found and its value, null if the monitor was cancelled first
+	 * @throws Exception if the function throws one
+	 */
+	PointValuePair maximize(final MultivariateFunction function, double[] start, double[] lower, double[] upper, IProgressMonitor monitor) throws Exception {
+
+		final int n = start.length;
+
+		// Selection and recombination
+		final int      mu      = lambda/2;
+		final double[] weights = new double[mu];
+		double sum = 0, sumSq = 0;
+		for (int i = 0; i < mu; i++) {
+			weights[i] = Math.log(mu+0.5)-Math.log(i+1);
+			sum += weights[i];
+		}
+		for (int i = 0; i < mu; i++) {
+			weights[i] /= sum;
+			sumSq += weights[i]*weights[i];
+		}
+		final double mueff = 1/sumSq;
+
+		// Adaption
+		final double cc     = (4+mueff/n)/(n+4+2*mueff/n);
+		final double cs     = (mueff+2)/(n+mueff+3);
+		final double c1     = 2/((n+1.3)*(n+1.3)+mueff);
+		final double cmu    = Math.min(1-c1, 2*(mueff-2+1/mueff)/((n+2)*(n+2)+mueff));
+		final double cneg   = (1-cmu)*0.25*mueff/(Math.pow(n+2, 1.5)+2*mueff);
+		final double damps  = (1+2*Math.max(0, Math.sqrt((mueff-1)/(n+1))-1))*Math.max(0.3, 1-n/(1e-6+maxIterations/lambda))+cs;
+		final double chiN   = Math.sqrt(n)*(1-1/(4d*n)+1/(21d*n*n));
+
+		double sigma = 0;
+		for (double s : inputSigma) sigma = Math.max(sigma, s);
+		final double stopTolX = 1e-11*sigma;
+
+		double[]   mean = start.clone();
+		double[]   pc   = new double[n], ps = new double[n];
+		double[][] c    = new double[n][n];
+		for (int i = 0; i < n; i++) c[i][i] = (inputSigma[i]/sigma)*(inputSigma[i]/sigma);
+
+		PointValuePair best = null, last = null;
+		int evaluations = 0;
+		for (int iteration = 1; iteration <= maxIterations && evaluations < maxIterations; iteration++) {
+
+			if (monitor.isCanceled()) return best;
+
+			final double[][] b = new double[n][];
+			final double[]   d = decompose(c, b);
+
+			// Sample the population, then evaluate it all at once on the bounds
+			final double[][] z = new double[lambda][], x = new double[lambda][], repaired = new double[lambda][];
+			for (int k = 0; k < lambda; k++) {
+				for (int i = 0; ; i++) {
+					z[k] = new double[n];
+					for (int j = 0; j < n; j++) z[k][j] = random.nextGaussian();
+					x[k] = add(mean, sigma, multiply(b, d, z[k]));
+					if (i>=checkFeasableCount || isFeasible(x[k], lower, upper)) break;
+				}
+				repaired[k] = new double[n];
+				for (int j = 0; j < n; j++) repaired[k][j] = Math.min(upper[j], Math.max(lower[j], x[k][j]));
+			}
+
+			final List<Future<Double>> values = new ArrayList<Future<Double>>(lambda);
+			for (final double[] point : repaired) {
+				values.add(getPool().submit(new Callable<Double>() {
+					@Override
+					public Double call() throws Exception {
+						return function.value(point);
+					}
+				}));
+			}
+			final PointValuePair[] population = new PointValuePair[lambda];
+			try {
+				for (int k = 0; k < lambda; k++) {
+					double penalty = 0;
+					for (int j = 0; j < n; j++) penalty += Math.abs(x[k][j]-repaired[k][j]);
+					population[k] = new PointValuePair(repaired[k], values.get(k).get()-penalty);
+				}
+			} catch (ExecutionException ne) {
+				for (Future<Double> value : values) value.cancel(false);
+				if (ne.getCause() instanceof Exception) throw (Exception)ne.getCause();
+				throw ne;
+			}
+			evaluations += lambda;
+
+			final Integer[] order = new Integer[lambda];
+			for (int k = 0; k < lambda; k++) order[k] = k;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					final double v1 = population[o1].getValue(), v2 = population[o2].getValue();
+					if (Double.isNaN(v1)) return Double.isNaN(v2) ? 0 : 1;
+					if (Double.isNaN(v2)) return -1;
+					return Double.compare(v2, v1);
+				}
+			});
+			final PointValuePair current = population[order[0]];
+			if (!Double.isNaN(current.getValue()) && (best==null || current.getValue()>best.getValue())) best = current;
+
+			// Recombination of the candidates as they were drawn
+			final double[] old = mean;
+			final double[] zmean = new double[n];
+			mean = new double[n];
+			for (int i = 0; i < mu; i++) {
+				final double[] xi = x[order[i]], zi = z[order[i]];
+				for (int j = 0; j < n; j++) {
+					mean[j]  += weights[i]*xi[j];
+					zmean[j] += weights[i]*zi[j];
+				}
+			}
+
+			// Evolution paths, ps uses C^-1/2 (mean-old)/sigma = B zmean
+			double psNorm = 0;
+			for (int i = 0; i < n; i++) {
+				double bz = 0;
+				for (int j = 0; j < n; j++) bz += b[i][j]*zmean[j];
+				ps[i] = (1-cs)*ps[i] + Math.sqrt(cs*(2-cs)*mueff)*bz;
+				psNorm += ps[i]*ps[i];
+			}
+			psNorm = Math.sqrt(psNorm);
+			final boolean hsig = psNorm/Math.sqrt(1-Math.pow(1-cs, 2*iteration))/chiN < 1.4+2d/(n+1);
+			for (int j = 0; j < n; j++) pc[j] = (1-cc)*pc[j] + (hsig ? Math.sqrt(cc*(2-cc)*mueff)*(mean[j]-old[j])/sigma : 0);
+
+			// Active update, the worst candidates with their lengths mirrored so that long steps count least
+			final double[][] neg   = new double[mu][];
+			final double[]   norms = new double[mu];
+			for (int k = 0; k < mu; k++) {
+				neg[k]   = z[order[lambda-1-k]];
+				norms[k] = norm(neg[k]);
+			}
+			final double[] sorted = norms.clone();
+			Arrays.sort(sorted);
+			double negSum = 0;
+			for (int k = 0; k < mu; k++) {
+				final int    rank  = Arrays.binarySearch(sorted, norms[k]);
+				final double scale = norms[k]>0 ? sorted[mu-1-rank]/norms[k] : 0;
+				neg[k] = multiply(b, d, neg[k]);
+				for (int j = 0; j < n; j++) neg[k][j] *= scale;
+				negSum += weights[k]*scale*scale;
+			}
+			final double negccov = negSum>0 ? Math.min(cneg, (1-0.66)/negSum) : cneg;
+
+			// Covariance, rank-one, rank-mu and negative
+			final double   oldFac = 1-c1-cmu + (hsig ? 0 : c1*cc*(2-cc)) + 0.5*negccov;
+			final double[][] next = new double[n][n];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j <= i; j++) {
+					double rankMu = 0, rankNeg = 0;
+					for (int k = 0; k < mu; k++) {
+						final double[] xk = x[order[k]];
+						rankMu  += weights[k]*(xk[i]-old[i])/sigma*(xk[j]-old[j])/sigma;
+						rankNeg += weights[k]*neg[k][i]*neg[k][j];
+					}
+					next[i][j] = next[j][i] = oldFac*c[i][j] + c1*pc[i]*pc[j] + (cmu+0.5*negccov)*rankMu - negccov*rankNeg;
+				}
+			}
+			c = next;
+			sigma *= Math.exp(Math.min(1, (psNorm/chiN-1)*cs/damps));
+
+			if (last!=null && checker!=null && checker.converged(iteration, current, last)) break;
+			last = current;
+
+			double spread = 0;
+			for (int i = 0; i < n; i++) spread = Math.max(spread, Math.max(Math.abs(pc[i]), Math.sqrt(c[i][i])));
+			if (sigma*spread < stopTolX) break;
+		}
+		return best!=null ? best : new PointValuePair(start, Double.NaN);
+	}
+
+	/**
+	 * The eigenvectors and the square roots of the eigenvalues of the covariance matrix, which
+	 * is made positive definite with a condition number no more than 1e14 first if it is not.
+	 *
+	 * @param c covariance matrix, changed if it is not well conditioned
+	 * @param b filled with the eigenvectors in columns
+	 * @return square roots of the eigenvalues
+	 */
+	private static double[] decompose(double[][] c, double[][] b) {
+
+		final EigenDecomposition eigen = new EigenDecomposition(new Array2DRowRealMatrix(c, false));
+		final double[] d = eigen.getRealEigenvalues();
+		double min = Double.POSITIVE_INFINITY, max = 0;
+		for (double e : d) {
+			min = Math.min(min, e);
+			max = Math.max(max, e);
+		}
+		// Adding to the diagonal adds to each eigenvalue and leaves the eigenvectors
+		final double fix = min<=0 || max>1e14*min ? max/1e14 - Math.min(min, 0) : 0;
+		for (int i = 0; i < c.length; i++) c[i][i] += fix;
+
+		final double[][] v = eigen.getV().getData();
+		for (int i = 0; i < c.length; i++) {
+			b[i] = v[i];
+			d[i] = Math.sqrt(Math.max(d[i]+fix, 0));
+		}
+		return d;
+	}
+
+	private static double norm(double[] z) {
+		double sum = 0;
+		for (double v : z) sum += v*v;
+		return Math.sqrt(sum);
+	}
+
+	private static boolean isFeasible(double[] x, double[] lower, double[] upper) {
+		for (int i = 0; i < x.length; i++) {
+			if (x[i]<lower[i] || x[i]>upper[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return B D z
+	 */
+	private static double[] multiply(double[][] b, double[] d, double[] z) {
+		final double[] y = new double[z.length];
+		for (int i = 0; i < z.length; i++) {
+			for (int j = 0; j < z.length; j++) y[i] += b[i][j]*d[j]*z[j];
+		}
+		return y;
+	}
+
+	private static double[] add(double[] mean, double sigma, double[] y) {
+		final double[] x = new double[mean.length];
+		for (int i = 0; i < x.length; i++) x[i] = mean[i]+sigma*y[i];
+		return x;
+	}
+}
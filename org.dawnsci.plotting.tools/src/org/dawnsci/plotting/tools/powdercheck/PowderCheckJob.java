@@ -65,6 +65,7 @@ public class PowderCheckJob extends Job {
 	private static final double REL_TOL = 1e-10;
 	private static final double ABS_TOL = 1e-10;
 	private static final int MAX_EVAL = 100000;
+	private static final int QUADRANT_SECTORS = 36;
 	
 	IPlottingSystem system;
 	Dataset dataset;
@@ -196,15 +197,18 @@ public class PowderCheckJob extends Job {
 		//((ILineTrace)traces.get(0)).setTraceColor(ColorConstants.lightGreen);
 		
 		
-		NonPixelSplittingIntegration npsi = new NonPixelSplittingIntegration(md);
-		npsi.setAxisType(xAxis);
+		// All the sectors in one pass, the bin of each pixel is kept for the next image
+		SectorIntegration si = SectorIntegration.getIntegration(md, data.getShape(), xAxis, QUADRANT_SECTORS);
+		if (monitor.isCanceled()) return Status.CANCEL_STATUS;
 		
-		for (int i = -180; i <= 170; i+=10) {
-			npsi.setAzimuthalRange(new double[]{i, i+10});
-			List<Dataset> out = npsi.integrate(data);
-			out.get(1).setName("Line: " + i +" to " + (i+10));
-			system.updatePlot1D(out.get(0), Arrays.asList(new IDataset[]{out.get(1)}), null);
+		List<IDataset> out = si.integrate(data);
+		int width = 360/QUADRANT_SECTORS;
+		for (int i = 0; i < out.size(); i++) {
+			int start = -180 + i*width;
+			out.get(i).setName("Line: " + start +" to " + (start+width));
 		}
+		if (monitor.isCanceled()) return Status.CANCEL_STATUS;
+		system.updatePlot1D(si.getAxis(), out, null);
 
 //		system.updatePlot1D(out.get(0), Arrays.asList(new IDataset[]{out.get(1)}), null);
 		setPlottingSystemAxes();
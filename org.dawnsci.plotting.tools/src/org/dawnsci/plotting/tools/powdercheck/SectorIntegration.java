@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.tools.powdercheck;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.vecmath.Vector3d;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.api.diffraction.DetectorProperties;
+import org.eclipse.dawnsci.analysis.api.diffraction.DiffractionCrystalEnvironment;
+import org.eclipse.dawnsci.analysis.api.metadata.IDiffractionMetadata;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+
+import uk.ac.diamond.scisoft.analysis.diffraction.QSpace;
+import uk.ac.diamond.scisoft.analysis.diffraction.powder.AbstractPixelIntegration;
+import uk.ac.diamond.scisoft.analysis.roi.XAxis;
+
+/**
+ * The profiles of a number of equal azimuthal sectors of a powder image, all made
+ * in one pass over the image instead of integrating the whole image once for each
+ * sector.
+ *
+ * The radial bin and the sector of every pixel are worked out once for the geometry
+ * of the detector, the shape of the image, the axis and the number of sectors, and
+ * kept as one index for each pixel. Like NonPixelSplittingIntegration, each pixel
+ * goes wholly in to the bin its centre is in and the profile is the mean of the
+ * pixels in each bin. The radial range is that of the whole image, in the number of
+ * bins AbstractPixelIntegration uses. NaNs are left out.
+ *
+ * The last few integrations are kept, up to MAX_PIXELS. Large images are integrated
+ * in parallel, a block of pixels on each thread.
+ */
+class SectorIntegration {
+
+	/**
+	 * Pixels we aim to add up in one task.
+	 */
+	private static final int BLOCK_SIZE = 512*1024;
+
+	/**
+	 * The most pixels kept in all the indices, the last index is always kept.
+	 */
+	private static final int MAX_PIXELS = 16*1024*1024;
+
+	private static final Map<Key, SectorIntegration> integrations = new LinkedHashMap<Key, SectorIntegration>(4, 0.75f, true);
+
+	private static ForkJoinPool pool;
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool==null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	/**
+	 *
+	 * @param md
+	 * @param shape of the images
+	 * @param xAxis
+	 * @param sectors number of sectors from -180 degrees
+	 * @return integration for the geometry, made now if it is not one of the last few used
+	 */
+	static SectorIntegration getIntegration(IDiffractionMetadata md, int[] shape, XAxis xAxis, int sectors) {
+
+		final Key key = new Key(md, shape, xAxis, sectors);
+		synchronized (integrations) {
+			final SectorIntegration integration = integrations.get(key);
+			if (integration!=null) return integration;
+		}
+
+		final SectorIntegration integration = new SectorIntegration(md, shape, xAxis, sectors);
+		synchronized (integrations) {
+			integrations.put(key, integration);
+			long size = 0;
+			for (SectorIntegration i : integrations.values()) size += i.index.length;
+			final Iterator<SectorIntegration> it = integrations.values().iterator();
+			while (size>MAX_PIXELS && integrations.size()>1) {
+				size -= it.next().index.length;
+				it.remove();
+			}
+		}
+		return integration;
+	}
+
+	private final int      sectors, bins;
+	private final int[]    index;   // sector*bins+bin of each pixel, -1 if it is in none
+	private final double[] axis;
+
+	private SectorIntegration(final IDiffractionMetadata md, final int[] shape, final XAxis xAxis, int sectors) {
+
+		final int height = shape[0], width = shape[1];
+		final int size   = height*width;
+		this.sectors = sectors;
+		this.bins    = AbstractPixelIntegration.calculateNumberOfBins(md.getDetector2DProperties().getBeamCentreCoords(), shape);
+		this.index   = new int[size];
+
+		// The radial value of each pixel is put in a float for now, each task with its own QSpace
+		final float[]  radial = new float[size];
+		final double[] bc     = md.getDetector2DProperties().getBeamCentreCoords();
+		final double   span   = 360d/sectors;
+		run(size, new Block() {
+			@Override
+			public void run(int from, int to) {
+				final QSpace qSpace = xAxis==XAxis.PIXEL ? null : new QSpace(md.getDetector2DProperties().clone(), md.getDiffractionCrystalEnvironment().clone());
+				for (int i = from; i < to; i++) {
+					final double x = i%width+0.5, y = i/width+0.5;
+					radial[i] = (float)getRadialValue(qSpace, xAxis, bc, x, y);
+
+					final double a = Math.toDegrees(Math.atan2(y-bc[1], x-bc[0]));
+					index[i] = Math.min(SectorIntegration.this.sectors-1, (int)((a+180)/span));
+				}
+			}
+		});
+
+		float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+		for (float r : radial) {
+			if (Float.isInfinite(r)) continue;
+			if (r<min) min = r;
+			if (r>max) max = r;
+		}
+
+		this.axis = new double[bins];
+		final double step = (max-min)/(double)bins;
+		for (int b = 0; b < bins; b++) axis[b] = min+(b+0.5)*step;
+
+		final float  lower = min;
+		final double scale = step>0 ? 1/step : 0;
+		run(size, new Block() {
+			@Override
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++) {
+					final float r = radial[i];
+					if (r!=r || Float.isInfinite(r)) {
+						index[i] = -1;
+						continue;
+					}
+					final int b = Math.min(bins-1, (int)((r-lower)*scale));
+					index[i] = index[i]*bins+b;
+				}
+			}
+		});
+	}
+
+	private static double getRadialValue(QSpace qSpace, XAxis xAxis, double[] bc, double x, double y) {
+		switch (xAxis) {
+		case PIXEL:
+			return Math.hypot(x-bc[0], y-bc[1]);
+		case ANGLE:
+			return Math.toDegrees(qSpace.scatteringAngle(qSpace.qFromPixelPosition(x, y)));
+		case RESOLUTION:
+			return (2*Math.PI)/qSpace.qFromPixelPosition(x, y).length();
+		default:
+			final Vector3d q = qSpace.qFromPixelPosition(x, y);
+			return q.length();
+		}
+	}
+
+	int getSectors() {
+		return sectors;
+	}
+
+	/**
+	 * @return the centre of each radial bin
+	 */
+	Dataset getAxis() {
+		return new DoubleDataset(axis.clone(), bins);
+	}
+
+	/**
+	 * The profile of each sector of an image, the mean of the pixels in each bin.
+	 *
+	 * @param image same shape as the integration was made for
+	 * @return profiles of the sectors in order, 0 where a bin has no pixels
+	 */
+	List<IDataset> integrate(Dataset image) {
+
+		if (image.getStrides()!=null) image = image.clone(); // Pixel index is in to a whole buffer
+
+		final Dataset        data   = image;
+		final List<double[]> sums   = new ArrayList<double[]>();
+		final List<int[]>    counts = new ArrayList<int[]>();
+		run(index.length, new Block() {
+			@Override
+			public void run(int from, int to) {
+				final double[] sum   = new double[sectors*bins];
+				final int[]    count = new int[sectors*bins];
+				integrate(data, sum, count, from, to);
+				synchronized (sums) {
+					sums.add(sum);
+					counts.add(count);
+				}
+			}
+		});
+
+		final double[] sum   = sums.get(0);
+		final int[]    count = counts.get(0);
+		for (int t = 1; t < sums.size(); t++) {
+			final double[] s = sums.get(t);
+			final int[]    c = counts.get(t);
+			for (int i = 0; i < sum.length; i++) {
+				sum[i]   += s[i];
+				count[i] += c[i];
+			}
+		}
+
+		final List<IDataset> profiles = new ArrayList<IDataset>(sectors);
+		for (int s = 0; s < sectors; s++) {
+			final double[] profile = new double[bins];
+			for (int b = 0; b < bins; b++) {
+				final int i = s*bins+b;
+				if (count[i]>0) profile[b] = sum[i]/count[i];
+			}
+			profiles.add(new DoubleDataset(profile, bins));
+		}
+		return profiles;
+	}
+
+	/**
+	 * Pixels [from, to) added to the bins they are in.
+	 */
+	private void integrate(Dataset image, double[] sum, int[] count, int from, int to) {
+
+		final Object buffer = image.getBuffer();
+		if (buffer instanceof double[]) {
+			final double[] d = (double[])buffer;
+			for (int i = from; i < to; i++) {
+				final int    b = index[i];
+				final double v = d[i];
+				if (b<0 || v!=v) continue;
+				sum[b] += v;
+				++count[b];
+			}
+		} else if (buffer instanceof float[]) {
+			final float[] d = (float[])buffer;
+			for (int i = from; i < to; i++) {
+				final int   b = index[i];
+				final float v = d[i];
+				if (b<0 || v!=v) continue;
+				sum[b] += v;
+				++count[b];
+			}
+		} else if (buffer instanceof int[]) {
+			final int[] d = (int[])buffer;
+			for (int i = from; i < to; i++) {
+				final int b = index[i];
+				if (b<0) continue;
+				sum[b] += d[i];
+				++count[b];
+			}
+		} else if (buffer instanceof short[]) {
+			final short[] d = (short[])buffer;
+			for (int i = from; i < to; i++) {
+				final int b = index[i];
+				if (b<0) continue;
+				sum[b] += d[i];
+				++count[b];
+			}
+		} else {
+			for (int i = from; i < to; i++) {
+				final int    b = index[i];
+				final double v = image.getElementDoubleAbs(i);
+				if (b<0 || v!=v) continue;
+				sum[b] += v;
+				++count[b];
+			}
+		}
+	}
+
+	private interface Block {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Runs the block over [0, size), split in to tasks for large sizes.
+	 */
+	private static void run(int size, final Block block) {
+
+		final int tasks = Math.max(1, Math.min(getPool().getParallelism(), size/BLOCK_SIZE));
+		if (tasks==1) {
+			block.run(0, size);
+			return;
+		}
+		final List<RecursiveAction> actions = new ArrayList<RecursiveAction>(tasks);
+		for (int i = 0; i < tasks; i++) {
+			final int from = (int)((long)size*i/tasks);
+			final int to   = (int)((long)size*(i+1)/tasks);
+			actions.add(new RecursiveAction() {
+				private static final long serialVersionUID = 4470135432164367722L;
+				@Override
+				protected void compute() {
+					block.run(from, to);
+				}
+			});
+		}
+		final ForkJoinPool pool = getPool();
+		for (RecursiveAction action : actions) pool.execute(action);
+		for (RecursiveAction action : actions) action.join();
+	}
+
+	/**
+	 * The shape, the axis, the number of sectors and the geometry of the experiment.
+	 * There is no mask in the key as PowderCheckJob never masks the image, nor did
+	 * the NonPixelSplittingIntegration it used before. A mask would have to be part
+	 * of the key, or be applied in integrate(...), if one is ever added.
+	 */
+	private static final class Key {
+
+		private final int[]    shape;
+		private final XAxis    xAxis;
+		private final int      sectors;
+		private final double[] geometry;
+
+		Key(IDiffractionMetadata md, int[] shape, XAxis xAxis, int sectors) {
+			final DetectorProperties            dp  = md.getDetector2DProperties();
+			final DiffractionCrystalEnvironment env = md.getDiffractionCrystalEnvironment();
+			final double[] bc     = dp.getBeamCentreCoords();
+			final double[] angles = dp.getNormalAnglesInDegrees();
+			this.shape    = shape.clone();
+			this.xAxis    = xAxis;
+			this.sectors  = sectors;
+			this.geometry = new double[]{bc[0], bc[1], dp.getBeamCentreDistance(), angles[0], angles[1], angles[2],
+					                     dp.getHPxSize(), dp.getVPxSize(), env.getWavelength()};
+		}
+
+		@Override
+		public int hashCode() {
+			int result = Arrays.hashCode(shape);
+			result = 31*result + xAxis.hashCode();
+			result = 31*result + sectors;
+			return 31*result + Arrays.hashCode(geometry);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this==obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key other = (Key)obj;
+			return xAxis==other.xAxis && sectors==other.sectors && Arrays.equals(shape, other.shape) && Arrays.equals(geometry, other.geometry);
+		}
+	}
+}
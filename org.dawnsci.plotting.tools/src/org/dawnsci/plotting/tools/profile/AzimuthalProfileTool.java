@@ -8,18 +8,16 @@
  */
 package org.dawnsci.plotting.tools.profile;
 
-import java.util.Collection;
-
+import org.dawnsci.plotting.tools.reduction.IParallelReductionToolPage;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
 import org.eclipse.dawnsci.analysis.dataset.roi.SectorROI;
 import org.eclipse.dawnsci.plotting.api.region.IRegion;
-import org.eclipse.dawnsci.plotting.api.trace.IImageTrace;
 
 import uk.ac.diamond.scisoft.analysis.roi.ROIProfile;
 
-public class AzimuthalProfileTool extends SectorProfileTool {
+public class AzimuthalProfileTool extends SectorProfileTool implements IParallelReductionToolPage {
 	
 	@Override
 	protected Dataset[] getXAxis(final SectorROI sroi, Dataset[] integral) {
@@ -49,6 +47,12 @@ public class AzimuthalProfileTool extends SectorProfileTool {
 			                              int             downsample) {
 
 
+		if (SectorBinMap.isMappable(sroi)) {
+			final Dataset integral = SectorBinMap.getProfile(data, sroi, mask, false);
+			integral.setName("Azimuthal Profile "+region.getName());
+			return new Dataset[]{integral, null};
+		}
+
 		final Dataset[] profile = ROIProfile.sector(data, mask, sroi, false, true, false);
 		if (profile==null) return null;
 		
@@ -71,25 +75,36 @@ public class AzimuthalProfileTool extends SectorProfileTool {
 
 	@Override
 	public DataReductionInfo export(DataReductionSlice slice) throws Exception {
+		return export(slice, getExportState());
+	}
+
+	@Override
+	public Object getExportState() {
+		return getExportRegions();
+	}
+
+	@Override
+	public DataReductionInfo export(DataReductionSlice slice, Object state) throws Exception {
 		
-		final IImageTrace   image   = getImageTrace();
-		final Collection<IRegion> regions = getPlottingSystem().getRegions();
-		
-		for (IRegion region : regions) {
-			if (!isRegionTypeSupported(region.getRegionType())) continue;
-			if (!region.isVisible())    continue;
-			if (!region.isUserRegion()) continue;
+		final ExportRegions regions = (ExportRegions)state;
+		for (int i = 0; i < regions.size(); i++) {
 			
-			final SectorROI sroi = (SectorROI)region.getROI();
-			final Dataset[] profile = ROIProfile.sector((Dataset)slice.getData(), (Dataset)image.getMask(), sroi, false, true, false);
+			final SectorROI sroi = (SectorROI)regions.getROI(i);
+			if (SectorBinMap.isMappable(sroi)) {
+				final Dataset integral = SectorBinMap.getProfile((Dataset)slice.getData(), sroi, regions.getMask(), false);
+				integral.setName("azimuthal_"+regions.getName(i).replace(' ', '_'));
+				slice.appendData(integral);
+				continue;
+			}
+			final Dataset[] profile = ROIProfile.sector((Dataset)slice.getData(), regions.getMask(), sroi, false, true, false);
 		
 			Dataset integral = profile[1];
-			integral.setName("azimuthal_"+region.getName().replace(' ', '_'));     
+			integral.setName("azimuthal_"+regions.getName(i).replace(' ', '_'));     
 			slice.appendData(integral);
 			
 		    if (profile.length>=4 && profile[3]!=null && sroi.hasSeparateRegions()) {
 				final Dataset reflection = profile[3];
-				reflection.setName("azimuthal_sym_"+region.getName().replace(' ', '_'));     
+				reflection.setName("azimuthal_sym_"+regions.getName(i).replace(' ', '_'));     
 				slice.appendData(reflection);
 		    }
 		}
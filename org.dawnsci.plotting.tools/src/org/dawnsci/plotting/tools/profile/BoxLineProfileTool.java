@@ -90,6 +90,11 @@ public class BoxLineProfileTool extends ProfileTool implements IProfileToolPage{
 		logger.debug("profilePlottingSystem configured");
 	}
 
+	@Override
+	protected void dataChanged(boolean isMask) {
+		SummedAreaTable.clear();
+	}
+
 	@Override
 	protected boolean isRegionTypeSupported(RegionType type) {
 		return (type==RegionType.BOX)||(type==RegionType.PERIMETERBOX)||(type==RegionType.XAXIS)||(type==RegionType.YAXIS);
@@ -182,7 +187,7 @@ public class BoxLineProfileTool extends ProfileTool implements IProfileToolPage{
 													IRegion region, boolean tryUpdate,
 													IProgressMonitor monitor) {
 		Dataset[] boxLine = ROIProfile.boxLine((Dataset)image.getData(), (Dataset)image.getMask(), bounds, true, isVertical);
-		Dataset[] boxMean = ROIProfile.boxMean((Dataset)image.getData(), (Dataset)image.getMask(), bounds, true);
+		Dataset[] boxMean = BoxProfileTool.getBoxMean((Dataset)image.getData(), (Dataset)image.getMask(), bounds);
 
 		if (boxLine == null) return null;
 		if (boxMean == null) return null;
@@ -299,7 +304,7 @@ public class BoxLineProfileTool extends ProfileTool implements IProfileToolPage{
 			final IImageTrace image, final RectangularROI bounds,
 			IRegion region, boolean tryUpdate,
 			IProgressMonitor monitor) {
-		Dataset[] boxMean = ROIProfile.boxMean((Dataset)image.getData(), (Dataset)image.getMask(), bounds, true);
+		Dataset[] boxMean = BoxProfileTool.getBoxMean((Dataset)image.getData(), (Dataset)image.getMask(), bounds);
 
 		if (boxMean==null) return null;
 
@@ -12,6 +12,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
+import org.dawnsci.plotting.tools.utils.SummedAreaTable;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
@@ -123,7 +124,7 @@ public class BoxProfileTool extends ProfileTool {
 
 		if (monitor.isCanceled()) return null;
 		
-		Dataset[] box = ROIProfile.box((Dataset)image.getData(), (Dataset)image.getMask(), bounds, true);
+		Dataset[] box = getBox((Dataset)image.getData(), (Dataset)image.getMask(), bounds);
         if (box==null) return null;
         
         Dataset xi = null;
@@ -182,6 +183,71 @@ public class BoxProfileTool extends ProfileTool {
         return new Dataset[]{x_indices, x_intensity, y_indices, y_intensity};
 	}
 	
+	/**
+	 * Unrotated boxes are read from the summed area table of the image, so
+	 * that dragging a large box does not read every pixel in it each time.
+	 * 
+	 * @param data
+	 * @param mask
+	 * @param bounds
+	 * @return x and y profiles, as ROIProfile.box(...)
+	 */
+	static Dataset[] getBox(Dataset data, Dataset mask, RectangularROI bounds) {
+		
+		final int[] box = SummedAreaTable.isSummable(data) ? getUnrotatedBox(data, bounds) : null;
+		if (box!=null) {
+			final SummedAreaTable table = SummedAreaTable.getTable(data, mask);
+			// NaNs are left out of the table but ROIProfile would give NaN
+			if (table.isFinite()) return table.getBoxProfiles(box[0], box[1], box[2], box[3]);
+		}
+		return ROIProfile.box(data, mask, bounds, true);
+	}
+
+	/**
+	 * 
+	 * @param data
+	 * @param mask
+	 * @param bounds
+	 * @return x and y mean profiles, as ROIProfile.boxMean(...)
+	 */
+	static Dataset[] getBoxMean(Dataset data, Dataset mask, RectangularROI bounds) {
+		
+		final int[] box = SummedAreaTable.isSummable(data) ? getUnrotatedBox(data, bounds) : null;
+		if (box!=null) {
+			final SummedAreaTable table = SummedAreaTable.getTable(data, mask);
+			if (table.isFinite()) return table.getBoxMeans(box[0], box[1], box[2], box[3]);
+		}
+		return ROIProfile.boxMean(data, mask, bounds, true);
+	}
+
+	/**
+	 * 
+	 * @param data
+	 * @param bounds
+	 * @return x0, y0, x1, y1 of the box clipped to the image, or null if the box
+	 *         is rotated, empty or not an image.
+	 */
+	static int[] getUnrotatedBox(Dataset data, RectangularROI bounds) {
+		
+		if (data==null || data.getRank()!=2 || bounds.getAngle()!=0) return null;
+		
+		final int[] shape = data.getShape();
+		final int[] spt   = bounds.getIntPoint();
+		final int[] len   = bounds.getIntLengths();
+		final int   x0    = Math.max(0, spt[0]);
+		final int   x1    = Math.min(spt[0] + len[0], shape[1]);
+		final int   y0    = Math.max(0, spt[1]);
+		final int   y1    = Math.min(spt[1] + len[1], shape[0]);
+		if (x1<=x0 || y1<=y0) return null;
+		
+		return new int[]{x0, y0, x1, y1};
+	}
+	
+	@Override
+	protected void dataChanged(boolean isMask) {
+		SummedAreaTable.clear();
+	}
+
 	@Override
 	protected boolean isRegionTypeSupported(RegionType type) {
 		return (type==RegionType.BOX)||(type==RegionType.XAXIS)||(type==RegionType.YAXIS)||type==RegionType.PERIMETERBOX;
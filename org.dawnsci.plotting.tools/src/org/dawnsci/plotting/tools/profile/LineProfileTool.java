@@ -13,6 +13,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
+import org.dawnsci.plotting.tools.reduction.IParallelReductionToolPage;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
@@ -29,7 +30,7 @@ import org.eclipse.dawnsci.plotting.api.trace.ITrace;
 
 import uk.ac.diamond.scisoft.analysis.roi.ROIProfile;
 
-public class LineProfileTool extends ProfileTool {
+public class LineProfileTool extends ProfileTool implements IParallelReductionToolPage {
 
 	@Override
 	protected void configurePlottingSystem(IPlottingSystem plotter) {
@@ -111,18 +112,22 @@ public class LineProfileTool extends ProfileTool {
 	
 	@Override
 	public DataReductionInfo export(DataReductionSlice slice) throws Exception {
+		return export(slice, getExportState());
+	}
+
+	@Override
+	public Object getExportState() {
+		return getExportRegions();
+	}
+
+	@Override
+	public DataReductionInfo export(DataReductionSlice slice, Object state) throws Exception {
 		
-		final IImageTrace   image   = getImageTrace();
-		final Collection<IRegion> regions = getPlottingSystem().getRegions();
-		
-		for (IRegion region : regions) {
-			if (!isRegionTypeSupported(region.getRegionType())) continue;
-			if (!region.isVisible())    continue;
-			if (!region.isUserRegion()) continue;
-			
-			Dataset[] profileData = ROIProfile.line((Dataset)slice.getData(), (Dataset)image.getMask(), (LinearROI)region.getROI(), 1d, false);
+		final ExportRegions regions = (ExportRegions)state;
+		for (int i = 0; i < regions.size(); i++) {
+			Dataset[] profileData = ROIProfile.line((Dataset)slice.getData(), regions.getMask(), (LinearROI)regions.getROI(i), 1d, false);
 			final Dataset intensity = profileData[0];
-			intensity.setName(region.getName().replace(' ', '_'));
+			intensity.setName(regions.getName(i).replace(' ', '_'));
 			slice.appendData(intensity);
 		}
         return new DataReductionInfo(Status.OK_STATUS);
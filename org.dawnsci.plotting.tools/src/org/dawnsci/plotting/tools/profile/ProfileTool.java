@@ -8,6 +8,7 @@
  */
 package org.dawnsci.plotting.tools.profile;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -82,6 +83,7 @@ public abstract class ProfileTool extends AbstractToolPage  implements IROIListe
 			this.paletteListener = new IPaletteListener.Stub() {
 				@Override
 				public void maskChanged(PaletteEvent evt) {
+					dataChanged(true);
 					update(null, null, false);
 				}
 				@Override
@@ -102,6 +104,7 @@ public abstract class ProfileTool extends AbstractToolPage  implements IROIListe
 				}
 				@Override
 				protected void update(TraceEvent evt) {
+					dataChanged(false);
 					ProfileTool.this.update(null, null, false);
 				}
 
@@ -202,6 +205,17 @@ public abstract class ProfileTool extends AbstractToolPage  implements IROIListe
 		}
 	}
 
+	/**
+	 * Called before the profiles are updated because the mask or the image trace
+	 * changed. The mask and data may have been changed in place, so anything kept
+	 * about them should be dropped.
+	 * 
+	 * @param isMask true if the mask changed, false if the trace did
+	 */
+	protected void dataChanged(boolean isMask) {
+		// Nothing is kept by default
+	}
+
 	@Override
 	public void createControl(Composite parent) {
 		final IPageSite site = getSite();
@@ -345,6 +359,50 @@ public abstract class ProfileTool extends AbstractToolPage  implements IROIListe
 	 * 
 	 */
     protected abstract RegionType getCreateRegionType();
+
+	/**
+	 * The mask and the regions a tool exports, read from the plotting system once
+	 * so that slices may be exported on other threads.
+	 */
+	static final class ExportRegions {
+		private final Dataset      mask;
+		private final List<String> names = new ArrayList<String>(3);
+		private final List<IROI>   rois  = new ArrayList<IROI>(3);
+		
+		ExportRegions(Dataset mask) {
+			this.mask = mask;
+		}
+		Dataset getMask() {
+			return mask;
+		}
+		int size() {
+			return names.size();
+		}
+		String getName(int i) {
+			return names.get(i);
+		}
+		IROI getROI(int i) {
+			return rois.get(i);
+		}
+	}
+
+	/**
+	 * Call on the thread of the conversion, not on an export worker.
+	 * 
+	 * @return copies of the visible user regions of a supported type, and the mask
+	 */
+	ExportRegions getExportRegions() {
+		final IImageTrace   image   = getImageTrace();
+		final ExportRegions regions = new ExportRegions(image!=null ? (Dataset)image.getMask() : null);
+		for (IRegion region : getPlottingSystem().getRegions()) {
+			if (!isRegionTypeSupported(region.getRegionType())) continue;
+			if (!region.isVisible())    continue;
+			if (!region.isUserRegion()) continue;
+			regions.names.add(region.getName());
+			regions.rois.add(region.getROI().copy());
+		}
+		return regions;
+	}
     
 	public void deactivate() {
 		super.deactivate();
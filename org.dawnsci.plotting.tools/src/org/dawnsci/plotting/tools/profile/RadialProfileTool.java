@@ -32,7 +32,6 @@ import org.eclipse.dawnsci.plotting.api.IPlottingSystem;
 import org.eclipse.dawnsci.plotting.api.region.IRegion;
 import org.eclipse.dawnsci.plotting.api.region.RegionUtils;
 import org.eclipse.dawnsci.plotting.api.region.IRegion.RegionType;
-import org.eclipse.dawnsci.plotting.api.trace.IImageTrace;
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.ActionContributionItem;
 import org.eclipse.jface.action.IAction;
@@ -40,12 +39,13 @@ import org.eclipse.jface.action.IContributionItem;
 import org.eclipse.jface.action.Separator;
 import org.eclipse.ui.PlatformUI;
 import org.dawnsci.plotting.tools.Activator;
+import org.dawnsci.plotting.tools.reduction.IParallelReductionToolPage;
 
 import uk.ac.diamond.scisoft.analysis.diffraction.QSpace;
 import uk.ac.diamond.scisoft.analysis.roi.ROIProfile;
 import uk.ac.diamond.scisoft.analysis.roi.XAxis;
 
-public class RadialProfileTool extends SectorProfileTool implements IDetectorPropertyListener, IDiffractionCrystalEnvironmentListener{
+public class RadialProfileTool extends SectorProfileTool implements IDetectorPropertyListener, IDiffractionCrystalEnvironmentListener, IParallelReductionToolPage {
 	
 	private XAxis axis = XAxis.PIXEL;
     private MenuAction profileAxis;
@@ -456,6 +456,13 @@ public class RadialProfileTool extends SectorProfileTool implements IDetectorPro
 			// continue as normal
 		}
 
+		// Pixel radii are always binned by SectorBinMap, the x axis is then made by getXAxis
+		if (SectorBinMap.isMappable(sroi) && (qSpace==null || axis==XAxis.PIXEL)) {
+			final Dataset integral = SectorBinMap.getProfile(data, sroi, mask, true);
+			integral.setName("Radial Profile "+region.getName());
+			return new Dataset[]{integral, null, null, null};
+		}
+
 		Dataset[] profile = ROIProfile.sector(data, mask, sroi, true, false, false, qSpace, axis, false);
 		
         if (profile == null) {
@@ -482,25 +489,36 @@ public class RadialProfileTool extends SectorProfileTool implements IDetectorPro
 
 	@Override
 	public DataReductionInfo export(DataReductionSlice slice) throws Exception {
+		return export(slice, getExportState());
+	}
+
+	@Override
+	public Object getExportState() {
+		return getExportRegions();
+	}
+
+	@Override
+	public DataReductionInfo export(DataReductionSlice slice, Object state) throws Exception {
 		
-		final IImageTrace   image   = getImageTrace();
-		final Collection<IRegion> regions = getPlottingSystem().getRegions();
-		
-		for (IRegion region : regions) {
-			if (!isRegionTypeSupported(region.getRegionType())) continue;
-			if (!region.isVisible())    continue;
-			if (!region.isUserRegion()) continue;
+		final ExportRegions regions = (ExportRegions)state;
+		for (int i = 0; i < regions.size(); i++) {
 			
-			final SectorROI sroi = (SectorROI)region.getROI();
-			Dataset[] profile = ROIProfile.sector((Dataset)slice.getData(), (Dataset)image.getMask(), sroi, true, false, false);
+			final SectorROI sroi = (SectorROI)regions.getROI(i);
+			if (SectorBinMap.isMappable(sroi)) {
+				final Dataset integral = SectorBinMap.getProfile((Dataset)slice.getData(), sroi, regions.getMask(), true);
+				integral.setName("radial_"+regions.getName(i).replace(' ', '_'));
+				slice.appendData(integral);
+				continue;
+			}
+			Dataset[] profile = ROIProfile.sector((Dataset)slice.getData(), regions.getMask(), sroi, true, false, false);
 		
 			Dataset integral = profile[0];
-			integral.setName("radial_"+region.getName().replace(' ', '_'));     
+			integral.setName("radial_"+regions.getName(i).replace(' ', '_'));     
 			slice.appendData(integral);
 			
 		    if (profile.length>=3 && profile[2]!=null && sroi.hasSeparateRegions()) {
 				final Dataset reflection = profile[2];
-				reflection.setName("radial_sym_"+region.getName().replace(' ', '_'));     
+				reflection.setName("radial_sym_"+regions.getName(i).replace(' ', '_'));     
 				slice.appendData(reflection);
 		    }
 		}
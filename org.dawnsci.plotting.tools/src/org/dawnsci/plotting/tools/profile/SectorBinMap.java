@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.tools.profile;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.eclipse.dawnsci.analysis.dataset.roi.SectorROI;
+
+/**
+ * Which pixels go in to which bin of the radial or azimuthal profile of a sector,
+ * so that a new image with the same shape, sector and mask is integrated in one
+ * pass without working out the radius and angle of every pixel again.
+ *
+ * The map is a sparse matrix in compressed rows, one row for each bin holding the
+ * index of each pixel in the bin and its weight. Each pixel is split in to SPLIT x
+ * SPLIT parts which are binned by their centres, so a pixel crossing the edge of
+ * a bin is shared between the bins. Masked pixels are not in the map and NaNs are
+ * left out when a profile is made.
+ *
+ * The radial bins are one pixel wide and the azimuthal bins one pixel long at the
+ * outer radius. Only sectors without symmetry are mapped, for the others the tools
+ * use ROIProfile.
+ *
+ * Every profile of a mappable sector is binned this way, so that it does not change
+ * shape between frames or between dragging and letting go. Making a map costs more
+ * than binning the image once, so a map is only made when the same geometry is
+ * asked for twice in a row, for instance when stepping through the images of a
+ * stack. Otherwise, as while a sector is dragged, getProfile(...) bins the image in
+ * one pass without keeping a map. Both add the same weights in the same order and
+ * give the same profile.
+ *
+ * The maps of the last few sectors are kept, up to MAX_PIXELS. A map is kept for
+ * a mask object, held weakly, and masks are edited in place, so the sector tools
+ * clear the maps when the trace tells them the mask changed. Profiles of large
+ * images are made in parallel, a block of bins on each thread.
+ */
+class SectorBinMap {
+
+	private static final int SPLIT = 2;
+
+	/**
+	 * Pixel weights we aim to add up in one task.
+	 */
+	private static final int BLOCK_SIZE = 256*1024;
+
+	/**
+	 * The most pixel weights kept in all the maps, the last map is always kept.
+	 */
+	private static final int MAX_PIXELS = 16*1024*1024;
+
+	private static final Map<Key, SectorBinMap> maps = new LinkedHashMap<Key, SectorBinMap>(16, 0.75f, true);
+
+	/**
+	 * The geometry asked for last which had no map, a map is made if it is asked for again.
+	 */
+	private static Key lastMissed;
+
+	private static ForkJoinPool pool;
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool==null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	/**
+	 * Sectors with symmetry, more than one point per pixel or clipping compensation
+	 * are left to ROIProfile.
+	 *
+	 * @param sroi
+	 * @return true if the profiles of the sector can be mapped
+	 */
+	static boolean isMappable(SectorROI sroi) {
+		return sroi.getSymmetry()==SectorROI.NONE && sroi.getDpp()==1 && !sroi.isClippingCompensation()
+			&& sroi.getRadius(1)>sroi.getRadius(0) && sroi.getAngle(1)>sroi.getAngle(0);
+	}
+
+	/**
+	 * Drops all the maps, for instance when a mask may have been changed in place.
+	 */
+	static void clear() {
+		synchronized (maps) {
+			maps.clear();
+			lastMissed = null;
+		}
+	}
+
+	/**
+	 * The profile of an image, from the map of the sector if there is one or the
+	 * geometry is the same as the last call, otherwise binned in one pass.
+	 *
+	 * @param image
+	 * @param sroi which is mappable
+	 * @param mask may be null
+	 * @param radial true for the radial profile, false for azimuthal
+	 * @return profile
+	 */
+	static Dataset getProfile(Dataset image, SectorROI sroi, Dataset mask, boolean radial) {
+		final SectorBinMap map = getMap(image.getShape(), sroi, mask, radial);
+		if (map!=null) return map.getProfile(image);
+		return new SectorBinMap(image.getShape(), sroi, null, radial, false).bin(image, mask);
+	}
+
+	/**
+	 *
+	 * @param shape of the images
+	 * @param sroi which is mappable
+	 * @param mask may be null
+	 * @param radial true for the radial profile, false for azimuthal
+	 * @return map for the sector, made now if the geometry is the same as the last call,
+	 *         or null if it has changed and the image should be binned without a map.
+	 */
+	static SectorBinMap getMap(int[] shape, SectorROI sroi, Dataset mask, boolean radial) {
+
+		final Key key = new Key(shape, sroi, mask, radial);
+		synchronized (maps) {
+			final SectorBinMap map = maps.get(key);
+			if (map!=null) return map;
+			if (!key.equals(lastMissed)) {
+				lastMissed = key;
+				return null;
+			}
+			lastMissed = null;
+		}
+
+		final SectorBinMap map = new SectorBinMap(shape, sroi, mask, radial, true);
+		synchronized (maps) {
+			maps.put(key, map);
+			long size = 0;
+			for (SectorBinMap m : maps.values()) size += m.pixels.length;
+			final Iterator<SectorBinMap> it = maps.values().iterator();
+			while (size>MAX_PIXELS && maps.size()>1) {
+				size -= it.next().pixels.length;
+				it.remove();
+			}
+		}
+		return map;
+	}
+
+	private final int      bins;
+	private final int[]    rows;    // bins+1, start of each bin in pixels and weights
+	private final int[]    pixels;  // y*width+x
+	private final float[]  weights;
+
+	private final double   cx, cy, r0, r1, a0, span, scale;
+	private final boolean  radial;
+
+	/**
+	 * @param shape
+	 * @param sroi
+	 * @param mask may be null
+	 * @param radial
+	 * @param mapped false for only the geometry, to bin(...) an image once
+	 */
+	private SectorBinMap(int[] shape, SectorROI sroi, Dataset mask, boolean radial, boolean mapped) {
+
+		final int height = shape[0], width = shape[1];
+		this.radial = radial;
+		this.cx     = sroi.getPointX();
+		this.cy     = sroi.getPointY();
+		this.r0     = sroi.getRadius(0);
+		this.r1     = sroi.getRadius(1);
+		this.a0     = sroi.getAngle(0);
+		this.span   = Math.min(sroi.getAngle(1)-a0, 2*Math.PI);
+		this.bins   = Math.max(1, radial ? (int)Math.ceil(r1-r0) : (int)Math.ceil(span*r1));
+		this.scale  = radial ? bins/(r1-r0) : bins/span;
+		if (!mapped) {
+			this.rows    = null;
+			this.pixels  = null;
+			this.weights = null;
+			return;
+		}
+
+		// Only the pixels in the bounding box of the circle can be in the sector
+		final int xmin = getMin(cx, r1), xmax = getMax(cx, r1, width);
+		final int ymin = getMin(cy, r1), ymax = getMax(cy, r1, height);
+
+		// Counted, then filled, so that the map is only as large as it needs to be.
+		final int[]   partBins = new int[SPLIT*SPLIT];
+		final float[] partWeights = new float[SPLIT*SPLIT];
+		this.rows = new int[bins+1];
+		for (int y = ymin; y < ymax; y++) {
+			for (int x = xmin; x < xmax; x++) {
+				if (mask!=null && !mask.getBoolean(y, x)) continue;
+				final int n = getBins(x, y, partBins, partWeights);
+				for (int i = 0; i < n; i++) ++rows[partBins[i]+1];
+			}
+		}
+		for (int b = 0; b < bins; b++) rows[b+1] += rows[b];
+
+		this.pixels  = new int[rows[bins]];
+		this.weights = new float[rows[bins]];
+		final int[] place = Arrays.copyOf(rows, bins); // next free place in each bin
+		for (int y = ymin; y < ymax; y++) {
+			for (int x = xmin; x < xmax; x++) {
+				if (mask!=null && !mask.getBoolean(y, x)) continue;
+				final int n = getBins(x, y, partBins, partWeights);
+				for (int i = 0; i < n; i++) {
+					final int p = place[partBins[i]]++;
+					pixels[p]  = y*width+x;
+					weights[p] = partWeights[i];
+				}
+			}
+		}
+	}
+
+	private static int getMin(double c, double r) {
+		return Math.max(0, (int)Math.floor(c-r));
+	}
+
+	private static int getMax(double c, double r, int size) {
+		return Math.min(size, (int)Math.ceil(c+r));
+	}
+
+	/**
+	 * The profile of an image binned in one pass, without a map. The weights of each
+	 * bin are added in the order of the pixels, as the rows of a map are.
+	 *
+	 * @param image
+	 * @param mask may be null
+	 * @return profile
+	 */
+	private Dataset bin(Dataset image, Dataset mask) {
+
+		if (image.getStrides()!=null) image = image.clone(); // Pixel index is in to a whole buffer
+
+		final int      height  = image.getShape()[0], width = image.getShape()[1];
+		final int      xmin    = getMin(cx, r1), xmax = getMax(cx, r1, width);
+		final int      ymin    = getMin(cy, r1), ymax = getMax(cy, r1, height);
+		final double[] profile = new double[bins];
+		final int[]    partBins    = new int[SPLIT*SPLIT];
+		final float[]  partWeights = new float[SPLIT*SPLIT];
+		for (int y = ymin; y < ymax; y++) {
+			for (int x = xmin; x < xmax; x++) {
+				if (mask!=null && !mask.getBoolean(y, x)) continue;
+				final int n = getBins(x, y, partBins, partWeights);
+				if (n==0) continue;
+				final double v = image.getElementDoubleAbs(y*width+x);
+				if (v!=v) continue;
+				for (int i = 0; i < n; i++) profile[partBins[i]] += partWeights[i]*v;
+			}
+		}
+		return new DoubleDataset(profile, bins);
+	}
+
+	/**
+	 * The bins which the parts of a pixel are in.
+	 *
+	 * @param x
+	 * @param y
+	 * @param bins set to the different bins
+	 * @param weights set to the fraction of the pixel in each bin
+	 * @return number of bins the pixel is in, 0 if it is outside the sector
+	 */
+	private int getBins(int x, int y, int[] bins, float[] weights) {
+
+		final double step = 1d/SPLIT;
+		final float  part = (float)(step*step);
+		int n = 0;
+		for (int sy = 0; sy < SPLIT; sy++) {
+			final double dy = y+(sy+0.5)*step - cy;
+			for (int sx = 0; sx < SPLIT; sx++) {
+				final double dx = x+(sx+0.5)*step - cx;
+				final double r  = Math.sqrt(dx*dx+dy*dy);
+				if (r<r0 || r>=r1) continue;
+
+				double a = Math.atan2(dy, dx) - a0;
+				a -= 2*Math.PI*Math.floor(a/(2*Math.PI)); // 0 to 2pi from the start angle
+				if (a>=span) continue;
+
+				final int b = Math.min(this.bins-1, (int)((radial ? r-r0 : a)*scale));
+				int i = 0;
+				while (i<n && bins[i]!=b) ++i;
+				if (i==n) {
+					bins[n]    = b;
+					weights[n] = 0;
+					++n;
+				}
+				weights[i] += part;
+			}
+		}
+		return n;
+	}
+
+	int getBins() {
+		return bins;
+	}
+
+	/**
+	 * The profile of an image, the sum of the weighted pixels in each bin.
+	 *
+	 * @param image same shape as the map was made for
+	 * @return profile
+	 */
+	Dataset getProfile(Dataset image) {
+
+		if (image.getStrides()!=null) image = image.clone(); // Pixel index is in to a whole buffer
+
+		final double[] profile = new double[bins];
+		final int      blocks  = Math.max(1, Math.min(bins, pixels.length/BLOCK_SIZE));
+		if (blocks==1) {
+			integrate(image, profile, 0, bins);
+		} else {
+			final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(blocks);
+			final Dataset data = image;
+			for (int i = 0; i < blocks; i++) {
+				final int from = (int)((long)bins*i/blocks);
+				final int to   = (int)((long)bins*(i+1)/blocks);
+				tasks.add(new RecursiveAction() {
+					private static final long serialVersionUID = -6519824739516123571L;
+					@Override
+					protected void compute() {
+						integrate(data, profile, from, to);
+					}
+				});
+			}
+			final ForkJoinPool pool = getPool();
+			for (RecursiveAction task : tasks) pool.execute(task);
+			for (RecursiveAction task : tasks) task.join();
+		}
+		return new DoubleDataset(profile, bins);
+	}
+
+	/**
+	 * Bins [from, to) of the profile, each read from the pixels in its row of the map.
+	 */
+	private void integrate(Dataset image, double[] profile, int from, int to) {
+
+		final Object buffer = image.getBuffer();
+		for (int b = from; b < to; b++) {
+			double sum = 0;
+			final int end = rows[b+1];
+			if (buffer instanceof double[]) {
+				final double[] d = (double[])buffer;
+				for (int i = rows[b]; i < end; i++) {
+					final double v = d[pixels[i]];
+					if (v==v) sum += weights[i]*v;
+				}
+			} else if (buffer instanceof float[]) {
+				final float[] d = (float[])buffer;
+				for (int i = rows[b]; i < end; i++) {
+					final double v = d[pixels[i]];
+					if (v==v) sum += weights[i]*v;
+				}
+			} else if (buffer instanceof int[]) {
+				final int[] d = (int[])buffer;
+				for (int i = rows[b]; i < end; i++) sum += weights[i]*(double)d[pixels[i]];
+			} else if (buffer instanceof short[]) {
+				final short[] d = (short[])buffer;
+				for (int i = rows[b]; i < end; i++) sum += weights[i]*(double)d[pixels[i]];
+			} else {
+				for (int i = rows[b]; i < end; i++) {
+					final double v = image.getElementDoubleAbs(pixels[i]);
+					if (v==v) sum += weights[i]*v;
+				}
+			}
+			profile[b] = sum;
+		}
+	}
+
+	/**
+	 * The shape, the geometry of the sector and the mask object. The mask is held
+	 * weakly so that the maps do not keep it, a key whose mask has gone matches no other.
+	 */
+	private static final class Key {
+
+		private final int[]                  shape;
+		private final double[]               sector;
+		private final WeakReference<Dataset> mask;
+		private final int                    maskHash;
+		private final boolean                radial;
+
+		Key(int[] shape, SectorROI sroi, Dataset mask, boolean radial) {
+			this.shape    = shape.clone();
+			this.sector   = new double[]{sroi.getPointX(), sroi.getPointY(), sroi.getRadius(0), sroi.getRadius(1), sroi.getAngle(0), sroi.getAngle(1)};
+			this.mask     = mask!=null ? new WeakReference<Dataset>(mask) : null;
+			this.maskHash = System.identityHashCode(mask);
+			this.radial   = radial;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = Arrays.hashCode(shape);
+			result = 31*result + Arrays.hashCode(sector);
+			result = 31*result + maskHash;
+			return 31*result + (radial ? 1231 : 1237);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this==obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key other = (Key)obj;
+			if (radial!=other.radial || !Arrays.equals(shape, other.shape) || !Arrays.equals(sector, other.sector)) return false;
+			if (mask==null || other.mask==null) return mask==other.mask;
+			final Dataset m = mask.get();
+			return m!=null && m==other.mask.get();
+		}
+	}
+}
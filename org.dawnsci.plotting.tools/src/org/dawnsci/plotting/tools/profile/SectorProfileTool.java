@@ -47,6 +47,12 @@ public abstract class SectorProfileTool extends ProfileTool {
 	protected Action          combineSymmetry;
 	private   IRegionListener sectorRegionListener;
 
+	@Override
+	protected void dataChanged(boolean isMask) {
+		// The maps are of the mask, not the data
+		if (isMask) SectorBinMap.clear();
+	}
+
 	@Override
 	protected void configurePlottingSystem(IPlottingSystem plotter) {
 		
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.tools.reduction;
+
+import org.dawb.common.ui.plot.tools.IDataReductionToolPage;
+
+/**
+ * A data reduction tool whose export(...) may be called for several slices at
+ * once from different threads. The export of each slice must only depend on its
+ * own data, the export state and the user data from the first slice, and must only
+ * write through the slice and its file. The writes are made in slice order.
+ */
+public interface IParallelReductionToolPage extends IDataReductionToolPage {
+
+	/**
+	 * Called once on the thread of the conversion, before any slice is exported, to
+	 * read what the export needs from the plotting system. The exports on the other
+	 * threads must not use the plotting system.
+	 * 
+	 * @return state given to export(slice, state) for each slice, may be null
+	 */
+	public Object getExportState();
+
+	/**
+	 * The export of a slice, which may be called from several threads at once.
+	 * 
+	 * @param slice
+	 * @param state from getExportState()
+	 * @return info
+	 * @throws Exception
+	 */
+	public DataReductionInfo export(DataReductionSlice slice, Object state) throws Exception;
+}
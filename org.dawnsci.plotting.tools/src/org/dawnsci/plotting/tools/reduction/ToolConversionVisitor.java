@@ -8,8 +8,20 @@
  */
 package org.dawnsci.plotting.tools.reduction;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ncsa.hdf.hdf5lib.exceptions.HDF5FunctionArgumentException;
 
@@ -21,6 +33,7 @@ import org.dawb.common.ui.plot.tools.IDataReductionToolPage.DataReductionSlice;
 import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
 import org.eclipse.dawnsci.analysis.api.dataset.ILazyDataset;
 import org.eclipse.dawnsci.analysis.api.metadata.AxesMetadata;
+import org.eclipse.dawnsci.analysis.api.monitor.IMonitor;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
 import org.eclipse.dawnsci.hdf5.HierarchicalDataFactory;
 import org.eclipse.dawnsci.hdf5.IHierarchicalDataFile;
@@ -29,17 +42,33 @@ import org.eclipse.dawnsci.plotting.api.tool.IToolPage;
 
 /**
  * A conversion visitor that delegates to a tool.
+ * 
+ * Tools which are IParallelReductionToolPage are run in parallel, the export of
+ * each slice on a pool of workers. What the export needs from the plotting system
+ * is read once, on the calling thread, before the first slice. The first slice is
+ * done on its own so that its user data can be given to the rest. The file the workers see passes their
+ * calls to one writer thread, and a slice may only use the file once all the
+ * slices before it are done, so the data is written in the same order as when
+ * the slices are done one at a time. No more than QUEUE_SIZE slices per worker
+ * are read ahead of the writer. The first thing thrown by a worker or the writer,
+ * an Error as well as an Exception, is kept and thrown again on the calling thread
+ * by the next visit or by close, and the slices waiting for their turn stop.
+ * 
  * @author Matthew Gerring
  *
  */
 class ToolConversionVisitor implements IConversionVisitor {
 	
+	private static final int QUEUE_SIZE = 2;
+	
 	private List<IDataset>         nexusAxes;
 	private IDataReductionToolPage tool;
 	private List<String>           expandedDatasets;
+	private final boolean          parallel;
 
 	public ToolConversionVisitor(IDataReductionToolPage tool) {
-		this.tool = tool;
+		this.tool     = tool;
+		this.parallel = tool instanceof IParallelReductionToolPage && Runtime.getRuntime().availableProcessors()>1;
 	}
 
 	@Override
@@ -55,6 +84,18 @@ class ToolConversionVisitor implements IConversionVisitor {
 	public void init(IConversionContext context) throws Exception {
 		output = HierarchicalDataFactory.getWriter(context.getOutputPath());
 		initName = tool.exportInit();
+		if (parallel) {
+			state    = ((IParallelReductionToolPage)tool).getExportState();
+			final int threads = Runtime.getRuntime().availableProcessors();
+			workers  = Executors.newFixedThreadPool(threads, new ReductionThreadFactory("Data reduction worker"));
+			writer   = Executors.newSingleThreadExecutor(new ReductionThreadFactory("Data reduction writer"));
+			inFlight = new Semaphore(threads*QUEUE_SIZE);
+			count    = 0;
+			turn     = 0;
+			failure  = null;
+			start    = System.currentTimeMillis();
+			reported = start;
+		}
 	}
 
 	private Object  object;
@@ -64,6 +105,11 @@ class ToolConversionVisitor implements IConversionVisitor {
 		
 		if (context.getMonitor()!=null && context.getMonitor().isCancelled()) throw new Exception("Execution cancelled!");
 		
+		if (parallel) {
+			visitParallel(context, slice);
+			return;
+		}
+		
 		String grp = createGroupIfRequired(context);
 		DataReductionSlice bean = new DataReductionSlice(output, grp, slice, object, context.getSelectedSlice(), context.getSelectedShape(), context.getMonitor());
 		bean.setAxes(getAxes(context, slice));
@@ -74,6 +120,146 @@ class ToolConversionVisitor implements IConversionVisitor {
 		if (context.getMonitor()!=null) context.getMonitor().worked(1);
 	}
 	
+	private Object             state;  // of the tool, read on the calling thread
+	private ExecutorService    workers, writer;
+	private Semaphore          inFlight;
+	private int                count;  // slices given to the tool
+	private int                turn;   // slice which may use the file
+	private final Object       turnLock = new Object();
+	private volatile Throwable failure;
+	private long               start, reported;
+
+	private void visitParallel(final IConversionContext context, IDataset slice) throws Exception {
+		
+		throwFailure();
+
+		final String grp = onWriter(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return createGroupIfRequired(context);
+			}
+		});
+
+		final int    index = count++;
+		final DataReductionSlice bean = new DataReductionSlice(getFile(index), grp, slice, object, context.getSelectedSlice(), context.getSelectedShape(), context.getMonitor());
+		bean.setAxes(getAxes(context, slice));
+		bean.setExpandedDatasetNames(getExpandedDatasets());
+
+		final IParallelReductionToolPage ptool = (IParallelReductionToolPage)tool;
+		if (index==0) { // Others are given its user data
+			try {
+				DataReductionInfo info = ptool.export(bean, state);
+				if (info.getStatus().isOK()) object = info.getUserData();
+			} finally {
+				endTurn(index, context.getMonitor());
+			}
+			return;
+		}
+		
+		inFlight.acquire();
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (failure==null) ptool.export(bean, state);
+				} catch (Throwable ne) {
+					fail(ne);
+				} finally {
+					try {
+						endTurn(index, context.getMonitor());
+					} catch (Throwable ne) {
+						fail(ne);
+					} finally {
+						inFlight.release();
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * A file for slice index which waits for its turn then does each call on the writer.
+	 */
+	private IHierarchicalDataFile getFile(final int index) {
+		return (IHierarchicalDataFile)Proxy.newProxyInstance(IHierarchicalDataFile.class.getClassLoader(), new Class<?>[]{IHierarchicalDataFile.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+				if (method.getDeclaringClass()==Object.class) return method.invoke(output, args);
+				waitForTurn(index);
+				try {
+					return onWriter(new Callable<Object>() {
+						@Override
+						public Object call() throws Exception {
+							return method.invoke(output, args);
+						}
+					});
+				} catch (InvocationTargetException ne) {
+					throw ne.getCause();
+				}
+			}
+		});
+	}
+	
+	private <T> T onWriter(Callable<T> call) throws Exception {
+		try {
+			return writer.submit(call).get();
+		} catch (ExecutionException ne) {
+			if (ne.getCause() instanceof Exception) throw (Exception)ne.getCause();
+			if (ne.getCause() instanceof Error)     throw (Error)ne.getCause();
+			throw ne;
+		}
+	}
+
+	/**
+	 * Keeps the first failure of a worker or the writer and wakes the slices
+	 * waiting for their turn, which may never come.
+	 */
+	private void fail(Throwable ne) {
+		synchronized (turnLock) {
+			if (failure==null) failure = ne;
+			turnLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Throws the failure of a worker or the writer on the calling thread, as it was thrown.
+	 */
+	private void throwFailure() throws Exception {
+		final Throwable ne = failure;
+		if (ne==null) return;
+		if (ne instanceof Exception) throw (Exception)ne;
+		if (ne instanceof Error)     throw (Error)ne;
+		throw new Exception(ne);
+	}
+
+	private void waitForTurn(int index) throws InterruptedException {
+		synchronized (turnLock) {
+			while (turn<index && failure==null) turnLock.wait();
+			if (turn<index) throw new IllegalStateException("Slice "+index+" is not written, an earlier slice failed");
+		}
+	}
+
+	/**
+	 * Called when the export of a slice has finished, whether it worked or not, so the next
+	 * slice can write. Progress is reported here so it is in order.
+	 */
+	private void endTurn(int index, IMonitor monitor) throws InterruptedException {
+		synchronized (turnLock) {
+			while (turn<index && failure==null) turnLock.wait();
+			if (turn<index) return;
+			turn = index+1;
+			turnLock.notifyAll();
+
+			if (monitor==null) return;
+			monitor.worked(1);
+			final long now = System.currentTimeMillis();
+			if (now-reported > 1000) {
+				reported = now;
+				monitor.subTask(String.format("%d slices, %.1f frames/s", turn, turn*1000d/(now-start)));
+			}
+		}
+	}
+	
 	/**
 	 * Deals with getting correct axes for slice
 	 * @param context
@@ -92,14 +278,51 @@ class ToolConversionVisitor implements IConversionVisitor {
 		}
 		if (all1D) return nexusAxes; // No need to slice them.
 		
+		final List<AxesMetadata> adata = slice.getMetadata(AxesMetadata.class);
+		if (axisPlaces==null) axisPlaces = findAxes(adata);
+		
+		final List<IDataset> ret = new ArrayList<IDataset>(nexusAxes.size());
+		for (int index = 0; index < nexusAxes.size(); index++) {
+			
+			IDataset i = nexusAxes.get(index);
+			if (i.getRank()>1) {
+				final int[] place = axisPlaces[index];
+				try {
+					if (place!=null) i = adata.get(place[0]).getAxis(index)[place[1]].getSlice();
+				} catch (Exception ne) {
+					i = ((Dataset)i).mean(0);
+				}
+			}
+			if (i.getRank()==2) {
+                i = ((Dataset)i).mean(0);	
+			}
+			
+			ret.add(i);
+		}
+		return ret;
+	}
+
+	/**
+	 * Where each axis of more than one dimension is in the AxesMetadata, found by name once
+	 * for the first slice rather than for every slice.
+	 */
+	private int[][] axisPlaces;
+	
+	/**
+	 * 
+	 * @param adata of the first slice
+	 * @return for each axis the index of the AxesMetadata and of the axis in it, or null if it is not there
+	 */
+	private int[][] findAxes(List<AxesMetadata> adata) {
+		
+		final int[][] places = new int[nexusAxes.size()][];
+		
 		// Do not read on unless you want to wake up in a cold sweat...
 		
 		// TODO Might be able to use these meta-data things but not sure how to relate these to the slice
 		// We know the axis name but this information cannot be looked up in AxesMetadata
 		// therefore AxesMetadata is a bit useless in thin context? Might need to change it
-		final List<AxesMetadata> adata = slice.getMetadata(AxesMetadata.class);
-		
-		final List<IDataset> ret = new ArrayList<IDataset>(nexusAxes.size());
+		if (adata==null) return places;
 		
 		// This sucks, sorry.
 		for (int index = 0; index < nexusAxes.size(); index++) {
@@ -115,30 +338,25 @@ class ToolConversionVisitor implements IConversionVisitor {
 					name = name.substring(name.lastIndexOf("/")+1);
 					
 					// Search for axes by name.
-                    AXIS_LOOP: for (AxesMetadata amd : adata) {
-                    	final ILazyDataset[] lza = amd.getAxis(index);
-						for (ILazyDataset axis : lza) {
+                    AXIS_LOOP: for (int a = 0; a < adata.size(); a++) {
+                    	final ILazyDataset[] lza = adata.get(a).getAxis(index);
+						for (int l = 0; l < lza.length; l++) {
 							
 							// This is horrible
 							String frag = name+"[0,:]";
-							if (axis.getName().indexOf(frag)>-1) {
-								i = axis.getSlice();
+							if (lza[l].getName().indexOf(frag)>-1) {
+								places[index] = new int[]{a, l};
 								break AXIS_LOOP;
 							}
 						}
 					}
 					
 				} catch (Exception ne) {
-					i = ((Dataset)i).mean(0);
+					// Not sliced, the mean is used.
 				}
 			}
-			if (i.getRank()==2) {
-                i = ((Dataset)i).mean(0);	
-			}
-			
-			ret.add(i);
 		}
-		return ret;
+		return places;
 	}
 
 	private String  currentH5Path;     
@@ -195,6 +413,17 @@ class ToolConversionVisitor implements IConversionVisitor {
 	@Override
 	public void close(IConversionContext context) throws Exception {
 		
+		// Wait for the slices which are running, then the writes they made.
+		if (workers!=null) {
+			workers.shutdown();
+			while (!workers.awaitTermination(1, TimeUnit.SECONDS));
+			writer.shutdown();
+			while (!writer.awaitTermination(1, TimeUnit.SECONDS));
+			workers = null;
+			writer  = null;
+			state   = null;
+		}
+
 		// Notify tool of closure
 		Exception onFinish = null;
 		try {
@@ -207,6 +436,7 @@ class ToolConversionVisitor implements IConversionVisitor {
 		if (output!=null) output.close();
 		
 		if (onFinish!=null) throw onFinish;
+		throwFailure();
 	}
 
 
@@ -217,7 +447,8 @@ class ToolConversionVisitor implements IConversionVisitor {
 
 
 	public void setNexusAxes(List<IDataset> nexusAxes) {
-		this.nexusAxes = nexusAxes;
+		this.nexusAxes  = nexusAxes;
+		this.axisPlaces = null;
 	}
 
 	public IToolPage getTool() {
@@ -232,4 +463,18 @@ class ToolConversionVisitor implements IConversionVisitor {
 		this.expandedDatasets = expandedDatasets;
 	}
 
+	private static final class ReductionThreadFactory implements ThreadFactory {
+		private final String        name;
+		private final AtomicInteger count = new AtomicInteger();
+		ReductionThreadFactory(String name) {
+			this.name = name;
+		}
+		@Override
+		public Thread newThread(Runnable r) {
+			final Thread thread = new Thread(r, name+" "+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 }
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.tools.utils;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+
+/**
+ * Summed area table (integral image) of a 2D image, so that the sum of any
+ * box, and the sums of each row and each column of a box, can be read without
+ * looking at the pixels in the box.
+ *
+ * table[y][x] is the sum of the pixels above and to the left of (x,y), so the
+ * sum of the box [x0,x1) x [y0,y1) is four look ups. The column sums of a box
+ * are two boxes one column wide and the row sums two boxes one row high, so
+ * the profiles of a box are O(width+height) however large it is.
+ *
+ * Integer images are summed in longs, which is exact, others in doubles.
+ * Masked pixels, and NaNs and infinities, are left out of the sums. If any
+ * pixels are left out the number of pixels summed is kept in a second table,
+ * for the means.
+ *
+ * The last few tables made are kept, softly, keyed by the data and mask objects
+ * they were made from, so the region sum tool, which sums without the mask, and
+ * the box tools, which use it, each keep their table and one is only made again
+ * when the image or mask change. Masks are edited in place, so the tools clear
+ * the tables when the trace tells them the mask or data changed.
+ *
+ * Only images of one element per item can be summed, see isSummable(...).
+ */
+public class SummedAreaTable {
+
+	/**
+	 * The most tables kept, the one used last is always kept.
+	 */
+	private static final int MAX_TABLES = 4;
+
+	private static final Map<Key, SoftReference<SummedAreaTable>> tables = new LinkedHashMap<Key, SoftReference<SummedAreaTable>>(4, 0.75f, true);
+
+	/**
+	 *
+	 * @param data 2D
+	 * @param mask may be null, true for pixels which are used
+	 * @return table of the data, made now if it is not one of the last few used
+	 */
+	public static SummedAreaTable getTable(Dataset data, Dataset mask) {
+		synchronized (tables) {
+			final Key                            key   = new Key(data, mask);
+			final SoftReference<SummedAreaTable> ref   = tables.get(key);
+			SummedAreaTable                      table = ref!=null ? ref.get() : null;
+			if (table==null) {
+				table = new SummedAreaTable(data, mask);
+				tables.put(key, new SoftReference<SummedAreaTable>(table));
+
+				// Drop the tables which have been collected, or whose data has, then the oldest.
+				for (Iterator<Map.Entry<Key, SoftReference<SummedAreaTable>>> it = tables.entrySet().iterator(); it.hasNext(); ) {
+					final Map.Entry<Key, SoftReference<SummedAreaTable>> entry = it.next();
+					if (entry.getValue().get()==null || entry.getKey().isCleared()) it.remove();
+				}
+				final Iterator<Key> it = tables.keySet().iterator();
+				while (tables.size()>MAX_TABLES) {
+					it.next();
+					it.remove();
+				}
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Drops the tables, for instance when the mask or the data they were made
+	 * from may have been changed in place.
+	 */
+	public static void clear() {
+		synchronized (tables) {
+			tables.clear();
+		}
+	}
+
+	/**
+	 * The data and mask objects, not their values, held weakly so that an image
+	 * which is no longer plotted is not kept by the cache.
+	 */
+	private static final class Key {
+
+		private final WeakReference<Dataset> data, mask;
+		private final int                    hash;
+
+		Key(Dataset data, Dataset mask) {
+			this.data = new WeakReference<Dataset>(data);
+			this.mask = mask!=null ? new WeakReference<Dataset>(mask) : null;
+			this.hash = 31*System.identityHashCode(data) + System.identityHashCode(mask);
+		}
+
+		boolean isCleared() {
+			return data.get()==null || (mask!=null && mask.get()==null);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this==obj) return true;
+			if (!(obj instanceof Key)) return false;
+			final Key other = (Key)obj;
+			if (hash!=other.hash || (mask==null)!=(other.mask==null)) return false;
+			final Dataset d = data.get();
+			if (d==null || d!=other.data.get()) return false;
+			return mask==null || mask.get()==other.mask.get();
+		}
+	}
+
+	/**
+	 *
+	 * @param data
+	 * @return true if a table can be made of the data
+	 */
+	public static boolean isSummable(Dataset data) {
+		return data!=null && data.getRank()==2 && data.getElementsPerItem()==1;
+	}
+
+	private final WeakReference<Dataset> data, mask;
+	private final int                    rows, cols, stride;
+	private final long[]                 lsum;   // integer images
+	private final double[]               dsum;   // others
+	private final int[]                  count;  // null if every pixel is summed
+	private final boolean                finite; // no unmasked NaN or infinity
+
+	private SummedAreaTable(Dataset data, Dataset mask) {
+
+		final int[] shape = data.getShape();
+		if (shape.length!=2) throw new IllegalArgumentException("A summed area table needs a 2D image!");
+		if (data.getElementsPerItem()!=1) throw new IllegalArgumentException("A summed area table needs one element per item!");
+
+		this.data   = new WeakReference<Dataset>(data);
+		this.mask   = mask!=null ? new WeakReference<Dataset>(mask) : null;
+		this.rows   = shape[0];
+		this.cols   = shape[1];
+		this.stride = cols+1;
+
+		final boolean integer = !data.hasFloatingPointElements();
+		final long[]   lsum   = integer ? new long[(rows+1)*stride] : null;
+		final double[] dsum   = integer ? null : new double[(rows+1)*stride];
+		int[]          count  = null;
+		boolean        finite = true;
+
+		final double[]  values = new double[cols];
+		final boolean[] used   = new boolean[cols];
+		for (int y = 0; y < rows; y++) {
+			getRow(data, mask, y, values, used);
+
+			long   lrow = 0;
+			double drow = 0;
+			int    crow = 0;
+			final int above = y*stride, here = (y+1)*stride;
+			for (int x = 0; x < cols; x++) {
+				final double v = values[x];
+				boolean      u = used[x];
+				if (u && (Double.isNaN(v) || Double.isInfinite(v))) {
+					finite = false;
+					u      = false;
+				}
+				if (u) {
+					if (integer) lrow += (long)v; else drow += v;
+					++crow;
+				} else if (count==null) {
+					// The first pixel which is not summed, count those before it.
+					count = new int[(rows+1)*stride];
+					for (int j = 1; j <= y; j++) {
+						for (int i = 1; i <= cols; i++) count[j*stride+i] = j*i;
+					}
+					for (int i = 1; i <= x; i++) count[here+i] = count[above+i] + i;
+				}
+				if (integer) lsum[here+x+1] = lsum[above+x+1] + lrow;
+				else         dsum[here+x+1] = dsum[above+x+1] + drow;
+				if (count!=null) count[here+x+1] = count[above+x+1] + crow;
+			}
+		}
+
+		this.lsum   = lsum;
+		this.dsum   = dsum;
+		this.count  = count;
+		this.finite = finite;
+	}
+
+	/**
+	 * A row of the image read using the strides, and whether each pixel is used.
+	 */
+	private static void getRow(Dataset data, Dataset mask, int y, double[] values, boolean[] used) {
+
+		final int cols = values.length;
+		int[]     strides = data.getStrides(); // null unless a view
+		int       pos     = strides!=null ? data.getOffset()+y*strides[0] : y*cols;
+		int       step    = strides!=null ? strides[1] : 1;
+		final Object buffer = data.getBuffer();
+		if (buffer instanceof double[]) {
+			final double[] d = (double[])buffer;
+			for (int x = 0; x < cols; x++, pos+=step) values[x] = d[pos];
+		} else if (buffer instanceof float[]) {
+			final float[] d = (float[])buffer;
+			for (int x = 0; x < cols; x++, pos+=step) values[x] = d[pos];
+		} else if (buffer instanceof int[]) {
+			final int[] d = (int[])buffer;
+			for (int x = 0; x < cols; x++, pos+=step) values[x] = d[pos];
+		} else if (buffer instanceof short[]) {
+			final short[] d = (short[])buffer;
+			for (int x = 0; x < cols; x++, pos+=step) values[x] = d[pos];
+		} else {
+			for (int x = 0; x < cols; x++, pos+=step) values[x] = data.getElementDoubleAbs(pos);
+		}
+
+		if (mask==null) {
+			for (int x = 0; x < cols; x++) used[x] = true;
+			return;
+		}
+		strides = mask.getStrides();
+		pos     = strides!=null ? mask.getOffset()+y*strides[0] : y*cols;
+		step    = strides!=null ? strides[1] : 1;
+		for (int x = 0; x < cols; x++, pos+=step) used[x] = mask.getElementBooleanAbs(pos);
+	}
+
+	/**
+	 *
+	 * @param data
+	 * @param mask
+	 * @return true if this table was made from these objects
+	 */
+	public boolean isFor(Dataset data, Dataset mask) {
+		if (this.data.get()!=data) return false;
+		if (mask==null) return this.mask==null;
+		return this.mask!=null && this.mask.get()==mask;
+	}
+
+	/**
+	 * @return true if no pixel which is not masked is NaN or infinite.
+	 */
+	public boolean isFinite() {
+		return finite;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getColumns() {
+		return cols;
+	}
+
+	/**
+	 * Sum of the box [x0,x1) x [y0,y1), which must be inside the image.
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @return sum of the pixels used in the box
+	 */
+	public double getSum(int x0, int y0, int x1, int y1) {
+		final int a = y0*stride+x0, b = y0*stride+x1, c = y1*stride+x0, d = y1*stride+x1;
+		if (lsum!=null) return lsum[d] - lsum[b] - lsum[c] + lsum[a];
+		return dsum[d] - dsum[b] - dsum[c] + dsum[a];
+	}
+
+	/**
+	 * Number of pixels used in the box [x0,x1) x [y0,y1), which must be inside the image.
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @return number of pixels which are not masked or invalid
+	 */
+	public int getCount(int x0, int y0, int x1, int y1) {
+		if (count==null) return (x1-x0)*(y1-y0);
+		final int a = y0*stride+x0, b = y0*stride+x1, c = y1*stride+x0, d = y1*stride+x1;
+		return count[d] - count[b] - count[c] + count[a];
+	}
+
+	/**
+	 * Sums along the box [x0,x1) x [y0,y1), as ROIProfile.box(...) for an
+	 * unrotated box.
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @return sum of each column, x1-x0 long, and sum of each row, y1-y0 long
+	 */
+	public Dataset[] getBoxProfiles(int x0, int y0, int x1, int y1) {
+		return getProfiles(x0, y0, x1, y1, false);
+	}
+
+	/**
+	 * Means along the box [x0,x1) x [y0,y1), as ROIProfile.boxMean(...) for
+	 * an unrotated box. Columns or rows where no pixels are used are NaN.
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @return mean of each column, x1-x0 long, and mean of each row, y1-y0 long
+	 */
+	public Dataset[] getBoxMeans(int x0, int y0, int x1, int y1) {
+		return getProfiles(x0, y0, x1, y1, true);
+	}
+
+	private Dataset[] getProfiles(int x0, int y0, int x1, int y1, boolean mean) {
+
+		final double[] xprofile = new double[x1-x0];
+		for (int x = x0; x < x1; x++) {
+			double value = getSum(x, y0, x+1, y1);
+			if (mean) value /= getCount(x, y0, x+1, y1);
+			xprofile[x-x0] = value;
+		}
+
+		final double[] yprofile = new double[y1-y0];
+		for (int y = y0; y < y1; y++) {
+			double value = getSum(x0, y, x1, y+1);
+			if (mean) value /= getCount(x0, y, x1, y+1);
+			yprofile[y-y0] = value;
+		}
+
+		return new Dataset[]{new DoubleDataset(xprofile, xprofile.length), new DoubleDataset(yprofile, yprofile.length)};
+	}
+}
@@ -35,6 +35,7 @@ class ExpressionLazyLoader implements ILazyLoader {
 	private final String           expressionString;
 	private final IVariableManager manager;
 	private IExpressionEngine       engine;
+	private final FusedExpression  fused; // null unless the expression is only arithmetic
 
 	public ExpressionLazyLoader(final String           variableName,
 			                    final String           expressionString,
@@ -43,6 +44,7 @@ class ExpressionLazyLoader implements ILazyLoader {
 		this.variableName     = variableName;
 		this.expressionString = expressionString;
 		this.manager          = manager;
+		this.fused            = FusedExpression.compile(expressionString);
 		
 		try {
 			IExpressionService service = (IExpressionService)ServiceManager.getService(IExpressionService.class);
@@ -62,6 +64,55 @@ class ExpressionLazyLoader implements ILazyLoader {
 	@Override
 	public Dataset getDataset(IMonitor mon, SliceND slice) throws ScanFileHolderException {
 		
+		if (fused!=null) {
+			final Dataset value = getFusedDataset(mon, slice);
+			if (value!=null) {
+				value.setName("Slice of "+variableName);
+				return value;
+			}
+		}
+		
+		if (engine==null) return null;
+		synchronized (engine) { // The engine holds the expression and variables, one slice at a time
+			return getEngineDataset(mon, slice);
+		}
+	}
+	
+	/**
+	 * Evaluates the compiled expression, which may be done for several slices at once.
+	 * 
+	 * @param mon
+	 * @param slice
+	 * @return value, or null if the variables are not ones it can do
+	 */
+	private Dataset getFusedDataset(IMonitor mon, SliceND slice) {
+		
+		final Map<String,Dataset> values = new HashMap<String,Dataset>();
+		for (final String name : fused.getVariableNames()) {
+			final Dataset value = getVariable(name, mon, slice);
+			if (value==null) return null;
+			values.put(name, value);
+		}
+		return fused.evaluate(values);
+	}
+	
+	private Dataset getVariable(String name, IMonitor mon, SliceND slice) {
+		IDataset set = null;
+		try {
+			set = manager.getLazyValue(name, mon).getSlice(mon, slice);
+		} catch (Throwable ignored) {
+			// The unsliced value, as for the engine
+			try {
+				set = manager.getVariableValue(name, mon);
+			} catch (Throwable ignored2) {
+				return null;
+			}
+		}
+		return set instanceof Dataset ? (Dataset)set : null;
+	}
+	
+	private Dataset getEngineDataset(IMonitor mon, SliceND slice) {
+		
 		try {
 			engine.createExpression(expressionString);
 		} catch (Exception e1) {
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.plotting.expression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.AbstractDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+
+/**
+ * An expression which is only + - * / of variables and numbers, such as
+ * (a - dark) / (flat - dark), compiled once to a list of instructions and
+ * evaluated for all the elements in one loop. The engine instead makes a
+ * dataset for every operator.
+ *
+ * The elements are done in blocks of BLOCK_SIZE, each instruction doing a whole
+ * block so that the loop over the instructions is not done for every element.
+ * Only the result is allocated, so slices may be evaluated at the same time on
+ * different threads.
+ *
+ * Expressions with anything else, functions, namespaces, comparisons and so on,
+ * do not compile and are left to the expression engine. So are divisions of
+ * integer data, which the engine may divide as integers, and values whose
+ * shapes differ.
+ *
+ * The sums are done in doubles and the result has the dtype the engine would
+ * give, the best dtype of the variables, so float32 data give a float32 result.
+ * Integer data with a constant which is not an integer give float64.
+ */
+final class FusedExpression {
+
+	private static final int BLOCK_SIZE = 512;
+
+	// Instructions, the variable and constant ones are followed by an index.
+	private static final int VARIABLE = 0;
+	private static final int CONSTANT = 1;
+	private static final int ADD      = 2;
+	private static final int SUBTRACT = 3;
+	private static final int MULTIPLY = 4;
+	private static final int DIVIDE   = 5;
+	private static final int NEGATE   = 6;
+
+	/**
+	 * Words which are operators or literals in the engine, not variables.
+	 */
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+			"and", "or", "not", "eq", "ne", "lt", "gt", "le", "ge", "div", "mod",
+			"empty", "size", "new", "true", "false", "null", "if", "else", "for", "while", "var", "return"));
+
+	/**
+	 *
+	 * @param expression
+	 * @return compiled expression, or null if it is not only arithmetic on variables and numbers
+	 */
+	static FusedExpression compile(String expression) {
+		if (expression==null) return null;
+		try {
+			final Parser parser = new Parser(expression);
+			parser.parseSum();
+			parser.skipSpace();
+			if (parser.pos<expression.length()) return null;
+			return new FusedExpression(parser);
+		} catch (IllegalArgumentException ne) {
+			return null;
+		}
+	}
+
+	private final int[]        code;
+	private final double[]     constants;
+	private final List<String> names;
+	private final int          depth;
+	private final boolean      divides;
+	private final boolean      floating; // a constant is not an integer
+
+	private FusedExpression(Parser parser) {
+		this.code      = new int[parser.code.size()];
+		for (int i = 0; i < code.length; i++) code[i] = parser.code.get(i);
+		this.constants = new double[parser.constants.size()];
+		for (int i = 0; i < constants.length; i++) constants[i] = parser.constants.get(i);
+		this.names     = parser.names;
+		this.depth     = parser.depth;
+		this.divides   = parser.divides;
+		this.floating  = parser.floating;
+	}
+
+	/**
+	 * @return names of the variables, each once
+	 */
+	List<String> getVariableNames() {
+		return names;
+	}
+
+	/**
+	 *
+	 * @param values for each variable, of one element or all the same shape
+	 * @return result with the shape of the values, or null if the values
+	 *         cannot be done here and should be given to the engine
+	 */
+	Dataset evaluate(Map<String, ? extends Dataset> values) {
+
+		// The values must be single numbers, or all the same shape.
+		final Dataset[] data = new Dataset[names.size()];
+		int[]   shape     = null;
+		int     size      = 1;
+		boolean floatData = false;
+		int     dtype     = -1;
+		for (int i = 0; i < data.length; i++) {
+			Dataset value = values.get(names.get(i));
+			if (value==null || value.getElementsPerItem()!=1) return null;
+			if (value.getStrides()!=null) value = value.clone(); // Read the buffer from the start
+			if (!isReadable(value.getBuffer())) return null;
+			data[i] = value;
+
+			if (value.hasFloatingPointElements()) floatData = true;
+			dtype = dtype<0 ? value.getDtype() : AbstractDataset.getBestDType(dtype, value.getDtype());
+
+			if (value.getSize()==1) continue;
+			if (shape!=null && !Arrays.equals(shape, value.getShape())) return null;
+			shape = value.getShape();
+			size  = value.getSize();
+		}
+		if (!floatData && divides) return null; // Even with a float constant, the engine may divide two integers first
+		if (shape==null) shape = new int[0];
+
+		final double[]   result = new double[size];
+		final double[][] stack  = new double[depth][BLOCK_SIZE];
+		for (int from = 0; from < size; from+=BLOCK_SIZE) {
+			final int length = Math.min(BLOCK_SIZE, size-from);
+			run(data, from, length, stack);
+			System.arraycopy(stack[0], 0, result, from, length);
+		}
+
+		final Dataset ret = new DoubleDataset(result, shape);
+		if (dtype<0 || dtype==Dataset.FLOAT64) return ret;
+		if (floating && !floatData) return ret; // Integers and a float constant
+		return DatasetUtils.cast(ret, dtype);
+	}
+
+	/**
+	 * Runs the instructions for the length elements from from, leaving the result in stack[0].
+	 */
+	private void run(Dataset[] data, int from, int length, double[][] stack) {
+
+		int top = -1;
+		for (int i = 0; i < code.length; i++) {
+			switch (code[i]) {
+			case VARIABLE:
+				read(data[code[++i]], from, length, stack[++top]);
+				break;
+			case CONSTANT:
+				Arrays.fill(stack[++top], 0, length, constants[code[++i]]);
+				break;
+			case NEGATE: {
+				final double[] a = stack[top];
+				for (int j = 0; j < length; j++) a[j] = -a[j];
+				break;
+			}
+			default: {
+				final double[] a = stack[top-1];
+				final double[] b = stack[top--];
+				switch (code[i]) {
+				case ADD:
+					for (int j = 0; j < length; j++) a[j] += b[j];
+					break;
+				case SUBTRACT:
+					for (int j = 0; j < length; j++) a[j] -= b[j];
+					break;
+				case MULTIPLY:
+					for (int j = 0; j < length; j++) a[j] *= b[j];
+					break;
+				case DIVIDE:
+					for (int j = 0; j < length; j++) a[j] /= b[j];
+					break;
+				}
+			}
+			}
+		}
+	}
+
+	private static boolean isReadable(Object buffer) {
+		return buffer instanceof double[] || buffer instanceof float[] || buffer instanceof long[] ||
+			   buffer instanceof int[]    || buffer instanceof short[] || buffer instanceof byte[];
+	}
+
+	/**
+	 * Elements [from, from+length) of a value, or its only element.
+	 */
+	private static void read(Dataset value, int from, int length, double[] to) {
+
+		final Object buffer = value.getBuffer();
+		if (value.getSize()==1) {
+			Arrays.fill(to, 0, length, value.getElementDoubleAbs(0));
+		} else if (buffer instanceof double[]) {
+			System.arraycopy((double[])buffer, from, to, 0, length);
+		} else if (buffer instanceof float[]) {
+			final float[] d = (float[])buffer;
+			for (int j = 0; j < length; j++) to[j] = d[from+j];
+		} else if (buffer instanceof long[]) {
+			final long[] d = (long[])buffer;
+			for (int j = 0; j < length; j++) to[j] = d[from+j];
+		} else if (buffer instanceof int[]) {
+			final int[] d = (int[])buffer;
+			for (int j = 0; j < length; j++) to[j] = d[from+j];
+		} else if (buffer instanceof short[]) {
+			final short[] d = (short[])buffer;
+			for (int j = 0; j < length; j++) to[j] = d[from+j];
+		} else {
+			final byte[] d = (byte[])buffer;
+			for (int j = 0; j < length; j++) to[j] = d[from+j];
+		}
+	}
+
+	/**
+	 * Recursive descent, writing the instructions in postfix order.
+	 * Throws IllegalArgumentException for anything which is not arithmetic.
+	 */
+	private static final class Parser {
+
+		private final String        text;
+		private int                 pos;
+		private final List<Integer> code      = new ArrayList<Integer>();
+		private final List<Double>  constants = new ArrayList<Double>();
+		private final List<String>  names     = new ArrayList<String>();
+		private int                 size, depth;
+		private boolean             divides, floating;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		void parseSum() {
+			parseProduct();
+			for (char c = peek(); c=='+' || c=='-'; c = peek()) {
+				++pos;
+				parseProduct();
+				emit(c=='+' ? ADD : SUBTRACT, -1);
+			}
+		}
+
+		private void parseProduct() {
+			parseUnary();
+			for (char c = peek(); c=='*' || c=='/'; c = peek()) {
+				++pos;
+				parseUnary();
+				if (c=='/') divides = true;
+				emit(c=='*' ? MULTIPLY : DIVIDE, -1);
+			}
+		}
+
+		private void parseUnary() {
+			final char c = peek();
+			if (c=='-' || c=='+') {
+				++pos;
+				parseUnary();
+				if (c=='-') emit(NEGATE, 0);
+			} else {
+				parsePrimary();
+			}
+		}
+
+		private void parsePrimary() {
+			final char c = peek();
+			if (c=='(') {
+				++pos;
+				parseSum();
+				if (peek()!=')') throw new IllegalArgumentException();
+				++pos;
+			} else if (Character.isDigit(c) || c=='.') {
+				parseNumber();
+			} else if (Character.isJavaIdentifierStart(c)) {
+				parseName();
+			} else {
+				throw new IllegalArgumentException();
+			}
+		}
+
+		private void parseNumber() {
+			final int start = pos;
+			while (pos<text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos)=='.')) ++pos;
+			if (pos<text.length() && (text.charAt(pos)=='e' || text.charAt(pos)=='E')) {
+				++pos;
+				if (pos<text.length() && (text.charAt(pos)=='+' || text.charAt(pos)=='-')) ++pos;
+				while (pos<text.length() && Character.isDigit(text.charAt(pos))) ++pos;
+			}
+			if (pos<text.length() && Character.isJavaIdentifierPart(text.charAt(pos))) throw new IllegalArgumentException(); // 1L, 2f...
+			final String number = text.substring(start, pos);
+			final double value  = Double.parseDouble(number); // NumberFormatException is an IllegalArgumentException
+			if (number.indexOf('.')>-1 || number.indexOf('e')>-1 || number.indexOf('E')>-1) floating = true;
+			constants.add(value);
+			emit(CONSTANT, 1);
+			code.add(constants.size()-1);
+		}
+
+		private void parseName() {
+			final int start = pos;
+			while (pos<text.length() && Character.isJavaIdentifierPart(text.charAt(pos))) ++pos;
+			final String name = text.substring(start, pos);
+			if (KEYWORDS.contains(name)) throw new IllegalArgumentException();
+			final char next = peek();
+			if (next=='(' || next==':' || next=='.' || next=='[') throw new IllegalArgumentException(); // Functions, namespaces, methods
+			int index = names.indexOf(name);
+			if (index<0) {
+				names.add(name);
+				index = names.size()-1;
+			}
+			emit(VARIABLE, 1);
+			code.add(index);
+		}
+
+		/**
+		 * Adds an instruction, which changes the number of values on the stack by change.
+		 */
+		private void emit(int instruction, int change) {
+			code.add(instruction);
+			size += change;
+			depth = Math.max(depth, size);
+		}
+
+		void skipSpace() {
+			while (pos<text.length() && Character.isWhitespace(text.charAt(pos))) ++pos;
+		}
+
+		private char peek() {
+			skipSpace();
+			return pos<text.length() ? text.charAt(pos) : 0;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package org.dawnsci.processing.ui.slice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.api.processing.IOperation;
+import org.eclipse.dawnsci.analysis.api.processing.OperationData;
+import org.eclipse.dawnsci.analysis.api.processing.model.AbstractOperationModel;
+import org.eclipse.dawnsci.analysis.api.processing.model.IOperationModel;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.junit.Test;
+
+/**
+ * The keys must change with the file and with the models, and the outputs must be
+ * dropped when the memory is used up or a dataset in a model is replaced.
+ */
+public class OperationResultCacheTest {
+
+	@Test
+	public void testSourceKeyHasModificationTime() throws Exception {
+		final File file = File.createTempFile("operation_cache", ".h5");
+		try {
+			file.setLastModified(1000000000000L);
+			final String key = OperationResultCache.getSourceKey(file.getAbsolutePath(), "/entry/data", "0,:,:");
+			assertEquals(key, OperationResultCache.getSourceKey(file.getAbsolutePath(), "/entry/data", "0,:,:"));
+
+			file.setLastModified(1000000005000L);
+			assertFalse(key.equals(OperationResultCache.getSourceKey(file.getAbsolutePath(), "/entry/data", "0,:,:")));
+
+			final String other = OperationResultCache.getSourceKey(file.getAbsolutePath(), "/entry/data", "0,:,:");
+			assertFalse(other.equals(OperationResultCache.getSourceKey(file.getAbsolutePath(), "/entry/other", "0,:,:")));
+			assertFalse(other.equals(OperationResultCache.getSourceKey(file.getAbsolutePath(), "/entry/data", "1,:,:")));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testState() {
+		final TestModel model = new TestModel();
+		model.setThreshold(2.5);
+		model.setMask(createDataset("mask", 4));
+		final IOperation<? extends IOperationModel, ? extends OperationData> op = createOperation("test.op", model);
+
+		final String state = OperationResultCache.getState(op);
+		assertNotNull(state);
+		assertTrue(state, state.startsWith("test.op"));
+		assertEquals(state, OperationResultCache.getState(op));
+
+		// The same dataset in a new instance has the same state, checkDatasets(...) tells them apart
+		model.setMask(createDataset("mask", 4));
+		assertEquals(state, OperationResultCache.getState(op));
+
+		model.setMask(createDataset("mask", 5));
+		assertFalse(state.equals(OperationResultCache.getState(op)));
+
+		model.setMask(createDataset("mask", 4));
+		model.setThreshold(3);
+		assertFalse(state.equals(OperationResultCache.getState(op)));
+
+		assertEquals("test.none", OperationResultCache.getState(createOperation("test.none", null)));
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		// Each output is 100 doubles, room for three
+		final OperationResultCache cache = new OperationResultCache(3*800);
+		cache.put("a", createData(100), 1);
+		cache.put("b", createData(100), 2);
+		cache.put("c", createData(100), 3);
+		assertEquals(3, cache.size());
+
+		assertNotNull(cache.get("a"));
+		cache.put("d", createData(100), 4);
+		assertEquals(3, cache.size());
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+		assertNotNull(cache.get("d"));
+		assertEquals(4, cache.getTime("d"));
+		assertEquals(0, cache.getTime("b"));
+
+		cache.put("e", createData(250), 5);
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get("e"));
+
+		cache.put("f", createData(400), 6);
+		assertNull("Larger than the cache", cache.get("f"));
+		assertNotNull(cache.get("e"));
+
+		cache.put(null, createData(1), 7);
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testReplacedDatasetClears() {
+		final OperationResultCache cache = new OperationResultCache(1024*1024);
+		final TestModel model = new TestModel();
+		model.setMask(createDataset("mask", 4));
+		@SuppressWarnings("unchecked")
+		final IOperation<? extends IOperationModel, ? extends OperationData>[] series = new IOperation[]{createOperation("test.first", null), createOperation("test.op", model)};
+
+		assertFalse("Nothing to compare the first time", cache.checkDatasets(series));
+		cache.put("a", createData(10), 1);
+
+		model.setThreshold(7);
+		assertFalse(cache.checkDatasets(series));
+		assertNotNull(cache.get("a"));
+
+		model.setMask(createDataset("mask", 4));
+		assertTrue(cache.checkDatasets(series));
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+
+		cache.put("a", createData(10), 1);
+		assertFalse(cache.checkDatasets(series));
+		assertNotNull(cache.get("a"));
+
+		model.setMask(null);
+		assertTrue(cache.checkDatasets(series));
+		assertNull(cache.get("a"));
+	}
+
+	private static IDataset createDataset(String name, int size) {
+		final IDataset data = new DoubleDataset(new double[size], size);
+		data.setName(name);
+		return data;
+	}
+
+	private static OperationData createData(int size) {
+		return new OperationData(new DoubleDataset(new double[size], size));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static IOperation<? extends IOperationModel, ? extends OperationData> createOperation(final String id, final IOperationModel model) {
+		return (IOperation<? extends IOperationModel, ? extends OperationData>)Proxy.newProxyInstance(OperationResultCacheTest.class.getClassLoader(), new Class<?>[]{IOperation.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if ("getId".equals(method.getName()))    return id;
+				if ("getModel".equals(method.getName())) return model;
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	public static class TestModel extends AbstractOperationModel {
+
+		private double   threshold;
+		private IDataset mask;
+
+		public double getThreshold() {
+			return threshold;
+		}
+		public void setThreshold(double threshold) {
+			firePropertyChange("threshold", this.threshold, this.threshold = threshold);
+		}
+		public IDataset getMask() {
+			return mask;
+		}
+		public void setMask(IDataset mask) {
+			firePropertyChange("mask", this.mask, this.mask = mask);
+		}
+	}
+}
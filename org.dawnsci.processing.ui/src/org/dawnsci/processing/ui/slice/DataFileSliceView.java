@@ -132,6 +132,8 @@ public class DataFileSliceView extends ViewPart {
 	private TableViewer viewer;
 	private UpdateJob job;
 	private Label currentSliceLabel;
+	private Label cacheLabel;
+	private final OperationResultCache cache = new OperationResultCache();
 	private ChangeSliceWidget csw;
 	private String selectedFile = null;
 	private IOperation<? extends IOperationModel, ? extends OperationData> currentOperation = null;
@@ -246,6 +248,9 @@ public class DataFileSliceView extends ViewPart {
 		currentSliceLabel = new Label(parent, SWT.WRAP);
 		currentSliceLabel.setText("Current slice of data: [ - - - - -]");
 		
+		cacheLabel = new Label(parent, SWT.WRAP);
+		cacheLabel.setText(cache.getStatistics());
+		
 		IWorkbenchPage page = getSite().getPage();
 		IViewPart view = page.findView("org.dawnsci.processing.ui.output");
 		output = (IPlottingSystem)view.getAdapter(IPlottingSystem.class);
@@ -428,6 +433,7 @@ public class DataFileSliceView extends ViewPart {
 			public void run() {
 
 				fileManager.clear();
+				cache.clear();
 				csw.disable();
 				eventManager.sendInitialDataUpdate(null);
 				job = null;
@@ -500,6 +506,7 @@ public class DataFileSliceView extends ViewPart {
 	
 	private void clearSelected() {
 		fileManager.getFilePaths().remove(selectedFile);
+		cache.clear();
 		
 		if (fileManager.getFilePaths().isEmpty()) {
 			fileManager.clear();
@@ -687,31 +694,7 @@ public class DataFileSliceView extends ViewPart {
 					output.clear();
 					return Status.OK_STATUS;
 				}
-				//Only run what is necessary
-				if (inputData != null) {
-					
-					if (inputData.getCurrentOperation() != end) {
-						int pos = 0;
-						for (int i = 0; i< ops.length; i++) {
-							if (ops[i] == end) break;
-							if (ops[i] == inputData.getCurrentOperation()) {
-								pos = i;
-								pos++;
-								break;
-							}
-						}
-						
-						if (pos != 0){
-							firstSlice = inputData.getInputData();
-							ops = Arrays.copyOfRange(ops, pos-1, ops.length);
-						}
-						
-					} else {
-						firstSlice = inputData.getInputData();
-						ops = new IOperation[]{inputData.getCurrentOperation()};
-					}
-					
-				}
+				//Only run what is necessary, the cache starts from the last operation output which is still valid
 				
 				SourceInformation si = new SourceInformation(path, context.getDatasetNames().get(0), lazyDataset);
 				SliceInformation sli = csw.getCurrentSliceInformation();
@@ -725,6 +708,7 @@ public class DataFileSliceView extends ViewPart {
 
 				sliceVisitor = getSliceVisitor(ops, lazyDataset, Slicer.getDataDimensions(lazyDataset.getShape(), context.getSliceDimensions()));
 				sliceVisitor.setEndOperation(end);
+				sliceVisitor.setCache(cache, OperationResultCache.getSourceKey(path, context.getDatasetNames().get(0), Slice.createString(s)));
 				long start = System.currentTimeMillis();
 				sliceVisitor.visit(firstSlice, null, null);
 				inputData = sliceVisitor.getOperationInputData();
@@ -751,6 +735,13 @@ public class DataFileSliceView extends ViewPart {
 						eventManager.sendInputDataUpdate(inputData);
 					}
 					output.setEnabled(true);
+					Display.getDefault().asyncExec(new Runnable() {
+						public void run() {
+							if (cacheLabel.isDisposed()) return;
+							cacheLabel.setText(cache.getStatistics());
+							cacheLabel.getParent().layout(true);
+						}
+					});
 				}
 				
 				return Status.OK_STATUS;
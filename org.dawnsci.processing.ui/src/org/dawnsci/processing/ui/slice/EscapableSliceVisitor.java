@@ -33,6 +33,8 @@ public class EscapableSliceVisitor implements SliceVisitor {
 	private IConversionContext context;
 	private IPlottingSystem output;
 	private IOperationInputData inputData = null;
+	private OperationResultCache cache;
+	private String sourceKey;
 	
 	private final static Logger logger = LoggerFactory.getLogger(EscapableSliceVisitor.class);
 
@@ -52,29 +54,85 @@ public class EscapableSliceVisitor implements SliceVisitor {
 		visitor.setEndOperation(op);
 	}
 
+	/**
+	 * Keep the output of each operation, and start from the last one kept.
+	 * The series must then be all the operations from the raw data.
+	 * 
+	 * @param cache
+	 * @param sourceKey file and slice of the data visited
+	 */
+	public void setCache(OperationResultCache cache, String sourceKey) {
+		this.cache     = cache;
+		this.sourceKey = sourceKey;
+	}
+
 	@Override
 	public void visit(IDataset slice, Slice[] slices, int[] shape) throws Exception {
 
 		OperationData  data = new OperationData(slice);
 		SliceFromSeriesMetadata ssm = slice.getMetadata(SliceFromSeriesMetadata.class).get(0);
 		
-		for (IOperation<? extends IOperationModel, ? extends OperationData> i : series) {
-
-			if (i instanceof IExportOperation) {
-				visitor.notify(i, data);
-			} else if (i.isPassUnmodifiedData() && i != endOperation) {
-				//do nothing
-			} else {
-				
-				if (i == endOperation) inputData = new OperationInputDataImpl(data.getData(),i); 
+		final String[] keys = getKeys();
+		int  start = 0;
+		long time  = 0; // to make data from the raw data
+		int  hits = 0, misses = 0;
+		long saved = 0;
+		
+		// Start after the last operation changing the data which is kept, before the end operation.
+		if (cache != null) {
+			int last = series.length;
+			for (int k = 0; k < series.length; k++) if (series[k] == endOperation) last = k;
+			for (int k = Math.min(last, series.length)-1; k >= 0; k--) {
+				if (!changesData(series[k])) continue;
+				final OperationData cached = cache.get(keys[k]);
+				if (cached == null) continue;
+				data  = cached;
+				start = k+1;
+				time  = cache.getTime(keys[k]);
+				saved = time;
+				for (int j = 0; j <= k; j++) if (changesData(series[j])) ++hits;
+				break;
+			}
+		}
+		
+		try {
+			for (int index = start; index < series.length; index++) {
 				
-				OperationData tmp = i.execute(data.getData(), null);
-				tmp.getData().setMetadata(ssm);
-				visitor.notify(i, tmp); // Optionally send intermediate result
-				data = i.isPassUnmodifiedData() ? data : tmp;
+				final IOperation<? extends IOperationModel, ? extends OperationData> i = series[index];
+	
+				if (i instanceof IExportOperation) {
+					visitor.notify(i, data);
+				} else if (i.isPassUnmodifiedData() && i != endOperation) {
+					//do nothing
+				} else {
+					
+					if (i == endOperation) inputData = new OperationInputDataImpl(data.getData(),i); 
+					
+					OperationData tmp = cache != null ? cache.get(keys[index]) : null;
+					long tmpTime;
+					if (tmp != null) {
+						tmpTime = cache.getTime(keys[index]);
+						saved  += Math.max(0, tmpTime-time);
+						++hits;
+					} else {
+						final long before = System.currentTimeMillis();
+						tmp = i.execute(data.getData(), null);
+						tmpTime = time + System.currentTimeMillis()-before;
+						++misses;
+						if (cache != null) cache.put(keys[index], tmp, tmpTime);
+					}
+					tmp.getData().setMetadata(ssm);
+					visitor.notify(i, tmp); // Optionally send intermediate result
+					if (!i.isPassUnmodifiedData()) {
+						data = tmp;
+						time = tmpTime;
+					}
+				}
+	
+				if (i == endOperation) break;
 			}
-
-			if (i == endOperation) break;
+		} finally {
+			if (cache != null) cache.count(hits, misses, saved);
 		}
 
 
@@ -82,6 +140,31 @@ public class EscapableSliceVisitor implements SliceVisitor {
 
 	}
 	
+	private static boolean changesData(IOperation<? extends IOperationModel, ? extends OperationData> op) {
+		return !(op instanceof IExportOperation) && !op.isPassUnmodifiedData();
+	}
+	
+	/**
+	 * The key of the output of each operation is the source and the state of each
+	 * operation changing the data up to it. Null if it cannot be cached.
+	 */
+	private String[] getKeys() {
+		
+		final String[] keys = new String[series.length];
+		if (cache == null) return keys;
+		cache.checkDatasets(series);
+		
+		String prefix = sourceKey;
+		for (int k = 0; k < series.length && prefix != null; k++) {
+			if (series[k] instanceof IExportOperation) continue;
+			final String state = OperationResultCache.getState(series[k]);
+			if (state == null) break; // Nor those after it
+			keys[k] = prefix+"\n"+k+":"+state;
+			if (changesData(series[k])) prefix = keys[k];
+		}
+		return keys;
+	}
+	
 	public IOperationInputData getOperationInputData() {
 		return inputData;
 	}
@@ -0,0 +1,226 @@
+package org.dawnsci.processing.ui.slice;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.api.processing.IOperation;
+import org.eclipse.dawnsci.analysis.api.processing.OperationData;
+import org.eclipse.dawnsci.analysis.api.processing.model.IOperationModel;
+import org.eclipse.dawnsci.analysis.api.processing.model.ModelField;
+import org.eclipse.dawnsci.analysis.api.processing.model.ModelUtils;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+
+/**
+ * The outputs of the operations run for the preview, so that when a slice is
+ * run again it can start from the last operation whose output is still valid.
+ *
+ * An output is kept against the file and its modification time, the slice, the
+ * position of the operation and the state of its model and of the models of every
+ * operation before it which changes the data. Changing a late operation then only
+ * runs it and those after it. The state of a model is its field values as strings.
+ *
+ * A dataset in a model is only in the state by its name and shape, so the cache
+ * is cleared by checkDatasets(...) when any of those datasets is replaced.
+ *
+ * The cache holds at most maxBytes of data, the least recently used outputs
+ * are dropped first.
+ */
+public class OperationResultCache {
+
+	private final long                maxBytes;
+	private final Map<String, Entry>  entries;
+	private long                      bytes;
+	private List<IDataset>            datasets;
+
+	private int  hits, misses;
+	private long saved;
+
+	public OperationResultCache() {
+		this(Math.min(512L*1024*1024, Runtime.getRuntime().maxMemory()/8));
+	}
+
+	public OperationResultCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.entries  = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return output of the operation, or null if it is not kept
+	 */
+	public synchronized OperationData get(String key) {
+		if (key==null) return null;
+		final Entry entry = entries.get(key);
+		return entry!=null ? entry.data : null;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return time in ms to make the output from the raw data, 0 if it is not kept
+	 */
+	public synchronized long getTime(String key) {
+		final Entry entry = key!=null ? entries.get(key) : null;
+		return entry!=null ? entry.time : 0;
+	}
+
+	/**
+	 *
+	 * @param key may be null if the operation cannot be cached
+	 * @param data output of the operation
+	 * @param time in ms to make it from the raw data
+	 */
+	public synchronized void put(String key, OperationData data, long time) {
+
+		if (key==null || data==null || data.getData()==null) return;
+		final long size = getBytes(data.getData());
+		if (size>maxBytes) return;
+
+		final Entry old = entries.put(key, new Entry(data, time, size));
+		if (old!=null) bytes -= old.bytes;
+		bytes += size;
+
+		final Iterator<Entry> it = entries.values().iterator();
+		while (bytes>maxBytes && it.hasNext()) {
+			bytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Counts operations which were read from the cache and run.
+	 *
+	 * @param hits
+	 * @param misses
+	 * @param saved ms not spent running operations
+	 */
+	public synchronized void count(int hits, int misses, long saved) {
+		this.hits   += hits;
+		this.misses += misses;
+		this.saved  += saved;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Clears the cache if the datasets in the models of the series are not the
+	 * same instances as when it was last checked.
+	 *
+	 * @param series
+	 * @return true if the cache was cleared
+	 */
+	public synchronized boolean checkDatasets(IOperation<? extends IOperationModel, ? extends OperationData>[] series) {
+
+		final List<IDataset> current = new ArrayList<IDataset>();
+		for (IOperation<? extends IOperationModel, ? extends OperationData> op : series) {
+			final IOperationModel model = op.getModel();
+			if (model==null) continue;
+			try {
+				for (ModelField field : ModelUtils.getModelFields(model)) {
+					final Object value = field.get();
+					if (value instanceof IDataset) current.add((IDataset)value);
+				}
+			} catch (Exception ne) {
+				continue; // getState(...) is then null and the operation is not cached
+			}
+		}
+
+		final boolean changed = datasets!=null && !isSame(datasets, current);
+		if (changed) clear();
+		datasets = current;
+		return changed;
+	}
+
+	private static boolean isSame(List<IDataset> a, List<IDataset> b) {
+		if (a.size()!=b.size()) return false;
+		for (int i = 0; i < a.size(); i++) if (a.get(i)!=b.get(i)) return false;
+		return true;
+	}
+
+	/**
+	 *
+	 * @return number of outputs kept
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 *
+	 * @return hits, misses, time saved and memory used for the view
+	 */
+	public synchronized String getStatistics() {
+		return String.format("Cached operations: %d hits, %d misses, %.1f s saved, %.1f MB", hits, misses, saved/1000d, bytes/(1024d*1024d));
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @param datasetName
+	 * @param slice
+	 * @return key of the data going in to the first operation, which changes
+	 * when the file is written
+	 */
+	public static String getSourceKey(String path, String datasetName, String slice) {
+		final long modified = path!=null ? new File(path).lastModified() : 0;
+		return path+"|"+modified+"|"+datasetName+"|"+slice;
+	}
+
+	/**
+	 *
+	 * @param op
+	 * @return id of the operation and the value of each field of its model, or null
+	 * if the model cannot be read.
+	 */
+	public static String getState(IOperation<? extends IOperationModel, ? extends OperationData> op) {
+
+		final StringBuilder buf = new StringBuilder(op.getId());
+		final IOperationModel model = op.getModel();
+		if (model==null) return buf.toString();
+		try {
+			for (ModelField field : ModelUtils.getModelFields(model)) {
+				buf.append('|').append(field.getName()).append('=');
+				final Object value = field.get();
+				if (value==null) {
+					buf.append("null");
+				} else if (value.getClass().isArray()) {
+					buf.append(Arrays.deepToString(new Object[]{value}));
+				} else if (value instanceof IDataset) {
+					final IDataset data = (IDataset)value;
+					buf.append(data.getName()).append(Arrays.toString(data.getShape()));
+				} else {
+					buf.append(value);
+				}
+			}
+		} catch (Exception ne) {
+			return null;
+		}
+		return buf.toString();
+	}
+
+	private static long getBytes(IDataset data) {
+		if (data instanceof Dataset) return ((Dataset)data).getNbytes();
+		return 8L*data.getSize();
+	}
+
+	private static final class Entry {
+		final OperationData data;
+		final long          time;
+		final long          bytes;
+		Entry(OperationData data, long time, long bytes) {
+			this.data  = data;
+			this.time  = time;
+			this.bytes = bytes;
+		}
+	}
+}
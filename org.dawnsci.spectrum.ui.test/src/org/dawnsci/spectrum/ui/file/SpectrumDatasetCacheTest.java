@@ -0,0 +1,201 @@
+package org.dawnsci.spectrum.ui.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reads small ascii files with three columns of 100 doubles, 800 bytes each.
+ */
+public class SpectrumDatasetCacheTest {
+
+	private static final int ROWS = 100;
+
+	private File file;
+
+	@Before
+	public void before() throws IOException {
+		file = File.createTempFile("spectrum_cache", ".dat");
+		write(file, ROWS, 1);
+	}
+
+	@After
+	public void after() {
+		file.delete();
+	}
+
+	@Test
+	public void testHitAndMiss() throws Exception {
+		final SpectrumDatasetCache cache = new SpectrumDatasetCache(1024*1024);
+		final String path = file.getAbsolutePath();
+
+		final IDataset first = cache.getDataset(path, "y");
+		checkColumn(first, "y", ROWS, 1, 1);
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		final IDataset second = cache.getDataset(path, "y");
+		checkColumn(second, "y", ROWS, 1, 1);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		checkColumn(cache.getDataset(path, "z"), "z", ROWS, 2, 1);
+		assertEquals(2, cache.getMisses());
+		assertTrue(cache.contains(path));
+
+		assertNull(cache.getDataset(path, "missing"));
+		assertEquals(3, cache.getMisses());
+	}
+
+	/**
+	 * Each caller has its own copy, changing one does not change the data kept.
+	 */
+	@Test
+	public void testCopies() throws Exception {
+		final SpectrumDatasetCache cache = new SpectrumDatasetCache(1024*1024);
+		final String path = file.getAbsolutePath();
+
+		final Dataset first = DatasetUtils.convertToDataset(cache.getDataset(path, "y"));
+		first.imultiply(-1);
+		first.set(1000, 5);
+		first.setName("changed");
+		first.setShape(ROWS/2, 2);
+
+		final IDataset second = cache.getDataset(path, "y");
+		assertNotSame(first, second);
+		assertEquals(1, cache.getHits());
+		checkColumn(second, "y", ROWS, 1, 1);
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		final SpectrumDatasetCache cache = new SpectrumDatasetCache(2*8*ROWS);
+		final String path = file.getAbsolutePath();
+
+		cache.getDataset(path, "x");
+		cache.getDataset(path, "y");
+		cache.getDataset(path, "x"); // y is now the least recently used
+		assertEquals(1, cache.getHits());
+		assertEquals(0, cache.getEvictions());
+
+		cache.getDataset(path, "z");
+		assertEquals(1, cache.getEvictions());
+		cache.getDataset(path, "x");
+		assertEquals(2, cache.getHits());
+
+		// y was dropped, reading it again drops z
+		checkColumn(cache.getDataset(path, "y"), "y", ROWS, 1, 1);
+		assertEquals(4, cache.getMisses());
+		assertEquals(2, cache.getEvictions());
+	}
+
+	@Test
+	public void testLargerThanCache() throws Exception {
+		final SpectrumDatasetCache cache = new SpectrumDatasetCache(8*ROWS-1);
+		final String path = file.getAbsolutePath();
+		checkColumn(cache.getDataset(path, "y"), "y", ROWS, 1, 1);
+		checkColumn(cache.getDataset(path, "y"), "y", ROWS, 1, 1);
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertFalse(cache.contains(path));
+	}
+
+	/**
+	 * A file written again is read again, whether or not its length changes.
+	 */
+	@Test
+	public void testFileChanged() throws Exception {
+		final SpectrumDatasetCache cache = new SpectrumDatasetCache(1024*1024);
+		final String path = file.getAbsolutePath();
+		checkColumn(cache.getDataset(path, "y"), "y", ROWS, 1, 1);
+
+		final long modified = file.lastModified();
+		write(file, ROWS+7, 1);
+		file.setLastModified(modified+2000);
+		checkColumn(cache.getDataset(path, "y"), "y", ROWS+7, 1, 1);
+		assertEquals(0, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		// Same length, new values
+		final long length = file.length();
+		write(file, ROWS+7, 3);
+		assertEquals(length, file.length());
+		file.setLastModified(modified+4000);
+		checkColumn(cache.getDataset(path, "y"), "y", ROWS+7, 1, 3);
+		assertEquals(3, cache.getMisses());
+
+		checkColumn(cache.getDataset(path, "y"), "y", ROWS+7, 1, 3);
+		assertEquals(1, cache.getHits());
+	}
+
+	/**
+	 * The cache is shared by the managers, a file is only dropped when every
+	 * manager which opened it has closed it.
+	 */
+	@Test
+	public void testAcquireAndRelease() throws Exception {
+		final SpectrumDatasetCache cache = new SpectrumDatasetCache(1024*1024);
+		final String path = file.getAbsolutePath();
+
+		cache.acquire(path);
+		cache.acquire(path);
+		cache.getDataset(path, "y");
+
+		cache.release(path);
+		assertTrue("Still open in the other manager", cache.contains(path));
+		cache.getDataset(path, "y");
+		assertEquals(1, cache.getHits());
+
+		cache.release(path);
+		assertFalse(cache.contains(path));
+		cache.getDataset(path, "y");
+		assertEquals(2, cache.getMisses());
+
+		// A file which was never acquired is dropped when released
+		cache.release(path);
+		assertFalse(cache.contains(path));
+	}
+
+	/**
+	 * The column is factor*(row+1)*scale.
+	 */
+	private static void checkColumn(IDataset set, String name, int rows, int factor, int scale) {
+		assertEquals(name, set.getName());
+		assertEquals(1, set.getRank());
+		assertEquals(rows, set.getSize());
+		for (int i = 0; i < rows; i++) assertEquals(name+" "+i, factor*(i+1)*scale, set.getDouble(i), 0);
+	}
+
+	/**
+	 * Columns x, y and z, with x the row and y and z one and two times the row
+	 * after it, all multiplied by scale. The columns are of fixed width so the
+	 * length of the file does not depend on the scale.
+	 */
+	private static void write(File file, int rows, int scale) throws IOException {
+		final Writer writer = new FileWriter(file);
+		try {
+			writer.write("# Spectrum cache test\n");
+			writer.write("# x\ty\tz\n");
+			for (int i = 0; i < rows; i++) {
+				writer.write(String.format(Locale.US, "%10.1f\t%10.1f\t%10.1f\n", (double)i*scale, (double)(i+1)*scale, 2d*(i+1)*scale));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.dawnsci.spectrum.ui.processing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.junit.Test;
+
+import uk.ac.diamond.scisoft.analysis.optimize.ApachePolynomial;
+
+/**
+ * The whole smoothed spectrum, the ends and the middle, must be what
+ * ApachePolynomial.getPolynomialSmoothed(...) gives with the same window and
+ * order. Where the points are equally spaced the middle is a weighted sum, which
+ * agrees with the fit to the precision of the fit. The fit is of the powers of x
+ * itself, so x is kept near zero where that precision is good.
+ */
+public class PolySmoothProcessTest {
+
+	private static final int WINDOW = 13;
+	private static final int ORDER  = 9;
+
+	@Test
+	public void testUniform() throws Exception {
+		check(createX(120, -1.2, 0.02), 1);
+		check(createX(200, -2, 0.02), 2);
+	}
+
+	/**
+	 * The shortest spectrum smoothed with the weights, and one point shorter.
+	 */
+	@Test
+	public void testShortest() throws Exception {
+		check(createX(4*WINDOW, -0.5, 0.02), 3);
+		check(createX(4*WINDOW-1, -0.5, 0.02), 4);
+	}
+
+	/**
+	 * Too short, or not equally spaced, is the fit itself.
+	 */
+	@Test
+	public void testFitted() throws Exception {
+		check(createX(WINDOW, -0.3, 0.05), 5);
+		check(createX(WINDOW+1, -0.3, 0.05), 6);
+		check(createX(30, -0.7, 0.05), 7);
+
+		final double[] x = createX(150, -1.5, 0.02);
+		for (int i = 0; i < x.length; i++) x[i] += 0.002*Math.sin(i);
+		check(x, 8);
+	}
+
+	@Test
+	public void testDescending() throws Exception {
+		final double[] x = createX(150, -1.5, 0.02);
+		for (int i = 0; i < x.length; i++) x[i] = -x[i];
+		check(x, 9);
+	}
+
+	private static void check(double[] xs, long seed) throws Exception {
+
+		final Random   random = new Random(seed);
+		final double[] ys     = new double[xs.length];
+		for (int i = 0; i < ys.length; i++) ys[i] = 100*Math.exp(-Math.pow((xs[i]-0.3)/0.2, 2)) + 10*xs[i] + random.nextGaussian()*3;
+
+		final Dataset x = new DoubleDataset(xs, xs.length);
+		final Dataset y = new DoubleDataset(ys, ys.length);
+		final Dataset expected = ApachePolynomial.getPolynomialSmoothed(x, y, WINDOW, ORDER);
+		final Dataset actual   = new PolySmoothProcess().process(x, y);
+		assertNotNull(actual);
+		assertEquals(expected.getSize(), actual.getSize());
+
+		double range = 0;
+		for (double v : ys) range = Math.max(range, Math.abs(v));
+		for (int i = 0; i < xs.length; i++) {
+			assertEquals(xs.length+" points, point "+i, expected.getDouble(i), actual.getDouble(i), 1e-6*range);
+		}
+	}
+
+	private static double[] createX(int size, double start, double step) {
+		final double[] x = new double[size];
+		for (int i = 0; i < size; i++) x[i] = start+i*step;
+		return x;
+	}
+}
@@ -0,0 +1,232 @@
+package org.dawnsci.spectrum.ui.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
+import org.junit.Test;
+
+/**
+ * Each filter is checked against the same window worked out point by point, for
+ * windows wider than the data, windows of one point and data with NaNs in it.
+ */
+public class SlidingWindowTest {
+
+	private static final int[] RADII = {0, 1, 2, 5, 17, 100};
+
+	@Test
+	public void testMinMax() {
+		final Random random = new Random(7);
+		for (double[] values : createData(random)) {
+			for (int radius : RADII) {
+				final double[] min = SlidingWindow.min(values, radius);
+				final double[] max = SlidingWindow.max(values, radius);
+				assertEquals(values.length, min.length);
+				assertEquals(values.length, max.length);
+				for (int i = 0; i < values.length; i++) {
+					double emin = Double.POSITIVE_INFINITY, emax = Double.NEGATIVE_INFINITY;
+					for (int j = Math.max(0, i-radius); j <= Math.min(values.length-1, i+radius); j++) {
+						emin = Math.min(emin, values[j]);
+						emax = Math.max(emax, values[j]);
+					}
+					assertEquals("min radius "+radius+" point "+i, emin, min[i], 0);
+					assertEquals("max radius "+radius+" point "+i, emax, max[i], 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMean() {
+		final Random random = new Random(13);
+		for (double[] values : createData(random)) {
+			for (int radius : RADII) {
+				final double[] mean = SlidingWindow.mean(values, radius);
+				assertEquals(values.length, mean.length);
+				for (int i = 0; i < values.length; i++) {
+					final int start = Math.max(0, i-radius);
+					final int end   = Math.min(values.length-1, i+radius);
+					double sum = 0;
+					for (int j = start; j <= end; j++) sum += values[j];
+					final double expected = sum/(end-start+1);
+					assertEquals("mean radius "+radius+" point "+i, expected, mean[i], 1e-9*Math.max(1, Math.abs(expected)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Infinities make the running sums NaN, which must not spread to the later windows.
+	 */
+	@Test
+	public void testMeanInfinity() {
+		final double[] values = {1, 2, Double.POSITIVE_INFINITY, 4, 5, 6, 7};
+		final double[] mean   = SlidingWindow.mean(values, 1);
+		assertEquals(1.5, mean[0], 0);
+		assertEquals(Double.POSITIVE_INFINITY, mean[1], 0);
+		assertEquals(Double.POSITIVE_INFINITY, mean[3], 0);
+		assertEquals(5, mean[4], 0);
+		assertEquals(6.5, mean[6], 0);
+	}
+
+	@Test
+	public void testDoesNotChangeValues() {
+		final double[] values = createData(new Random(1))[0];
+		final double[] copy   = values.clone();
+		SlidingWindow.min(values, 3);
+		SlidingWindow.max(values, 3);
+		SlidingWindow.mean(values, 3);
+		SlidingWindow.convolve(values, SlidingWindow.getSmoothingKernel(3, 2));
+		assertArrayEquals(copy, values, 0);
+	}
+
+	/**
+	 * The published weights for five points and a quadratic are (-3, 12, 17, 12, -3)/35.
+	 */
+	@Test
+	public void testKnownKernel() {
+		final double[] kernel = SlidingWindow.getSmoothingKernel(2, 2);
+		final double[] expected = {-3/35d, 12/35d, 17/35d, 12/35d, -3/35d};
+		assertArrayEquals(expected, kernel, 1e-12);
+		assertArrayEquals(expected, SlidingWindow.getSmoothingKernel(2, 3), 1e-12);
+
+		assertArrayEquals(new double[]{1/3d, 1/3d, 1/3d}, SlidingWindow.getSmoothingKernel(1, 0), 1e-12);
+		assertArrayEquals(new double[]{1}, SlidingWindow.getSmoothingKernel(0, 4), 1e-12);
+	}
+
+	/**
+	 * The weights must give the value at the middle of the least squares polynomial,
+	 * fitted here by solving the normal equations.
+	 */
+	@Test
+	public void testKernelAgainstFit() {
+		final Random random = new Random(19);
+		final int[][] sizes = {{2, 2}, {3, 4}, {6, 9}, {6, 8}, {10, 5}};
+		for (int[] size : sizes) {
+			final int      radius = size[0];
+			final int      order  = size[1];
+			final double[] kernel = SlidingWindow.getSmoothingKernel(radius, order);
+			assertEquals(2*radius+1, kernel.length);
+
+			double total = 0;
+			for (double w : kernel) total += w;
+			assertEquals("weights of radius "+radius+" order "+order, 1, total, 1e-9);
+
+			for (int n = 0; n < 20; n++) {
+				final double[] window = new double[2*radius+1];
+				for (int j = 0; j < window.length; j++) window[j] = random.nextGaussian()*10;
+				double sum = 0;
+				for (int j = 0; j < window.length; j++) sum += kernel[j]*window[j];
+				final double expected = fitMiddle(window, radius, Math.min(order, 2*radius));
+				assertEquals("radius "+radius+" order "+order, expected, sum, 1e-6*Math.max(1, Math.abs(expected)));
+			}
+		}
+	}
+
+	@Test
+	public void testConvolve() {
+		final Random random = new Random(23);
+		final double[] kernel = SlidingWindow.getSmoothingKernel(6, 9);
+		for (double[] values : createData(random)) {
+			final double[] ret = SlidingWindow.convolve(values, kernel);
+			assertEquals(values.length, ret.length);
+			for (int i = 0; i < values.length; i++) {
+				if (i < 6 || i >= values.length-6) {
+					assertEquals("copied end point "+i, values[i], ret[i], 0);
+					continue;
+				}
+				double expected = 0;
+				for (int j = -6; j <= 6; j++) expected += kernel[j+6]*values[i+j];
+				assertEquals("point "+i, expected, ret[i], 1e-12*Math.max(1, Math.abs(expected)));
+			}
+		}
+	}
+
+	@Test
+	public void testToArray() {
+		final Dataset data = new DoubleDataset(new double[]{0, 1, 2, 3, 4, 5, 6, 7}, 8);
+		assertArrayEquals(new double[]{1, 3, 5, 7}, SlidingWindow.toArray(data.getSliceView(new int[]{1}, new int[]{8}, new int[]{2})), 0);
+	}
+
+	@Test
+	public void testIsUniform() {
+		assertTrue(SlidingWindow.isUniform(new double[]{1, 1.5, 2, 2.5}));
+		assertTrue(SlidingWindow.isUniform(new double[]{3, 2, 1}));
+		assertTrue(SlidingWindow.isUniform(new double[]{5}));
+		assertFalse(SlidingWindow.isUniform(new double[]{1, 2, 4}));
+		assertFalse(SlidingWindow.isUniform(new double[]{1, 1, 1}));
+		assertFalse(SlidingWindow.isUniform(new double[]{1, Double.NaN, 3}));
+	}
+
+	/**
+	 * Empty, single, shorter than the windows, flat, ramps, noise and noise with NaNs
+	 * at the ends, together and alone.
+	 */
+	private static double[][] createData(Random random) {
+		final double[] noise = new double[500];
+		for (int i = 0; i < noise.length; i++) noise[i] = random.nextGaussian()*100 + 0.01*i*i;
+
+		final double[] nans = noise.clone();
+		nans[0] = Double.NaN;
+		nans[37] = Double.NaN;
+		nans[38] = Double.NaN;
+		nans[250] = Double.NaN;
+		nans[nans.length-1] = Double.NaN;
+
+		final double[] allNaN = new double[9];
+		Arrays.fill(allNaN, Double.NaN);
+
+		final double[] steps = new double[200];
+		for (int i = 0; i < steps.length; i++) steps[i] = (i/10)%3;
+
+		final double[] up   = new double[50];
+		final double[] down = new double[50];
+		for (int i = 0; i < up.length; i++) {
+			up[i]   = i;
+			down[i] = -i;
+		}
+		return new double[][]{noise, nans, allNaN, steps, up, down, new double[0], new double[]{4}, new double[]{2, Double.NaN, 1}, new double[20]};
+	}
+
+	/**
+	 * @return the value at the middle of the least squares polynomial of the order
+	 * through the window, the positions scaled to [-1,1] as the kernel does.
+	 */
+	private static double fitMiddle(double[] window, int radius, int order) {
+		final int      terms = order+1;
+		final double   scale = Math.max(1, radius);
+		final double[][] a   = new double[terms][terms+1];
+		for (int j = 0; j < window.length; j++) {
+			final double x = (j-radius)/scale;
+			for (int r = 0; r < terms; r++) {
+				for (int c = 0; c < terms; c++) a[r][c] += Math.pow(x, r+c);
+				a[r][terms] += Math.pow(x, r)*window[j];
+			}
+		}
+		// Gaussian elimination with partial pivoting, then back substitution
+		for (int k = 0; k < terms; k++) {
+			int pivot = k;
+			for (int r = k+1; r < terms; r++) if (Math.abs(a[r][k]) > Math.abs(a[pivot][k])) pivot = r;
+			final double[] tmp = a[k];
+			a[k] = a[pivot];
+			a[pivot] = tmp;
+			for (int r = k+1; r < terms; r++) {
+				final double f = a[r][k]/a[k][k];
+				for (int c = k; c <= terms; c++) a[r][c] -= f*a[k][c];
+			}
+		}
+		final double[] coeffs = new double[terms];
+		for (int r = terms-1; r >= 0; r--) {
+			double sum = a[r][terms];
+			for (int c = r+1; c < terms; c++) sum -= a[r][c]*coeffs[c];
+			coeffs[r] = sum/a[r][r];
+		}
+		return coeffs[0];
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.spectrum.ui.file;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.dawnsci.analysis.api.dataset.IDataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
+
+import uk.ac.diamond.scisoft.analysis.io.LoaderFactory;
+
+/**
+ * The datasets read from spectrum files, so that plotting, averaging and
+ * processing the same files again does not read them from disk again.
+ *
+ * A dataset is kept against the path of the file and its name, with the time
+ * the file was modified and its length. If either has changed when the dataset
+ * is asked for, it is read again.
+ *
+ * Each call returns a copy of the kept data, which the caller may change as it
+ * likes. The cache holds at most maxBytes of data, the least recently used
+ * datasets are dropped first.
+ *
+ * The cache is shared, so the managers which open a file acquire(...) its path
+ * and release(...) it when they close the file. The datasets of a file are only
+ * dropped when every manager which acquired it has released it.
+ */
+public class SpectrumDatasetCache {
+
+	private static SpectrumDatasetCache cache;
+
+	/**
+	 * @return the cache shared by the spectrum file managers
+	 */
+	public static synchronized SpectrumDatasetCache getDefault() {
+		if (cache==null) cache = new SpectrumDatasetCache(Math.min(256L*1024*1024, Runtime.getRuntime().maxMemory()/8));
+		return cache;
+	}
+
+	private final long               maxBytes;
+	private final Map<String, Entry> entries;
+	private final Map<String, Integer> owners;
+	private long                     bytes;
+
+	private int hits, misses, evictions;
+
+	public SpectrumDatasetCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.entries  = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+		this.owners   = new HashMap<String, Integer>();
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @param name
+	 * @return copy of the dataset, or null if the file does not have it
+	 * @throws Exception if the file cannot be read
+	 */
+	public IDataset getDataset(String path, String name) throws Exception {
+
+		final String key  = path+"|"+name;
+		final File   file = new File(path);
+		final long   modified = file.lastModified(), length = file.length();
+		synchronized (this) {
+			final Entry entry = entries.get(key);
+			if (entry!=null && entry.modified==modified && entry.length==length) {
+				++hits;
+				return copy(entry.data, name);
+			}
+			++misses;
+		}
+
+		// Read outside the lock so that files load at the same time.
+		final IDataset set = LoaderFactory.getDataSet(path, name, null);
+		if (set == null) return null;
+		final Dataset data = DatasetUtils.convertToDataset(set);
+
+		synchronized (this) {
+			final long size = data.getNbytes();
+			if (size<=maxBytes) {
+				final Entry old = entries.put(key, new Entry(data, modified, length, size));
+				if (old!=null) bytes -= old.bytes;
+				bytes += size;
+
+				final Iterator<Entry> it = entries.values().iterator();
+				while (bytes>maxBytes && it.hasNext()) {
+					bytes -= it.next().bytes;
+					it.remove();
+					++evictions;
+				}
+			}
+		}
+		return copy(data, name);
+	}
+
+	/**
+	 * The loader may give the same data to other callers, and ours must not change
+	 * the data kept, so each caller has its own copy.
+	 */
+	private static IDataset copy(Dataset data, String name) {
+		final Dataset copy = data.clone();
+		copy.setName(name);
+		return copy;
+	}
+
+	/**
+	 * Notes that a manager has opened a file, its datasets are then kept until
+	 * the manager releases it.
+	 *
+	 * @param path
+	 */
+	public synchronized void acquire(String path) {
+		final Integer count = owners.get(path);
+		owners.put(path, count!=null ? count+1 : 1);
+	}
+
+	/**
+	 * Notes that a manager has closed a file, and drops the datasets of the file
+	 * if no other manager has it open.
+	 *
+	 * @param path
+	 */
+	public synchronized void release(String path) {
+		final Integer count = owners.get(path);
+		if (count!=null && count>1) {
+			owners.put(path, count-1);
+			return;
+		}
+		owners.remove(path);
+
+		final String prefix = path+"|";
+		final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<String, Entry> entry = it.next();
+			if (entry.getKey().startsWith(prefix)) {
+				bytes -= entry.getValue().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 *
+	 * @param path
+	 * @return true if a dataset of the file is kept
+	 */
+	public synchronized boolean contains(String path) {
+		final String prefix = path+"|";
+		for (String key : entries.keySet()) if (key.startsWith(prefix)) return true;
+		return false;
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	public synchronized int getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 *
+	 * @return hits, misses, evictions and memory used
+	 */
+	public synchronized String getStatistics() {
+		return String.format("Cached datasets: %d, %d hits, %d misses, %d evictions, %.1f MB", entries.size(), hits, misses, evictions, bytes/(1024d*1024d));
+	}
+
+	private static final class Entry {
+		final Dataset data;
+		final long    modified, length, bytes;
+		Entry(Dataset data, long modified, long length, long bytes) {
+			this.data     = data;
+			this.modified = modified;
+			this.length   = length;
+			this.bytes    = bytes;
+		}
+	}
+}
@@ -25,28 +25,39 @@ import org.eclipse.dawnsci.plotting.api.trace.ITrace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import uk.ac.diamond.scisoft.analysis.io.LoaderFactory;
-
 public class SpectrumFile extends AbstractSpectrumFile implements ISpectrumFile {
 	
 	private String path;
 	private DatasetManager dsManager;
+	private SpectrumDatasetCache cache;
 	
 	
 	private static Logger logger = LoggerFactory.getLogger(SpectrumFile.class);
 	
-	private SpectrumFile(String path, DatasetManager dsmanager, IPlottingSystem system) {
+	private SpectrumFile(String path, DatasetManager dsmanager, SpectrumDatasetCache cache, IPlottingSystem system) {
 		this.path = path;
 		this.dsManager = dsmanager;
+		this.cache = cache;
 		this.yDatasetNames = new ArrayList<String>();
 		this.system = system;
 	}
 	
 	public static SpectrumFile create(String path, IPlottingSystem system) {
+		return create(path, SpectrumDatasetCache.getDefault(), system);
+	}
+	
+	/**
+	 * 
+	 * @param path
+	 * @param cache which the datasets of the file are read through
+	 * @param system
+	 * @return file, or null if it cannot be read
+	 */
+	public static SpectrumFile create(String path, SpectrumDatasetCache cache, IPlottingSystem system) {
 		
 		DatasetManager dsManager = DatasetManager.create(path);
 		if (dsManager == null) return null;
-		return new SpectrumFile(path, dsManager,system);
+		return new SpectrumFile(path, dsManager, cache, system);
 	}
 	
 	public String getName() {
@@ -84,10 +95,7 @@ public class SpectrumFile extends AbstractSpectrumFile implements ISpectrumFile
 	
 	public IDataset getDataset(String name) {
 		try {
-			IDataset x =  LoaderFactory.getDataSet(path, name, null);
-			if (x == null) return null;
-			x.setName(name);
-			return x;
+			return cache.getDataset(path, name);
 		} catch (Exception e) {
 			return null;
 		}
@@ -98,11 +106,8 @@ public class SpectrumFile extends AbstractSpectrumFile implements ISpectrumFile
 		
 		for (String name : yDatasetNames) {
 			try {
-				IDataset set = LoaderFactory.getDataSet(path, name, null);
-				if (set != null) {
-					set.setName(name);
-					sets.add(set);
-				}
+				IDataset set = cache.getDataset(path, name);
+				if (set != null) sets.add(set);
 			} catch (Exception e) {
 				logger.error(e.getMessage());
 			}
@@ -159,7 +164,7 @@ public class SpectrumFile extends AbstractSpectrumFile implements ISpectrumFile
 				if (useAxisDataset) x = getxDataset();
 				
 				try {
-					set = LoaderFactory.getDataSet(path, name, null);
+					set = cache.getDataset(path, name);
 					if (set != null) {
 						set.squeeze();
 						if (set.getRank() != 1) set = reduceTo1D(x, set);
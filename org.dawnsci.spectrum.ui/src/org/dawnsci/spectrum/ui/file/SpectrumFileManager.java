@@ -17,6 +17,12 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,6 +54,26 @@ public class SpectrumFileManager implements IDataMailListener {
 	private final static Logger logger = LoggerFactory.getLogger(SpectrumFileManager.class);
 	private final static ISchedulingRule mutex = new Mutex();
 	private IContain1DData cachedFile;
+	private final SpectrumDatasetCache cache;
+	
+	private static ExecutorService loader;
+
+	/**
+	 * Threads which read the files being added, several at once.
+	 */
+	private static synchronized ExecutorService getLoader() {
+		if (loader==null) {
+			loader = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Spectrum file loader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return loader;
+	}
 
 
 	/**
@@ -58,15 +84,18 @@ public class SpectrumFileManager implements IDataMailListener {
 		spectrumFiles = new LinkedHashMap<String,ISpectrumFile>();
 		listeners     = new HashSet<ISpectrumFileListener>();
 		this.system   = system;
+		this.cache    = SpectrumDatasetCache.getDefault();
 		
 		DatasetMailman.getLocalManager().addMailListener(this);
 	}
 	
 
 	public void dispose() {
+		for (String path : spectrumFiles.keySet()) cache.release(path);
 		spectrumFiles.clear();
 		listeners.clear();
 		DatasetMailman.getLocalManager().removeMailListener(this);
+		logger.debug(cache.getStatistics());
 	}
 
 	@Override
@@ -93,20 +122,42 @@ public class SpectrumFileManager implements IDataMailListener {
 		if (spectrumFiles.containsKey(file.getLongName())) return;
 		
 		spectrumFiles.put(file.getLongName(), file);
+		cache.acquire(file.getLongName());
 		
 		file.plotAll();
 		fireFileListeners(new SpectrumFileOpenedEvent(this, file));
 	}
 	
-	public void addFile(String path) {
+	public void addFile(final String path) {
 		
 		if (spectrumFiles.containsKey(path)) return;
 		
-		SpectrumFileLoaderJob job = new SpectrumFileLoaderJob("File loader job", path);
+		// The files are read at the same time and then added in the order they were given.
+		final Future<SpectrumFile> loading = getLoader().submit(new Callable<SpectrumFile>() {
+			@Override
+			public SpectrumFile call() throws Exception {
+				SpectrumFile file = SpectrumFile.create(path, cache, system);
+				if (file == null) return null;
+				setXandYdatasets(file);
+				// Reads the datasets in to the cache, ready to be plotted
+				file.getxDataset();
+				file.getyDatasets();
+				return file;
+			}
+		});
+		
+		SpectrumFileLoaderJob job = new SpectrumFileLoaderJob("File loader job", path, loading);
 		job.setRule(mutex);
 		job.schedule();
 	}
 	
+	/**
+	 * @return cache which the datasets of the files are read through
+	 */
+	public SpectrumDatasetCache getCache() {
+		return cache;
+	}
+	
 	public Set<String> getFileNames() {
 		return spectrumFiles.keySet();
 	}
@@ -119,6 +170,7 @@ public class SpectrumFileManager implements IDataMailListener {
 		ISpectrumFile file = spectrumFiles.get(path);
 		if (file == null) return null;
 		spectrumFiles.remove(path);
+		cache.release(path);
 		file.removeAllFromPlot();
 		fireFileListeners(new SpectrumFileOpenedEvent(this, file));
 		return file;
@@ -198,23 +250,30 @@ public class SpectrumFileManager implements IDataMailListener {
 	private class SpectrumFileLoaderJob extends Job {
 
 		private final String path;
+		private final Future<SpectrumFile> loading;
 
-		public SpectrumFileLoaderJob(String name, final String path) {
+		public SpectrumFileLoaderJob(String name, final String path, Future<SpectrumFile> loading) {
 			super(name);
 			this.path = path;
+			this.loading = loading;
 		}
 
 		@Override
 		protected IStatus run(IProgressMonitor monitor) {
-			SpectrumFile file = SpectrumFile.create(path,system);
+			SpectrumFile file = null;
+			try {
+				file = loading.get();
+			} catch (InterruptedException e) {
+				return Status.CANCEL_STATUS;
+			} catch (ExecutionException e) {
+				logger.error("Could not load "+path, e.getCause());
+			}
 
 			if (file == null) {
 				logger.error("Could not load file!");
 				return Status.CANCEL_STATUS;
 			}
 
-			setXandYdatasets(file);
-
 			spectrumFiles.put(file.getPath(), file);
 
 			fireFileListeners(new SpectrumFileOpenedEvent(this, file));
@@ -10,6 +10,8 @@ package org.dawnsci.spectrum.ui.processing;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import org.dawnsci.spectrum.ui.file.IContain1DData;
 import org.dawnsci.spectrum.ui.utils.Contain1DDataImpl;
@@ -19,24 +21,55 @@ import org.eclipse.dawnsci.analysis.dataset.impl.DatasetUtils;
 
 public abstract class AbstractProcess {
 	
+	private static ForkJoinPool pool;
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool==null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	/**
+	 * Processes each of the data, several at once if there are more than one.
+	 * process(x, y) may therefore be called on different threads at the same
+	 * time, the output is in the same order as the list.
+	 */
 	public List<IContain1DData> process(List<IContain1DData> list) {
 
 		List<IContain1DData> output = new ArrayList<IContain1DData>();
 
-		for (IContain1DData data : list) {
+		if (list.size()<2) {
+			for (IContain1DData data : list) output.add(process(data));
+			return output;
+		}
+
+		final List<RecursiveTask<IContain1DData>> tasks = new ArrayList<RecursiveTask<IContain1DData>>(list.size());
+		for (final IContain1DData data : list) {
+			tasks.add(new RecursiveTask<IContain1DData>() {
+				private static final long serialVersionUID = 2981658309413750241L;
+				@Override
+				protected IContain1DData compute() {
+					return process(data);
+				}
+			});
+		}
+		final ForkJoinPool pool = getPool();
+		for (RecursiveTask<IContain1DData> task : tasks) pool.execute(task);
+		for (RecursiveTask<IContain1DData> task : tasks) output.add(task.join());
 
-			List<IDataset> out = new ArrayList<IDataset>();
+		return output;
+	}
 
-			Dataset x = DatasetUtils.convertToDataset(data.getxDataset());
+	private IContain1DData process(IContain1DData data) {
 
-			for (IDataset y : data.getyDatasets()) {
-				out.add(process(x, DatasetUtils.convertToDataset(y)));
-			}
+		List<IDataset> out = new ArrayList<IDataset>();
 
-			output.add(new Contain1DDataImpl(x, out, data.getName() + getAppendingName(), data.getLongName() + getAppendingName()));
+		Dataset x = DatasetUtils.convertToDataset(data.getxDataset());
+
+		for (IDataset y : data.getyDatasets()) {
+			out.add(process(x, DatasetUtils.convertToDataset(y)));
 		}
 
-		return output;
+		return new Contain1DDataImpl(x, out, data.getName() + getAppendingName(), data.getLongName() + getAppendingName());
 	}
 	
 	protected abstract Dataset process(Dataset x, Dataset y);
@@ -8,16 +8,44 @@
  */
 package org.dawnsci.spectrum.ui.processing;
 
+import org.dawnsci.spectrum.ui.utils.SlidingWindow;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
 
 import uk.ac.diamond.scisoft.analysis.optimize.ApachePolynomial;
 
 public class PolySmoothProcess extends AbstractProcess {
 
+	private static final int WINDOW = 13;
+	private static final int ORDER  = 9;
+
+	private static final double[] KERNEL = SlidingWindow.getSmoothingKernel(WINDOW/2, ORDER);
+
+	/**
+	 * Where the points are equally spaced the fit at each point is a weighted
+	 * sum of its window, so the weights are found once and only the ends of the
+	 * spectrum, where the window is cut short, are fitted.
+	 */
 	@Override
 	protected Dataset process(Dataset x, Dataset y) {
 		try {
-			return ApachePolynomial.getPolynomialSmoothed(x,y,13,9);
+			final double[] xs = SlidingWindow.toArray(x);
+			final int      n  = xs.length;
+			if (n<4*WINDOW || y.getSize()!=n || !SlidingWindow.isUniform(xs)) {
+				return ApachePolynomial.getPolynomialSmoothed(x,y,WINDOW,ORDER);
+			}
+
+			final double[] smoothed = SlidingWindow.convolve(SlidingWindow.toArray(y), KERNEL);
+			final int      radius   = WINDOW/2;
+			final int      edge     = 2*WINDOW;
+			final Dataset  start    = ApachePolynomial.getPolynomialSmoothed(x.getSlice(new int[]{0}, new int[]{edge}, null), y.getSlice(new int[]{0}, new int[]{edge}, null), WINDOW, ORDER);
+			final Dataset  end      = ApachePolynomial.getPolynomialSmoothed(x.getSlice(new int[]{n-edge}, new int[]{n}, null), y.getSlice(new int[]{n-edge}, new int[]{n}, null), WINDOW, ORDER);
+			for (int i = 0; i < radius; i++) {
+				smoothed[i]          = start.getDouble(i);
+				smoothed[n-radius+i] = end.getDouble(edge-radius+i);
+			}
+			return new DoubleDataset(smoothed, y.getShape());
+
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -8,8 +8,9 @@
  */
 package org.dawnsci.spectrum.ui.processing;
 
+import org.dawnsci.spectrum.ui.utils.SlidingWindow;
 import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
-import org.eclipse.dawnsci.analysis.dataset.impl.DatasetFactory;
+import org.eclipse.dawnsci.analysis.dataset.impl.DoubleDataset;
 import org.eclipse.dawnsci.analysis.dataset.impl.Maths;
 
 public class RollingBallBaselineProcess extends AbstractProcess {
@@ -35,33 +36,15 @@ public class RollingBallBaselineProcess extends AbstractProcess {
 		return "_rolling_baseline_"+width;
 	}
 	
-	private  Dataset rollingBallBaselineCorrection(Dataset y, int width) {
-
-		Dataset t1 = DatasetFactory.zeros(y);
-		Dataset t2 = DatasetFactory.zeros(y);
-
-		for (int i = 0 ; i < y.getSize()-1; i++) {
-			int start = (i-width) < 0 ? 0 : (i - width);
-			int end = (i+width) > (y.getSize()-1) ? (y.getSize()-1) : (i+width);
-			double val = y.getSlice(new int[]{start}, new int[]{end}, null).min().doubleValue();
-			t1.set(val, i);
-		}
-
-		for (int i = 0 ; i < y.getSize()-1; i++) {
-			int start = (i-width) < 0 ? 0 : (i - width);
-			int end = (i+width) > (y.getSize()-1) ? (y.getSize()-1) : (i+width);
-			double val = t1.getSlice(new int[]{start}, new int[]{end}, null).max().doubleValue();
-			t2.set(val, i);
-		}
-
-		for (int i = 0 ; i < y.getSize()-1; i++) {
-			int start = (i-width) < 0 ? 0 : (i - width);
-			int end = (i+width) > (y.getSize()-1) ? (y.getSize()-1) : (i+width);
-			double val = (Double)t2.getSlice(new int[]{start}, new int[]{end}, null).mean();
-			t1.set(val, i);
-		}
-
-		return Maths.subtract(y, t1);
+	/**
+	 * The baseline is the mean of the maximum of the minimum of the spectrum,
+	 * each over the points within width of each point.
+	 */
+	private Dataset rollingBallBaselineCorrection(Dataset y, int width) {
+
+		final double[] values   = SlidingWindow.toArray(y);
+		final double[] baseline = SlidingWindow.mean(SlidingWindow.max(SlidingWindow.min(values, width), width), width);
+		return Maths.subtract(y, new DoubleDataset(baseline, y.getShape()));
 	}
 
 }
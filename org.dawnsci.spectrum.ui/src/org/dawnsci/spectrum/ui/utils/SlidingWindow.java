@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2012 Diamond Light Source Ltd.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.dawnsci.spectrum.ui.utils;
+
+import org.eclipse.dawnsci.analysis.dataset.impl.Dataset;
+import org.eclipse.dawnsci.analysis.dataset.impl.IndexIterator;
+
+/**
+ * Filters of spectra over a window of the points either side of each point,
+ * working on primitive arrays and taking the same time however wide the window.
+ *
+ * The window of point i is [i-radius, i+radius], cut short at the ends of the
+ * spectrum. The minimum and maximum keep a queue of the points which could still
+ * be the extreme of a later window, each point going in and out of the queue once.
+ * The mean is the difference of two running sums.
+ *
+ * A window with a NaN in it has a NaN minimum, maximum and mean, as Math.min(...)
+ * and Math.max(...) over the window would give.
+ *
+ * None of the methods change the arrays they are given.
+ */
+public class SlidingWindow {
+
+	/**
+	 *
+	 * @param data 1D
+	 * @return values of the data, in order
+	 */
+	public static double[] toArray(Dataset data) {
+		final double[]      values = new double[data.getSize()];
+		final IndexIterator it     = data.getIterator();
+		int i = 0;
+		while (it.hasNext()) values[i++] = data.getElementDoubleAbs(it.index);
+		return values;
+	}
+
+	/**
+	 *
+	 * @param values
+	 * @param radius
+	 * @return least value in the window of each point
+	 */
+	public static double[] min(double[] values, int radius) {
+		return extreme(values, radius, true);
+	}
+
+	/**
+	 *
+	 * @param values
+	 * @param radius
+	 * @return greatest value in the window of each point
+	 */
+	public static double[] max(double[] values, int radius) {
+		return extreme(values, radius, false);
+	}
+
+	private static double[] extreme(double[] values, int radius, boolean min) {
+
+		final int      n     = values.length;
+		final double[] ret   = new double[n];
+		final int[]    queue = new int[n]; // indices, their values getting further from the extreme
+		int head = 0, tail = 0, next = 0;
+		int nan  = -1; // the last NaN, which is kept out of the queue as it compares with nothing
+		for (int i = 0; i < n; i++) {
+			final int end = Math.min(n-1, i+radius);
+			for (; next <= end; next++) {
+				final double v = values[next];
+				if (Double.isNaN(v)) {
+					nan = next;
+					continue;
+				}
+				// Points before this one which are no better can never be the extreme again
+				while (tail>head && (min ? values[queue[tail-1]]>=v : values[queue[tail-1]]<=v)) --tail;
+				queue[tail++] = next;
+			}
+			if (nan >= i-radius) {
+				ret[i] = Double.NaN;
+				continue;
+			}
+			while (queue[head] < i-radius) ++head;
+			ret[i] = values[queue[head]];
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param values
+	 * @param radius
+	 * @return mean of the window of each point
+	 */
+	public static double[] mean(double[] values, int radius) {
+
+		final int      n       = values.length;
+		final double[] sums    = new double[n+1];
+		final int[]    invalid = new int[n+1]; // NaNs and infinities, which would spoil the later sums
+		for (int i = 0; i < n; i++) {
+			final boolean finite = !Double.isNaN(values[i]) && !Double.isInfinite(values[i]);
+			sums[i+1]    = finite ? sums[i] + values[i] : sums[i];
+			invalid[i+1] = finite ? invalid[i] : invalid[i]+1;
+		}
+
+		final double[] ret = new double[n];
+		for (int i = 0; i < n; i++) {
+			final int start = Math.max(0, i-radius);
+			final int end   = Math.min(n-1, i+radius);
+			if (invalid[end+1] > invalid[start]) {
+				double sum = 0;
+				for (int j = start; j <= end; j++) sum += values[j];
+				ret[i] = sum / (end-start+1);
+			} else {
+				ret[i] = (sums[end+1]-sums[start]) / (end-start+1);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * The weights which give the value at the middle of the least squares
+	 * polynomial through a window of equally spaced points (Savitzky-Golay).
+	 * They are found by making the powers of the positions orthonormal, then
+	 * the weight of point j is the part of the fit at the middle from j.
+	 *
+	 * @param radius
+	 * @param order of the polynomial
+	 * @return 2*radius+1 weights
+	 */
+	public static double[] getSmoothingKernel(int radius, int order) {
+
+		final int size  = 2*radius+1;
+		final int terms = Math.min(order+1, size);
+		final double scale = Math.max(1, radius); // positions in [-1,1]
+
+		final double[][] basis = new double[terms][size];
+		for (int k = 0; k < terms; k++) {
+			for (int j = 0; j < size; j++) basis[k][j] = Math.pow((j-radius)/scale, k);
+			// Gram-Schmidt, twice as the high powers are nearly parallel
+			for (int pass = 0; pass < 2; pass++) {
+				for (int l = 0; l < k; l++) {
+					double dot = 0;
+					for (int j = 0; j < size; j++) dot += basis[k][j]*basis[l][j];
+					for (int j = 0; j < size; j++) basis[k][j] -= dot*basis[l][j];
+				}
+			}
+			double norm = 0;
+			for (int j = 0; j < size; j++) norm += basis[k][j]*basis[k][j];
+			norm = Math.sqrt(norm);
+			for (int j = 0; j < size; j++) basis[k][j] /= norm;
+		}
+
+		final double[] kernel = new double[size];
+		for (int k = 0; k < terms; k++) {
+			for (int j = 0; j < size; j++) kernel[j] += basis[k][radius]*basis[k][j];
+		}
+		return kernel;
+	}
+
+	/**
+	 * Weighted sums of the windows which fit inside the values. The points nearer
+	 * than the radius to either end are copied.
+	 *
+	 * @param values
+	 * @param kernel of odd length
+	 * @return filtered values
+	 */
+	public static double[] convolve(double[] values, double[] kernel) {
+
+		final int      n      = values.length;
+		final int      radius = kernel.length/2;
+		final double[] ret    = values.clone();
+		for (int i = radius; i < n-radius; i++) {
+			double sum = 0;
+			final int start = i-radius;
+			for (int j = 0; j < kernel.length; j++) sum += kernel[j]*values[start+j];
+			ret[i] = sum;
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param x
+	 * @return true if the points are equally spaced, to a part in a million
+	 */
+	public static boolean isUniform(double[] x) {
+		if (x.length<3) return true;
+		final double step = (x[x.length-1]-x[0])/(x.length-1);
+		if (step==0 || Double.isNaN(step)) return false;
+		final double tolerance = Math.abs(step)*1e-6;
+		for (int i = 1; i < x.length; i++) {
+			if (!(Math.abs(x[i]-x[i-1]-step)<=tolerance)) return false; // NaNs are not uniform
+		}
+		return true;
+	}
+}